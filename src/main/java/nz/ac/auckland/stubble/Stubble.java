@@ -5,30 +5,91 @@ import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.core.joran.spi.JoranException;
 import nz.ac.auckland.morc.MorcMethods;
 import nz.ac.auckland.morc.endpointoverride.EndpointOverride;
-import nz.ac.auckland.stubble.stub.StubDefinition;
+import nz.ac.auckland.morc.processor.MultiProcessor;
+import nz.ac.auckland.morc.processor.SelectorProcessor;
+import nz.ac.auckland.stubble.cluster.FailoverStateBackend;
+import nz.ac.auckland.stubble.cluster.InProcessStateBackend;
+import nz.ac.auckland.stubble.cluster.SharedCounter;
+import nz.ac.auckland.stubble.cluster.StateBackend;
+import nz.ac.auckland.stubble.cluster.StateServerProcessor;
+import nz.ac.auckland.stubble.definition.DefinitionCache;
+import nz.ac.auckland.stubble.definition.StubDefinitionLoader;
+import nz.ac.auckland.stubble.journal.JournalAdminProcessor;
+import nz.ac.auckland.stubble.journal.JournalProcessor;
+import nz.ac.auckland.stubble.journal.RequestJournal;
+import nz.ac.auckland.stubble.metrics.MetricsProcessor;
+import nz.ac.auckland.stubble.metrics.MetricsRegistry;
+import nz.ac.auckland.stubble.record.InteractionRecorder;
+import nz.ac.auckland.stubble.record.InteractionStore;
+import nz.ac.auckland.stubble.record.ReplayProcessor;
+import nz.ac.auckland.stubble.routing.ConnectorProfile;
+import nz.ac.auckland.stubble.routing.HttpStubAddress;
+import nz.ac.auckland.stubble.routing.RoutingProcessor;
+import nz.ac.auckland.stubble.routing.RoutingTable;
+import nz.ac.auckland.stubble.stub.*;
 import org.apache.camel.CamelContext;
+import org.apache.camel.Component;
 import org.apache.camel.Endpoint;
-import org.apache.camel.LoggingLevel;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Predicate;
+import org.apache.camel.Processor;
+import org.apache.camel.Producer;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.properties.PropertiesComponent;
+import org.apache.camel.impl.DefaultCamelContext;
 import org.apache.camel.model.RouteDefinition;
 import org.apache.camel.model.language.ConstantExpression;
+import org.apache.camel.processor.Pipeline;
 import org.apache.camel.spring.SpringCamelContext;
+import org.apache.camel.util.AsyncProcessorConverterHelper;
+import org.apache.camel.util.MessageHelper;
+import org.apache.camel.util.ServiceHelper;
 import org.custommonkey.xmlunit.XMLUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.support.AbstractXmlApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public abstract class Stubble implements MorcMethods {
 
     private static final Logger logger = LoggerFactory.getLogger(Stubble.class);
+    private static final int ASYNC_THREADS = 256;
+    private static final int ASYNC_QUEUE_SIZE = 10000;
     private List<StubDefinition.StubDefinitionBuilderInit> stubBuilders = new ArrayList<>();
     private String[] springContextPaths = new String[]{};
     private String propertiesLocationPath;
+    private ExecutorService stubExecutorService;
+    private MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private Map<String, InteractionStore> interactionStores = new HashMap<>();
+    private Map<String, List<InteractionStore>> replayStores = new HashMap<>();
+    private Map<String, RequestJournal> journals = new HashMap<>();
+    private volatile StateBackend stateBackend;
+    private Map<String, LoadedStub> loadedStubs = new ConcurrentHashMap<>();
+    private Map<String, RoutingProcessor> sharedListeners = new HashMap<>();
+    private Map<String, Producer> sharedListenerProducers = new HashMap<>();
+    private final Object reloadLock = new Object();
+    private StubDefinitionWatcher stubDefinitionWatcher;
+    private CamelContext camelContext;
+    private Thread shutdownHook;
+    private boolean stopped;
 
     protected abstract void configure();
 
@@ -45,6 +106,54 @@ public abstract class Stubble implements MorcMethods {
         return stub("Stub " + stubCount, uri);
     }
 
+    /**
+     * @param clientKey An expression identifying the client of each request
+     * @return A selector factory that loops through the responses separately for each client
+     */
+    protected Function<List<Processor>, ClientSequenceSelectorProcessor> clientSequenceSelector(Expression clientKey) {
+        return processors -> new ClientSequenceSelectorProcessor(processors, clientKey,
+                ClientSequenceSelectorProcessor.DEFAULT_MAXIMUM_CLIENTS);
+    }
+
+    /**
+     * @param sessionKey An expression identifying the session of each request, e.g. RequestKeys.cookie("session")
+     * @return A scenario whose states are tracked separately for each session
+     */
+    protected Scenario scenario(Expression sessionKey) {
+        return Scenario.perSession(sessionKey);
+    }
+
+    /**
+     * @return An empty fault profile, e.g. faults().seed(42).error(0.05, 503).slowDrip(0.01, 10)
+     */
+    protected FaultProfile faults() {
+        return new FaultProfile();
+    }
+
+    /**
+     * @param key        The value extracted by the stub's match key that selects this response
+     * @param processors The processors that generate the response
+     */
+    protected IndexedMatchedResponseProcessor.IndexedResponse keyedResponse(String key, Processor... processors) {
+        return new IndexedMatchedResponseProcessor.IndexedResponse(key, processors);
+    }
+
+    /**
+     * @param predicate  A predicate that is only evaluated when the match key has no keyed response
+     * @param processors The processors that generate the response
+     */
+    protected IndexedMatchedResponseProcessor.IndexedResponse predicateResponse(Predicate predicate,
+                                                                               Processor... processors) {
+        return new IndexedMatchedResponseProcessor.IndexedResponse(predicate, processors);
+    }
+
+    /**
+     * @param processors The processors that generate the response when nothing else matches
+     */
+    protected IndexedMatchedResponseProcessor.DefaultResponse defaultIndexedResponse(Processor... processors) {
+        return new IndexedMatchedResponseProcessor.DefaultResponse(processors);
+    }
+
     /**
      * Override this to return a list of Spring context paths on the classpath
      *
@@ -63,12 +172,407 @@ public abstract class Stubble implements MorcMethods {
         return propertiesLocationPath;
     }
 
+    /**
+     * Override this to load stubs from YAML or JSON definition files, in addition to any declared in configure()
+     *
+     * @return The definition files, see StubDefinitionLoader for their format
+     */
+    protected Path[] getDefinitionPaths() {
+        return new Path[]{};
+    }
+
+    /**
+     * Override this to change where validated definition files are cached, or to return null to disable caching
+     *
+     * @return The directory for the cache of definition files
+     */
+    protected Path getDefinitionCacheDirectory() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "stubble-definitions");
+    }
+
+    /**
+     * Override this to change the default threading used by stubs; individual stubs can override this with
+     * executionMode(...)
+     *
+     * @return The threading used to produce stub responses
+     */
+    protected ExecutionMode getExecutionMode() {
+        return ExecutionMode.BLOCKING;
+    }
+
+    /**
+     * Override this to change the threads used by stubs running asynchronously; by default a virtual thread is used
+     * for each exchange when the JVM supports them (Java 21+), otherwise a bounded pool of daemon threads. Exchanges
+     * beyond the pool's queue are rejected, and fail rather than queueing without limit
+     *
+     * @return The executor used to produce responses for asynchronous stubs
+     */
+    protected ExecutorService createStubExecutorService() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads are not available, using a thread pool for asynchronous stubs");
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "stubble-async-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        //rejected exchanges fail with a RejectedExecutionException (see AsyncStubProcessor)
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(ASYNC_QUEUE_SIZE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private synchronized ExecutorService getStubExecutorService() {
+        if (stubExecutorService == null) stubExecutorService = createStubExecutorService();
+        return stubExecutorService;
+    }
+
+    private synchronized void shutdownStubExecutorService() {
+        if (stubExecutorService != null) stubExecutorService.shutdownNow();
+        //a restart creates a new executor
+        stubExecutorService = null;
+    }
+
+    /**
+     * Override this to serve the metrics of every stub in the Prometheus text format, e.g.
+     * http://0.0.0.0:9090/metrics; metrics are always available over JMX
+     *
+     * @return A Camel endpoint URI for the metrics endpoint, or null for no endpoint
+     */
+    protected String getMetricsUri() {
+        return null;
+    }
+
+    /**
+     * Override this to run as one node of a cluster serving the same stub definitions, where selector positions
+     * are kept in a shared backend so that responses are cycled through as if by a single node: e.g. a
+     * SharedMemoryStateBackend for processes on one host, or a RemoteStateBackend for a node that overrides
+     * getStateServerUri(). Called once as the stubs start; while the backend fails, each node falls back to its
+     * own positions (see FailoverStateBackend)
+     *
+     * @return The backend, or null for each selector to keep its own position
+     */
+    protected StateBackend createStateBackend() throws Exception {
+        return null;
+    }
+
+    /**
+     * Override this to take selector positions from the state backend in blocks, so that nodes make a round trip
+     * to the backend once per block; every position is still used exactly once, but consecutive requests to a node
+     * receive consecutive responses rather than alternating between nodes
+     *
+     * @return The number of positions taken at a time
+     */
+    protected int getStateLeaseSize() {
+        return 1;
+    }
+
+    /**
+     * Override this to serve this node's state backend to other nodes using a RemoteStateBackend, e.g.
+     * http://0.0.0.0:9091/state; if createStateBackend() returns null, an in-process backend is served and used
+     *
+     * @return A Camel endpoint URI for the state endpoint, or null for no endpoint
+     */
+    protected String getStateServerUri() {
+        return null;
+    }
+
+    /**
+     * Override this to tune the Jetty connectors and thread pool shared by HTTP stubs, e.g.
+     * ConnectorProfile.highConcurrency() for load tests with thousands of keep-alive connections; a stub can also
+     * declare its own profile with connectorProfile(...)
+     *
+     * @return The profile, or null for Jetty's defaults
+     */
+    protected ConnectorProfile getConnectorProfile() {
+        return null;
+    }
+
+    /**
+     * Override this to serve the journals of stubs declared with journal(...) as JSON, e.g.
+     * http://0.0.0.0:9090/journal?stub=orders&last=10 (see JournalAdminProcessor for the parameters); journals
+     * are always available from getJournal(...)
+     *
+     * @return A Camel endpoint URI for the journal endpoint, or null for no endpoint
+     */
+    protected String getJournalUri() {
+        return null;
+    }
+
+    /**
+     * Override this to proxy stubs declared with record(...) to their upstream services and record each
+     * interaction; otherwise these stubs replay their recorded interactions
+     *
+     * @return true if stubs should record rather than replay
+     */
+    protected boolean isRecording() {
+        return false;
+    }
+
+    private synchronized InteractionStore openInteractionStore(StubDefinition stub) throws IOException {
+        closeInteractionStore(getRouteId(stub));
+        InteractionStore store = isRecording() ? InteractionStore.openForRecording(stub.getInteractionStorePath())
+                : InteractionStore.openForReplay(stub.getInteractionStorePath());
+        interactionStores.put(getRouteId(stub), store);
+        return store;
+    }
+
+    private synchronized void closeInteractionStore(String routeId) throws IOException {
+        InteractionStore store = interactionStores.remove(routeId);
+        if (store != null) store.close();
+    }
+
+    private synchronized void closeInteractionStores() throws IOException {
+        for (InteractionStore store : interactionStores.values())
+            store.close();
+        interactionStores.clear();
+        for (String routeId : new ArrayList<>(replayStores.keySet()))
+            closeReplayStores(routeId);
+    }
+
+    /*
+     * Opens the stores that the stub's replay(...) responses answer from, closing those of the responses they replace
+     */
+    private synchronized void openReplayStores(StubDefinition stub) throws IOException {
+        String routeId = getRouteId(stub);
+        closeReplayStores(routeId);
+        if (stub.getReplayProcessors().isEmpty()) return;
+
+        List<InteractionStore> stores = new ArrayList<>();
+        replayStores.put(routeId, stores);
+        for (ReplayProcessor replayProcessor : stub.getReplayProcessors())
+            stores.add(replayProcessor.open());
+    }
+
+    private synchronized void closeReplayStores(String routeId) throws IOException {
+        List<InteractionStore> stores = replayStores.remove(routeId);
+        if (stores == null) return;
+        for (InteractionStore store : stores)
+            store.close();
+    }
+
+    /*
+     * A rebuilt route keeps its stub's journal if the journal's settings haven't changed
+     */
+    private synchronized RequestJournal openJournal(StubDefinition stub) throws IOException {
+        String routeId = getRouteId(stub);
+        RequestJournal journal = journals.get(routeId);
+        //capacities are rounded up to a power of two
+        if (journal != null && journal.getCapacity() >= stub.getJournalCapacity()
+                && journal.getCapacity() / 2 < stub.getJournalCapacity()
+                && journal.getMaximumBodyBytes() == stub.getJournalBodyBytes()
+                && Objects.equals(journal.getSpillPath(), stub.getJournalSpillPath())
+                && journal.getSpillBytes() == stub.getJournalSpillBytes()) return journal;
+
+        closeJournal(routeId);
+        if (stub.getJournalCapacity() == 0) return null;
+
+        journal = stub.getJournalSpillPath() == null
+                ? new RequestJournal(stub.getJournalCapacity(), stub.getJournalBodyBytes())
+                : new RequestJournal(stub.getJournalCapacity(), stub.getJournalBodyBytes(),
+                stub.getJournalSpillPath(), stub.getJournalSpillBytes());
+        journals.put(routeId, journal);
+        return journal;
+    }
+
+    private synchronized void closeJournal(String routeId) throws IOException {
+        RequestJournal journal = journals.remove(routeId);
+        if (journal != null) journal.close();
+    }
+
+    private synchronized void closeJournals() throws IOException {
+        for (RequestJournal journal : journals.values())
+            journal.close();
+        journals.clear();
+    }
+
+    /**
+     * @return The journals of the running stubs, keyed by stub description
+     */
+    public synchronized Map<String, RequestJournal> getJournals() {
+        Map<String, RequestJournal> journalsByDescription = new TreeMap<>();
+        for (Map.Entry<String, LoadedStub> loadedStub : loadedStubs.entrySet()) {
+            RequestJournal journal = journals.get(loadedStub.getKey());
+            if (journal != null) journalsByDescription.put(loadedStub.getValue().stub.getDescription(), journal);
+        }
+        return journalsByDescription;
+    }
+
+    /**
+     * @param description The description of a stub declared with journal(...)
+     * @return The stub's journal of recent requests, or null if the stub has none
+     */
+    public RequestJournal getJournal(String description) {
+        return getJournals().get(description);
+    }
+
+    /**
+     * Override this to serve every Jetty stub on the same port from a single listener, which dispatches each
+     * request through a routing table on path, host and method. This keeps the number of listeners and their
+     * threads constant no matter how many stubs there are
+     *
+     * @return true if stubs sharing a port should share a listener
+     */
+    protected boolean isPortSharing() {
+        return false;
+    }
+
+    private boolean isSharedListener(StubDefinition stub) {
+        return isPortSharing() && HttpStubAddress.isShareable(stub.getEndpointUri());
+    }
+
+    /*
+     * Starts a listener for each port with shared stubs, and updates the routing tables of existing listeners to
+     * match the current stubs
+     */
+    private void updateSharedListeners(CamelContext context) throws Exception {
+        Map<String, RoutingTable.Builder> routingTables = new HashMap<>();
+
+        for (Map.Entry<String, LoadedStub> loadedStub : loadedStubs.entrySet()) {
+            StubDefinition stub = loadedStub.getValue().stub;
+            if (!isSharedListener(stub)) continue;
+
+            HttpStubAddress address = HttpStubAddress.parse(stub.getEndpointUri());
+            Producer producer = sharedListenerProducers.get(loadedStub.getKey());
+            if (producer == null) {
+                producer = context.getEndpoint("direct:" + loadedStub.getKey()).createProducer();
+                ServiceHelper.startService(producer);
+                sharedListenerProducers.put(loadedStub.getKey(), producer);
+            }
+
+            routingTables.computeIfAbsent(address.getListenerUri(), uri -> new RoutingTable.Builder())
+                    .add(address.getPath(), address.isPrefix(), address.getMethods(), stub.getVirtualHost(),
+                            AsyncProcessorConverterHelper.convert(producer));
+        }
+
+        for (Map.Entry<String, RoutingTable.Builder> routingTable : routingTables.entrySet()) {
+            final String listenerUri = routingTable.getKey();
+            RoutingProcessor listener = sharedListeners.get(listenerUri);
+            if (listener != null) {
+                listener.setRoutingTable(routingTable.getValue().build());
+                continue;
+            }
+
+            final RoutingProcessor routingProcessor = new RoutingProcessor(routingTable.getValue().build());
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() throws Exception {
+                    from(listenerUri)
+                            .routeId(getListenerRouteId(listenerUri))
+                            .process(routingProcessor);
+                }
+            });
+            sharedListeners.put(listenerUri, routingProcessor);
+            logger.info("Sharing listener {} between stubs", listenerUri);
+        }
+
+        for (String listenerUri : new ArrayList<>(sharedListeners.keySet())) {
+            if (routingTables.containsKey(listenerUri)) continue;
+            context.stopRoute(getListenerRouteId(listenerUri));
+            context.removeRoute(getListenerRouteId(listenerUri));
+            sharedListeners.remove(listenerUri);
+        }
+
+        for (Iterator<Map.Entry<String, Producer>> producers = sharedListenerProducers.entrySet().iterator();
+             producers.hasNext(); ) {
+            Map.Entry<String, Producer> producer = producers.next();
+            LoadedStub loadedStub = loadedStubs.get(producer.getKey());
+            if (loadedStub != null && isSharedListener(loadedStub.stub)) continue;
+            ServiceHelper.stopService(producer.getValue());
+            producers.remove();
+        }
+    }
+
+    /*
+     * Stubs sharing a port are served by one Jetty endpoint, so they must agree on the options that configure it.
+     * A stub with its own connector profile listens through a separate Jetty component, which can't bind a port
+     * that another component is listening on
+     */
+    private void checkSharedListeners(List<StubDefinition> stubs) {
+        Map<Integer, String> listenerUris = new HashMap<>();
+        Map<Integer, StubDefinition> portStubs = new HashMap<>();
+        for (StubDefinition stub : stubs) {
+            int port = getJettyPort(stub);
+            StubDefinition other = port == -1 ? null : portStubs.putIfAbsent(port, stub);
+            if (other != null && !getJettyComponentName(other).equals(getJettyComponentName(stub))) {
+                StubDefinition profiled = stub.getConnectorProfile() != null ? stub : other;
+                throw new IllegalArgumentException("The stub " + profiled.getDescription() + " has its own "
+                        + "connector profile, so it can't listen on port " + port + " with the stub "
+                        + (profiled == stub ? other : stub).getDescription() + "; give it a port of its own");
+            }
+
+            if (!isSharedListener(stub)) continue;
+            HttpStubAddress address = HttpStubAddress.parse(stub.getEndpointUri());
+            String listenerUri = listenerUris.putIfAbsent(address.getPort(), address.getListenerUri());
+            if (listenerUri != null && !listenerUri.equals(address.getListenerUri()))
+                throw new IllegalArgumentException("The stubs sharing port " + address.getPort()
+                        + " need different listeners " + listenerUri + " and " + address.getListenerUri()
+                        + "; give every stub on the port the same host and endpoint options");
+        }
+    }
+
+    private static String getJettyComponentName(StubDefinition stub) {
+        return stub.getConnectorProfile() == null ? "jetty" : stub.getConnectorProfile().getComponentName();
+    }
+
+    /*
+     * The port of a stub listening through the Jetty component or a connector profile's copy of it, or -1 for
+     * other endpoints
+     */
+    private static int getJettyPort(StubDefinition stub) {
+        String endpointUri = stub.getConnectorProfile() == null ? stub.getEndpointUri()
+                : "jetty" + stub.getEndpointUri().substring(getJettyComponentName(stub).length());
+        if (!HttpStubAddress.isShareable(endpointUri)) return -1;
+        try {
+            return HttpStubAddress.parse(endpointUri).getPort();
+        } catch (IllegalArgumentException e) {
+            //e.g. a port given as a property placeholder, which Camel resolves later
+            return -1;
+        }
+    }
+
+    private static String getListenerRouteId(String listenerUri) {
+        return Stubble.class.getCanonicalName() + ".listener." + listenerUri;
+    }
+
+    /**
+     * Override this to reload the stubs whenever one of these files changes, e.g. files of stub definitions or
+     * response bodies read by configure()
+     *
+     * @return The files, or directories of files, to watch
+     */
+    protected Path[] getWatchedPaths() {
+        return new Path[]{};
+    }
+
+    /**
+     * @return The request counts, sizes and service times of each stub, keyed by route id
+     */
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Override this to provide the Spring context that the Camel context is created from
+     *
+     * @return The Spring context, or null to run without Spring; by default the contexts from
+     *         getSpringContextPaths(), if there are any
+     */
     protected AbstractXmlApplicationContext createApplicationContext() {
-        return new ClassPathXmlApplicationContext(getSpringContextPaths());
+        String[] springContextPaths = getSpringContextPaths();
+        return springContextPaths.length == 0 ? null : new ClassPathXmlApplicationContext(springContextPaths);
     }
 
     protected CamelContext createCamelContext() throws Exception {
-        CamelContext context = SpringCamelContext.springCamelContext(createApplicationContext(), false);
+        //Spring is only needed (and only worth the startup time) when there is a Spring context to load
+        AbstractXmlApplicationContext applicationContext = createApplicationContext();
+        CamelContext context = applicationContext == null ? new DefaultCamelContext()
+                : SpringCamelContext.springCamelContext(applicationContext, false);
 
         String propertiesLocation = getPropertiesLocation();
         if (propertiesLocation != null) {
@@ -101,65 +605,548 @@ public abstract class Stubble implements MorcMethods {
         }
     }
 
-    public void run() throws Exception {
+    /*
+     * Only extracts the body and headers when debug logging is enabled, and avoids consuming streamed bodies
+     */
+    private static Processor debugLog(String message, String endpointUri) {
+        return exchange -> {
+            if (logger.isDebugEnabled())
+                logger.debug(message, endpointUri, MessageHelper.extractBodyForLogging(exchange.getIn()),
+                        exchange.getIn().getHeaders());
+        };
+    }
+
+    /**
+     * Creates the route that serves a stub
+     *
+     * @param stub    The stub definition, already built
+     * @param context The Camel context the route will be added to
+     * @return The route definition for the stub
+     */
+    protected RouteDefinition createRouteDefinition(StubDefinition stub, CamelContext context) throws Exception {
+        logger.info("Starting stub {} for endpoint {}", stub.getDescription(), stub.getEndpointUri());
+
+        String routeId = getRouteId(stub);
+
+        //a stub sharing a listener is reached from the listener's routing table, and its overrides apply there
+        boolean sharedListener = isSharedListener(stub);
+        if (stub.getConnectorProfile() != null) addConnectorComponent(stub.getConnectorProfile(), context);
+        Endpoint targetEndpoint = context.getEndpoint(sharedListener
+                ? HttpStubAddress.parse(stub.getEndpointUri()).getListenerUri() : stub.getEndpointUri());
+        for (EndpointOverride override : stub.getEndpointOverrides())
+            override.overrideEndpoint(targetEndpoint);
+
+        RouteDefinition routeDefinition = new RouteDefinition();
+
+        routeDefinition.from(sharedListener ? "direct:" + routeId : stub.getEndpointUri())
+                .routeId(routeId)
+                .setProperty("endpointUri", new ConstantExpression(stub.getEndpointUri()))
+                .process(new MetricsProcessor(metricsRegistry.register(routeId)));
+
+        switch (stub.getRequestBodyHandling()) {
+            case EAGER:
+                routeDefinition.convertBodyTo(byte[].class);
+                break;
+            case LAZY:
+                if (stub.isRequestBodyRequired()) routeDefinition.convertBodyTo(byte[].class);
+                break;
+            case DISCARD:
+                routeDefinition.process(exchange -> exchange.getIn().setBody(null));
+                break;
+        }
+
+        routeDefinition.process(debugLog("Endpoint {} received body: {}, headers: {}", stub.getEndpointUri()));
+
+        ExecutionMode executionMode = stub.getExecutionMode() == null ? getExecutionMode() : stub.getExecutionMode();
+
+        //release the Jetty thread while the response is produced or delayed
+        if (executionMode == ExecutionMode.ASYNC || stub.getLatencyProcessor() != null
+                || stub.getBandwidthProcessor() != null)
+            new EndpointPropertiesOverride("useContinuation", true).overrideEndpoint(targetEndpoint);
+
+        if (stub.getRecordUpstreamUri() != null && isRecording()) {
+            InteractionRecorder recorder = new InteractionRecorder(openInteractionStore(stub));
+            logger.info("Recording stub {} from {} to {}", stub.getDescription(), stub.getRecordUpstreamUri(),
+                    stub.getInteractionStorePath());
+            routeDefinition.process(recorder.requestProcessor())
+                    .to(InteractionRecorder.upstreamEndpointUri(stub.getRecordUpstreamUri()))
+                    .process(recorder.responseProcessor());
+        } else if (stub.getRecordUpstreamUri() != null) {
+            routeDefinition.process(new ReplayProcessor(openInteractionStore(stub)));
+        }
+
+        ReloadableProcessor stubProcessor = new ReloadableProcessor(createStubProcessor(stub, context));
+        RequestJournal journal = openJournal(stub);
+        routeDefinition.process(journal == null ? stubProcessor : new JournalProcessor(journal, stubProcessor));
+        loadedStubs.put(routeId, new LoadedStub(stub, stubProcessor));
+
+        routeDefinition.process(debugLog("Endpoint {} returning back to the client body: {}, headers: {}",
+                stub.getEndpointUri()));
+
+        return routeDefinition;
+    }
+
+    /*
+     * The stages that produce the response, which can be replaced on reload without rebuilding the route
+     */
+    private Processor createStubProcessor(StubDefinition stub, CamelContext context) throws IOException {
+        openReplayStores(stub);
+        shareSelectorState(stub);
+        ExecutionMode executionMode = stub.getExecutionMode() == null ? getExecutionMode() : stub.getExecutionMode();
+        List<Processor> processors = new ArrayList<>();
+
+        if (stub.getRecordUpstreamUri() == null && executionMode == ExecutionMode.ASYNC) {
+            Processor stubProcessor = stub.getSelectorProcessor();
+            if (stub.getStubFeedPreprocessor() != null)
+                stubProcessor = new MultiProcessor(Arrays.asList(stub.getStubFeedPreprocessor(),
+                        stub.getSelectorProcessor()));
+
+            processors.add(new AsyncStubProcessor(getStubExecutorService(), stubProcessor));
+        } else if (stub.getRecordUpstreamUri() == null) {
+            if (stub.getStubFeedPreprocessor() != null)
+                processors.add(stub.getStubFeedPreprocessor());
+
+            processors.add(stub.getSelectorProcessor());
+        }
+
+        if (stub.getLatencyProcessor() != null)
+            processors.add(stub.getLatencyProcessor());
+
+        //compressed ahead of any faults, so a truncated body is a truncated compressed body
+        if (stub.getCompression() != Compression.OFF)
+            processors.add(new CompressionProcessor(stub.getCompression(), stub.getCompressionMinimumBytes()));
+
+        //validators depend on the encoding of the body sent
+        if (stub.isConditionalRequests() || stub.getCacheControl() != null)
+            processors.add(new ConditionalResponseProcessor(stub.isConditionalRequests(), stub.getCacheControl()));
+
+        if (stub.getFaultProfile() != null) {
+            //faults are chosen ahead of the selector, and body faults are applied before any bandwidth limit
+            Processor responseProcessor = processors.size() == 1 ? processors.get(0)
+                    : new Pipeline(context, processors);
+            processors = new ArrayList<>();
+            processors.add(new FaultProcessor(stub.getFaultProfile(), responseProcessor));
+        }
+
+        if (stub.getBandwidthProcessor() != null)
+            processors.add(stub.getBandwidthProcessor());
+
+        if (stub.getCompression() != Compression.OFF)
+            processors.add(CompressionProcessor.writer());
+
+        Processor stages = processors.size() == 1 ? processors.get(0) : new Pipeline(context, processors);
+        //rejected requests skip every other stage, including any latency
+        return stub.getRateLimit() == null ? stages : new RateLimitProcessor(stub.getRateLimit(), stages);
+    }
+
+    private void shareSelectorState(StubDefinition stub) {
+        StateBackend backend = stateBackend;
+        if (backend == null) return;
+
+        String routeId = getRouteId(stub);
+        if (stub.getSelectorProcessor() instanceof CyclingSelectorProcessor)
+            ((CyclingSelectorProcessor) stub.getSelectorProcessor()).share(new SharedCounter(backend,
+                    routeId + "/cycle", getStateLeaseSize()));
+        else if (stub.getSelectorProcessor() instanceof ClientSequenceSelectorProcessor)
+            ((ClientSequenceSelectorProcessor) stub.getSelectorProcessor()).share(backend, routeId + "/client/",
+                    getStateLeaseSize());
+    }
+
+    /**
+     * @return The id of the route serving the stub, which also keys its metrics
+     */
+    protected String getRouteId(StubDefinition stub) {
+        return Stubble.class.getCanonicalName() + "." + stub.getDescription().replaceAll("\\s+", "");
+    }
+
+    /**
+     * Starts the stubs without blocking the caller
+     *
+     * @return A future that completes with the Camel context once every stub endpoint is listening, or
+     *         exceptionally if any stub fails to start
+     */
+    public CompletableFuture<CamelContext> start() {
+        CompletableFuture<CamelContext> started = new CompletableFuture<>();
+        synchronized (this) {
+            //a restarted instance blocks in run() until it is stopped again
+            stopped = false;
+        }
+
+        Thread startupThread = new Thread(() -> {
+            try {
+                started.complete(startContext());
+            } catch (Throwable e) {
+                started.completeExceptionally(e);
+            }
+        }, "stubble-startup");
+        startupThread.start();
+
+        return started;
+    }
+
+    /*
+     * A stub with its own connector profile listens through a separate instance of the Jetty component, named after
+     * the profile, so that its connector and thread pool aren't shared with other stubs
+     */
+    private void addConnectorComponent(ConnectorProfile profile, CamelContext context) throws Exception {
+        String name = profile.getComponentName();
+        if (context.hasComponent(name) != null) return;
+
+        Component jetty = context.getComponent("jetty");
+        if (jetty == null) throw new IllegalStateException("The Jetty component is needed for connector profiles");
+        Component component = jetty.getClass().newInstance();
+        component.setCamelContext(context);
+        profile.configure(component, context);
+        context.addComponent(name, component);
+    }
+
+    private CamelContext startContext() throws Exception {
         configureLogging();
         configureXmlUnit();
         CamelContext context = createCamelContext();
 
-        configure();
-
-        stubBuilders.stream().forEach(b -> {
+        try {
+            return startContext(context);
+        } catch (Throwable e) {
+            //stop anything already started (listeners, threads and shared state) rather than leaking it
+            synchronized (this) {
+                camelContext = context;
+            }
             try {
-                context.addRoutes(
-                        new RouteBuilder() {
-                            @Override
-                            public void configure() throws Exception {
-                                StubDefinition stub = b.build();
+                stop();
+            } catch (Exception stopFailure) {
+                e.addSuppressed(stopFailure);
+            }
+            throw e;
+        }
+    }
 
-                                logger.info("Starting stub {} for endpoint {}", stub.getDescription(), stub.getEndpointUri());
+    private CamelContext startContext(CamelContext context) throws Exception {
+        ConnectorProfile connectorProfile = getConnectorProfile();
+        if (connectorProfile != null) {
+            Component jetty = context.getComponent("jetty");
+            if (jetty != null) connectorProfile.configure(jetty, context);
+        }
 
-                                Endpoint targetEndpoint = context.getEndpoint(stub.getEndpointUri());
-                                for (EndpointOverride override : stub.getEndpointOverrides())
-                                    override.overrideEndpoint(targetEndpoint);
+        stateBackend = createStateBackend();
+        //stubs keep responding from local state while a shared backend is failing
+        if (stateBackend != null && !(stateBackend instanceof InProcessStateBackend))
+            stateBackend = new FailoverStateBackend(stateBackend);
+        if (stateBackend == null && getStateServerUri() != null) stateBackend = new InProcessStateBackend();
 
-                                RouteDefinition routeDefinition = new RouteDefinition();
+        synchronized (reloadLock) {
+            List<StubDefinition> stubs = buildStubs(context);
+            checkSharedListeners(stubs);
+            for (StubDefinition stub : stubs)
+                context.addRouteDefinition(createRouteDefinition(stub, context));
+            updateSharedListeners(context);
+        }
 
-                                routeDefinition.from(stub.getEndpointUri())
-                                        .convertBodyTo(byte[].class)
-                                        .routeId(Stubble.class.getCanonicalName() + "." + stub.getDescription().replaceAll("\\s+", ""))
-                                        .setProperty("endpointUri", new ConstantExpression(stub.getEndpointUri()))
-                                        .log(LoggingLevel.DEBUG, "Endpoint ${property.endpointUri} received body: ${body}, headers: ${headers}");
+        String metricsUri = getMetricsUri();
+        if (metricsUri != null) {
+            if (metricsUri.startsWith("http")) metricsUri = "jetty:" + metricsUri;
+            final String metricsEndpointUri = metricsUri;
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() throws Exception {
+                    from(metricsEndpointUri)
+                            .routeId(Stubble.class.getCanonicalName() + ".metrics")
+                            .process(exchange -> {
+                                exchange.getIn().setBody(metricsRegistry.toPrometheus());
+                                exchange.getIn().setHeader(Exchange.CONTENT_TYPE, MetricsRegistry.PROMETHEUS_CONTENT_TYPE);
+                            });
+                }
+            });
+            logger.info("Serving stub metrics from {}", metricsEndpointUri);
+        }
 
-                                if (stub.getStubFeedPreprocessor() != null)
-                                    routeDefinition.process(stub.getStubFeedPreprocessor());
+        String stateServerUri = getStateServerUri();
+        if (stateServerUri != null) {
+            if (stateServerUri.startsWith("http")) stateServerUri = "jetty:" + stateServerUri;
+            final String stateServerEndpointUri = stateServerUri;
+            final StateBackend servedBackend = stateBackend;
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() throws Exception {
+                    from(stateServerEndpointUri)
+                            .routeId(Stubble.class.getCanonicalName() + ".state")
+                            .process(new StateServerProcessor(servedBackend));
+                }
+            });
+            logger.info("Serving shared stub state from {}", stateServerEndpointUri);
+        }
 
-                                routeDefinition.process(stub.getSelectorProcessor())
-                                        .log(LoggingLevel.DEBUG, "Endpoint ${property.endpointUri} returning back to the client body: ${body}, headers: ${headers}");
+        String journalUri = getJournalUri();
+        if (journalUri != null) {
+            if (journalUri.startsWith("http")) journalUri = "jetty:" + journalUri;
+            final String journalEndpointUri = journalUri;
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() throws Exception {
+                    from(journalEndpointUri)
+                            .routeId(Stubble.class.getCanonicalName() + ".journal")
+                            .process(new JournalAdminProcessor(Stubble.this::getJournals));
+                }
+            });
+            logger.info("Serving stub journals from {}", journalEndpointUri);
+        }
 
-                                context.addRouteDefinition(routeDefinition);
-                            }
-                        });
+        Thread hook = new Thread(() -> {
+            try {
+                stop();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
-        });
+        }, "stubble-shutdown");
+        synchronized (this) {
+            //one hook per running instance, removed again when it stops
+            if (shutdownHook == null) {
+                Runtime.getRuntime().addShutdownHook(hook);
+                shutdownHook = hook;
+            }
+        }
+
+        context.start();
+
+        synchronized (this) {
+            camelContext = context;
+        }
+
+        Path[] watchedPaths = getWatchedPaths();
+        if (watchedPaths.length > 0) {
+            StubDefinitionWatcher watcher = new StubDefinitionWatcher(Arrays.asList(watchedPaths), () -> {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            synchronized (this) {
+                stubDefinitionWatcher = watcher;
+            }
+            logger.info("Reloading stubs when {} change", Arrays.toString(watchedPaths));
+        }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        return context;
+    }
+
+    /*
+     * Runs configure(), loads the definition files and builds each stub; building a stub renders its static
+     * responses, so they are built concurrently
+     */
+    private List<StubDefinition> buildStubs(CamelContext context) throws IOException {
+        stubBuilders.clear();
+        configure();
+
+        Path cacheDirectory = getDefinitionCacheDirectory();
+        StubDefinitionLoader loader = new StubDefinitionLoader(cacheDirectory == null ? null
+                : new DefinitionCache(cacheDirectory));
+        for (Path definitionPath : getDefinitionPaths())
+            loader.load(definitionPath, (description, uri) -> description == null ? stub(uri) : stub(description, uri));
+
+        return stubBuilders.parallelStream()
+                .map(builder -> {
+                    StubDefinition stub = builder.build();
+                    try {
+                        for (CompiledResponseProcessor compiledResponse : stub.getCompiledResponses()) {
+                            CompiledResponseProcessor.CompiledResponse response = compiledResponse.compile(context);
+                            //the compressed variants are cached with the response
+                            if (response.getBodyLength() > 0
+                                    && response.getBodyLength() >= stub.getCompressionMinimumBytes()) {
+                                for (String encoding : stub.getCompression().getEncodings())
+                                    response.getEncodedBody(encoding);
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    logger.debug("Stub {} has {} pre-rendered responses", stub.getDescription(),
+                            stub.getCompiledResponses().size());
+                    return stub;
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Runs configure() and loads the definition files again, then applies any changes to the running stubs. Stubs
+     * whose endpoint and route stages are unchanged keep serving throughout: their response processors are swapped
+     * atomically, and left as they are (along with the selector's position) if every response is static and renders
+     * identically. Other changed stubs have their routes replaced, new stubs are started and removed stubs are
+     * stopped
+     */
+    public void reload() throws Exception {
+        CamelContext context;
+        synchronized (this) {
+            context = camelContext;
+        }
+        if (context == null) throw new IllegalStateException("The stubs must be started before they are reloaded");
+
+        synchronized (reloadLock) {
+            List<StubDefinition> stubs = buildStubs(context);
+            checkSharedListeners(stubs);
+            Set<String> routeIds = new HashSet<>();
+            int replaced = 0, swapped = 0;
+
+            for (StubDefinition stub : stubs) {
+                String routeId = getRouteId(stub);
+                routeIds.add(routeId);
+                LoadedStub loadedStub = loadedStubs.get(routeId);
+
+                if (loadedStub == null) {
+                    context.addRouteDefinition(createRouteDefinition(stub, context));
+                } else if (!loadedStub.stub.getRouteSignature().equals(stub.getRouteSignature())) {
+                    removeRoute(context, routeId);
+                    context.addRouteDefinition(createRouteDefinition(stub, context));
+                    replaced++;
+                } else if (!hasSameResponses(loadedStub.stub, stub)) {
+                    preserveSelectorState(loadedStub.stub, stub);
+                    loadedStub.processor.replace(createStubProcessor(stub, context));
+                    loadedStubs.put(routeId, new LoadedStub(stub, loadedStub.processor));
+                    swapped++;
+                }
+            }
+
+            int removed = 0;
+            for (String routeId : new ArrayList<>(loadedStubs.keySet())) {
+                if (routeIds.contains(routeId)) continue;
+                removeRoute(context, routeId);
+                metricsRegistry.unregister(routeId);
+                closeJournal(routeId);
+                removed++;
+            }
+
+            updateSharedListeners(context);
+
+            logger.info("Reloaded {} stubs: {} responses replaced, {} routes rebuilt, {} stubs removed",
+                    stubs.size(), swapped, replaced, removed);
+        }
+    }
+
+    private void removeRoute(CamelContext context, String routeId) throws Exception {
+        context.stopRoute(routeId);
+        context.removeRoute(routeId);
+        loadedStubs.remove(routeId);
+        closeInteractionStore(routeId);
+        closeReplayStores(routeId);
+    }
+
+    /*
+     * Responses can only be compared once rendered, so stubs with dynamic responses or stages are always replaced;
+     * the route signatures match, so the previous stub has the same stages
+     */
+    private static boolean hasSameResponses(StubDefinition previous, StubDefinition stub) {
+        if (previous.getStubFeedPreprocessor() != null || stub.getStubFeedPreprocessor() != null
+                || previous.getLatencyProcessor() != null || previous.getBandwidthProcessor() != null
+                || previous.getFaultProfile() != null || previous.getRateLimit() != null)
+            return false;
+
+        SelectorProcessor previousSelector = previous.getSelectorProcessor();
+        SelectorProcessor selector = stub.getSelectorProcessor();
+        if (selector.getClass() != previousSelector.getClass() || !(selector instanceof CyclingSelectorProcessor
+                || selector instanceof ThreadLocalRandomSelectorProcessor)) return false;
+
+        List<Processor> previousResponses = ((IndexedSelectorProcessor) previousSelector).getResponses();
+        List<Processor> responses = ((IndexedSelectorProcessor) selector).getResponses();
+        if (previousResponses.size() != responses.size()) return false;
+
+        for (int i = 0; i < responses.size(); i++) {
+            if (!(previousResponses.get(i) instanceof CompiledResponseProcessor
+                    && responses.get(i) instanceof CompiledResponseProcessor)) return false;
+            if (!((CompiledResponseProcessor) previousResponses.get(i)).getCompiledResponse()
+                    .equals(((CompiledResponseProcessor) responses.get(i)).getCompiledResponse())) return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * Continues the cycle where the previous selector left off when the number of responses hasn't changed
+     */
+    private static void preserveSelectorState(StubDefinition previous, StubDefinition stub) {
+        if (previous.getSelectorProcessor() instanceof CyclingSelectorProcessor
+                && stub.getSelectorProcessor() instanceof CyclingSelectorProcessor) {
+            CyclingSelectorProcessor previousSelector = (CyclingSelectorProcessor) previous.getSelectorProcessor();
+            CyclingSelectorProcessor selector = (CyclingSelectorProcessor) stub.getSelectorProcessor();
+            if (previousSelector.getResponses().size() == selector.getResponses().size())
+                selector.setCount(previousSelector.getCount());
+        }
+    }
+
+    /**
+     * Stops every stub and releases any caller blocked in run()
+     */
+    public void stop() throws Exception {
+        CamelContext context;
+        StubDefinitionWatcher watcher;
+        Thread hook;
+        synchronized (this) {
+            context = camelContext;
+            camelContext = null;
+            watcher = stubDefinitionWatcher;
+            stubDefinitionWatcher = null;
+            hook = shutdownHook;
+            shutdownHook = null;
+            stopped = true;
+            this.notifyAll();
+        }
+
+        if (watcher != null) watcher.close();
+        if (hook != null && hook != Thread.currentThread()) {
             try {
-                context.stop();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                //the JVM is already shutting down
             }
-        }));
+        }
+
+        if (context == null) return;
+
+        context.stop();
+        metricsRegistry.unregisterAll();
+        shutdownStubExecutorService();
+        closeInteractionStores();
+        closeJournals();
+        CompressionProcessor.endEncoders();
+        loadedStubs.clear();
+        StateBackend backend = stateBackend;
+        stateBackend = null;
+        if (backend != null) backend.close();
+        synchronized (reloadLock) {
+            sharedListeners.clear();
+            for (Producer producer : sharedListenerProducers.values())
+                ServiceHelper.stopService(producer);
+            sharedListenerProducers.clear();
+        }
+    }
 
+    /**
+     * Starts the stubs and blocks until stop() is called
+     */
+    public void run() throws Exception {
         try {
-            context.start();
-            synchronized (this) {
+            start().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+
+        synchronized (this) {
+            while (!stopped) {
                 this.wait();
             }
-            context.stop();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+
+    /*
+     * A running stub and the processor that its responses can be swapped into
+     */
+    private static class LoadedStub {
+        private final StubDefinition stub;
+        private final ReloadableProcessor processor;
+
+        private LoadedStub(StubDefinition stub, ReloadableProcessor processor) {
+            this.stub = stub;
+            this.processor = processor;
+        }
+    }
+}
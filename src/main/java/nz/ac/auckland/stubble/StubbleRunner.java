@@ -0,0 +1,82 @@
+package nz.ac.auckland.stubble;
+
+import nz.ac.auckland.stubble.cluster.RemoteStateBackend;
+import nz.ac.auckland.stubble.cluster.SharedMemoryStateBackend;
+import nz.ac.auckland.stubble.cluster.StateBackend;
+import nz.ac.auckland.stubble.routing.ConnectorProfile;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs the stubs in YAML or JSON definition files without any Java or Groovy code, reloading them whenever a file
+ * changes, e.g. java -cp stubble.jar nz.ac.auckland.stubble.StubbleRunner orders.yaml customers.json
+ * <p>
+ * Several runners form a cluster with the system properties stubble.state (a shared-memory file, or the http URI
+ * of another runner's state server), stubble.stateServer (an http URI to serve this runner's state from) and
+ * stubble.stateLease (the number of selector positions taken at a time)
+ * <p>
+ * Setting the system property stubble.connectors=highConcurrency tunes the Jetty connectors for load tests
+ */
+public class StubbleRunner extends Stubble {
+
+    private final Path[] definitionPaths;
+
+    public StubbleRunner(Path... definitionPaths) {
+        this.definitionPaths = definitionPaths;
+    }
+
+    @Override
+    protected void configure() {
+    }
+
+    @Override
+    protected Path[] getDefinitionPaths() {
+        return definitionPaths;
+    }
+
+    @Override
+    protected Path[] getWatchedPaths() {
+        return definitionPaths;
+    }
+
+    @Override
+    protected StateBackend createStateBackend() throws Exception {
+        String state = System.getProperty("stubble.state");
+        if (state == null) return null;
+        if (state.startsWith("http:") || state.startsWith("https:")) return new RemoteStateBackend(state);
+        return new SharedMemoryStateBackend(Paths.get(state), Integer.getInteger("stubble.stateSlots", 65536));
+    }
+
+    @Override
+    protected String getStateServerUri() {
+        return System.getProperty("stubble.stateServer");
+    }
+
+    @Override
+    protected int getStateLeaseSize() {
+        return Integer.getInteger("stubble.stateLease", 1);
+    }
+
+    @Override
+    protected ConnectorProfile getConnectorProfile() {
+        String connectors = System.getProperty("stubble.connectors");
+        if (connectors == null) return null;
+        if (connectors.equals("highConcurrency")) return ConnectorProfile.highConcurrency();
+        throw new IllegalArgumentException("Unknown connector profile " + connectors);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: StubbleRunner <definition file>...");
+            System.exit(1);
+        }
+
+        Path[] definitionPaths = new Path[args.length];
+        for (int i = 0; i < args.length; i++) {
+            definitionPaths[i] = Paths.get(args[i]);
+        }
+
+        new StubbleRunner(definitionPaths).run();
+    }
+}
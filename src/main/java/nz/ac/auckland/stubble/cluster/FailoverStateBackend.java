@@ -0,0 +1,143 @@
+package nz.ac.auckland.stubble.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the stubs responding when a shared backend fails, by falling back to counters held in this JVM. A circuit
+ * breaker opens after a number of consecutive failures, so requests stop waiting on a backend that is down; while
+ * it is open the local counters are used, and once it has been open for a while a single request tries the backend
+ * again, closing the circuit if it succeeds. Positions taken locally aren't known to the other nodes, so the
+ * cluster cycles through responses independently until the backend recovers
+ */
+public class FailoverStateBackend implements StateBackend {
+
+    private static final Logger logger = LoggerFactory.getLogger(FailoverStateBackend.class);
+
+    private static final long CLOSED = 0;
+
+    private final StateBackend backend;
+    private final StateBackend fallback = new InProcessStateBackend();
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicInteger failures = new AtomicInteger();
+    //when the backend may next be tried, or CLOSED while the backend is in use
+    private final AtomicLong retryAt = new AtomicLong(CLOSED);
+
+    /**
+     * @param backend The shared backend, tried again every 10 seconds once 3 consecutive requests to it have failed
+     */
+    public FailoverStateBackend(StateBackend backend) {
+        this(backend, 3, 10000);
+    }
+
+    /**
+     * @param backend          The shared backend
+     * @param failureThreshold The number of consecutive failures that open the circuit
+     * @param openMillis       How long the circuit stays open before the backend is tried again
+     */
+    public FailoverStateBackend(StateBackend backend, int failureThreshold, long openMillis) {
+        if (failureThreshold <= 0) throw new IllegalArgumentException("The failure threshold must be positive");
+        if (openMillis < 0) throw new IllegalArgumentException("The open time can't be negative");
+        this.backend = backend;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    @Override
+    public long getAndAdd(String key, long delta) {
+        if (!tryBackend()) return fallback.getAndAdd(key, delta);
+        try {
+            return succeeded(backend.getAndAdd(key, delta));
+        } catch (UncheckedIOException e) {
+            failed(e);
+            return fallback.getAndAdd(key, delta);
+        }
+    }
+
+    @Override
+    public long getAndAdd(String key, long delta, long timeToIdleMillis) {
+        if (!tryBackend()) return fallback.getAndAdd(key, delta, timeToIdleMillis);
+        try {
+            return succeeded(backend.getAndAdd(key, delta, timeToIdleMillis));
+        } catch (UncheckedIOException e) {
+            failed(e);
+            return fallback.getAndAdd(key, delta, timeToIdleMillis);
+        }
+    }
+
+    @Override
+    public long get(String key) {
+        if (!tryBackend()) return fallback.get(key);
+        try {
+            return succeeded(backend.get(key));
+        } catch (UncheckedIOException e) {
+            failed(e);
+            return fallback.get(key);
+        }
+    }
+
+    @Override
+    public void set(String key, long value) {
+        fallback.set(key, value);
+        if (!tryBackend()) return;
+        try {
+            backend.set(key, value);
+            succeeded(value);
+        } catch (UncheckedIOException e) {
+            failed(e);
+        }
+    }
+
+    /*
+     * Whether this request should go to the backend: always while the circuit is closed, and for one request at a
+     * time once it has been open long enough
+     */
+    private boolean tryBackend() {
+        long retry = retryAt.get();
+        if (retry == CLOSED) return true;
+        long now = System.currentTimeMillis();
+        return now >= retry && retryAt.compareAndSet(retry, now + openMillis);
+    }
+
+    private long succeeded(long value) {
+        failures.set(0);
+        if (retryAt.getAndSet(CLOSED) != CLOSED) logger.info("The state backend has recovered");
+        return value;
+    }
+
+    private void failed(UncheckedIOException e) {
+        if (retryAt.get() != CLOSED) {
+            logger.debug("The state backend is still failing", e);
+            return;
+        }
+        if (failures.incrementAndGet() < failureThreshold) {
+            logger.debug("A request to the state backend failed", e);
+            return;
+        }
+        if (retryAt.compareAndSet(CLOSED, Math.max(1, System.currentTimeMillis() + openMillis)))
+            logger.warn("The state backend failed {} times in a row, so local state is used for the next {}ms",
+                    failureThreshold, openMillis, e);
+    }
+
+    /**
+     * @return true while requests are answered from local state
+     */
+    public boolean isOpen() {
+        return retryAt.get() != CLOSED;
+    }
+
+    public StateBackend getBackend() {
+        return backend;
+    }
+
+    @Override
+    public void close() throws IOException {
+        backend.close();
+    }
+}
@@ -0,0 +1,77 @@
+package nz.ac.auckland.stubble.cluster;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters held in this JVM, shared by every Stubble instance given the same backend (e.g. several stub sets in one
+ * test), or served to other nodes through Stubble.getStateServerUri(). Counters that expire are swept out as new
+ * counters are added, so per-client state doesn't accumulate
+ */
+public class InProcessStateBackend implements StateBackend {
+
+    //the number of counters added between sweeps for expired counters
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final AtomicInteger additions = new AtomicInteger();
+
+    @Override
+    public long getAndAdd(String key, long delta) {
+        return counter(key, System.currentTimeMillis()).value.getAndAdd(delta);
+    }
+
+    @Override
+    public long getAndAdd(String key, long delta, long timeToIdleMillis) {
+        long now = System.currentTimeMillis();
+        Counter counter = counter(key, now);
+        counter.expiresAt = timeToIdleMillis > 0 ? now + timeToIdleMillis : 0;
+        return counter.value.getAndAdd(delta);
+    }
+
+    @Override
+    public long get(String key) {
+        Counter counter = counters.get(key);
+        return counter == null || counter.isExpired(System.currentTimeMillis()) ? 0 : counter.value.get();
+    }
+
+    @Override
+    public void set(String key, long value) {
+        counter(key, System.currentTimeMillis()).value.set(value);
+    }
+
+    /**
+     * @return The number of counters held, including expired counters that haven't been swept yet
+     */
+    public int size() {
+        return counters.size();
+    }
+
+    private Counter counter(String key, long now) {
+        Counter counter = counters.get(key);
+        if (counter != null && !counter.isExpired(now)) return counter;
+        if (counter != null) counters.remove(key, counter);
+
+        counter = counters.computeIfAbsent(key, k -> new Counter());
+        if (additions.incrementAndGet() % SWEEP_INTERVAL == 0) sweep(now);
+        return counter;
+    }
+
+    private void sweep(long now) {
+        counters.forEach((key, counter) -> {
+            if (counter.isExpired(now)) counters.remove(key, counter);
+        });
+    }
+
+    private static class Counter {
+        private final AtomicLong value = new AtomicLong();
+        //the time after which the counter is discarded, or 0 to keep it
+        private volatile long expiresAt;
+
+        private boolean isExpired(long now) {
+            long expiry = expiresAt;
+            return expiry != 0 && now - expiry > 0;
+        }
+    }
+}
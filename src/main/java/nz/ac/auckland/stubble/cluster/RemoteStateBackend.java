@@ -0,0 +1,94 @@
+package nz.ac.auckland.stubble.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Counters held by another node (or any service speaking the same protocol), for stubble processes on different
+ * hosts. The node serving the state overrides Stubble.getStateServerUri(); see StateServerProcessor for the
+ * protocol. Connections are kept alive between requests, and a lease size above 1 (Stubble.getStateLeaseSize())
+ * makes a round trip only once per lease
+ */
+public class RemoteStateBackend implements StateBackend {
+
+    private final String uri;
+    private final int timeoutMillis;
+
+    /**
+     * @param uri The URI the state is served from, e.g. http://stubble-1:9091/state
+     */
+    public RemoteStateBackend(String uri) {
+        this(uri, 5000);
+    }
+
+    /**
+     * @param uri           The URI the state is served from
+     * @param timeoutMillis The connect and read timeout of each request
+     */
+    public RemoteStateBackend(String uri, int timeoutMillis) {
+        this.uri = uri;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public long getAndAdd(String key, long delta) {
+        return request("POST", key, "&add=" + delta);
+    }
+
+    @Override
+    public long getAndAdd(String key, long delta, long timeToIdleMillis) {
+        return request("POST", key, "&add=" + delta + "&ttl=" + timeToIdleMillis);
+    }
+
+    @Override
+    public long get(String key) {
+        return request("GET", key, "");
+    }
+
+    @Override
+    public void set(String key, long value) {
+        request("PUT", key, "&value=" + value);
+    }
+
+    private long request(String method, String key, String parameters) {
+        try {
+            URL url = new URL(uri + "?key=" + URLEncoder.encode(key, "UTF-8") + parameters);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+
+            int status = connection.getResponseCode();
+            InputStream stream = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+            //reading the whole response lets the connection be reused
+            String body = stream == null ? "" : read(stream);
+            if (status != 200)
+                throw new IOException("The state server at " + uri + " returned " + status + ": " + body);
+            return Long.parseLong(body.trim());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String read(InputStream stream) throws IOException {
+        try (InputStream input = stream) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public String getUri() {
+        return uri;
+    }
+}
@@ -0,0 +1,92 @@
+package nz.ac.auckland.stubble.cluster;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter held in a state backend. With a lease size of 1 every increment goes to the backend, so nodes take
+ * strictly alternating positions; a larger lease takes a block of positions at a time, which keeps every position
+ * in use exactly once across the cluster while cutting the backend's load by the lease size. No lock is held
+ * while the backend is asked for a lease
+ */
+public class SharedCounter {
+
+    private final StateBackend backend;
+    private final String key;
+    private final int leaseSize;
+    private final long timeToIdleMillis;
+    private final ConcurrentLinkedQueue<Lease> leases = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param backend   The backend holding the counter
+     * @param key       The counter's key, the same on every node
+     * @param leaseSize The number of positions taken from the backend at a time
+     */
+    public SharedCounter(StateBackend backend, String key, int leaseSize) {
+        this(backend, key, leaseSize, 0);
+    }
+
+    /**
+     * @param backend          The backend holding the counter
+     * @param key              The counter's key, the same on every node
+     * @param leaseSize        The number of positions taken from the backend at a time
+     * @param timeToIdleMillis How long the backend keeps the counter once it stops being incremented, or 0 to keep
+     *                         it for good
+     */
+    public SharedCounter(StateBackend backend, String key, int leaseSize, long timeToIdleMillis) {
+        if (leaseSize <= 0) throw new IllegalArgumentException("The lease size must be positive");
+        if (timeToIdleMillis < 0) throw new IllegalArgumentException("The time to idle can't be negative");
+        this.backend = backend;
+        this.key = key;
+        this.leaseSize = leaseSize;
+        this.timeToIdleMillis = timeToIdleMillis;
+    }
+
+    public long getAndIncrement() {
+        if (leaseSize == 1) return add(1);
+
+        for (Lease lease; (lease = leases.peek()) != null; ) {
+            long position = lease.next.getAndIncrement();
+            if (position < lease.end) return position;
+            leases.remove(lease);
+        }
+
+        //threads that run out of positions together each take a lease, and the positions they don't use are used
+        //by later requests
+        long start = add(leaseSize);
+        leases.add(new Lease(start + 1, start + leaseSize));
+        return start;
+    }
+
+    private long add(long delta) {
+        return timeToIdleMillis == 0 ? backend.getAndAdd(key, delta) : backend.getAndAdd(key, delta, timeToIdleMillis);
+    }
+
+    /**
+     * @return The counter's value across the cluster, including positions leased but not yet used
+     */
+    public long get() {
+        return backend.get(key);
+    }
+
+    /**
+     * Sets the counter for every node; positions already leased by a node are still used by it
+     */
+    public void set(long value) {
+        backend.set(key, value);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    private static class Lease {
+        private final AtomicLong next;
+        private final long end;
+
+        private Lease(long next, long end) {
+            this.next = new AtomicLong(next);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package nz.ac.auckland.stubble.cluster;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counters in a memory-mapped file, shared by the stubble processes on one host. The file is a fixed-size
+ * open-addressing table of (key hash, value, expiry) slots; each operation holds a lock on the file's header, which
+ * serializes it against every other process (and, through a monitor, every other thread in this JVM) using the file.
+ * Expired counters are replaced by tombstones as lookups pass them, and their slots are reused. A key is only
+ * placed within a bounded number of slots of its hash, so an operation never scans the whole file; a key that finds
+ * no free slot there fails like an unavailable backend
+ */
+public class SharedMemoryStateBackend implements StateBackend {
+
+    private static final long MAGIC = 0x5354554242535441L;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 24;
+    private static final int MAXIMUM_PROBES = 128;
+    //marks a slot whose counter expired, which lookups pass over and insertions reuse; 0 marks an empty slot
+    private static final long TOMBSTONE = -1;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    //a JVM may only hold one lock on a region of a file, so threads using the same file take turns first
+    private static final ConcurrentHashMap<Path, Object> monitors = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Object monitor;
+    private final int slots;
+
+    /**
+     * @param file  The file shared by the processes, created if it doesn't exist
+     * @param slots The number of counters the file can hold if it is created; an existing file keeps its size
+     */
+    public SharedMemoryStateBackend(Path file, int slots) throws IOException {
+        if (slots <= 0) throw new IllegalArgumentException("The number of slots must be positive");
+        this.monitor = monitors.computeIfAbsent(file.toAbsolutePath().normalize(), path -> new Object());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        this.slots = initialize(file, slots);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.slots * SLOT_SIZE);
+    }
+
+    /*
+     * Writes the header if this is the first process to use the file, and returns the file's number of slots
+     */
+    private int initialize(Path file, int slots) throws IOException {
+        synchronized (monitor) {
+            try (FileLock lock = channel.lock(0, HEADER_SIZE, false)) {
+                if (channel.size() < HEADER_SIZE) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putLong(MAGIC).putInt(VERSION).putInt(slots).flip();
+                    channel.write(header, 0);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.getLong() != MAGIC || header.getInt() != VERSION)
+                    throw new IOException(file + " is not a stubble state file");
+                return header.getInt();
+            }
+        }
+    }
+
+    @Override
+    public long getAndAdd(String key, long delta) {
+        return getAndAdd(key, delta, 0);
+    }
+
+    @Override
+    public long getAndAdd(String key, long delta, long timeToIdleMillis) {
+        long hash = hash(key);
+        return locked(() -> {
+            long now = System.currentTimeMillis();
+            int offset = find(hash, true, now);
+            long value = buffer.getLong(offset + 8);
+            buffer.putLong(offset + 8, value + delta);
+            buffer.putLong(offset + 16, timeToIdleMillis > 0 ? now + timeToIdleMillis : 0);
+            return value;
+        });
+    }
+
+    @Override
+    public long get(String key) {
+        long hash = hash(key);
+        return locked(() -> {
+            int offset = find(hash, false, System.currentTimeMillis());
+            return offset < 0 ? 0 : buffer.getLong(offset + 8);
+        });
+    }
+
+    @Override
+    public void set(String key, long value) {
+        long hash = hash(key);
+        locked(() -> {
+            buffer.putLong(find(hash, true, System.currentTimeMillis()) + 8, value);
+            return value;
+        });
+    }
+
+    private interface Operation {
+        long run();
+    }
+
+    private long locked(Operation operation) {
+        synchronized (monitor) {
+            try (FileLock lock = channel.lock(0, HEADER_SIZE, false)) {
+                return operation.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /*
+     * The offset of the key's slot, or -1 if it has none and insert is false. A new slot starts at 0 and never
+     * expires
+     */
+    private int find(long hash, boolean insert, long now) {
+        int slot = (int) ((hash >>> 1) % slots);
+        int free = -1;
+        for (int probe = 0; probe < Math.min(slots, MAXIMUM_PROBES); probe++) {
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            long slotHash = buffer.getLong(offset);
+            if (slotHash == 0) {
+                if (free < 0) free = offset;
+                break;
+            }
+
+            long expiresAt = buffer.getLong(offset + 16);
+            if (slotHash != TOMBSTONE && expiresAt != 0 && now - expiresAt > 0) {
+                buffer.putLong(offset, TOMBSTONE);
+                slotHash = TOMBSTONE;
+            }
+            if (slotHash == hash) return offset;
+            if (slotHash == TOMBSTONE && free < 0) free = offset;
+            slot = slot + 1 == slots ? 0 : slot + 1;
+        }
+
+        if (!insert) return -1;
+        if (free < 0)
+            throw new UncheckedIOException(new IOException("The shared state file is full around this key, with "
+                    + slots + " counters"));
+        buffer.putLong(free, hash);
+        buffer.putLong(free + 8, 0);
+        buffer.putLong(free + 16, 0);
+        return free;
+    }
+
+    /*
+     * A 64-bit hash identifies a key, as the file holds no key text; 0 and -1 mark empty and expired slots
+     */
+    private static long hash(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash == 0 || hash == TOMBSTONE ? 1 : hash;
+    }
+
+    /**
+     * @return The number of counters the file can hold
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,45 @@
+package nz.ac.auckland.stubble.cluster;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Holds the counters behind response selection (selector positions), so that several stubble nodes serving the
+ * same definitions can cycle through responses as if they were one. Keys are derived from route ids, which are the
+ * same on every node given the same definitions. Implementations must be safe for concurrent use; failures are
+ * reported as UncheckedIOException
+ */
+public interface StateBackend extends Closeable {
+
+    /**
+     * @param key   The counter
+     * @param delta The amount to add
+     * @return The counter's value before the addition (counters start from 0)
+     */
+    long getAndAdd(String key, long delta);
+
+    /**
+     * Adds to a counter that is discarded once it hasn't been added to for a while, for state kept per client whose
+     * keys would otherwise accumulate. A discarded counter starts from 0 again. Backends that can't discard counters
+     * keep them
+     *
+     * @param key              The counter
+     * @param delta            The amount to add
+     * @param timeToIdleMillis How long the counter is kept without being added to
+     * @return The counter's value before the addition
+     */
+    default long getAndAdd(String key, long delta, long timeToIdleMillis) {
+        return getAndAdd(key, delta);
+    }
+
+    /**
+     * @return The counter's value, or 0 if it has never been set
+     */
+    long get(String key);
+
+    void set(String key, long value);
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,65 @@
+package nz.ac.auckland.stubble.cluster;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.util.URISupport;
+
+import java.util.Map;
+
+/**
+ * Serves a state backend to RemoteStateBackend clients over HTTP. Every request names a counter with the key
+ * parameter; GET returns its value, POST with add=delta adds to it and returns the previous value (discarding the
+ * counter once it hasn't been added to for ttl milliseconds, if given), and PUT with value=v sets it. Responses are
+ * the value as plain text
+ */
+public class StateServerProcessor implements Processor {
+
+    private final StateBackend backend;
+
+    public StateServerProcessor(StateBackend backend) {
+        this.backend = backend;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Map<String, Object> parameters = URISupport.parseQuery(exchange.getIn().getHeader(Exchange.HTTP_QUERY,
+                "", String.class));
+        String method = exchange.getIn().getHeader(Exchange.HTTP_METHOD, "GET", String.class);
+        exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "text/plain");
+
+        Object key = parameters.get("key");
+        if (!(key instanceof String)) {
+            respond(exchange, 400, "A single key parameter is required");
+            return;
+        }
+
+        try {
+            switch (method) {
+                case "GET":
+                    respond(exchange, 200, String.valueOf(backend.get((String) key)));
+                    break;
+                case "POST":
+                    long delta = Long.parseLong(String.valueOf(parameters.getOrDefault("add", "1")));
+                    Object ttl = parameters.get("ttl");
+                    long previous = ttl == null ? backend.getAndAdd((String) key, delta)
+                            : backend.getAndAdd((String) key, delta, Long.parseLong(String.valueOf(ttl)));
+                    respond(exchange, 200, String.valueOf(previous));
+                    break;
+                case "PUT":
+                    long value = Long.parseLong(String.valueOf(parameters.get("value")));
+                    backend.set((String) key, value);
+                    respond(exchange, 200, String.valueOf(value));
+                    break;
+                default:
+                    respond(exchange, 405, "Unsupported method " + method);
+            }
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "Invalid number: " + e.getMessage());
+        }
+    }
+
+    private static void respond(Exchange exchange, int status, String body) {
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, status);
+        exchange.getIn().setBody(body);
+    }
+}
@@ -0,0 +1,169 @@
+package nz.ac.auckland.stubble.definition;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A binary cache of validated stub definition files, so that unchanged files can be loaded without running the
+ * YAML or JSON parser or validating them again. An entry is only used if the source file's length and checksum
+ * match those it was created from
+ */
+public class DefinitionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DefinitionCache.class);
+    private static final int MAGIC = 0x53544244;
+    private static final int VERSION = 1;
+
+    private static final byte NULL = 0, FALSE = 1, TRUE = 2, INTEGER = 3, DECIMAL = 4, TEXT = 5, ARRAY = 6,
+            OBJECT = 7;
+
+    private final Path directory;
+
+    /**
+     * @param directory The directory holding the cache entries, created when the first entry is written
+     */
+    public DefinitionCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param source   The definition file
+     * @param length   The length of the file's content
+     * @param checksum The checksum of the file's content
+     * @return The validated definitions, or null if there is no up-to-date entry for the file
+     */
+    public JsonNode get(Path source, long length, long checksum) {
+        Path entry = entryPath(source);
+        if (!Files.exists(entry)) return null;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readLong() != length
+                    || input.readLong() != checksum) return null;
+            return readNode(input);
+        } catch (IOException e) {
+            logger.debug("Ignoring unreadable stub definition cache entry {}", entry, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes an entry for the file; failures are logged as the cache is only an optimization
+     */
+    public void put(Path source, long length, long checksum, JsonNode definitions) {
+        Path entry = entryPath(source);
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(length);
+                output.writeLong(checksum);
+                writeNode(output, definitions);
+            }
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to cache the stub definitions from {} in {}", source, directory, e);
+        }
+    }
+
+    private Path entryPath(Path source) {
+        String name = source.toAbsolutePath().normalize().toString();
+        //the file name keeps entries recognizable; the hash separates files of the same name
+        return directory.resolve(source.getFileName() + "." + Integer.toHexString(name.hashCode()) + ".bin");
+    }
+
+    private static void writeNode(DataOutputStream output, JsonNode node) throws IOException {
+        if (node == null || node.isNull()) {
+            output.writeByte(NULL);
+        } else if (node.isBoolean()) {
+            output.writeByte(node.booleanValue() ? TRUE : FALSE);
+        } else if (node.isIntegralNumber()) {
+            output.writeByte(INTEGER);
+            output.writeLong(node.longValue());
+        } else if (node.isNumber()) {
+            output.writeByte(DECIMAL);
+            output.writeDouble(node.doubleValue());
+        } else if (node.isArray()) {
+            output.writeByte(ARRAY);
+            output.writeInt(node.size());
+            for (JsonNode element : node) {
+                writeNode(output, element);
+            }
+        } else if (node.isObject()) {
+            output.writeByte(OBJECT);
+            output.writeInt(node.size());
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                writeText(output, field.getKey());
+                writeNode(output, field.getValue());
+            }
+        } else {
+            output.writeByte(TEXT);
+            writeText(output, node.asText());
+        }
+    }
+
+    private static JsonNode readNode(DataInputStream input) throws IOException {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        byte type = input.readByte();
+        switch (type) {
+            case NULL:
+                return factory.nullNode();
+            case FALSE:
+                return factory.booleanNode(false);
+            case TRUE:
+                return factory.booleanNode(true);
+            case INTEGER:
+                return factory.numberNode(input.readLong());
+            case DECIMAL:
+                return factory.numberNode(input.readDouble());
+            case TEXT:
+                return factory.textNode(readText(input));
+            case ARRAY:
+                int size = input.readInt();
+                ArrayNode array = factory.arrayNode();
+                for (int i = 0; i < size; i++) {
+                    array.add(readNode(input));
+                }
+                return array;
+            case OBJECT:
+                int fieldCount = input.readInt();
+                ObjectNode object = factory.objectNode();
+                for (int i = 0; i < fieldCount; i++) {
+                    String name = readText(input);
+                    object.set(name, readNode(input));
+                }
+                return object;
+            default:
+                throw new IOException("Unknown node type " + type);
+        }
+    }
+
+    //writeUTF is limited to 64KB, which inline bodies can exceed
+    private static void writeText(DataOutputStream output, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readText(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
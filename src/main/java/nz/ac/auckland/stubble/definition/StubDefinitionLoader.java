@@ -0,0 +1,448 @@
+package nz.ac.auckland.stubble.definition;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import nz.ac.auckland.morc.MorcMethods;
+import nz.ac.auckland.morc.resource.HeadersTestResource;
+import nz.ac.auckland.stubble.stub.*;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Processor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Loads stubs from YAML (.yaml or .yml) or JSON files, e.g.
+ * <pre>
+ * stubs:
+ *   - endpoint: http://0.0.0.0:8080/orders
+ *     responses:
+ *       - json: '{ "status" : "shipped" }'
+ *         headers: { Content-Type: application/json }
+ *       - status: 503
+ * </pre>
+ * Each file is validated once and cached in a binary form, so later loads of an unchanged file skip parsing and
+ * validation
+ */
+public class StubDefinitionLoader {
+
+    private static final MorcMethods morc = new MorcMethods() {
+    };
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+    private static final ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+
+    private static final Set<String> STUB_FIELDS = new HashSet<>(Arrays.asList("description", "endpoint",
+            "virtualHost", "selector", "clientKey", "requestBody", "executionMode", "compiledResponses", "latency",
+            "bandwidth", "compression", "compressionMinimumBytes", "conditionalRequests", "cacheControl",
+            "rateLimit", "endpointProperties", "queueConsumers", "responses", "indexedResponses", "record", "replay"));
+    private static final Set<String> RESPONSE_FIELDS = new HashSet<>(Arrays.asList("status", "headers", "text",
+            "xml", "json", "textFile", "xmlFile", "jsonFile", "file", "template", "dynamic"));
+    private static final Set<String> BODY_FIELDS = new HashSet<>(Arrays.asList("text", "xml", "json", "textFile",
+            "xmlFile", "jsonFile", "file", "template"));
+    private static final Set<String> INDEXED_FIELDS = new HashSet<>(Arrays.asList("key", "responses", "default"));
+    private static final Set<String> KEY_FIELDS = new HashSet<>(Arrays.asList("header", "jsonPointer", "xpath",
+            "namespaces", "elementText"));
+    private static final Set<String> CLIENT_KEY_FIELDS = new HashSet<>(Arrays.asList("header", "cookie",
+            "address"));
+    private static final Set<String> LATENCY_FIELDS = new HashSet<>(Arrays.asList("fixed", "uniform", "normal",
+            "percentiles"));
+    private static final Set<String> RECORD_FIELDS = new HashSet<>(Arrays.asList("upstream", "store"));
+    private static final Set<String> QUEUE_CONSUMER_FIELDS = new HashSet<>(Arrays.asList("concurrentConsumers",
+            "prefetch", "batchAcknowledgement", "pooledReplies"));
+
+    private static final Set<String> RATE_LIMIT_FIELDS = new HashSet<>(Arrays.asList("algorithm", "permits",
+            "burst", "windowMillis", "key", "maximumKeys", "status", "body"));
+
+    private final DefinitionCache cache;
+
+    /**
+     * @param cache The cache of validated definitions, or null to parse and validate files on every load
+     */
+    public StubDefinitionLoader(DefinitionCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param file        The definition file; relative paths within it are resolved against its directory
+     * @param stubFactory Creates a builder from a description (null for a generated one) and an endpoint URI,
+     *                    such as Stubble's stub(...) methods
+     * @return The builders for the stubs in the file, already configured
+     */
+    public List<StubDefinition.StubDefinitionBuilder> load(Path file,
+                                                           BiFunction<String, String, StubDefinition.StubDefinitionBuilder> stubFactory)
+            throws IOException {
+        JsonNode definitions = read(file);
+        Path directory = file.toAbsolutePath().getParent();
+
+        List<StubDefinition.StubDefinitionBuilder> builders = new ArrayList<>();
+        for (JsonNode stub : definitions.path("stubs")) {
+            builders.add(createStub(stub, directory, stubFactory));
+        }
+        return builders;
+    }
+
+    /**
+     * @return The validated definitions in the file, from the cache if it is up to date
+     */
+    public JsonNode read(Path file) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+
+        JsonNode definitions = cache == null ? null : cache.get(file, content.length, checksum.getValue());
+        if (definitions != null) return definitions;
+
+        String name = file.getFileName().toString().toLowerCase();
+        ObjectMapper mapper = name.endsWith(".yaml") || name.endsWith(".yml") ? yamlMapper : jsonMapper;
+        definitions = mapper.readTree(content);
+        if (definitions == null) definitions = mapper.createObjectNode();
+        validate(file, definitions);
+
+        if (cache != null) cache.put(file, content.length, checksum.getValue(), definitions);
+        return definitions;
+    }
+
+    private static void validate(Path file, JsonNode definitions) {
+        String location = file.toString();
+        checkFields(location, definitions, Collections.singleton("stubs"));
+        JsonNode stubs = definitions.path("stubs");
+        if (!stubs.isMissingNode() && !stubs.isArray()) fail(location + ": stubs", "must be a list");
+
+        for (int i = 0; i < stubs.size(); i++) {
+            String stubLocation = location + ": stubs[" + i + "]";
+            JsonNode stub = stubs.get(i);
+            checkFields(stubLocation, stub, STUB_FIELDS);
+            if (!stub.path("endpoint").isTextual()) fail(stubLocation, "requires an endpoint");
+
+            checkEnum(stubLocation + ".selector", stub.get("selector"), "cycle", "random", "client");
+            checkEnum(stubLocation + ".requestBody", stub.get("requestBody"), "eager", "lazy", "discard");
+            checkEnum(stubLocation + ".executionMode", stub.get("executionMode"), "blocking", "async");
+            if ("client".equals(stub.path("selector").asText()) && !stub.has("clientKey"))
+                fail(stubLocation, "requires a clientKey for the client selector");
+            if (stub.has("clientKey")) checkSingleField(stubLocation + ".clientKey", stub.get("clientKey"),
+                    CLIENT_KEY_FIELDS);
+            if (stub.has("latency")) checkLatency(stubLocation + ".latency", stub.get("latency"));
+            if (stub.has("bandwidth") && !(stub.get("bandwidth").canConvertToLong()
+                    && stub.get("bandwidth").longValue() > 0)) fail(stubLocation + ".bandwidth", "must be positive");
+            checkEnum(stubLocation + ".compression", stub.get("compression"), "off", "gzip", "deflate", "negotiated");
+            if (stub.has("compressionMinimumBytes") && !(stub.get("compressionMinimumBytes").canConvertToInt()
+                    && stub.get("compressionMinimumBytes").intValue() >= 0))
+                fail(stubLocation + ".compressionMinimumBytes", "can't be negative");
+            if (stub.has("cacheControl") && !stub.get("cacheControl").isTextual())
+                fail(stubLocation + ".cacheControl", "must be text");
+            if (stub.has("endpointProperties") && !stub.get("endpointProperties").isObject())
+                fail(stubLocation + ".endpointProperties", "must be a map");
+            if (stub.has("rateLimit")) checkRateLimit(stubLocation + ".rateLimit", stub.get("rateLimit"));
+            if (stub.has("queueConsumers")) checkQueueConsumers(stubLocation + ".queueConsumers",
+                    stub.get("queueConsumers"));
+            if (stub.has("record")) {
+                checkFields(stubLocation + ".record", stub.get("record"), RECORD_FIELDS);
+                if (!stub.get("record").path("upstream").isTextual() || !stub.get("record").path("store").isTextual())
+                    fail(stubLocation + ".record", "requires an upstream and a store");
+            }
+
+            JsonNode responses = stub.path("responses");
+            if (!responses.isMissingNode() && !responses.isArray()) fail(stubLocation + ".responses", "must be a list");
+            for (int j = 0; j < responses.size(); j++) {
+                checkResponse(stubLocation + ".responses[" + j + "]", responses.get(j));
+            }
+
+            if (stub.has("indexedResponses")) {
+                String indexedLocation = stubLocation + ".indexedResponses";
+                JsonNode indexed = stub.get("indexedResponses");
+                checkFields(indexedLocation, indexed, INDEXED_FIELDS);
+                checkKey(indexedLocation + ".key", indexed.path("key"));
+                if (!indexed.path("responses").isObject()) fail(indexedLocation + ".responses", "must be a map");
+                Iterator<Map.Entry<String, JsonNode>> keyedResponses = indexed.path("responses").fields();
+                while (keyedResponses.hasNext()) {
+                    Map.Entry<String, JsonNode> keyedResponse = keyedResponses.next();
+                    checkResponse(indexedLocation + ".responses." + keyedResponse.getKey(), keyedResponse.getValue());
+                }
+                if (indexed.has("default")) checkResponse(indexedLocation + ".default", indexed.get("default"));
+            }
+        }
+    }
+
+    private static void checkResponse(String location, JsonNode response) {
+        checkFields(location, response, RESPONSE_FIELDS);
+        int bodies = 0;
+        for (String field : BODY_FIELDS) {
+            if (response.has(field)) {
+                bodies++;
+                if (!response.get(field).isTextual()) fail(location + "." + field, "must be a string");
+            }
+        }
+        //parsing the template validates its placeholders
+        if (response.has("template")) new ResponseTemplate(response.get("template").asText());
+        if (bodies > 1) fail(location, "can only have one body");
+        if (response.has("status") && !response.get("status").canConvertToInt())
+            fail(location + ".status", "must be a number");
+        if (response.has("headers") && !response.get("headers").isObject())
+            fail(location + ".headers", "must be a map");
+    }
+
+    private static void checkKey(String location, JsonNode key) {
+        if (key.isTextual() && key.asText().equals("body")) return;
+        checkFields(location, key, KEY_FIELDS);
+        int keys = 0;
+        for (String field : Arrays.asList("header", "jsonPointer", "xpath", "elementText")) {
+            if (key.has(field)) keys++;
+        }
+        if (keys != 1) fail(location, "requires one of header, jsonPointer, xpath, elementText or body");
+        if (key.has("namespaces") && !key.get("namespaces").isObject()) fail(location + ".namespaces", "must be a map");
+        //compiling the XPath validates it
+        if (key.has("xpath")) new CompiledXPath(key.get("xpath").asText(), namespaces(key.path("namespaces")));
+    }
+
+    private static void checkLatency(String location, JsonNode latency) {
+        checkFields(location, latency, LATENCY_FIELDS);
+        if (latency.size() != 1) fail(location, "requires exactly one of " + new TreeSet<>(LATENCY_FIELDS));
+        String type = latency.fieldNames().next();
+        JsonNode value = latency.get(type);
+        int expected = type.equals("fixed") ? 0 : type.equals("percentiles") ? -1 : 2;
+        if (expected == 0 && !value.canConvertToLong()) fail(location + "." + type, "must be a number");
+        if (expected == 2 && !(value.isArray() && value.size() == 2))
+            fail(location + "." + type, "must be a list of two numbers");
+        if (expected == -1) {
+            if (!value.isArray() || value.size() % 2 != 0)
+                fail(location + "." + type, "must be a list of percentile and delay pairs");
+            LatencyProfile.percentiles(doubles(value));
+        }
+    }
+
+    private static void checkQueueConsumers(String location, JsonNode consumers) {
+        checkFields(location, consumers, QUEUE_CONSUMER_FIELDS);
+        for (String field : Arrays.asList("concurrentConsumers", "prefetch", "pooledReplies")) {
+            if (consumers.has(field) && !(consumers.get(field).isInt() && consumers.get(field).intValue() > 0))
+                fail(location + "." + field, "must be a positive integer");
+        }
+        if (consumers.has("batchAcknowledgement") && !consumers.get("batchAcknowledgement").isBoolean())
+            fail(location + ".batchAcknowledgement", "must be true or false");
+    }
+
+    private static void checkRateLimit(String location, JsonNode rateLimit) {
+        checkFields(location, rateLimit, RATE_LIMIT_FIELDS);
+        checkEnum(location + ".algorithm", rateLimit.get("algorithm"), "tokenbucket", "slidingwindow");
+        if (!(rateLimit.path("permits").isNumber() && rateLimit.get("permits").doubleValue() > 0))
+            fail(location + ".permits", "must be positive");
+        for (String field : Arrays.asList("burst", "windowMillis", "maximumKeys")) {
+            JsonNode value = rateLimit.get(field);
+            if (value != null && !(value.canConvertToLong() && value.longValue() > 0))
+                fail(location + "." + field, "must be a positive integer");
+        }
+        if (rateLimit.has("key")) checkSingleField(location + ".key", rateLimit.get("key"), CLIENT_KEY_FIELDS);
+        if (rateLimit.has("status") && !(rateLimit.get("status").isInt() && rateLimit.get("status").intValue() >= 400
+                && rateLimit.get("status").intValue() <= 599)) fail(location + ".status", "must be an error status");
+    }
+
+    private static void checkSingleField(String location, JsonNode node, Set<String> fields) {
+        if (node.isTextual() && fields.contains(node.asText())) return;
+        checkFields(location, node, fields);
+        if (node.size() != 1) fail(location, "requires exactly one of " + new TreeSet<>(fields));
+    }
+
+    private static void checkFields(String location, JsonNode node, Set<String> fields) {
+        if (!node.isObject()) fail(location, "must be a map");
+        Iterator<String> names = node.fieldNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (!fields.contains(name)) fail(location, "has an unknown field '" + name + "'");
+        }
+    }
+
+    private static void checkEnum(String location, JsonNode value, String... values) {
+        if (value != null && !Arrays.asList(values).contains(value.asText().toLowerCase()))
+            fail(location, "must be one of " + Arrays.toString(values));
+    }
+
+    private static void fail(String location, String message) {
+        throw new IllegalArgumentException(location + " " + message);
+    }
+
+    private StubDefinition.StubDefinitionBuilder createStub(JsonNode stub, Path directory,
+                                                            BiFunction<String, String, StubDefinition.StubDefinitionBuilder> stubFactory)
+            throws IOException {
+        StubDefinition.StubDefinitionBuilder builder = stubFactory.apply(
+                stub.has("description") ? stub.get("description").asText() : null, stub.get("endpoint").asText());
+
+        if (stub.has("virtualHost")) builder.virtualHost(stub.get("virtualHost").asText());
+        if (stub.has("requestBody"))
+            builder.requestBody(RequestBodyHandling.valueOf(stub.get("requestBody").asText().toUpperCase()));
+        if (stub.has("executionMode"))
+            builder.executionMode(ExecutionMode.valueOf(stub.get("executionMode").asText().toUpperCase()));
+        if (stub.has("compiledResponses")) builder.compiledResponses(stub.get("compiledResponses").asBoolean());
+        if (stub.has("latency")) builder.latency(latencyProfile(stub.get("latency")));
+        if (stub.has("bandwidth")) builder.bandwidth(stub.get("bandwidth").longValue());
+        if (stub.path("conditionalRequests").asBoolean()) builder.conditionalRequests();
+        if (stub.has("cacheControl")) builder.cacheControl(stub.get("cacheControl").asText());
+        if (stub.has("compression")) {
+            Compression compression = Compression.valueOf(stub.get("compression").asText().toUpperCase());
+            if (stub.has("compressionMinimumBytes"))
+                builder.compression(compression, stub.get("compressionMinimumBytes").intValue());
+            else builder.compression(compression);
+        }
+
+        if (stub.has("endpointProperties")) {
+            Map<String, Object> properties = new LinkedHashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = stub.get("endpointProperties").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                properties.put(field.getKey(), field.getValue().asText());
+            }
+            builder.addEndpointOverride(new EndpointPropertiesOverride(properties));
+        }
+
+        if (stub.has("rateLimit")) builder.rateLimit(rateLimit(stub.get("rateLimit")));
+
+        if (stub.has("queueConsumers")) {
+            JsonNode consumers = stub.get("queueConsumers");
+            QueueConsumerOverride override = new QueueConsumerOverride();
+            if (consumers.has("concurrentConsumers"))
+                override.concurrentConsumers(consumers.get("concurrentConsumers").intValue());
+            if (consumers.has("prefetch")) override.prefetch(consumers.get("prefetch").intValue());
+            if (consumers.path("batchAcknowledgement").asBoolean()) override.batchAcknowledgement();
+            if (consumers.has("pooledReplies")) override.pooledReplies(consumers.get("pooledReplies").intValue());
+            builder.queueConsumers(override);
+        }
+
+        switch (stub.path("selector").asText("cycle").toLowerCase()) {
+            case "random":
+                builder.selector(ThreadLocalRandomSelectorProcessor.class);
+                break;
+            case "client":
+                final Expression clientKey = clientKey(stub.get("clientKey"));
+                builder.selector(processors -> new ClientSequenceSelectorProcessor(processors, clientKey,
+                        ClientSequenceSelectorProcessor.DEFAULT_MAXIMUM_CLIENTS));
+                break;
+        }
+
+        for (JsonNode response : stub.path("responses")) {
+            if (response.path("dynamic").asBoolean()) builder.dynamicResponse(response(response, directory));
+            else builder.response(response(response, directory));
+        }
+
+        if (stub.has("indexedResponses")) {
+            JsonNode indexed = stub.get("indexedResponses");
+            List<IndexedMatchedResponseProcessor.IndexedResponse> responses = new ArrayList<>();
+            Iterator<Map.Entry<String, JsonNode>> keyedResponses = indexed.get("responses").fields();
+            while (keyedResponses.hasNext()) {
+                Map.Entry<String, JsonNode> keyedResponse = keyedResponses.next();
+                responses.add(new IndexedMatchedResponseProcessor.IndexedResponse(keyedResponse.getKey(),
+                        response(keyedResponse.getValue(), directory)));
+            }
+
+            IndexedMatchedResponseProcessor.DefaultResponse defaultResponse = indexed.has("default")
+                    ? new IndexedMatchedResponseProcessor.DefaultResponse(response(indexed.get("default"), directory))
+                    : null;
+            builder.indexedResponses(matchKey(indexed.get("key")), defaultResponse,
+                    responses.toArray(new IndexedMatchedResponseProcessor.IndexedResponse[responses.size()]));
+        }
+
+        if (stub.has("record"))
+            builder.record(stub.get("record").get("upstream").asText(),
+                    directory.resolve(stub.get("record").get("store").asText()));
+        if (stub.has("replay")) builder.replay(directory.resolve(stub.get("replay").asText()));
+
+        return builder;
+    }
+
+    /*
+     * Status codes and headers are static resources, so responses without a file remain eligible for compilation
+     */
+    private static Processor[] response(JsonNode response, Path directory) throws IOException {
+        List<Processor> processors = new ArrayList<>();
+
+        Map<String, Object> headers = new LinkedHashMap<>();
+        if (response.has("status")) headers.put(Exchange.HTTP_RESPONSE_CODE, response.get("status").intValue());
+        Iterator<Map.Entry<String, JsonNode>> fields = response.path("headers").fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            headers.put(field.getKey(), field.getValue().asText());
+        }
+        if (!headers.isEmpty()) processors.add(new HeadersTestResource(headers));
+
+        if (response.has("text")) processors.add(morc.text(response.get("text").asText()));
+        if (response.has("xml")) processors.add(morc.xml(response.get("xml").asText()));
+        if (response.has("json")) processors.add(morc.json(response.get("json").asText()));
+        if (response.has("textFile")) processors.add(morc.text(readFile(directory, response.get("textFile"))));
+        if (response.has("xmlFile")) processors.add(morc.xml(readFile(directory, response.get("xmlFile"))));
+        if (response.has("jsonFile")) processors.add(morc.json(readFile(directory, response.get("jsonFile"))));
+        if (response.has("file"))
+            processors.add(new FileResponseProcessor(directory.resolve(response.get("file").asText())));
+        if (response.has("template")) processors.add(new ResponseTemplate(response.get("template").asText()));
+
+        return processors.toArray(new Processor[processors.size()]);
+    }
+
+    private static String readFile(Path directory, JsonNode path) throws IOException {
+        return new String(Files.readAllBytes(directory.resolve(path.asText())), StandardCharsets.UTF_8);
+    }
+
+    private static Expression matchKey(JsonNode key) {
+        if (key.isTextual()) return MatchKeys.body();
+        if (key.has("header")) return MatchKeys.header(key.get("header").asText());
+        if (key.has("jsonPointer")) return MatchKeys.jsonPointer(key.get("jsonPointer").asText());
+        if (key.has("elementText")) return MatchKeys.elementText(key.get("elementText").asText());
+        return MatchKeys.xpath(key.get("xpath").asText(), namespaces(key.path("namespaces")));
+    }
+
+    private static Expression clientKey(JsonNode key) {
+        if (key.isTextual()) return RequestKeys.clientAddress();
+        if (key.has("header")) return RequestKeys.header(key.get("header").asText());
+        if (key.has("cookie")) return RequestKeys.cookie(key.get("cookie").asText());
+        return RequestKeys.clientAddress();
+    }
+
+    private static RateLimit rateLimit(JsonNode node) {
+        RateLimit rateLimit;
+        if (node.path("algorithm").asText().equalsIgnoreCase("slidingWindow")) {
+            rateLimit = RateLimit.slidingWindow(node.get("permits").longValue(),
+                    node.path("windowMillis").asLong(1000));
+        } else {
+            //a burst of one second's permits by default
+            rateLimit = RateLimit.tokenBucket(node.get("permits").doubleValue(),
+                    node.path("burst").asInt(Math.max(1, node.get("permits").intValue())));
+        }
+        if (node.has("key")) rateLimit.keyedBy(clientKey(node.get("key")), node.path("maximumKeys").asInt(10000));
+        if (node.has("status") || node.has("body"))
+            rateLimit.rejectWith(node.path("status").asInt(429), node.has("body") ? node.get("body").asText() : null);
+        return rateLimit;
+    }
+
+    private static LatencyProfile latencyProfile(JsonNode latency) {
+        if (latency.has("fixed")) return LatencyProfile.fixed(latency.get("fixed").longValue());
+        if (latency.has("uniform"))
+            return LatencyProfile.uniform(latency.get("uniform").get(0).longValue(),
+                    latency.get("uniform").get(1).longValue());
+        if (latency.has("normal"))
+            return LatencyProfile.normal(latency.get("normal").get(0).longValue(),
+                    latency.get("normal").get(1).longValue());
+        return LatencyProfile.percentiles(doubles(latency.get("percentiles")));
+    }
+
+    private static String[] namespaces(JsonNode namespaces) {
+        List<String> pairs = new ArrayList<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = namespaces.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            pairs.add(field.getKey());
+            pairs.add(field.getValue().asText());
+        }
+        return pairs.toArray(new String[pairs.size()]);
+    }
+
+    private static double[] doubles(JsonNode values) {
+        double[] doubles = new double[values.size()];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = values.get(i).asDouble();
+        }
+        return doubles;
+    }
+}
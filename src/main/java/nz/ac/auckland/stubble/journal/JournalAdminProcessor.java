@@ -0,0 +1,134 @@
+package nz.ac.auckland.stubble.journal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.util.URISupport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Serves the request journals as JSON. Without parameters it lists each stub's journal with its count; with
+ * stub=description it returns that stub's entries, filtered by the parameters method, path (a prefix), status,
+ * selectedResponse and header.Name, limited by last=N (100 by default), or only their number with count=true
+ */
+public class JournalAdminProcessor implements Processor {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int DEFAULT_LAST = 100;
+
+    private final Supplier<Map<String, RequestJournal>> journals;
+
+    /**
+     * @param journals Provides the current journals, keyed by stub description
+     */
+    public JournalAdminProcessor(Supplier<Map<String, RequestJournal>> journals) {
+        this.journals = journals;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Map<String, Object> parameters = URISupport.parseQuery(exchange.getIn().getHeader(Exchange.HTTP_QUERY,
+                "", String.class));
+        Map<String, RequestJournal> journals = this.journals.get();
+        exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/json");
+
+        String stub = (String) parameters.get("stub");
+        if (stub == null) {
+            ObjectNode summary = mapper.createObjectNode();
+            for (Map.Entry<String, RequestJournal> journal : journals.entrySet()) {
+                summary.putObject(journal.getKey()).put("count", journal.getValue().getCount())
+                        .put("capacity", journal.getValue().getCapacity());
+            }
+            exchange.getIn().setBody(mapper.writeValueAsBytes(summary));
+            return;
+        }
+
+        RequestJournal journal = journals.get(stub);
+        if (journal == null) {
+            error(exchange, 404, "No journal for stub " + stub);
+            return;
+        }
+
+        Predicate<JournalEntry> filter;
+        int last = DEFAULT_LAST;
+        try {
+            filter = filter(parameters);
+            if (parameters.containsKey("last")) last = Integer.parseInt(String.valueOf(parameters.get("last")));
+        } catch (NumberFormatException e) {
+            error(exchange, 400, "Invalid number: " + e.getMessage());
+            return;
+        }
+        if (last < 0) {
+            error(exchange, 400, "last can't be negative");
+            return;
+        }
+
+        List<JournalEntry> entries = journal.find(filter);
+        if ("true".equals(parameters.get("count"))) {
+            exchange.getIn().setBody(mapper.writeValueAsBytes(mapper.createObjectNode().put("count",
+                    entries.size())));
+            return;
+        }
+
+        ArrayNode body = mapper.createArrayNode();
+        for (JournalEntry entry : entries.subList(Math.max(0, entries.size() - last), entries.size())) {
+            body.add(toJson(entry));
+        }
+        exchange.getIn().setBody(mapper.writeValueAsBytes(body));
+    }
+
+    private static void error(Exchange exchange, int status, String message) throws Exception {
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, status);
+        exchange.getIn().setBody(mapper.writeValueAsBytes(mapper.createObjectNode().put("error", message)));
+    }
+
+    /*
+     * Throws a NumberFormatException for a status that isn't a number
+     */
+    private static Predicate<JournalEntry> filter(Map<String, Object> parameters) {
+        Predicate<JournalEntry> filter = entry -> true;
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            final String value = String.valueOf(parameter.getValue());
+            String name = parameter.getKey();
+            if (name.equals("method")) {
+                filter = filter.and(entry -> entry.getMethod().equalsIgnoreCase(value));
+            } else if (name.equals("path")) {
+                filter = filter.and(entry -> entry.getPath().startsWith(value));
+            } else if (name.equals("status")) {
+                final int status = Integer.parseInt(value);
+                filter = filter.and(entry -> entry.getStatus() == status);
+            } else if (name.equals("selectedResponse")) {
+                filter = filter.and(entry -> value.equals(entry.getSelectedResponse()));
+            } else if (name.startsWith("header.")) {
+                final String header = name.substring("header.".length());
+                filter = filter.and(entry -> value.equals(entry.getHeader(header)));
+            }
+        }
+        return filter;
+    }
+
+    private static ObjectNode toJson(JournalEntry entry) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("sequence", entry.getSequence())
+                .put("timestamp", entry.getTimestamp())
+                .put("method", entry.getMethod())
+                .put("path", entry.getPath())
+                .put("status", entry.getStatus())
+                .put("selectedResponse", entry.getSelectedResponse())
+                .put("bodyHash", Long.toHexString(entry.getBodyHash()))
+                .put("bodyLength", entry.getBodyLength());
+        ObjectNode headers = node.putObject("headers");
+        for (Map.Entry<String, String> header : entry.getHeaders().entrySet()) {
+            headers.put(header.getKey(), header.getValue());
+        }
+        if (entry.getBody().length > 0) node.put("body", new String(entry.getBody(), StandardCharsets.UTF_8));
+        return node;
+    }
+}
@@ -0,0 +1,109 @@
+package nz.ac.auckland.stubble.journal;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A summary of a request received by a stub, and of the response it was given
+ */
+public class JournalEntry {
+
+    private final long sequence;
+    private final long timestamp;
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers;
+    private final long bodyHash;
+    private final int bodyLength;
+    private final byte[] body;
+    private final String selectedResponse;
+    private final int status;
+
+    JournalEntry(long sequence, long timestamp, String method, String path, Map<String, String> headers,
+                 long bodyHash, int bodyLength, byte[] body, String selectedResponse, int status) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.method = method;
+        this.path = path;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.bodyHash = bodyHash;
+        this.bodyLength = bodyLength;
+        this.body = body;
+        this.selectedResponse = selectedResponse;
+        this.status = status;
+    }
+
+    /**
+     * @return The number of the request (from 0) since the journal was created
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return The time the request arrived, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The HTTP method, or an empty string for other transports
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return The request path including any query, or an empty string for other transports
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return The request headers, excluding those added by Camel
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return The 64-bit FNV-1a hash of the whole request body
+     */
+    public long getBodyHash() {
+        return bodyHash;
+    }
+
+    /**
+     * @return The length of the whole request body, or -1 if the body wasn't available
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return The start of the request body, up to the journal's limit; empty if bodies aren't kept
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return The response chosen by the stub (see IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY), or null
+     */
+    public String getSelectedResponse() {
+        return selectedResponse;
+    }
+
+    /**
+     * @return The response status code, or 0 if the stub didn't set one
+     */
+    public int getStatus() {
+        return status;
+    }
+}
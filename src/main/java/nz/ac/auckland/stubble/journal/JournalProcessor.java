@@ -0,0 +1,70 @@
+package nz.ac.auckland.stubble.journal;
+
+import nz.ac.auckland.stubble.stub.IndexedSelectorProcessor;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.util.AsyncProcessorConverterHelper;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records each request in a journal once the stub has responded. The request's headers are copied before the stub
+ * runs, as responses are built on the same message
+ */
+public class JournalProcessor implements AsyncProcessor {
+
+    private final RequestJournal journal;
+    private final AsyncProcessor next;
+
+    /**
+     * @param journal The journal to record requests in
+     * @param next    The stages that produce the response
+     */
+    public JournalProcessor(RequestJournal journal, Processor next) {
+        this.journal = journal;
+        this.next = AsyncProcessorConverterHelper.convert(next);
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        long timestamp = System.currentTimeMillis();
+        String method = exchange.getIn().getHeader(Exchange.HTTP_METHOD, "", String.class);
+        String path = exchange.getIn().getHeader(Exchange.HTTP_URI, "", String.class);
+        String query = exchange.getIn().getHeader(Exchange.HTTP_QUERY, String.class);
+        if (query != null && !query.isEmpty()) path = path + "?" + query;
+
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, Object> header : exchange.getIn().getHeaders().entrySet()) {
+            if (header.getKey().startsWith("Camel") || header.getKey().equals(Exchange.BREADCRUMB_ID)) continue;
+            if (header.getValue() instanceof String || header.getValue() instanceof Number)
+                headers.put(header.getKey(), header.getValue().toString());
+        }
+
+        //the body is only read if it can be read again, i.e. not from a stream
+        Object body = exchange.getIn().getBody();
+        byte[] bodyBytes = body instanceof byte[] ? (byte[]) body
+                : body instanceof String ? ((String) body).getBytes(StandardCharsets.UTF_8) : null;
+
+        final String requestPath = path;
+        return next.process(exchange, doneSync -> {
+            journal.record(timestamp, method, requestPath, headers, bodyBytes,
+                    exchange.getProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, String.class),
+                    exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, 0, Integer.class));
+            callback.done(doneSync);
+        });
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    public RequestJournal getJournal() {
+        return journal;
+    }
+}
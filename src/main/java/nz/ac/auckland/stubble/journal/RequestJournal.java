@@ -0,0 +1,321 @@
+package nz.ac.auckland.stubble.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * A journal of the most recent requests to a stub, held in a fixed-size ring buffer. Recording an entry takes an
+ * atomic increment and an array write, so no request waits on another; the oldest entries are overwritten once the
+ * journal is full. Entries can also be spilled to a memory-mapped file, which keeps the full history (up to the
+ * file's size) for analysis during or after a run with readSpill(...)
+ */
+public class RequestJournal implements Closeable {
+
+    private static final long SPILL_MAGIC = 0x53545542424a4e4cL;
+    private static final int VERSION = 2;
+    private static final int PUBLISHED_POSITION_OFFSET = 12;
+    private static final int SPILL_HEADER_SIZE = 16;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final AtomicReferenceArray<JournalEntry> entries;
+    private final int mask;
+    private final int maximumBodyBytes;
+    private final AtomicLong next = new AtomicLong();
+    private volatile long clearedBefore;
+
+    private final Path spillPath;
+    private final long spillBytes;
+    private FileChannel spillChannel;
+    private volatile MappedByteBuffer spill;
+    private final AtomicLong spillPosition = new AtomicLong(SPILL_HEADER_SIZE);
+    private final AtomicLong spillPublished = new AtomicLong(SPILL_HEADER_SIZE);
+
+    /**
+     * @param capacity         The number of entries kept, rounded up to a power of two
+     * @param maximumBodyBytes The number of bytes kept from the start of each request body; 0 for none
+     */
+    public RequestJournal(int capacity, int maximumBodyBytes) {
+        if (maximumBodyBytes < 0) throw new IllegalArgumentException("The body limit can't be negative");
+        int size = ringSize(capacity);
+        this.entries = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maximumBodyBytes = maximumBodyBytes;
+        this.spillPath = null;
+        this.spillBytes = 0;
+    }
+
+    /**
+     * @param capacity         The number of entries kept in memory, rounded up to a power of two
+     * @param maximumBodyBytes The number of bytes kept from the start of each request body; 0 for none
+     * @param spillPath        A file that every entry is also written to, replacing any existing file
+     * @param spillBytes       The size of the file; entries are no longer spilled once it is full
+     */
+    public RequestJournal(int capacity, int maximumBodyBytes, Path spillPath, long spillBytes) throws IOException {
+        if (maximumBodyBytes < 0) throw new IllegalArgumentException("The body limit can't be negative");
+        if (spillBytes <= SPILL_HEADER_SIZE || spillBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The spill file must be between " + SPILL_HEADER_SIZE
+                    + " bytes and 2GB");
+        int size = ringSize(capacity);
+        this.entries = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maximumBodyBytes = maximumBodyBytes;
+        this.spillPath = spillPath;
+        this.spillBytes = spillBytes;
+
+        if (spillPath.toAbsolutePath().getParent() != null)
+            Files.createDirectories(spillPath.toAbsolutePath().getParent());
+        spillChannel = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        spill = spillChannel.map(FileChannel.MapMode.READ_WRITE, 0, spillBytes);
+        spill.putLong(0, SPILL_MAGIC);
+        spill.putInt(8, VERSION);
+        spill.putInt(PUBLISHED_POSITION_OFFSET, SPILL_HEADER_SIZE);
+    }
+
+    private static int ringSize(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        return size < capacity ? size << 1 : size;
+    }
+
+    /**
+     * Records a request; called once the stub has responded
+     *
+     * @param timestamp        The time the request arrived
+     * @param method           The HTTP method, or an empty string
+     * @param path             The request path and query, or an empty string
+     * @param headers          The request headers
+     * @param body             The request body, or null if it isn't available
+     * @param selectedResponse The response chosen by the stub, or null
+     * @param status           The response status code, or 0
+     */
+    public void record(long timestamp, String method, String path, Map<String, String> headers, byte[] body,
+                       String selectedResponse, int status) {
+        long hash = FNV_OFFSET_BASIS;
+        int bodyLength = -1;
+        byte[] keptBody = new byte[0];
+        if (body != null) {
+            for (byte b : body) {
+                hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            }
+            bodyLength = body.length;
+            if (maximumBodyBytes > 0)
+                keptBody = body.length <= maximumBodyBytes ? body : Arrays.copyOf(body, maximumBodyBytes);
+        }
+
+        long sequence = next.getAndIncrement();
+        JournalEntry entry = new JournalEntry(sequence, timestamp, method, path, headers, hash, bodyLength,
+                keptBody, selectedResponse, status);
+        entries.set((int) (sequence & mask), entry);
+
+        MappedByteBuffer spill = this.spill;
+        if (spill != null) spill(spill, entry);
+    }
+
+    private void spill(MappedByteBuffer spill, JournalEntry entry) {
+        byte[] record = encode(entry);
+        long position = spillPosition.getAndAdd(4 + record.length);
+        long end = position + 4 + record.length;
+        //once a record doesn't fit neither does any later one, so nothing waits on this position
+        if (end > spillBytes) return;
+
+        ByteBuffer buffer = spill.duplicate();
+        buffer.position((int) position);
+        buffer.putInt(record.length);
+        buffer.put(record);
+
+        /*
+         * Records are published in the order their space was claimed, and only once their bytes are written, so
+         * readers never go past the published position into a partly written record. The volatile store releases
+         * the bytes to readSpill() in this JVM; the position in the file header is for readers of the file
+         */
+        while (spillPublished.get() != position) {
+            Thread.yield();
+        }
+        spill.putInt(PUBLISHED_POSITION_OFFSET, (int) end);
+        spillPublished.set(end);
+    }
+
+    /**
+     * @return The number of requests recorded since the journal was created or last cleared, including any that
+     *         have been overwritten
+     */
+    public long getCount() {
+        return Math.max(0, next.get() - clearedBefore);
+    }
+
+    /**
+     * @return The number of entries the journal holds before overwriting the oldest
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return The retained entries, oldest first
+     */
+    public List<JournalEntry> getEntries() {
+        return find(entry -> true);
+    }
+
+    /**
+     * @param n The number of entries
+     * @return Up to n of the most recent entries, oldest first
+     */
+    public List<JournalEntry> last(int n) {
+        List<JournalEntry> entries = getEntries();
+        return entries.subList(Math.max(0, entries.size() - n), entries.size());
+    }
+
+    /**
+     * @return The retained entries matching the predicate, oldest first
+     */
+    public List<JournalEntry> find(Predicate<JournalEntry> predicate) {
+        List<JournalEntry> matches = new ArrayList<>();
+        long end = next.get();
+        for (long sequence = Math.max(clearedBefore, end - entries.length()); sequence < end; sequence++) {
+            JournalEntry entry = entries.get((int) (sequence & mask));
+            //skips slots that are yet to be written, or have been overwritten since the scan started
+            if (entry != null && entry.getSequence() == sequence && predicate.test(entry)) matches.add(entry);
+        }
+        return matches;
+    }
+
+    /**
+     * @return The number of retained entries matching the predicate
+     */
+    public int count(Predicate<JournalEntry> predicate) {
+        return find(predicate).size();
+    }
+
+    /**
+     * Forgets the entries recorded so far, e.g. between test cases; the spill file is unaffected
+     */
+    public void clear() {
+        clearedBefore = next.get();
+    }
+
+    public Path getSpillPath() {
+        return spillPath;
+    }
+
+    public long getSpillBytes() {
+        return spillBytes;
+    }
+
+    public int getMaximumBodyBytes() {
+        return maximumBodyBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill == null) return;
+        spill.force();
+        spillChannel.close();
+        spill = null;
+        spillChannel = null;
+    }
+
+    /**
+     * @return The entries spilled by this journal so far, in the order they were written, or an empty list if the
+     *         journal doesn't spill or has been closed
+     */
+    public List<JournalEntry> readSpill() {
+        MappedByteBuffer spill = this.spill;
+        if (spill == null) return new ArrayList<>();
+        //reading the published position first makes every record before it visible
+        return readRecords(spill.duplicate(), (int) spillPublished.get());
+    }
+
+    /**
+     * @param spillPath A file written by a journal, which may still be in use
+     * @return The entries in the file that had been published, in the order they were written
+     */
+    public static List<JournalEntry> readSpill(Path spillPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(spillPath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < SPILL_HEADER_SIZE || buffer.getLong(0) != SPILL_MAGIC
+                    || buffer.getInt(8) != VERSION)
+                throw new IOException(spillPath + " is not a request journal");
+
+            return readRecords(buffer, Math.min(buffer.getInt(PUBLISHED_POSITION_OFFSET), buffer.limit()));
+        }
+    }
+
+    private static List<JournalEntry> readRecords(ByteBuffer buffer, int end) {
+        List<JournalEntry> entries = new ArrayList<>();
+        int position = SPILL_HEADER_SIZE;
+        while (position + 4 <= end) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > end) break;
+            buffer.position(position + 4);
+            entries.add(decode(buffer));
+            position += 4 + length;
+        }
+        return entries;
+    }
+
+    private static byte[] encode(JournalEntry entry) {
+        StringBuilder headerText = new StringBuilder();
+        for (Map.Entry<String, String> header : entry.getHeaders().entrySet()) {
+            headerText.append(header.getKey()).append('\n').append(header.getValue()).append('\n');
+        }
+        byte[] method = entry.getMethod().getBytes(StandardCharsets.UTF_8);
+        byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+        byte[] selectedResponse = entry.getSelectedResponse() == null ? new byte[0]
+                : entry.getSelectedResponse().getBytes(StandardCharsets.UTF_8);
+        byte[] headers = headerText.toString().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + 8 + 4 + 8 + 4 + 4 + method.length + 4 + path.length + 4
+                + selectedResponse.length + 4 + headers.length + 4 + entry.getBody().length);
+        record.putLong(entry.getSequence()).putLong(entry.getTimestamp()).putInt(entry.getStatus())
+                .putLong(entry.getBodyHash()).putInt(entry.getBodyLength())
+                .putInt(method.length).put(method).putInt(path.length).put(path)
+                .putInt(entry.getSelectedResponse() == null ? -1 : selectedResponse.length).put(selectedResponse)
+                .putInt(headers.length).put(headers).putInt(entry.getBody().length).put(entry.getBody());
+        return record.array();
+    }
+
+    private static JournalEntry decode(ByteBuffer record) {
+        long sequence = record.getLong();
+        long timestamp = record.getLong();
+        int status = record.getInt();
+        long bodyHash = record.getLong();
+        int bodyLength = record.getInt();
+        String method = readText(record);
+        String path = readText(record);
+        String selectedResponse = readText(record);
+        String headerText = readText(record);
+        byte[] body = new byte[record.getInt()];
+        record.get(body);
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String[] lines = headerText.split("\n", -1);
+        for (int i = 0; i + 1 < lines.length; i += 2) {
+            headers.put(lines[i], lines[i + 1]);
+        }
+
+        return new JournalEntry(sequence, timestamp, method, path, headers, bodyHash, bodyLength, body,
+                selectedResponse, status);
+    }
+
+    private static String readText(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
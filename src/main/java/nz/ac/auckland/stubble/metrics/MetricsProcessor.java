@@ -0,0 +1,94 @@
+package nz.ac.auckland.stubble.metrics;
+
+import nz.ac.auckland.stubble.stub.CountingServletResponse;
+import nz.ac.auckland.stubble.stub.IndexedSelectorProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.camel.util.IOHelper;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Placed at the start of a stub route; counts the request and records the service time, response size and
+ * chosen response once the exchange completes (including after any asynchronous delays). The response size
+ * includes bodies that stages write to the servlet response themselves, which are counted as they are written
+ */
+public class MetricsProcessor implements Processor {
+
+    private final StubMetrics metrics;
+
+    public MetricsProcessor(StubMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        final long start = System.nanoTime();
+        metrics.recordRequest(size(exchange.getIn(), true));
+        final CountingServletResponse servletResponse = CountingServletResponse.attach(exchange);
+
+        exchange.addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+                Message response = exchange.hasOut() ? exchange.getOut() : exchange.getIn();
+                long bytesWritten = servletResponse == null ? 0 : servletResponse.getBytesWritten();
+                metrics.recordResponse(System.nanoTime() - start, size(response, false) + bytesWritten,
+                        exchange.getProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, String.class),
+                        exchange.isFailed());
+            }
+        });
+    }
+
+    /*
+     * Only uses sizes that are known without reading the body, so streamed bodies aren't consumed
+     */
+    private static long size(Message message, boolean request) {
+        Object body = message.getBody();
+        if (body instanceof byte[]) return ((byte[]) body).length;
+        if (body instanceof String) return encodedLength((String) body, message.getExchange());
+        if (!request) return 0;
+        Long contentLength = message.getHeader(Exchange.CONTENT_LENGTH, Long.class);
+        return contentLength == null ? 0 : contentLength;
+    }
+
+    /*
+     * The number of bytes the body is sent as, in the exchange's charset (UTF-8 by default); UTF-8 is counted
+     * without encoding the body
+     */
+    private static long encodedLength(String body, Exchange exchange) {
+        Charset charset = StandardCharsets.UTF_8;
+        String charsetName = exchange == null ? null : IOHelper.getCharsetName(exchange, false);
+        if (charsetName != null) {
+            try {
+                charset = Charset.forName(charsetName);
+            } catch (IllegalArgumentException e) {
+                //an unknown charset fails elsewhere, so the size is only an estimate
+            }
+        }
+        if (!charset.equals(StandardCharsets.UTF_8)) return body.getBytes(charset).length;
+
+        long length = 0;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < body.length()
+                    && Character.isLowSurrogate(body.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    public StubMetrics getMetrics() {
+        return metrics;
+    }
+}
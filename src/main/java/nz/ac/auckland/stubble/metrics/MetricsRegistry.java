@@ -0,0 +1,158 @@
+package nz.ac.auckland.stubble.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Holds the metrics of every stub route, keyed by route id, and exposes them over JMX and in the Prometheus
+ * text format
+ */
+public class MetricsRegistry {
+
+    public static final String JMX_DOMAIN = "nz.ac.auckland.stubble";
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+    private static final double[] QUANTILES = new double[]{0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentSkipListMap<String, StubMetrics> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param routeId The id of the stub's route
+     * @return The metrics for the route, created and registered with JMX if they don't already exist
+     */
+    public StubMetrics register(String routeId) {
+        StubMetrics stubMetrics = new StubMetrics(routeId);
+        StubMetrics existing = metrics.putIfAbsent(routeId, stubMetrics);
+        if (existing != null) return existing;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(routeId);
+            //a previous Stubble instance in the same JVM may have registered the same route
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(stubMetrics, name);
+        } catch (Exception e) {
+            logger.warn("Unable to register metrics for route {} with JMX", routeId, e);
+        }
+
+        return stubMetrics;
+    }
+
+    /**
+     * Removes the metrics for a route that no longer exists
+     */
+    public void unregister(String routeId) {
+        if (metrics.remove(routeId) == null) return;
+        try {
+            ObjectName name = objectName(routeId);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (Exception e) {
+            logger.debug("Unable to unregister metrics for route {}", routeId, e);
+        }
+    }
+
+    /**
+     * Removes the metrics for every route, including from JMX
+     */
+    public void unregisterAll() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String routeId : metrics.keySet()) {
+            try {
+                ObjectName name = objectName(routeId);
+                if (server.isRegistered(name)) server.unregisterMBean(name);
+            } catch (Exception e) {
+                logger.debug("Unable to unregister metrics for route {}", routeId, e);
+            }
+        }
+        metrics.clear();
+    }
+
+    /**
+     * @return The metrics for the route, or null if it hasn't been registered
+     */
+    public StubMetrics get(String routeId) {
+        return metrics.get(routeId);
+    }
+
+    /**
+     * @return The metrics of every stub, ordered by route id
+     */
+    public Map<String, StubMetrics> getAll() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * @return The metrics of every stub in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+
+        counter(builder, "stubble_requests_total", "Requests received by the stub");
+        for (StubMetrics stubMetrics : metrics.values())
+            sample(builder, "stubble_requests_total", stubMetrics.getRouteId(), null, stubMetrics.getRequests());
+
+        counter(builder, "stubble_errors_total", "Requests that failed");
+        for (StubMetrics stubMetrics : metrics.values())
+            sample(builder, "stubble_errors_total", stubMetrics.getRouteId(), null, stubMetrics.getErrors());
+
+        counter(builder, "stubble_bytes_in_total", "Request body bytes received");
+        for (StubMetrics stubMetrics : metrics.values())
+            sample(builder, "stubble_bytes_in_total", stubMetrics.getRouteId(), null, stubMetrics.getBytesIn());
+
+        counter(builder, "stubble_bytes_out_total", "Response body bytes returned");
+        for (StubMetrics stubMetrics : metrics.values())
+            sample(builder, "stubble_bytes_out_total", stubMetrics.getRouteId(), null, stubMetrics.getBytesOut());
+
+        counter(builder, "stubble_selected_response_total", "Times each response was chosen");
+        for (StubMetrics stubMetrics : metrics.values()) {
+            for (Map.Entry<String, Long> selected : stubMetrics.getSelectedResponses().entrySet())
+                sample(builder, "stubble_selected_response_total", stubMetrics.getRouteId(),
+                        "response=\"" + escape(selected.getKey()) + "\"", selected.getValue());
+        }
+
+        builder.append("# HELP stubble_service_time_seconds Time taken by the stub to handle a request\n");
+        builder.append("# TYPE stubble_service_time_seconds summary\n");
+        for (StubMetrics stubMetrics : metrics.values()) {
+            Histogram serviceTimes = stubMetrics.getServiceTimes();
+            for (double quantile : QUANTILES) {
+                sample(builder, "stubble_service_time_seconds", stubMetrics.getRouteId(),
+                        "quantile=\"" + quantile + "\"", serviceTimes.getValueAtPercentile(quantile * 100) / 1e6);
+            }
+            sample(builder, "stubble_service_time_seconds_sum", stubMetrics.getRouteId(), null,
+                    serviceTimes.getMean() * serviceTimes.getTotalCount() / 1e6);
+            sample(builder, "stubble_service_time_seconds_count", stubMetrics.getRouteId(), null,
+                    serviceTimes.getTotalCount());
+        }
+
+        return builder.toString();
+    }
+
+    private static ObjectName objectName(String routeId) throws Exception {
+        return new ObjectName(JMX_DOMAIN + ":type=Stub,name=" + ObjectName.quote(routeId));
+    }
+
+    private static void counter(StringBuilder builder, String name, String help) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(" counter\n");
+    }
+
+    private static void sample(StringBuilder builder, String name, String routeId, String labels, Number value) {
+        builder.append(name).append("{stub=\"").append(escape(routeId)).append('"');
+        if (labels != null) builder.append(',').append(labels);
+        builder.append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,114 @@
+package nz.ac.auckland.stubble.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for a single stub route. Recording is lock-free: counters are LongAdders and service times go into an
+ * HdrHistogram recorder that is only folded into the cumulative histogram when the metrics are read
+ */
+public class StubMetrics implements StubMetricsMXBean {
+
+    private final String routeId;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> selectedResponses = new ConcurrentHashMap<>();
+    private final Recorder serviceTimeRecorder = new Recorder(3);
+    private final Histogram serviceTimes = new Histogram(3);
+
+    public StubMetrics(String routeId) {
+        this.routeId = routeId;
+    }
+
+    /**
+     * @param requestBytes The size of the request body, or 0 if it isn't known
+     */
+    public void recordRequest(long requestBytes) {
+        requests.increment();
+        if (requestBytes > 0) bytesIn.add(requestBytes);
+    }
+
+    /**
+     * @param serviceTimeNanos  The time taken to handle the exchange
+     * @param responseBytes     The size of the response body, or 0 if it isn't known
+     * @param selectedResponse  The response that was chosen, or null if none was recorded
+     * @param failed            Whether the exchange failed
+     */
+    public void recordResponse(long serviceTimeNanos, long responseBytes, String selectedResponse, boolean failed) {
+        serviceTimeRecorder.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(serviceTimeNanos)));
+        if (responseBytes > 0) bytesOut.add(responseBytes);
+        if (failed) errors.increment();
+        if (selectedResponse != null)
+            selectedResponses.computeIfAbsent(selectedResponse, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return A copy of all service times (in microseconds) recorded so far
+     */
+    public synchronized Histogram getServiceTimes() {
+        serviceTimes.add(serviceTimeRecorder.getIntervalHistogram());
+        return serviceTimes.copy();
+    }
+
+    @Override
+    public String getRouteId() {
+        return routeId;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMeanServiceTime() {
+        return getServiceTimes().getMean();
+    }
+
+    @Override
+    public long getMedianServiceTime() {
+        return getServiceTimes().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getServiceTime99thPercentile() {
+        return getServiceTimes().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getMaxServiceTime() {
+        return getServiceTimes().getMaxValue();
+    }
+
+    @Override
+    public Map<String, Long> getSelectedResponses() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : selectedResponses.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+}
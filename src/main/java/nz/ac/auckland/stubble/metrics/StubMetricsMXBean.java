@@ -0,0 +1,32 @@
+package nz.ac.auckland.stubble.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a stub's metrics; service times are in microseconds
+ */
+public interface StubMetricsMXBean {
+
+    String getRouteId();
+
+    long getRequests();
+
+    long getErrors();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMeanServiceTime();
+
+    long getMedianServiceTime();
+
+    long getServiceTime99thPercentile();
+
+    long getMaxServiceTime();
+
+    /**
+     * @return The number of times each response (by index, or matched key) was chosen
+     */
+    Map<String, Long> getSelectedResponses();
+}
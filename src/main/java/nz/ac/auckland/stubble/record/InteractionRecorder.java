@@ -0,0 +1,89 @@
+package nz.ac.auckland.stubble.record;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+
+import java.util.*;
+
+/**
+ * Records the interactions of a stub that proxies to an upstream service: the request is fingerprinted before it
+ * is sent upstream, and the upstream response is appended to the store once it returns
+ */
+public class InteractionRecorder {
+
+    static final String FINGERPRINT_PROPERTY = "StubbleRequestFingerprint";
+    static final String REQUEST_HEADERS_PROPERTY = "StubbleRequestHeaders";
+
+    private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList("connection", "keep-alive",
+            "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade",
+            "content-length"));
+
+    private final InteractionStore store;
+
+    /**
+     * @param store The store the interactions are appended to
+     */
+    public InteractionRecorder(InteractionStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @param upstreamUri The upstream service; HTTP URIs are proxied through Jetty without Camel's own error
+     *                    handling so that error responses are recorded as they are
+     * @return The Camel endpoint URI used to send requests upstream
+     */
+    public static String upstreamEndpointUri(String upstreamUri) {
+        if (!upstreamUri.startsWith("http")) return upstreamUri;
+        return "jetty:" + upstreamUri + (upstreamUri.contains("?") ? "&" : "?")
+                + "bridgeEndpoint=true&throwExceptionOnFailure=false";
+    }
+
+    /**
+     * @return A processor that fingerprints the request before it is sent upstream; the body must already be
+     *         re-readable (e.g. a byte[])
+     */
+    public Processor requestProcessor() {
+        return exchange -> {
+            exchange.setProperty(FINGERPRINT_PROPERTY, RequestFingerprint.of(exchange));
+            exchange.setProperty(REQUEST_HEADERS_PROPERTY, new HashMap<>(exchange.getIn().getHeaders()));
+        };
+    }
+
+    /**
+     * @return A processor that appends the upstream response to the store
+     */
+    public Processor responseProcessor() {
+        return exchange -> {
+            Long fingerprint = exchange.getProperty(FINGERPRINT_PROPERTY, Long.class);
+            if (fingerprint == null)
+                throw new IllegalStateException("The request was not fingerprinted before it was sent upstream");
+
+            Message message = exchange.hasOut() ? exchange.getOut() : exchange.getIn();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> requestHeaders = exchange.getProperty(REQUEST_HEADERS_PROPERTY, Map.class);
+
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> header : message.getHeaders().entrySet()) {
+                String name = header.getKey();
+                Object value = header.getValue();
+                if (!(value instanceof String || value instanceof Number)) continue;
+                if (name.startsWith("Camel") || HOP_BY_HOP_HEADERS.contains(name.toLowerCase())) continue;
+                //the HTTP producer copies the request headers onto the response, these aren't part of it
+                if (requestHeaders != null && value.equals(requestHeaders.get(name))) continue;
+                headers.put(name, value.toString());
+            }
+
+            Integer status = message.getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+            byte[] body = message.getBody(byte[].class);
+            store.append(fingerprint, status == null ? 0 : status, headers, body);
+
+            //the body stream has been consumed, so hand the copy back to the client
+            message.setBody(body);
+        };
+    }
+
+    public InteractionStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,297 @@
+package nz.ac.auckland.stubble.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An on-disk store of recorded interactions, made up of an append-only data file and an open-addressing hash
+ * index from request fingerprint to record offset. Both files are memory-mapped, so opening a store with
+ * millions of interactions takes milliseconds and lookups are O(1) without loading the store onto the heap.
+ * <p>
+ * A store is opened either for recording (appending) or for replay (lookups); recording a fingerprint again
+ * replaces the earlier interaction
+ */
+public class InteractionStore implements Closeable {
+
+    static final String DATA_FILE = "interactions.dat";
+    static final String INDEX_FILE = "interactions.idx";
+
+    private static final long DATA_MAGIC = 0x5354554242524543L;
+    private static final int INDEX_MAGIC = 0x53544958;
+    private static final int VERSION = 1;
+    private static final int DATA_HEADER_SIZE = 16;
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final long INITIAL_CAPACITY = 1024;
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final Path directory;
+    private final boolean writable;
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private long capacity;
+    private long size;
+    private MappedByteBuffer[] dataSegments;
+
+    private InteractionStore(Path directory, boolean writable) {
+        this.directory = directory;
+        this.writable = writable;
+    }
+
+    /**
+     * @param directory The directory holding the store, created if necessary
+     * @return The store, ready for new interactions to be appended
+     */
+    public static InteractionStore openForRecording(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        InteractionStore store = new InteractionStore(directory, true);
+
+        store.dataChannel = FileChannel.open(directory.resolve(DATA_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (store.dataChannel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+            header.putLong(DATA_MAGIC).putInt(VERSION).putInt(0).flip();
+            store.dataChannel.write(header, 0);
+        } else {
+            store.checkDataHeader();
+        }
+
+        if (Files.exists(directory.resolve(INDEX_FILE))) store.mapIndex();
+        else store.createIndex(INITIAL_CAPACITY);
+
+        return store;
+    }
+
+    /**
+     * @param directory The directory holding a previously recorded store
+     * @return The store, ready for lookups
+     */
+    public static InteractionStore openForReplay(Path directory) throws IOException {
+        InteractionStore store = new InteractionStore(directory, false);
+        store.dataChannel = FileChannel.open(directory.resolve(DATA_FILE), StandardOpenOption.READ);
+        store.checkDataHeader();
+        store.mapIndex();
+
+        long length = store.dataChannel.size();
+        store.dataSegments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < store.dataSegments.length; i++) {
+            long position = (long) i * SEGMENT_SIZE;
+            store.dataSegments[i] = store.dataChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(SEGMENT_SIZE, length - position));
+        }
+
+        return store;
+    }
+
+    /**
+     * Appends an interaction, replacing any earlier interaction with the same fingerprint
+     *
+     * @param fingerprint The fingerprint of the request
+     * @param status      The response status code, or 0 if there isn't one
+     * @param headers     The response headers
+     * @param body        The response body, may be null
+     */
+    public synchronized void append(long fingerprint, int status, Map<String, String> headers, byte[] body)
+            throws IOException {
+        if (!writable) throw new IllegalStateException("The store in " + directory + " was opened for replay");
+
+        StringBuilder headerText = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            headerText.append(header.getKey()).append('\n').append(header.getValue()).append('\n');
+        }
+        byte[] headerBytes = headerText.toString().getBytes(StandardCharsets.UTF_8);
+        if (body == null) body = new byte[0];
+
+        ByteBuffer record = ByteBuffer.allocate(8 + 4 + 4 + headerBytes.length + 4 + body.length);
+        record.putLong(fingerprint).putInt(status).putInt(headerBytes.length).put(headerBytes)
+                .putInt(body.length).put(body).flip();
+
+        long offset = dataChannel.size();
+        while (record.hasRemaining()) {
+            offset += dataChannel.write(record, offset);
+        }
+        offset -= record.limit();
+
+        if ((size + 1) * 2 > capacity) createIndex(capacity * 2);
+        if (putSlot(index, capacity, fingerprint, offset)) {
+            size++;
+            index.putLong(16, size);
+        }
+    }
+
+    /**
+     * @return The interaction recorded for the fingerprint, or null if there is none
+     */
+    public RecordedInteraction find(long fingerprint) {
+        if (writable) throw new IllegalStateException("The store in " + directory + " was opened for recording");
+
+        long offset = findSlot(fingerprint);
+        if (offset < 0) return null;
+
+        long position = offset + 8;
+        int status = getInt(position);
+        int headerLength = getInt(position + 4);
+        position += 8;
+
+        byte[] headerBytes = new byte[headerLength];
+        for (ByteBuffer buffer : slices(position, headerLength)) {
+            int length = buffer.remaining();
+            buffer.get(headerBytes, headerBytes.length - headerLength, length);
+            headerLength -= length;
+        }
+        position += headerBytes.length;
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String[] lines = new String(headerBytes, StandardCharsets.UTF_8).split("\n");
+        for (int i = 0; i + 1 < lines.length; i += 2) {
+            headers.put(lines[i], lines[i + 1]);
+        }
+
+        int bodyLength = getInt(position);
+        return new RecordedInteraction(status, headers, slices(position + 4, bodyLength), bodyLength);
+    }
+
+    /**
+     * @return The number of distinct fingerprints in the store
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (index != null && writable) index.force();
+        if (dataChannel != null) dataChannel.close();
+        if (indexChannel != null) indexChannel.close();
+    }
+
+    private void checkDataHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+        dataChannel.read(header, 0);
+        header.flip();
+        if (header.remaining() < DATA_HEADER_SIZE || header.getLong() != DATA_MAGIC || header.getInt() != VERSION)
+            throw new IOException(directory.resolve(DATA_FILE) + " is not a stubble interaction store");
+    }
+
+    private void mapIndex() throws IOException {
+        Path indexPath = directory.resolve(INDEX_FILE);
+        indexChannel = writable
+                ? FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(indexPath, StandardOpenOption.READ);
+        index = indexChannel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+                indexChannel.size());
+
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION)
+            throw new IOException(indexPath + " is not a stubble interaction index");
+        capacity = index.getLong(8);
+        size = index.getLong(16);
+    }
+
+    /*
+     * Writes a new index of the given capacity (rehashing any existing entries) and atomically replaces the old one
+     */
+    private void createIndex(long newCapacity) throws IOException {
+        Path indexPath = directory.resolve(INDEX_FILE);
+        Path temporaryPath = directory.resolve(INDEX_FILE + ".tmp");
+        long newSize = 0;
+
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer newIndex = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    INDEX_HEADER_SIZE + newCapacity * SLOT_SIZE);
+            newIndex.putInt(0, INDEX_MAGIC).putInt(4, VERSION).putLong(8, newCapacity);
+
+            for (long slot = 0; index != null && slot < capacity; slot++) {
+                int position = (int) (INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+                long storedOffset = index.getLong(position + 8);
+                if (storedOffset != 0 && putSlot(newIndex, newCapacity, index.getLong(position), storedOffset - 1))
+                    newSize++;
+            }
+
+            newIndex.putLong(16, newSize);
+            newIndex.force();
+        }
+
+        if (indexChannel != null) indexChannel.close();
+        Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapIndex();
+    }
+
+    /*
+     * Linear probing; offsets are stored plus one so that zero marks an empty slot. Returns true if a new slot was
+     * used rather than an existing fingerprint replaced
+     */
+    private static boolean putSlot(MappedByteBuffer index, long capacity, long fingerprint, long offset) {
+        long slot = mix(fingerprint) & (capacity - 1);
+        while (true) {
+            int position = (int) (INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+            long storedOffset = index.getLong(position + 8);
+            if (storedOffset == 0 || index.getLong(position) == fingerprint) {
+                index.putLong(position, fingerprint);
+                index.putLong(position + 8, offset + 1);
+                return storedOffset == 0;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private long findSlot(long fingerprint) {
+        long slot = mix(fingerprint) & (capacity - 1);
+        while (true) {
+            int position = (int) (INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+            long storedOffset = index.getLong(position + 8);
+            if (storedOffset == 0) return -1;
+            if (index.getLong(position) == fingerprint) return storedOffset - 1;
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private static long mix(long fingerprint) {
+        fingerprint ^= fingerprint >>> 33;
+        fingerprint *= 0xff51afd7ed558ccdL;
+        fingerprint ^= fingerprint >>> 33;
+        return fingerprint;
+    }
+
+    private int getInt(long position) {
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        for (ByteBuffer buffer : slices(position, 4)) {
+            bytes.put(buffer);
+        }
+        bytes.flip();
+        return bytes.getInt();
+    }
+
+    /*
+     * Read-only views of the data file covering the given range, split where it crosses a mapped segment
+     */
+    private List<ByteBuffer> slices(long position, int length) {
+        List<ByteBuffer> slices = new ArrayList<>(1);
+        while (length > 0) {
+            int segmentIndex = (int) (position / SEGMENT_SIZE);
+            ByteBuffer buffer = dataSegments[segmentIndex].asReadOnlyBuffer();
+            int start = (int) (position - (long) segmentIndex * SEGMENT_SIZE);
+            int sliceLength = Math.min(length, buffer.capacity() - start);
+            buffer.position(start);
+            buffer.limit(start + sliceLength);
+            slices.add(buffer.slice());
+            position += sliceLength;
+            length -= sliceLength;
+        }
+        return slices;
+    }
+}
@@ -0,0 +1,61 @@
+package nz.ac.auckland.stubble.record;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recorded response; the body is a view onto the memory-mapped store rather than a copy
+ */
+public class RecordedInteraction {
+
+    private final int status;
+    private final Map<String, String> headers;
+    private final List<ByteBuffer> body;
+    private final int bodyLength;
+
+    RecordedInteraction(int status, Map<String, String> headers, List<ByteBuffer> body, int bodyLength) {
+        this.status = status;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * @return The HTTP status code of the response, or 0 if there wasn't one
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return Read-only buffers that together hold the body, in order
+     */
+    public List<ByteBuffer> getBody() {
+        return body;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return A copy of the body on the heap
+     */
+    public byte[] getBodyBytes() {
+        byte[] bytes = new byte[bodyLength];
+        int offset = 0;
+        for (ByteBuffer buffer : body) {
+            ByteBuffer duplicate = buffer.duplicate();
+            int length = duplicate.remaining();
+            duplicate.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,93 @@
+package nz.ac.auckland.stubble.record;
+
+import nz.ac.auckland.stubble.stub.ServletResponseWriter;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Responds with the interaction recorded for the request's fingerprint. HTTP response bodies are written straight
+ * from the memory-mapped store to the client; requests that weren't recorded receive a 404
+ */
+public class ReplayProcessor implements Processor {
+
+    private final Path directory;
+    private volatile InteractionStore store;
+
+    /**
+     * @param store A store opened for replay
+     */
+    public ReplayProcessor(InteractionStore store) {
+        this.directory = store.getDirectory();
+        this.store = store;
+    }
+
+    /**
+     * @param directory A directory of recorded interactions, which is opened by open() before any request arrives
+     */
+    public ReplayProcessor(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the store for replay, unless it is open already
+     *
+     * @return The store, which the caller closes once the processor is no longer used
+     */
+    public synchronized InteractionStore open() throws IOException {
+        if (store == null) store = InteractionStore.openForReplay(directory);
+        return store;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        InteractionStore store = this.store;
+        if (store == null)
+            throw new IllegalStateException("The interaction store in " + directory + " has not been opened");
+
+        long fingerprint = RequestFingerprint.of(exchange);
+        RecordedInteraction interaction = store.find(fingerprint);
+        Message in = exchange.getIn();
+
+        if (interaction == null) {
+            in.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+            in.setHeader(Exchange.CONTENT_TYPE, "text/plain");
+            in.setBody("No interaction was recorded for this request in " + directory);
+            return;
+        }
+
+        if (interaction.getStatus() != 0) in.setHeader(Exchange.HTTP_RESPONSE_CODE, interaction.getStatus());
+        for (Map.Entry<String, String> header : interaction.getHeaders().entrySet()) {
+            in.setHeader(header.getKey(), header.getValue());
+        }
+
+        HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+        if (response == null) {
+            in.setBody(interaction.getBodyBytes());
+            return;
+        }
+
+        ServletResponseWriter.writeHeaders(exchange, response);
+        response.setHeader("Content-Length", String.valueOf(interaction.getBodyLength()));
+        ServletResponseWriter.markWritten(exchange);
+
+        for (ByteBuffer buffer : interaction.getBody()) {
+            ServletResponseWriter.write(response, buffer.duplicate());
+        }
+        response.flushBuffer();
+    }
+
+    public InteractionStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,96 @@
+package nz.ac.auckland.stubble.record;
+
+import org.apache.camel.Exchange;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Identifies a request by its method, path (including any query) and body, where the body is normalized so that
+ * insignificant whitespace in XML or JSON doesn't change the fingerprint
+ */
+public class RequestFingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * @return The fingerprint of the exchange's request; the body must already be re-readable (e.g. a byte[])
+     */
+    public static long of(Exchange exchange) {
+        String method = exchange.getIn().getHeader(Exchange.HTTP_METHOD, "", String.class);
+        String path = exchange.getIn().getHeader(Exchange.HTTP_URI, "", String.class);
+        String query = exchange.getIn().getHeader(Exchange.HTTP_QUERY, String.class);
+        if (query != null && !query.isEmpty()) path = path + "?" + query;
+        return of(method, path, exchange.getIn().getBody(byte[].class));
+    }
+
+    /**
+     * @param method The request method, or an empty string for transports without one
+     * @param path   The request path and query, or an empty string
+     * @param body   The request body, may be null
+     */
+    public static long of(String method, String path, byte[] body) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, method.toUpperCase().getBytes(StandardCharsets.UTF_8));
+        hash = (hash ^ '\n') * FNV_PRIME;
+        hash = hash(hash, path.getBytes(StandardCharsets.UTF_8));
+        hash = (hash ^ '\n') * FNV_PRIME;
+        if (body != null) hash = hashNormalized(hash, body);
+        return hash;
+    }
+
+    private static long hash(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /*
+     * Skips whitespace outside of JSON strings, and whitespace between XML tags, along with leading and trailing
+     * whitespace
+     */
+    private static long hashNormalized(long hash, byte[] body) {
+        int start = 0, end = body.length;
+        while (start < end && isWhitespace(body[start])) start++;
+        while (end > start && isWhitespace(body[end - 1])) end--;
+        if (start == end) return hash;
+
+        boolean json = body[start] == '{' || body[start] == '[';
+        boolean inString = false, escaped = false;
+        byte previous = 0;
+
+        for (int i = start; i < end; i++) {
+            byte b = body[i];
+
+            if (json) {
+                if (inString) {
+                    if (escaped) escaped = false;
+                    else if (b == '\\') escaped = true;
+                    else if (b == '"') inString = false;
+                } else if (b == '"') {
+                    inString = true;
+                } else if (isWhitespace(b)) {
+                    continue;
+                }
+            } else if (isWhitespace(b) && previous == '>') {
+                //only skip a whitespace run that ends at the next tag
+                int next = i;
+                while (next < end && isWhitespace(body[next])) next++;
+                if (next < end && body[next] == '<') {
+                    i = next - 1;
+                    continue;
+                }
+            }
+
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            previous = b;
+        }
+
+        return hash;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -0,0 +1,195 @@
+package nz.ac.auckland.stubble.routing;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Component;
+import org.apache.camel.util.IntrospectionSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings for the Jetty connectors and thread pool that serve HTTP stubs, e.g.
+ * new ConnectorProfile().threads(16, 512).idleTimeout(120000), or ConnectorProfile.highConcurrency(). Settings
+ * that the Jetty version on the classpath doesn't support are skipped (and logged at DEBUG), so one profile can be
+ * used with any version
+ */
+public class ConnectorProfile {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectorProfile.class);
+
+    private final Map<String, Object> componentProperties = new LinkedHashMap<>();
+    private final Map<String, Object> connectorProperties = new LinkedHashMap<>();
+
+    /**
+     * Suits thousands of keep-alive connections: a large accept queue, long idle timeouts, enough threads to
+     * keep every core busy, and idle connections closed quickly once there are more than 20000
+     */
+    public static ConnectorProfile highConcurrency() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new ConnectorProfile()
+                .threads(cores * 2, Math.max(256, cores * 16))
+                .acceptors(Math.max(1, cores / 4))
+                .acceptQueueSize(4096)
+                .idleTimeout(120000)
+                .headerSizes(16384, 8192)
+                .bufferSizes(16384, 32768)
+                .maximumConnections(20000, 5000);
+    }
+
+    /**
+     * @param minimum The number of threads kept in the pool
+     * @param maximum The largest number of threads; with continuations (async or delayed stubs) a thread is only
+     *                held while a response is being produced
+     */
+    public ConnectorProfile threads(int minimum, int maximum) {
+        if (minimum <= 0 || maximum < minimum)
+            throw new IllegalArgumentException("The thread counts must satisfy 0 < minimum <= maximum");
+        componentProperties.put("minThreads", minimum);
+        componentProperties.put("maxThreads", maximum);
+        return this;
+    }
+
+    /**
+     * @param acceptors The number of threads accepting new connections
+     */
+    public ConnectorProfile acceptors(int acceptors) {
+        if (acceptors <= 0) throw new IllegalArgumentException("There must be at least one acceptor");
+        connectorProperties.put("acceptors", acceptors);
+        return this;
+    }
+
+    /**
+     * @param size The number of connections the operating system queues before they are accepted
+     */
+    public ConnectorProfile acceptQueueSize(int size) {
+        if (size <= 0) throw new IllegalArgumentException("The accept queue size must be positive");
+        connectorProperties.put("acceptQueueSize", size);
+        return this;
+    }
+
+    /**
+     * @param idleTimeoutMillis How long a keep-alive connection may be idle before it is closed
+     */
+    public ConnectorProfile idleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) throw new IllegalArgumentException("The idle timeout must be positive");
+        connectorProperties.put("maxIdleTime", (int) Math.min(Integer.MAX_VALUE, idleTimeoutMillis));
+        connectorProperties.put("idleTimeout", idleTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * @param connections       The number of connections beyond which idle connections are closed sooner
+     * @param idleTimeoutMillis The idle timeout applied beyond that number of connections
+     */
+    public ConnectorProfile maximumConnections(int connections, long idleTimeoutMillis) {
+        if (connections <= 0 || idleTimeoutMillis <= 0)
+            throw new IllegalArgumentException("The connections and idle timeout must be positive");
+        connectorProperties.put("lowResourcesConnections", connections);
+        connectorProperties.put("lowResourcesMaxIdleTime", (int) Math.min(Integer.MAX_VALUE, idleTimeoutMillis));
+        return this;
+    }
+
+    /**
+     * @param request  The largest request line and headers accepted, in bytes
+     * @param response The largest response headers, in bytes
+     */
+    public ConnectorProfile headerSizes(int request, int response) {
+        if (request <= 0 || response <= 0) throw new IllegalArgumentException("The header sizes must be positive");
+        componentProperties.put("requestHeaderSize", request);
+        componentProperties.put("responseHeaderSize", response);
+        return this;
+    }
+
+    /**
+     * @param request  The size of the pooled buffers requests are read into, in bytes
+     * @param response The size of the pooled buffers responses are written from; a body that fits is sent without
+     *                 chunking
+     */
+    public ConnectorProfile bufferSizes(int request, int response) {
+        if (request <= 0 || response <= 0) throw new IllegalArgumentException("The buffer sizes must be positive");
+        componentProperties.put("requestBufferSize", request);
+        componentProperties.put("responseBufferSize", response);
+        return this;
+    }
+
+    /**
+     * Applies the profile to a Jetty component, before any of its endpoints are started
+     */
+    public void configure(Component component, CamelContext context) {
+        for (Map.Entry<String, Object> property : componentProperties.entrySet()) {
+            try {
+                if (!IntrospectionSupport.setProperty(context.getTypeConverter(), component, property.getKey(),
+                        property.getValue()))
+                    logger.debug("The Jetty component does not support {}", property.getKey());
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to set " + property.getKey() + " on the Jetty component", e);
+            }
+        }
+
+        Map<String, Object> supported = supportedConnectorProperties();
+        if (supported.isEmpty()) return;
+
+        try {
+            //merged with any properties already set, e.g. from a Spring context
+            @SuppressWarnings("unchecked")
+            Map<String, Object> existing = (Map<String, Object>) component.getClass()
+                    .getMethod("getSocketConnectorProperties").invoke(component);
+            Map<String, Object> properties = existing == null ? new HashMap<>() : new HashMap<>(existing);
+            properties.putAll(supported);
+            component.getClass().getMethod("setSocketConnectorProperties", Map.class).invoke(component, properties);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("The Jetty component does not support connector properties", e);
+        }
+    }
+
+    /*
+     * Camel sets connector properties on Jetty 8's connector, or on Jetty 9's HttpConfiguration, and fails on any
+     * it can't set, so only those with a setter on the target are passed on
+     */
+    private Map<String, Object> supportedConnectorProperties() {
+        Class<?> target = null;
+        for (String name : new String[]{"org.eclipse.jetty.server.HttpConfiguration",
+                "org.eclipse.jetty.server.nio.SelectChannelConnector"}) {
+            try {
+                target = Class.forName(name, false, ConnectorProfile.class.getClassLoader());
+                break;
+            } catch (ClassNotFoundException e) {
+                //try the next version
+            }
+        }
+
+        Map<String, Object> supported = new LinkedHashMap<>();
+        if (target == null) return supported;
+
+        for (Map.Entry<String, Object> property : connectorProperties.entrySet()) {
+            if (hasSetter(target, property.getKey())) supported.put(property.getKey(), property.getValue());
+            else logger.debug("The Jetty connector does not support {}", property.getKey());
+        }
+        return supported;
+    }
+
+    private static boolean hasSetter(Class<?> type, String property) {
+        String setter = "set" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(setter) && method.getParameterTypes().length == 1) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The name of a Jetty component configured with this profile, used by stubs with their own profile;
+     *         profiles with the same settings share a component
+     */
+    public String getComponentName() {
+        return "jetty-" + Integer.toHexString(toString().hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectorProfile" + componentProperties + connectorProperties;
+    }
+}
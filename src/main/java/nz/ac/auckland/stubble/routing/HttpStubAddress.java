@@ -0,0 +1,106 @@
+package nz.ac.auckland.stubble.routing;
+
+import org.apache.camel.util.URISupport;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+
+/**
+ * The parts of a Jetty stub endpoint URI that decide which requests it serves: the listener (scheme, host and
+ * port) and the path, along with the matchOnUriPrefix and httpMethodRestrict options
+ */
+public class HttpStubAddress {
+
+    private static final String JETTY_PREFIX = "jetty:";
+
+    private final String listenerUri;
+    private final int port;
+    private final String path;
+    private final boolean prefix;
+    private final Set<String> methods;
+
+    private HttpStubAddress(String listenerUri, int port, String path, boolean prefix, Set<String> methods) {
+        this.listenerUri = listenerUri;
+        this.port = port;
+        this.path = path;
+        this.prefix = prefix;
+        this.methods = methods;
+    }
+
+    /**
+     * @return true if the endpoint is served by a Jetty listener that stubs can share
+     */
+    public static boolean isShareable(String endpointUri) {
+        return endpointUri.startsWith(JETTY_PREFIX + "http");
+    }
+
+    /**
+     * @param endpointUri A Jetty endpoint URI, e.g. jetty:http://0.0.0.0:8080/orders?matchOnUriPrefix=true
+     */
+    public static HttpStubAddress parse(String endpointUri) {
+        if (!isShareable(endpointUri))
+            throw new IllegalArgumentException("The endpoint " + endpointUri + " is not a Jetty HTTP endpoint");
+
+        try {
+            URI uri = new URI(endpointUri.substring(JETTY_PREFIX.length()));
+            Map<String, Object> options = URISupport.parseParameters(uri);
+
+            boolean prefix = Boolean.parseBoolean(String.valueOf(options.remove("matchOnUriPrefix")));
+            Set<String> methods = null;
+            Object methodRestrict = options.remove("httpMethodRestrict");
+            if (methodRestrict != null) {
+                methods = new HashSet<>();
+                for (String method : methodRestrict.toString().split(","))
+                    methods.add(method.trim().toUpperCase());
+            }
+
+            //options other than the routing ones configure the listener itself
+            options.put("matchOnUriPrefix", true);
+            String listenerUri = JETTY_PREFIX + uri.getScheme() + "://" + uri.getHost()
+                    + (uri.getPort() == -1 ? "" : ":" + uri.getPort()) + "/?"
+                    + URISupport.createQueryString(new TreeMap<>(options));
+
+            int port = uri.getPort() != -1 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+            String path = uri.getPath() == null ? "" : uri.getPath();
+            return new HttpStubAddress(listenerUri, port, path, prefix, methods);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Unable to parse the endpoint " + endpointUri, e);
+        }
+    }
+
+    /**
+     * @return The URI of the Jetty endpoint that listens for every stub sharing this stub's port
+     */
+    public String getListenerUri() {
+        return listenerUri;
+    }
+
+    /**
+     * @return The port the listener binds to, defaulting to that of the scheme
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return The decoded path of the stub
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if the stub also serves any path beneath its own
+     */
+    public boolean isPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return The (upper-case) methods the stub serves, or null for any method
+     */
+    public Set<String> getMethods() {
+        return methods;
+    }
+}
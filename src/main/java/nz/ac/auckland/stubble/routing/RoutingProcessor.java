@@ -0,0 +1,75 @@
+package nz.ac.auckland.stubble.routing;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import java.util.Set;
+
+/**
+ * Dispatches each request received by a shared listener to the stub that serves it, using a routing table that
+ * can be replaced while the listener is running
+ */
+public class RoutingProcessor implements AsyncProcessor {
+
+    private volatile RoutingTable routingTable;
+
+    public RoutingProcessor(RoutingTable routingTable) {
+        this.routingTable = routingTable;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        Message in = exchange.getIn();
+        String method = in.getHeader(Exchange.HTTP_METHOD, "", String.class);
+        String path = in.getHeader(Exchange.HTTP_URI, "/", String.class);
+
+        String host = in.getHeader("Host", String.class);
+        if (host != null) {
+            int portIndex = host.lastIndexOf(':');
+            //leave IPv6 literals such as [::1] alone
+            if (portIndex > host.lastIndexOf(']')) host = host.substring(0, portIndex);
+        }
+
+        AsyncProcessor processor = routingTable.find(method, host, path);
+        if (processor == null) {
+            //the path is served, just not with this method
+            Set<String> allowedMethods = routingTable.getAllowedMethods(host, path);
+            if (!allowedMethods.isEmpty()) {
+                String allow = String.join(", ", allowedMethods);
+                in.setHeader(Exchange.HTTP_RESPONSE_CODE, 405);
+                in.setHeader("Allow", allow);
+                in.setHeader(Exchange.CONTENT_TYPE, "text/plain");
+                in.setBody("No stub serves " + method + " " + path + "; use " + allow);
+                callback.done(true);
+                return true;
+            }
+
+            in.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+            in.setHeader(Exchange.CONTENT_TYPE, "text/plain");
+            in.setBody("No stub serves " + method + " " + path);
+            callback.done(true);
+            return true;
+        }
+
+        return processor.process(exchange, callback);
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /**
+     * @param routingTable The table used for requests that arrive from now on
+     */
+    public void setRoutingTable(RoutingTable routingTable) {
+        this.routingTable = routingTable;
+    }
+}
@@ -0,0 +1,187 @@
+package nz.ac.auckland.stubble.routing;
+
+import org.apache.camel.AsyncProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * An immutable table that finds the stub serving an HTTP request from its path, using a trie of path segments,
+ * and then its host and method. Exact paths take precedence over prefixes, longer prefixes over shorter ones, and
+ * stubs for a specific virtual host over those for any host
+ */
+public class RoutingTable {
+
+    private final Node root;
+
+    private RoutingTable(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param method The request method
+     * @param host   The request's host, without any port; may be null
+     * @param path   The request path, which may be percent-encoded
+     * @return The processor for the matching stub, or null if no stub serves the request
+     */
+    public AsyncProcessor find(String method, String host, String path) {
+        Node node = root;
+        Route prefixMatch = match(node.prefixRoutes, method, host);
+
+        int start = 0, length = path.length();
+        while (start < length) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) end = length;
+
+            String segment = path.substring(start, end);
+            if (segment.indexOf('%') >= 0) segment = decode(segment);
+            node = node.children.get(segment);
+            if (node == null) break;
+
+            Route match = match(node.prefixRoutes, method, host);
+            if (match != null) prefixMatch = match;
+            start = end;
+        }
+
+        if (node != null) {
+            Route match = match(node.exactRoutes, method, host);
+            if (match != null) return match.processor;
+        }
+
+        return prefixMatch == null ? null : prefixMatch.processor;
+    }
+
+    /**
+     * @param host The request's host, without any port; may be null
+     * @param path The request path, which may be percent-encoded
+     * @return The methods served for the path by the stubs for the host, in order; empty if there are none, or
+     *         if one of them serves any method
+     */
+    public Set<String> getAllowedMethods(String host, String path) {
+        Set<String> methods = new TreeSet<>();
+        Node node = root;
+        if (!addMethods(node.prefixRoutes, host, methods)) return Collections.emptySet();
+
+        int start = 0, length = path.length();
+        while (start < length) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) end = length;
+
+            String segment = path.substring(start, end);
+            if (segment.indexOf('%') >= 0) segment = decode(segment);
+            node = node.children.get(segment);
+            if (node == null) break;
+
+            if (!addMethods(node.prefixRoutes, host, methods)) return Collections.emptySet();
+            start = end;
+        }
+
+        if (node != null && !addMethods(node.exactRoutes, host, methods)) return Collections.emptySet();
+        return methods;
+    }
+
+    /*
+     * Returns false if one of the routes serves every method
+     */
+    private static boolean addMethods(List<Route> routes, String host, Set<String> methods) {
+        for (Route route : routes) {
+            if (route.host != null && !route.host.equalsIgnoreCase(host)) continue;
+            if (route.methods == null) return false;
+            methods.addAll(route.methods);
+        }
+        return true;
+    }
+
+    /*
+     * Decodes the percent-encoded UTF-8 octets in a path segment, like java.net.URI.getPath() does for stub paths.
+     * Unlike URLDecoder a '+' is left as it is, as is any malformed escape
+     */
+    static String decode(String segment) {
+        StringBuilder decoded = new StringBuilder(segment.length());
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        int length = segment.length();
+        for (int i = 0; i < length; i++) {
+            char c = segment.charAt(i);
+            if (c == '%' && i + 2 < length) {
+                int high = Character.digit(segment.charAt(i + 1), 16), low = Character.digit(segment.charAt(i + 2), 16);
+                if (high >= 0 && low >= 0) {
+                    octets.write((high << 4) + low);
+                    i += 2;
+                    continue;
+                }
+            }
+            if (octets.size() > 0) {
+                decoded.append(new String(octets.toByteArray(), StandardCharsets.UTF_8));
+                octets.reset();
+            }
+            decoded.append(c);
+        }
+        if (octets.size() > 0) decoded.append(new String(octets.toByteArray(), StandardCharsets.UTF_8));
+        return decoded.toString();
+    }
+
+    private static Route match(List<Route> routes, String method, String host) {
+        for (Route route : routes) {
+            if (route.host != null && !route.host.equalsIgnoreCase(host)) continue;
+            if (route.methods != null && !route.methods.contains(method)) continue;
+            return route;
+        }
+        return null;
+    }
+
+    public static class Builder {
+        private final Node root = new Node();
+
+        /**
+         * @param path      The path of the stub
+         * @param prefix    Whether the stub also serves paths beneath its own
+         * @param methods   The methods the stub serves, or null for any method
+         * @param host      The virtual host the stub serves, or null for any host
+         * @param processor Processes requests for the stub
+         */
+        public Builder add(String path, boolean prefix, Set<String> methods, String host, AsyncProcessor processor) {
+            Node node = root;
+            for (String segment : path.split("/")) {
+                if (segment.isEmpty()) continue;
+                node = node.children.computeIfAbsent(segment, key -> new Node());
+            }
+
+            List<Route> routes = prefix ? node.prefixRoutes : node.exactRoutes;
+            routes.add(new Route(host, methods, processor));
+            //routes for a specific host are tried first
+            routes.sort(Comparator.comparing(route -> route.host == null));
+            return this;
+        }
+
+        public RoutingTable build() {
+            return new RoutingTable(root);
+        }
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Route> exactRoutes = new ArrayList<>(1);
+        private final List<Route> prefixRoutes = new ArrayList<>(1);
+    }
+
+    private static class Route {
+        private final String host;
+        private final Set<String> methods;
+        private final AsyncProcessor processor;
+
+        private Route(String host, Set<String> methods, AsyncProcessor processor) {
+            this.host = host;
+            this.methods = methods;
+            this.processor = processor;
+        }
+    }
+}
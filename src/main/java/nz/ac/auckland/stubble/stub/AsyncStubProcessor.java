@@ -0,0 +1,54 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands an exchange over to an executor so the consumer's thread is released while the response is produced;
+ * the exchange continues through the route once the wrapped processor has finished
+ */
+public class AsyncStubProcessor implements AsyncProcessor {
+
+    private final Executor executor;
+    private final Processor delegate;
+
+    /**
+     * @param executor The executor that will run the wrapped processor
+     * @param delegate The processor producing the response
+     */
+    public AsyncStubProcessor(Executor executor, Processor delegate) {
+        this.executor = executor;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean process(final Exchange exchange, final AsyncCallback callback) {
+        try {
+            executor.execute(() -> {
+                try {
+                    delegate.process(exchange);
+                } catch (Exception e) {
+                    exchange.setException(e);
+                } finally {
+                    callback.done(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+}
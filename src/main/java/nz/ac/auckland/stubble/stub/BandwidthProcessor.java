@@ -0,0 +1,146 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which a response body is sent. For HTTP the body is written to the client in chunks timed by
+ * the shared scheduler and written on the shared writer executor, so a client that stops reading only holds up a
+ * writer thread; for other transports the whole response is delayed by the time it would take to send the body at
+ * the given rate. No thread waits between chunks
+ */
+public class BandwidthProcessor implements AsyncProcessor {
+
+    private static final long TICK_MILLIS = 100;
+
+    private final long bytesPerSecond;
+    private final int chunkSize;
+    private final long tickMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Executor writer;
+
+    /**
+     * @param bytesPerSecond The rate at which response bodies are sent
+     */
+    public BandwidthProcessor(long bytesPerSecond) {
+        this(bytesPerSecond, (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytesPerSecond * TICK_MILLIS / 1000)),
+                StubScheduler.get());
+    }
+
+    /**
+     * @param bytesPerSecond The rate at which response bodies are sent
+     * @param chunkSize      The number of bytes written at a time; the time between chunks is derived from the rate
+     * @param scheduler      The scheduler used to time each chunk
+     */
+    public BandwidthProcessor(long bytesPerSecond, int chunkSize, ScheduledExecutorService scheduler) {
+        this(bytesPerSecond, chunkSize, scheduler, StubScheduler.writer());
+    }
+
+    /**
+     * @param bytesPerSecond The rate at which response bodies are sent
+     * @param chunkSize      The number of bytes written at a time; the time between chunks is derived from the rate
+     * @param scheduler      The scheduler used to time each chunk
+     * @param writer         The executor that writes each chunk, which may block on a slow client
+     */
+    public BandwidthProcessor(long bytesPerSecond, int chunkSize, ScheduledExecutorService scheduler,
+                              Executor writer) {
+        if (bytesPerSecond <= 0 || chunkSize <= 0)
+            throw new IllegalArgumentException("The rate and chunk size must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+        this.chunkSize = chunkSize;
+        this.tickMillis = Math.max(1, chunkSize * 1000L / bytesPerSecond);
+        this.scheduler = scheduler;
+        this.writer = writer;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        byte[] body = exchange.getIn().getBody(byte[].class);
+        if (body == null || body.length == 0) {
+            callback.done(true);
+            return true;
+        }
+
+        try {
+            HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+            if (response == null) {
+                scheduler.schedule(() -> callback.done(false), body.length * 1000L / bytesPerSecond,
+                        TimeUnit.MILLISECONDS);
+                return false;
+            }
+
+            ServletResponseWriter.writeHeaders(exchange, response);
+            response.setContentLength(body.length);
+            ServletResponseWriter.markWritten(exchange);
+            writer.execute(new ChunkWriter(body, response, exchange, callback));
+            return false;
+        } catch (RejectedExecutionException e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    private class ChunkWriter implements Runnable {
+        private final byte[] body;
+        private final HttpServletResponse response;
+        private final Exchange exchange;
+        private final AsyncCallback callback;
+        private int offset = 0;
+
+        private ChunkWriter(byte[] body, HttpServletResponse response, Exchange exchange, AsyncCallback callback) {
+            this.body = body;
+            this.response = response;
+            this.exchange = exchange;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int length = Math.min(chunkSize, body.length - offset);
+                ServletOutputStream outputStream = response.getOutputStream();
+                outputStream.write(body, offset, length);
+                outputStream.flush();
+                offset += length;
+
+                if (offset < body.length) {
+                    //the scheduler only hands the next chunk to a writer thread
+                    scheduler.schedule(this::writeNext, tickMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            } catch (IOException | RejectedExecutionException e) {
+                exchange.setException(e);
+            }
+            callback.done(false);
+        }
+
+        private void writeNext() {
+            try {
+                writer.execute(this);
+            } catch (RejectedExecutionException e) {
+                exchange.setException(e);
+                callback.done(false);
+            }
+        }
+    }
+}
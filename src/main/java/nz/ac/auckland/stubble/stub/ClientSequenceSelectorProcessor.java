@@ -0,0 +1,90 @@
+package nz.ac.auckland.stubble.stub;
+
+import nz.ac.auckland.stubble.cluster.SharedCounter;
+import nz.ac.auckland.stubble.cluster.StateBackend;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Processor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loops through the responses separately for each client, so that concurrent clients each see the responses
+ * in order without affecting each other. Clients are identified by their address unless another key is provided
+ */
+public class ClientSequenceSelectorProcessor extends IndexedSelectorProcessor {
+
+    public static final int DEFAULT_MAXIMUM_CLIENTS = 10000;
+    public static final long DEFAULT_SHARED_TIME_TO_IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Expression clientKey;
+    private final int maximumClients;
+    private final KeyedStateCache<AtomicLong> counters;
+    private volatile KeyedStateCache<SharedCounter> sharedCounters;
+
+    public ClientSequenceSelectorProcessor(List<Processor> processors) {
+        this(processors, RequestKeys.clientAddress(), DEFAULT_MAXIMUM_CLIENTS);
+    }
+
+    /**
+     * @param clientKey      An expression identifying the client of an exchange
+     * @param maximumClients The number of clients to keep positions for; the least recently seen clients are
+     *                       forgotten (and start from the first response again) beyond this
+     */
+    public ClientSequenceSelectorProcessor(List<Processor> processors, Expression clientKey, int maximumClients) {
+        super(processors);
+        this.clientKey = clientKey;
+        this.maximumClients = maximumClients;
+        this.counters = new KeyedStateCache<>(maximumClients, 0, key -> new AtomicLong());
+    }
+
+    @Override
+    protected int selectIndex(Exchange exchange, int responseCount) {
+        String key = clientKey.evaluate(exchange, String.class);
+        if (key == null) key = "";
+        KeyedStateCache<SharedCounter> shared = sharedCounters;
+        long ticket = shared == null ? counters.get(key).getAndIncrement() : shared.get(key).getAndIncrement();
+        return (int) (ticket % responseCount);
+    }
+
+    /**
+     * Keeps each client's position in a backend shared with the other nodes of a cluster, so a client sees its
+     * responses in order whichever node serves it
+     *
+     * @param backend   The backend holding the positions
+     * @param keyPrefix Prefixes each client's key in the backend
+     */
+    public void share(StateBackend backend, String keyPrefix) {
+        share(backend, keyPrefix, 1);
+    }
+
+    /**
+     * Keeps each client's position in a backend shared with the other nodes of a cluster, taking positions in
+     * leases as a SharedCounter does. Each position is still used once, but a client whose requests alternate
+     * between nodes sees each node's lease in turn rather than strictly consecutive responses. The backend discards
+     * a client's position once it has been unused for an hour
+     *
+     * @param backend   The backend holding the positions
+     * @param keyPrefix Prefixes each client's key in the backend
+     * @param leaseSize The number of a client's positions taken from the backend at a time
+     */
+    public void share(StateBackend backend, String keyPrefix, int leaseSize) {
+        share(backend, keyPrefix, leaseSize, DEFAULT_SHARED_TIME_TO_IDLE_MILLIS);
+    }
+
+    /**
+     * @param backend          The backend holding the positions
+     * @param keyPrefix        Prefixes each client's key in the backend
+     * @param leaseSize        The number of a client's positions taken from the backend at a time
+     * @param timeToIdleMillis How long the backend keeps a client's position once the client stops making
+     *                         requests; the client then starts from the first response again
+     */
+    public void share(StateBackend backend, String keyPrefix, int leaseSize, long timeToIdleMillis) {
+        if (leaseSize <= 0) throw new IllegalArgumentException("The lease size must be positive");
+        if (timeToIdleMillis <= 0) throw new IllegalArgumentException("The time to idle must be positive");
+        this.sharedCounters = new KeyedStateCache<>(maximumClients, 0,
+                key -> new SharedCounter(backend, keyPrefix + key, leaseSize, timeToIdleMillis));
+    }
+}
@@ -0,0 +1,217 @@
+package nz.ac.auckland.stubble.stub;
+
+import nz.ac.auckland.morc.processor.MultiProcessor;
+import nz.ac.auckland.morc.resource.StaticTestResource;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultExchange;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * A processor that renders a deterministic response (static body and headers) once and then copies the
+ * rendered result onto each exchange, rather than running the underlying processors on every request
+ */
+public class CompiledResponseProcessor implements Processor {
+
+    /**
+     * An exchange property holding the pre-rendered response, so later stages can use anything cached with it
+     */
+    public static final String COMPILED_RESPONSE_PROPERTY = "StubbleCompiledResponse";
+
+    private final Processor delegate;
+    private volatile CompiledResponse compiledResponse;
+
+    /**
+     * @param delegate The processor (usually a MultiProcessor) that generates the response when rendered
+     */
+    public CompiledResponseProcessor(Processor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param processors A chain of response processors
+     * @return true if every processor in the chain only ever provides static content
+     */
+    public static boolean isDeterministic(Collection<Processor> processors) {
+        if (processors.isEmpty()) return false;
+        for (Processor processor : processors) {
+            if (!(processor instanceof StaticTestResource)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param processors The processors that generate a response
+     * @return A single processor for the response, which renders it only once if it is deterministic
+     */
+    public static Processor forResponse(Processor... processors) {
+        List<Processor> processorList = Arrays.asList(processors);
+        Processor processor = new MultiProcessor(processorList);
+        return isDeterministic(processorList) ? new CompiledResponseProcessor(processor) : processor;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        CompiledResponse response = compile(exchange.getContext());
+
+        Message in = exchange.getIn();
+        in.getHeaders().putAll(response.getHeaders());
+        in.setBody(response.getBody());
+        exchange.setProperty(COMPILED_RESPONSE_PROPERTY, response);
+    }
+
+    /**
+     * Renders the response if this hasn't already occurred
+     *
+     * @param context The Camel context providing type conversion for the rendered body
+     * @return The rendered response
+     */
+    public CompiledResponse compile(CamelContext context) throws Exception {
+        CompiledResponse response = compiledResponse;
+        if (response != null) return response;
+
+        synchronized (this) {
+            if (compiledResponse == null) {
+                Exchange scratch = new DefaultExchange(context);
+                delegate.process(scratch);
+                Message message = scratch.hasOut() ? scratch.getOut() : scratch.getIn();
+                compiledResponse = new CompiledResponse(toImmutableBody(scratch, message.getBody()),
+                        message.getHeaders());
+            }
+            return compiledResponse;
+        }
+    }
+
+    /**
+     * @return The rendered response, or null if it hasn't been rendered yet
+     */
+    public CompiledResponse getCompiledResponse() {
+        return compiledResponse;
+    }
+
+    /**
+     * @return The processor used to render the response
+     */
+    public Processor getDelegate() {
+        return delegate;
+    }
+
+    /*
+     * Strings are left alone as they are immutable and convert to most other types (e.g. CXF payloads); anything
+     * else (such as a DOM document) is serialized once so it can be shared safely between exchanges
+     */
+    private static Object toImmutableBody(Exchange exchange, Object body) throws Exception {
+        if (body == null || body instanceof String) return body;
+        if (body instanceof byte[]) return ((byte[]) body).clone();
+        return exchange.getContext().getTypeConverter().mandatoryConvertTo(String.class, exchange, body);
+    }
+
+    /**
+     * An immutable, pre-rendered response
+     */
+    public static class CompiledResponse {
+        private final Object body;
+        private final Map<String, Object> headers;
+        private final int bodyLength;
+        private final String entityTag;
+        private final long lastModified;
+        private final Map<String, byte[]> encodedBodies = new ConcurrentHashMap<>();
+
+        CompiledResponse(Object body, Map<String, Object> headers) {
+            this.body = body;
+            this.headers = Collections.unmodifiableMap(new HashMap<>(headers));
+            byte[] bytes = bodyBytes();
+            this.bodyLength = bytes.length;
+            this.entityTag = entityTag(bytes, this.headers.get(Exchange.CONTENT_TYPE));
+            //HTTP dates only have a resolution of seconds
+            this.lastModified = System.currentTimeMillis() / 1000 * 1000;
+        }
+
+        /*
+         * A hash of the content type and body, so the tag only changes when the content does
+         */
+        private static String entityTag(byte[] body, Object contentType) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                if (contentType != null) digest.update(contentType.toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(body);
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 12));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return The rendered body; either a String or a byte[] that must not be modified
+         */
+        public Object getBody() {
+            return body;
+        }
+
+        public Map<String, Object> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return The length of the body in bytes (encoded as UTF-8 if it is a String)
+         */
+        public int getBodyLength() {
+            return bodyLength;
+        }
+
+        /**
+         * @param encoding The content encoding of the body sent, or null if it is sent as it is
+         * @return A strong entity tag (including the quotes) for the body, which differs for each encoding
+         */
+        public String getETag(String encoding) {
+            return encoding == null ? '"' + entityTag + '"' : '"' + entityTag + '-' + encoding + '"';
+        }
+
+        /**
+         * @return The time the response was rendered, in milliseconds truncated to whole seconds
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @param encoding A content encoding supported by CompressionProcessor, e.g. gzip
+         * @return The body compressed with the encoding, which is only compressed the first time it is requested;
+         *         the array must not be modified
+         */
+        public byte[] getEncodedBody(String encoding) {
+            return encodedBodies.computeIfAbsent(encoding, e -> CompressionProcessor.encode(bodyBytes(), e,
+                    Deflater.BEST_COMPRESSION));
+        }
+
+        private byte[] bodyBytes() {
+            if (body == null) return new byte[0];
+            return body instanceof byte[] ? (byte[]) body : ((String) body).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CompiledResponse)) return false;
+            CompiledResponse that = (CompiledResponse) o;
+            boolean sameBody = body instanceof byte[] && that.body instanceof byte[]
+                    ? Arrays.equals((byte[]) body, (byte[]) that.body) : Objects.equals(body, that.body);
+            return sameBody && headers.equals(that.headers);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (body instanceof byte[] ? Arrays.hashCode((byte[]) body) : Objects.hashCode(body))
+                    + headers.hashCode();
+        }
+    }
+}
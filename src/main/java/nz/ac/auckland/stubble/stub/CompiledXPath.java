@@ -0,0 +1,110 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.w3c.dom.Document;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.*;
+
+/**
+ * An XPath expression that is validated when the stub is built. Compiled XPath expressions can't be shared between
+ * threads, so each evaluation takes one from a small pool, which only compiles another when they are all in use
+ */
+public class CompiledXPath {
+
+    private final String expression;
+    private final ObjectPool<XPathExpression> compiled;
+
+    /**
+     * @param expression The XPath expression
+     * @param namespaces Pairs of namespace prefixes and URIs used by the expression, e.g. "ns", "urn:foo"
+     */
+    public CompiledXPath(String expression, String... namespaces) {
+        if (namespaces.length % 2 != 0)
+            throw new IllegalArgumentException("Namespaces must be provided as prefix and URI pairs");
+
+        Map<String, String> namespaceMap = new HashMap<>();
+        for (int i = 0; i < namespaces.length; i += 2) {
+            namespaceMap.put(namespaces[i], namespaces[i + 1]);
+        }
+
+        this.expression = expression;
+        this.compiled = new ObjectPool<>(() -> compile(expression, namespaceMap));
+
+        //fail when the stub is built rather than on the first request
+        compiled.release(compiled.take());
+    }
+
+    /**
+     * @param document   The document to evaluate the expression against
+     * @param returnType One of the XPathConstants types
+     * @return The result, of the requested type
+     */
+    public Object evaluate(Document document, QName returnType) throws XPathExpressionException {
+        XPathExpression xpath = compiled.take();
+        try {
+            return xpath.evaluate(document, returnType);
+        } finally {
+            compiled.release(xpath);
+        }
+    }
+
+    /**
+     * @return The result as a string
+     */
+    public String evaluate(Document document) throws XPathExpressionException {
+        XPathExpression xpath = compiled.take();
+        try {
+            return xpath.evaluate(document);
+        } finally {
+            compiled.release(xpath);
+        }
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    private static XPathExpression compile(String expression, Map<String, String> namespaces) {
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        if (!namespaces.isEmpty()) xpath.setNamespaceContext(new MapNamespaceContext(namespaces));
+        try {
+            return xpath.compile(expression);
+        } catch (XPathExpressionException e) {
+            throw new IllegalArgumentException("Invalid XPath expression " + expression, e);
+        }
+    }
+
+    private static class MapNamespaceContext implements NamespaceContext {
+        private final Map<String, String> namespaces;
+
+        private MapNamespaceContext(Map<String, String> namespaces) {
+            this.namespaces = namespaces;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            String uri = namespaces.get(prefix);
+            return uri == null ? XMLConstants.NULL_NS_URI : uri;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+                if (entry.getValue().equals(namespaceURI)) return entry.getKey();
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator getPrefixes(String namespaceURI) {
+            String prefix = getPrefix(namespaceURI);
+            return prefix == null ? Collections.emptyIterator() : Collections.singletonList(prefix).iterator();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package nz.ac.auckland.stubble.stub;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Determines which content encodings a stub compresses its responses with; a response is only compressed with an
+ * encoding the client accepts in its Accept-Encoding header
+ */
+public enum Compression {
+    /**
+     * Never compress responses
+     */
+    OFF,
+    /**
+     * Compress responses with gzip
+     */
+    GZIP("gzip"),
+    /**
+     * Compress responses with deflate (zlib)
+     */
+    DEFLATE("deflate"),
+    /**
+     * Compress responses with whichever of gzip and deflate the client prefers, gzip if it has no preference
+     */
+    NEGOTIATED("gzip", "deflate");
+
+    private final List<String> encodings;
+
+    Compression(String... encodings) {
+        this.encodings = Collections.unmodifiableList(Arrays.asList(encodings));
+    }
+
+    /**
+     * @return The encodings offered, in order of preference
+     */
+    public List<String> getEncodings() {
+        return encodings;
+    }
+
+    /**
+     * @param acceptEncoding The request's Accept-Encoding header, e.g. gzip;q=0.5, deflate
+     * @return The offered encoding with the highest quality value, or null if the client accepts none of them
+     */
+    public String select(String acceptEncoding) {
+        if (acceptEncoding == null || encodings.isEmpty()) return null;
+
+        String selected = null;
+        double selectedQuality = 0;
+        for (String encoding : encodings) {
+            double quality = quality(acceptEncoding, encoding);
+            if (quality > selectedQuality) {
+                selected = encoding;
+                selectedQuality = quality;
+            }
+        }
+        return selected;
+    }
+
+    /*
+     * The quality of an encoding, from an exact match or else from a wildcard
+     */
+    private static double quality(String acceptEncoding, String encoding) {
+        double wildcard = 0;
+        for (String element : acceptEncoding.split(",")) {
+            int parameters = element.indexOf(';');
+            String name = (parameters < 0 ? element : element.substring(0, parameters)).trim()
+                    .toLowerCase(Locale.ROOT);
+            if (!name.equals(encoding) && !name.equals("*")) continue;
+
+            double quality = 1;
+            if (parameters >= 0) {
+                for (String parameter : element.substring(parameters + 1).split(";")) {
+                    parameter = parameter.trim();
+                    if (!parameter.startsWith("q=")) continue;
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (name.equals(encoding)) return quality;
+            wildcard = quality;
+        }
+        return wildcard;
+    }
+}
@@ -0,0 +1,198 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+
+import javax.servlet.http.HttpServletResponse;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with an encoding the client accepts. Pre-rendered responses are compressed once (at
+ * the best compression level) and the result is cached with the response; other responses are compressed quickly
+ * with compressors borrowed from a bounded pool. HTTP responses are then written by writer(), as Camel's HTTP binding
+ * would otherwise compress a gzip body a second time
+ */
+public class CompressionProcessor implements Processor {
+
+    /**
+     * An exchange property holding the content encoding a response body was compressed with
+     */
+    public static final String CONTENT_ENCODING_PROPERTY = "StubbleContentEncoding";
+
+    //idle compressors; more are created under load, and those that don't fit back in the pool are ended
+    private static final BlockingQueue<Encoder> encoders =
+            new ArrayBlockingQueue<>(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    private static final Processor WRITER = CompressionProcessor::writeEncoded;
+
+    private final Compression compression;
+    private final int minimumBytes;
+
+    /**
+     * @param compression  The encodings offered to clients
+     * @param minimumBytes The size below which bodies are sent uncompressed, as compression wouldn't save a packet
+     */
+    public CompressionProcessor(Compression compression, int minimumBytes) {
+        if (minimumBytes < 0) throw new IllegalArgumentException("The minimum size can't be negative");
+        this.compression = compression;
+        this.minimumBytes = minimumBytes;
+    }
+
+    /**
+     * @return A processor to run once any other stage that writes the response (e.g. a bandwidth limit) has run,
+     *         which writes a compressed HTTP response that hasn't been written yet
+     */
+    public static Processor writer() {
+        return WRITER;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Message message = exchange.getIn();
+        Object body = message.getBody();
+        if (body == null || message.getHeader(Exchange.CONTENT_ENCODING) != null) return;
+
+        CompiledResponseProcessor.CompiledResponse compiledResponse = exchange.getProperty(
+                CompiledResponseProcessor.COMPILED_RESPONSE_PROPERTY, CompiledResponseProcessor.CompiledResponse.class);
+        boolean compiled = compiledResponse != null && compiledResponse.getBody() == body;
+
+        byte[] bytes = compiled ? null : message.getBody(byte[].class);
+        int length = compiled ? compiledResponse.getBodyLength() : bytes == null ? 0 : bytes.length;
+        if (length < minimumBytes || length == 0) return;
+
+        //caches in front of the stub must keep a variant for each encoding
+        message.setHeader("Vary", "Accept-Encoding");
+
+        String encoding = compression.select(message.getHeader("Accept-Encoding", String.class));
+        if (encoding == null) return;
+
+        message.setBody(compiled ? compiledResponse.getEncodedBody(encoding) : encode(bytes, encoding,
+                Deflater.BEST_SPEED));
+        message.setHeader(Exchange.CONTENT_ENCODING, encoding);
+        message.removeHeader(Exchange.CONTENT_LENGTH);
+        exchange.setProperty(CONTENT_ENCODING_PROPERTY, encoding);
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getMinimumBytes() {
+        return minimumBytes;
+    }
+
+    /**
+     * @param body     The body to compress
+     * @param encoding gzip or deflate
+     * @param level    The Deflater compression level
+     * @return The compressed body
+     */
+    public static byte[] encode(byte[] body, String encoding, int level) {
+        if (!encoding.equals("gzip") && !encoding.equals("deflate"))
+            throw new IllegalArgumentException("Unsupported content encoding " + encoding);
+
+        Encoder encoder = encoders.poll();
+        if (encoder == null) encoder = new Encoder();
+        try {
+            return encoder.encode(body, encoding.equals("gzip"), level);
+        } finally {
+            encoder.reset();
+            if (!encoders.offer(encoder)) encoder.end();
+        }
+    }
+
+    /**
+     * Releases the native memory of the idle compressors; the pool is refilled if bodies are compressed again
+     */
+    public static void endEncoders() {
+        Encoder encoder;
+        while ((encoder = encoders.poll()) != null) {
+            encoder.end();
+        }
+    }
+
+    private static void writeEncoded(Exchange exchange) throws Exception {
+        if (exchange.getProperty(CONTENT_ENCODING_PROPERTY) == null) return;
+
+        HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+        byte[] body = exchange.getIn().getBody(byte[].class);
+        //written already (e.g. by a bandwidth limit or a fault), or not HTTP
+        if (response == null || body == null) return;
+
+        ServletResponseWriter.writeHeaders(exchange, response);
+        response.setHeader(Exchange.CONTENT_ENCODING, exchange.getProperty(CONTENT_ENCODING_PROPERTY, String.class));
+        response.setContentLength(body.length);
+        ServletResponseWriter.write(response, ByteBuffer.wrap(body));
+        ServletResponseWriter.markWritten(exchange);
+    }
+
+    /*
+     * Pooled compressors and an output buffer; gzip is a raw deflate stream with a header and a CRC trailer
+     */
+    private static class Encoder {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        private static final int BUFFER_SIZE = 8192, MAXIMUM_POOLED_BUFFER_SIZE = 1 << 20;
+
+        private final Deflater raw = new Deflater(Deflater.BEST_SPEED, true);
+        private final Deflater zlib = new Deflater(Deflater.BEST_SPEED, false);
+        private final CRC32 crc = new CRC32();
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        private int length;
+
+        byte[] encode(byte[] body, boolean gzip, int level) {
+            //other levels are rare (cached responses), so they don't keep a native compressor in the pool
+            Deflater deflater = level != Deflater.BEST_SPEED ? new Deflater(level, gzip) : gzip ? raw : zlib;
+            try {
+                deflater.setInput(body);
+                deflater.finish();
+
+                length = 0;
+                if (gzip) append(GZIP_HEADER);
+                while (!deflater.finished()) {
+                    if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+
+                if (gzip) {
+                    crc.reset();
+                    crc.update(body, 0, body.length);
+                    appendIntLittleEndian((int) crc.getValue());
+                    appendIntLittleEndian(body.length);
+                }
+                return Arrays.copyOf(buffer, length);
+            } finally {
+                if (deflater != raw && deflater != zlib) deflater.end();
+            }
+        }
+
+        /*
+         * Readies the encoder to go back into the pool, without keeping the buffer of an unusually large body
+         */
+        void reset() {
+            raw.reset();
+            zlib.reset();
+            if (buffer.length > MAXIMUM_POOLED_BUFFER_SIZE) buffer = new byte[BUFFER_SIZE];
+        }
+
+        void end() {
+            raw.end();
+            zlib.end();
+        }
+
+        private void append(byte[] bytes) {
+            if (length + bytes.length > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes.length));
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void appendIntLittleEndian(int value) {
+            append(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+        }
+    }
+}
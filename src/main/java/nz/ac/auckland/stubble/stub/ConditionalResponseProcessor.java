@@ -0,0 +1,107 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+
+import javax.servlet.http.HttpServletResponse;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Adds caching headers to a stub's responses. Pre-rendered responses carry an ETag (a hash of their content) and a
+ * Last-Modified time, and a GET or HEAD request whose If-None-Match or If-Modified-Since shows the client already
+ * has the response is answered with 304 Not Modified and no body. Other responses are always sent in full
+ */
+public class ConditionalResponseProcessor implements Processor {
+
+    private final boolean conditionalRequests;
+    private final String cacheControl;
+
+    /**
+     * @param conditionalRequests Whether pre-rendered responses carry validators and answer conditional requests
+     * @param cacheControl        The Cache-Control header for every response, or null for none
+     */
+    public ConditionalResponseProcessor(boolean conditionalRequests, String cacheControl) {
+        this.conditionalRequests = conditionalRequests;
+        this.cacheControl = cacheControl;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Message message = exchange.getIn();
+        if (cacheControl != null) {
+            message.setHeader("Cache-Control", cacheControl);
+            //Camel's HTTP header filter drops Cache-Control, so it is set on the servlet response directly
+            HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+            if (response != null) response.setHeader("Cache-Control", cacheControl);
+        }
+        if (!conditionalRequests) return;
+
+        CompiledResponseProcessor.CompiledResponse response = exchange.getProperty(
+                CompiledResponseProcessor.COMPILED_RESPONSE_PROPERTY, CompiledResponseProcessor.CompiledResponse.class);
+        if (response == null) return;
+
+        //the body may since have been replaced, e.g. by a scenario; only the compiled body (or a variant) is tagged
+        String encoding = exchange.getProperty(CompressionProcessor.CONTENT_ENCODING_PROPERTY, String.class);
+        Object body = message.getBody();
+        if (body != (encoding == null ? response.getBody() : response.getEncodedBody(encoding))) return;
+
+        String entityTag = response.getETag(encoding);
+        message.setHeader("ETag", entityTag);
+        message.setHeader("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(response.getLastModified()).atZone(ZoneOffset.UTC)));
+
+        String method = message.getHeader(Exchange.HTTP_METHOD, "GET", String.class);
+        if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD")) return;
+
+        String ifNoneMatch = message.getHeader("If-None-Match", String.class);
+        boolean notModified = ifNoneMatch != null ? matches(ifNoneMatch, entityTag)
+                : notModifiedSince(message.getHeader("If-Modified-Since", String.class), response.getLastModified());
+        if (!notModified) return;
+
+        message.setBody(null);
+        message.setHeader(Exchange.HTTP_RESPONSE_CODE, 304);
+        message.removeHeader(Exchange.CONTENT_TYPE);
+        message.removeHeader(Exchange.CONTENT_LENGTH);
+        message.removeHeader(Exchange.CONTENT_ENCODING);
+        exchange.removeProperty(CompressionProcessor.CONTENT_ENCODING_PROPERTY);
+    }
+
+    public boolean isConditionalRequests() {
+        return conditionalRequests;
+    }
+
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    /*
+     * If-None-Match uses the weak comparison, so a W/ prefix is ignored
+     */
+    private static boolean matches(String ifNoneMatch, String entityTag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) return true;
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals(entityTag)) return true;
+        }
+        return false;
+    }
+
+    private static boolean notModifiedSince(String ifModifiedSince, long lastModified) {
+        if (ifModifiedSince == null) return false;
+        try {
+            long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+            return lastModified <= since;
+        } catch (DateTimeParseException e) {
+            //an invalid date is ignored
+            return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the body bytes that stages write to the servlet response themselves (e.g. throttled, compressed or
+ * streamed bodies), which never reach Camel's HTTP binding. Buffers sent with ServletResponseWriter.write are
+ * counted there and still go straight to the socket
+ */
+public class CountingServletResponse extends HttpServletResponseWrapper {
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile ServletOutputStream outputStream;
+
+    private CountingServletResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Puts a counting response in place of the exchange's servlet response
+     *
+     * @return The counting response, or null if the exchange isn't HTTP
+     */
+    public static CountingServletResponse attach(Exchange exchange) {
+        HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+        if (response == null || response instanceof CountingServletResponse)
+            return (CountingServletResponse) response;
+
+        CountingServletResponse counting = new CountingServletResponse(response);
+        exchange.getIn().setHeader(Exchange.HTTP_SERVLET_RESPONSE, counting);
+        return counting;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        ServletOutputStream counting = outputStream;
+        if (counting == null) {
+            synchronized (this) {
+                if (outputStream == null) outputStream = new CountingOutputStream(super.getOutputStream());
+                counting = outputStream;
+            }
+        }
+        return counting;
+    }
+
+    /**
+     * @return The number of body bytes written so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    void count(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    private class CountingOutputStream extends ServletOutputStream {
+        private final ServletOutputStream outputStream;
+
+        private CountingOutputStream(ServletOutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            outputStream.write(b);
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            outputStream.write(bytes, offset, length);
+            count(length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+        }
+    }
+}
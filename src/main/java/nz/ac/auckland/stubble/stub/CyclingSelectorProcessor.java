@@ -0,0 +1,54 @@
+package nz.ac.auckland.stubble.stub;
+
+import nz.ac.auckland.stubble.cluster.SharedCounter;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loops through the responses in order; each exchange takes a unique ticket from an atomic counter so the
+ * round-robin order is kept exactly under concurrent load without locking
+ */
+public class CyclingSelectorProcessor extends IndexedSelectorProcessor {
+
+    private final AtomicLong counter = new AtomicLong();
+    private volatile SharedCounter sharedCounter;
+
+    public CyclingSelectorProcessor(List<Processor> processors) {
+        super(processors);
+    }
+
+    @Override
+    protected int selectIndex(Exchange exchange, int responseCount) {
+        SharedCounter shared = sharedCounter;
+        long ticket = shared == null ? counter.getAndIncrement() : shared.getAndIncrement();
+        return (int) (ticket % responseCount);
+    }
+
+    /**
+     * @return The number of exchanges that have been handled by this selector (across the cluster if shared)
+     */
+    public long getCount() {
+        SharedCounter shared = sharedCounter;
+        return shared == null ? counter.get() : shared.get();
+    }
+
+    /**
+     * @param count The position to continue cycling from
+     */
+    public void setCount(long count) {
+        SharedCounter shared = sharedCounter;
+        if (shared == null) counter.set(count);
+        else shared.set(count);
+    }
+
+    /**
+     * @param sharedCounter A counter shared with the other nodes of a cluster, which takes over from this selector's
+     *                      own counter
+     */
+    public void share(SharedCounter sharedCounter) {
+        this.sharedCounter = sharedCounter;
+    }
+}
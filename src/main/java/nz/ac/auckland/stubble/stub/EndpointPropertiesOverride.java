@@ -0,0 +1,51 @@
+package nz.ac.auckland.stubble.stub;
+
+import nz.ac.auckland.morc.endpointoverride.EndpointOverride;
+import org.apache.camel.Endpoint;
+import org.apache.camel.util.IntrospectionSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sets bean properties on an endpoint (e.g. useContinuation on a Jetty endpoint); properties that the endpoint
+ * doesn't support are skipped so the same override can be applied to any transport
+ */
+public class EndpointPropertiesOverride implements EndpointOverride {
+
+    private static final Logger logger = LoggerFactory.getLogger(EndpointPropertiesOverride.class);
+    private final Map<String, Object> properties;
+
+    /**
+     * @param properties The endpoint property names and the values to set them to
+     */
+    public EndpointPropertiesOverride(Map<String, Object> properties) {
+        this.properties = Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+    }
+
+    public EndpointPropertiesOverride(String name, Object value) {
+        this(Collections.singletonMap(name, value));
+    }
+
+    @Override
+    public void overrideEndpoint(Endpoint endpoint) {
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            try {
+                if (!IntrospectionSupport.setProperty(endpoint.getCamelContext().getTypeConverter(), endpoint,
+                        property.getKey(), property.getValue()))
+                    logger.debug("Endpoint {} does not support property {}", endpoint.getEndpointUri(),
+                            property.getKey());
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to set property " + property.getKey() + " on endpoint "
+                        + endpoint.getEndpointUri(), e);
+            }
+        }
+    }
+
+    public Map<String, Object> getProperties() {
+        return properties;
+    }
+}
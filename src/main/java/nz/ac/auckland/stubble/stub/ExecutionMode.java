@@ -0,0 +1,16 @@
+package nz.ac.auckland.stubble.stub;
+
+/**
+ * Determines which threads are used to produce a stub's responses
+ */
+public enum ExecutionMode {
+    /**
+     * Responses are produced on the consumer's (e.g. Jetty's) thread, which is held until the response is sent
+     */
+    BLOCKING,
+    /**
+     * The consumer's thread is released (using Jetty continuations for HTTP) and responses are produced on
+     * Stubble's stub executor, which uses virtual threads when the JVM supports them
+     */
+    ASYNC
+}
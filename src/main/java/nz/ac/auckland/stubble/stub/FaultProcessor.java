@@ -0,0 +1,222 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.util.AsyncProcessorConverterHelper;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Injects the faults of a profile ahead of the stages producing a response. Errors, resets and timeouts replace
+ * the response entirely; truncated and slow-drip bodies are applied once the response has been produced. Choosing
+ * a fault takes a single atomic increment, and timeouts and slow drips are scheduled rather than holding a thread.
+ * Faults that write to the client do so on the writer threads, as a slow client could otherwise stall the scheduler
+ */
+public class FaultProcessor implements AsyncProcessor {
+
+    /**
+     * The exchange property naming the fault injected into the response, if any
+     */
+    public static final String INJECTED_FAULT_PROPERTY = "StubbleInjectedFault";
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    //slow drips are sent in small chunks rather than a byte at a time, so even fast drips need few writes
+    private static final int DRIP_WRITES_PER_SECOND = 20;
+
+    private final FaultProfile.Fault[] faults;
+    private final BandwidthProcessor[] drips;
+    private final Long seed;
+    private final AsyncProcessor next;
+    private final ScheduledExecutorService scheduler;
+    private final Executor writer;
+    private final AtomicLong requests = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param profile The faults to inject
+     * @param next    The stages that produce the response when no fault (or a body fault) applies
+     */
+    public FaultProcessor(FaultProfile profile, Processor next) {
+        this(profile, next, StubScheduler.get());
+    }
+
+    public FaultProcessor(FaultProfile profile, Processor next, ScheduledExecutorService scheduler) {
+        this(profile, next, scheduler, StubScheduler.writer());
+    }
+
+    /**
+     * @param profile   The faults to inject
+     * @param next      The stages that produce the response when no fault (or a body fault) applies
+     * @param scheduler The scheduler used to time timeouts and slow drips
+     * @param writer    The executor that writes faulty responses, which may block on a slow client
+     */
+    public FaultProcessor(FaultProfile profile, Processor next, ScheduledExecutorService scheduler,
+                          Executor writer) {
+        List<FaultProfile.Fault> faults = profile.getFaults();
+        this.faults = faults.toArray(new FaultProfile.Fault[faults.size()]);
+        this.drips = new BandwidthProcessor[this.faults.length];
+        for (int i = 0; i < this.faults.length; i++) {
+            if (this.faults[i].kind != FaultProfile.Kind.SLOW_DRIP) continue;
+            long bytesPerSecond = this.faults[i].value;
+            int chunkSize = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytesPerSecond / DRIP_WRITES_PER_SECOND));
+            drips[i] = new BandwidthProcessor(bytesPerSecond, chunkSize, scheduler, writer);
+        }
+        this.seed = profile.getSeed();
+        this.next = AsyncProcessorConverterHelper.convert(next);
+        this.scheduler = scheduler;
+        this.writer = writer;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        int index = select();
+        if (index < 0) return next.process(exchange, callback);
+
+        FaultProfile.Fault fault = faults[index];
+        exchange.setProperty(INJECTED_FAULT_PROPERTY, fault.kind.name());
+
+        switch (fault.kind) {
+            case ERROR:
+                exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, (int) fault.value);
+                exchange.getIn().setBody(null);
+                break;
+            case CONNECTION_RESET:
+                abort(exchange);
+                break;
+            case TIMEOUT:
+                try {
+                    scheduler.schedule(() -> write(exchange, callback, () -> abort(exchange)), fault.value,
+                            TimeUnit.MILLISECONDS);
+                    return false;
+                } catch (RejectedExecutionException e) {
+                    exchange.setException(e);
+                }
+                break;
+            default:
+                //body faults apply to the response once it has been produced
+                boolean sync = next.process(exchange, doneSync -> {
+                    if (!doneSync) applyBodyFault(index, exchange, done -> callback.done(false));
+                });
+                return sync && applyBodyFault(index, exchange, callback);
+        }
+
+        callback.done(true);
+        return true;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    /*
+     * The index of the first fault that applies to the next request, or -1
+     */
+    private int select() {
+        long sequence = requests.getAndIncrement();
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+        long base = seed == null ? 0 : mix(seed + sequence * GOLDEN_GAMMA);
+
+        for (int i = 0; i < faults.length; i++) {
+            //a seeded value depends only on the request's position and the fault, so a seeded profile is
+            //reproducible without sharing a random source between threads
+            double random = seed == null ? ThreadLocalRandom.current().nextDouble()
+                    : (mix(base + (i + 1) * GOLDEN_GAMMA) >>> 11) * 0x1.0p-53;
+            if (faults[i].schedule.applies(sequence, elapsedMillis, random)) return i;
+        }
+        return -1;
+    }
+
+    /*
+     * SplitMix64's finalizer
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private boolean applyBodyFault(int index, Exchange exchange, AsyncCallback callback) {
+        if (exchange.getException() == null) {
+            if (faults[index].kind == FaultProfile.Kind.SLOW_DRIP) return drips[index].process(exchange, callback);
+            if (ServletResponseWriter.servletResponse(exchange) != null) {
+                write(exchange, callback, () -> truncate(exchange));
+                return false;
+            }
+            truncate(exchange);
+        }
+        callback.done(true);
+        return true;
+    }
+
+    /*
+     * Runs a (potentially blocking) write to the client on a writer thread, then completes the exchange
+     */
+    private void write(Exchange exchange, AsyncCallback callback, Runnable write) {
+        try {
+            writer.execute(() -> {
+                write.run();
+                callback.done(false);
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.setException(e);
+            callback.done(false);
+        }
+    }
+
+    private static void truncate(Exchange exchange) {
+        byte[] body = exchange.getIn().getBody(byte[].class);
+        if (body == null || body.length == 0) {
+            abort(exchange);
+            return;
+        }
+
+        HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+        if (response == null) {
+            exchange.getIn().setBody(Arrays.copyOf(body, body.length / 2));
+            return;
+        }
+
+        try {
+            ServletResponseWriter.writeHeaders(exchange, response);
+            response.setContentLength(body.length);
+            ServletOutputStream outputStream = response.getOutputStream();
+            outputStream.write(body, 0, body.length / 2);
+            outputStream.flush();
+        } catch (IOException e) {
+            //the client has gone, which is the intended outcome
+        }
+        abort(exchange);
+    }
+
+    /*
+     * Closes an HTTP connection without completing the response; other transports fail the exchange instead
+     */
+    private static void abort(Exchange exchange) {
+        HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+        if (response == null) {
+            exchange.setException(new IOException("Injected connection reset"));
+            return;
+        }
+
+        try {
+            ServletResponseWriter.abort(response);
+        } catch (IOException e) {
+            //the client has gone, which is the intended outcome
+        }
+        ServletResponseWriter.markWritten(exchange);
+    }
+}
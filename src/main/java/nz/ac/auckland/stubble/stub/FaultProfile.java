@@ -0,0 +1,116 @@
+package nz.ac.auckland.stubble.stub;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ways in which a stub misbehaves, each with a probability or schedule, e.g.
+ * new FaultProfile().seed(42).error(0.05, 503).connectionReset(FaultSchedule.everyNth(100)). Faults are checked
+ * in the order they were added and the first that applies to a request is used
+ */
+public class FaultProfile {
+
+    enum Kind {ERROR, TIMEOUT, CONNECTION_RESET, TRUNCATED_BODY, SLOW_DRIP}
+
+    static class Fault {
+        final Kind kind;
+        final FaultSchedule schedule;
+        final long value;
+
+        private Fault(Kind kind, FaultSchedule schedule, long value) {
+            this.kind = kind;
+            this.schedule = schedule;
+            this.value = value;
+        }
+    }
+
+    private final List<Fault> faults = new ArrayList<>();
+    private Long seed;
+
+    /**
+     * @param seed Makes the faults reproducible: the same sequence of requests receives the same faults on each run
+     */
+    public FaultProfile seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param probability The chance (0-1) that a request receives an error response
+     * @param status      The HTTP status of the error response
+     */
+    public FaultProfile error(double probability, int status) {
+        return error(FaultSchedule.probability(probability), status);
+    }
+
+    public FaultProfile error(FaultSchedule schedule, int status) {
+        if (status < 100 || status > 599) throw new IllegalArgumentException("Invalid HTTP status " + status);
+        return add(Kind.ERROR, schedule, status);
+    }
+
+    /**
+     * @param probability The chance (0-1) that a request receives no response
+     * @param delayMillis How long the request is held (without a thread) before its connection is closed
+     */
+    public FaultProfile timeout(double probability, long delayMillis) {
+        return timeout(FaultSchedule.probability(probability), delayMillis);
+    }
+
+    public FaultProfile timeout(FaultSchedule schedule, long delayMillis) {
+        if (delayMillis < 0) throw new IllegalArgumentException("The delay can't be negative");
+        return add(Kind.TIMEOUT, schedule, delayMillis);
+    }
+
+    /**
+     * @param probability The chance (0-1) that a request's connection is closed without a response
+     */
+    public FaultProfile connectionReset(double probability) {
+        return connectionReset(FaultSchedule.probability(probability));
+    }
+
+    public FaultProfile connectionReset(FaultSchedule schedule) {
+        return add(Kind.CONNECTION_RESET, schedule, 0);
+    }
+
+    /**
+     * @param probability The chance (0-1) that only the first half of a response body is sent before the
+     *                    connection is closed
+     */
+    public FaultProfile truncatedBody(double probability) {
+        return truncatedBody(FaultSchedule.probability(probability));
+    }
+
+    public FaultProfile truncatedBody(FaultSchedule schedule) {
+        return add(Kind.TRUNCATED_BODY, schedule, 0);
+    }
+
+    /**
+     * @param probability    The chance (0-1) that a response body is streamed a byte at a time
+     * @param bytesPerSecond The rate at which the bytes are sent
+     */
+    public FaultProfile slowDrip(double probability, long bytesPerSecond) {
+        return slowDrip(FaultSchedule.probability(probability), bytesPerSecond);
+    }
+
+    public FaultProfile slowDrip(FaultSchedule schedule, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("The rate must be positive");
+        return add(Kind.SLOW_DRIP, schedule, bytesPerSecond);
+    }
+
+    private FaultProfile add(Kind kind, FaultSchedule schedule, long value) {
+        if (schedule == null) throw new IllegalArgumentException("A fault requires a schedule");
+        faults.add(new Fault(kind, schedule, value));
+        return this;
+    }
+
+    /**
+     * @return The seed, or null if faults are chosen with an unseeded random source
+     */
+    public Long getSeed() {
+        return seed;
+    }
+
+    List<Fault> getFaults() {
+        return faults;
+    }
+}
@@ -0,0 +1,61 @@
+package nz.ac.auckland.stubble.stub;
+
+/**
+ * Decides whether a fault applies to a request. Schedules are evaluated for every request, so they are kept
+ * free of locks and allocation
+ */
+public interface FaultSchedule {
+
+    /**
+     * @param sequence      The number of the request (from 0) since the stub was started or reloaded
+     * @param elapsedMillis The time since the stub was started or reloaded
+     * @param random        A uniformly distributed value in [0, 1), reproducible when the fault profile is seeded
+     * @return Whether the fault applies to this request
+     */
+    boolean applies(long sequence, long elapsedMillis, double random);
+
+    /**
+     * @param probability The chance (0-1) that the fault applies to any request
+     */
+    static FaultSchedule probability(double probability) {
+        if (probability < 0 || probability > 1)
+            throw new IllegalArgumentException("The probability must be between 0 and 1");
+        return (sequence, elapsedMillis, random) -> random < probability;
+    }
+
+    /**
+     * @param n The fault applies to every nth request, e.g. 10 for the 10th, 20th, 30th...
+     */
+    static FaultSchedule everyNth(long n) {
+        if (n <= 0) throw new IllegalArgumentException("n must be positive");
+        return (sequence, elapsedMillis, random) -> sequence % n == n - 1;
+    }
+
+    /**
+     * @param fromMillis  The start of the window, relative to when the stub was started
+     * @param toMillis    The end of the window
+     * @param probability The chance (0-1) that the fault applies to a request within the window
+     */
+    static FaultSchedule between(long fromMillis, long toMillis, double probability) {
+        if (fromMillis < 0 || toMillis < fromMillis)
+            throw new IllegalArgumentException("The window must satisfy 0 <= from <= to");
+        FaultSchedule within = probability(probability);
+        return (sequence, elapsedMillis, random) -> elapsedMillis >= fromMillis && elapsedMillis < toMillis
+                && within.applies(sequence, elapsedMillis, random);
+    }
+
+    /**
+     * Repeated outages, e.g. periodic(60000, 5000, 1) fails every request for the first 5 seconds of each minute
+     *
+     * @param periodMillis   The time between the start of each outage
+     * @param durationMillis The length of each outage
+     * @param probability    The chance (0-1) that the fault applies to a request during an outage
+     */
+    static FaultSchedule periodic(long periodMillis, long durationMillis, double probability) {
+        if (periodMillis <= 0 || durationMillis < 0 || durationMillis > periodMillis)
+            throw new IllegalArgumentException("The duration must be between 0 and the (positive) period");
+        FaultSchedule within = probability(probability);
+        return (sequence, elapsedMillis, random) -> elapsedMillis % periodMillis < durationMillis
+                && within.applies(sequence, elapsedMillis, random);
+    }
+}
@@ -0,0 +1,162 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves a response body from a memory-mapped file, so the file's contents never need to be copied onto the heap
+ * regardless of its size or the number of concurrent requests. HTTP responses are written straight to the client
+ * (supporting single range requests); for other transports the body is a stream over the mapped file
+ */
+public class FileResponseProcessor implements Processor {
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    private final Path path;
+    private final long length;
+    private final String contentType;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * @param path The file to serve; it is mapped when the stub is built and should not change afterwards
+     */
+    public FileResponseProcessor(Path path) {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(SEGMENT_SIZE, length - position));
+            }
+
+            String probedContentType = Files.probeContentType(path);
+            contentType = probedContentType == null ? "application/octet-stream" : probedContentType;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to map response file " + path, e);
+        }
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+        if (response == null) {
+            exchange.getIn().setBody(new MappedInputStream(0, length));
+            exchange.getIn().setHeader(Exchange.CONTENT_LENGTH, length);
+            return;
+        }
+
+        ServletResponseWriter.writeHeaders(exchange, response);
+        if (exchange.getIn().getHeader(Exchange.CONTENT_TYPE) == null) response.setContentType(contentType);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        long start = 0, end = length - 1;
+        String range = exchange.getIn().getHeader("Range", String.class);
+        Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range.trim());
+
+        if (matcher != null && matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            boolean satisfiable;
+            try {
+                if (matcher.group(1).isEmpty()) {
+                    //a suffix range: the last n bytes
+                    start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+                } else {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+                satisfiable = start < length && start <= end;
+            } catch (NumberFormatException e) {
+                //positions too large for a long can't be within the file
+                satisfiable = false;
+            }
+
+            if (!satisfiable) {
+                response.setStatus(416);
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setContentLength(0);
+                ServletResponseWriter.markWritten(exchange);
+                return;
+            }
+
+            response.setStatus(206);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+
+        response.setHeader("Content-Length", String.valueOf(end - start + 1));
+        ServletResponseWriter.markWritten(exchange);
+
+        for (long position = start; position <= end; ) {
+            ByteBuffer segment = segment(position, end + 1);
+            position += segment.remaining();
+            ServletResponseWriter.write(response, segment);
+        }
+        response.flushBuffer();
+    }
+
+    /*
+     * A view of the mapped file from position up to (but not including) limit, within a single segment
+     */
+    private ByteBuffer segment(long position, long limit) {
+        int index = (int) (position / SEGMENT_SIZE);
+        long segmentStart = (long) index * SEGMENT_SIZE;
+        ByteBuffer buffer = segments[index].duplicate();
+        buffer.position((int) (position - segmentStart));
+        buffer.limit((int) Math.min(buffer.capacity(), limit - segmentStart));
+        return buffer;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    private class MappedInputStream extends InputStream {
+        private long position;
+        private final long end;
+
+        private MappedInputStream(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            if (position >= end) return -1;
+            ByteBuffer buffer = segment(position, position + 1);
+            position++;
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (position >= end) return -1;
+            ByteBuffer buffer = segment(position, Math.min(end, position + count));
+            int read = buffer.remaining();
+            buffer.get(bytes, offset, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Predicate;
+import org.apache.camel.Processor;
+
+import java.util.*;
+
+/**
+ * Selects a response by extracting a key from each exchange once (e.g. a header, XPath result or the body) and
+ * looking it up in a hash index, rather than evaluating every answer's predicate in turn. Answers that can't be
+ * expressed as a key are evaluated in order only when the key has no indexed answer
+ */
+public class IndexedMatchedResponseProcessor implements Processor {
+
+    private final Expression matchKey;
+    private final Map<String, Processor> index = new HashMap<>();
+    private final List<IndexedResponse> fallbackResponses = new ArrayList<>();
+    private final Processor defaultResponse;
+    private final List<CompiledResponseProcessor> compiledResponses = new ArrayList<>();
+
+    /**
+     * @param matchKey  An expression that extracts the key used to look up the response
+     * @param responses The responses to choose from
+     */
+    public IndexedMatchedResponseProcessor(Expression matchKey, IndexedResponse... responses) {
+        this(matchKey, null, responses);
+    }
+
+    /**
+     * @param matchKey        An expression that extracts the key used to look up the response
+     * @param defaultResponse The response to use when nothing matches, may be null
+     * @param responses       The responses to choose from
+     */
+    public IndexedMatchedResponseProcessor(Expression matchKey, DefaultResponse defaultResponse,
+                                           IndexedResponse... responses) {
+        this.matchKey = matchKey;
+        this.defaultResponse = defaultResponse == null ? null : defaultResponse.getProcessor();
+
+        for (IndexedResponse response : responses) {
+            if (response.getKey() == null) fallbackResponses.add(response);
+            //the first answer for a key wins, as it would with a linear scan
+            else if (!index.containsKey(response.getKey())) index.put(response.getKey(), response.getProcessor());
+        }
+
+        List<Processor> reachable = new ArrayList<>(index.values());
+        for (IndexedResponse response : fallbackResponses) reachable.add(response.getProcessor());
+        if (this.defaultResponse != null) reachable.add(this.defaultResponse);
+        for (Processor processor : reachable) {
+            if (processor instanceof CompiledResponseProcessor)
+                compiledResponses.add((CompiledResponseProcessor) processor);
+        }
+    }
+
+    /**
+     * @return The responses made up only of static content, which can be rendered before the first request
+     */
+    public List<CompiledResponseProcessor> getCompiledResponses() {
+        return Collections.unmodifiableList(compiledResponses);
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Processor response = select(exchange);
+        if (response != null) response.process(exchange);
+    }
+
+    /**
+     * @return The response processor for the exchange, or null if there is no match and no default
+     */
+    protected Processor select(Exchange exchange) {
+        String key = matchKey.evaluate(exchange, String.class);
+        Processor response = key == null ? null : index.get(key);
+        if (response != null) {
+            exchange.setProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, "key:" + key);
+            return response;
+        }
+
+        for (int i = 0; i < fallbackResponses.size(); i++) {
+            if (fallbackResponses.get(i).getPredicate().matches(exchange)) {
+                exchange.setProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, "predicate:" + i);
+                return fallbackResponses.get(i).getProcessor();
+            }
+        }
+
+        exchange.setProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY,
+                defaultResponse == null ? "none" : "default");
+        return defaultResponse;
+    }
+
+    /**
+     * A response that is returned either when the extracted key equals a value, or when a predicate matches
+     */
+    public static class IndexedResponse {
+        private final String key;
+        private final Predicate predicate;
+        private final Processor processor;
+
+        /**
+         * @param key        The extracted key this response is returned for
+         * @param processors The processors that generate the response
+         */
+        public IndexedResponse(String key, Processor... processors) {
+            this.key = key;
+            this.predicate = null;
+            this.processor = CompiledResponseProcessor.forResponse(processors);
+        }
+
+        /**
+         * @param predicate  A predicate that is evaluated only if no key matched
+         * @param processors The processors that generate the response
+         */
+        public IndexedResponse(Predicate predicate, Processor... processors) {
+            this.key = null;
+            this.predicate = predicate;
+            this.processor = CompiledResponseProcessor.forResponse(processors);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Predicate getPredicate() {
+            return predicate;
+        }
+
+        public Processor getProcessor() {
+            return processor;
+        }
+    }
+
+    /**
+     * The response provided when there is no match
+     */
+    public static class DefaultResponse {
+        private final Processor processor;
+
+        public DefaultResponse(Processor... processors) {
+            this.processor = CompiledResponseProcessor.forResponse(processors);
+        }
+
+        public Processor getProcessor() {
+            return processor;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package nz.ac.auckland.stubble.stub;
+
+import nz.ac.auckland.morc.processor.SelectorProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A base for selectors that choose a response by index without taking any locks
+ */
+public abstract class IndexedSelectorProcessor extends SelectorProcessor {
+
+    /**
+     * The exchange property recording which response was chosen, used for metrics and the request journal
+     */
+    public static final String SELECTED_RESPONSE_PROPERTY = "StubbleSelectedResponse";
+
+    private final List<Processor> responses;
+
+    public IndexedSelectorProcessor(List<Processor> processors) {
+        super(processors);
+        this.responses = Collections.unmodifiableList(new ArrayList<>(processors));
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        if (responses.isEmpty()) return;
+        int index = selectIndex(exchange, responses.size());
+        exchange.setProperty(SELECTED_RESPONSE_PROPERTY, String.valueOf(index));
+        responses.get(index).process(exchange);
+    }
+
+    /**
+     * @param exchange      The incoming exchange
+     * @param responseCount The number of responses available, always greater than zero
+     * @return The index of the response that should handle this exchange
+     */
+    protected abstract int selectIndex(Exchange exchange, int responseCount);
+
+    /**
+     * @return The responses this selector chooses between
+     */
+    public List<Processor> getResponses() {
+        return responses;
+    }
+}
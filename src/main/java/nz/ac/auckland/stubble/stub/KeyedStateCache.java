@@ -0,0 +1,131 @@
+package nz.ac.auckland.stubble.stub;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * A bounded concurrent map of per-key state (e.g. per client or per session). Values are created on demand and
+ * expire after a period without access. Each key holds a place on a ring, and once the cache is full a hand
+ * sweeps round the ring as keys are added (the CLOCK approximation of LRU): keys used since the hand last passed
+ * are given a second chance, and the first key that hasn't been used is evicted. Every key is treated alike
+ * wherever it hashes, and eviction is cheap and free of global locks
+ *
+ * @param <V> The type of state held for each key
+ */
+public class KeyedStateCache<V> {
+
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Entry<V>> ring;
+    private final AtomicInteger hand = new AtomicInteger();
+    private final int maximumSize;
+    private final long timeToIdleNanos;
+    private final Function<String, V> factory;
+
+    /**
+     * @param maximumSize      The maximum number of keys held
+     * @param timeToIdleMillis How long a key can go without being accessed before its state is discarded,
+     *                         or 0 to keep state until it is evicted
+     * @param factory          Creates the initial state for a key
+     */
+    public KeyedStateCache(int maximumSize, long timeToIdleMillis, Function<String, V> factory) {
+        if (maximumSize < 1) throw new IllegalArgumentException("The maximum size must be at least 1");
+        this.maximumSize = maximumSize;
+        this.ring = new AtomicReferenceArray<>(maximumSize);
+        this.timeToIdleNanos = TimeUnit.MILLISECONDS.toNanos(timeToIdleMillis);
+        this.factory = factory;
+    }
+
+    /**
+     * @return The state for the key, created if it didn't exist or had expired
+     */
+    public V get(String key) {
+        long now = System.nanoTime();
+        Entry<V> entry = entries.get(key);
+
+        if (entry == null || isExpired(entry, now)) {
+            if (entry != null) entries.remove(key, entry);
+            Entry<V> created = new Entry<>(key, factory.apply(key), now);
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                place(created, now);
+                return created.value;
+            }
+        }
+
+        entry.lastAccess = now;
+        if (!entry.referenced) entry.referenced = true;
+        return entry.value;
+    }
+
+    /**
+     * @return The state for the key, or null if there is none
+     */
+    public V getIfPresent(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || isExpired(entry, System.nanoTime())) return null;
+        return entry.value;
+    }
+
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return timeToIdleNanos > 0 && now - entry.lastAccess > timeToIdleNanos;
+    }
+
+    /*
+     * Gives a new entry a place on the ring. While the cache has room the hand only takes places that are empty or
+     * held by removed or expired entries; once it is full, the first entry not used since the hand last passed is
+     * evicted. Racing threads can keep resetting the entries the hand passes, so after two turns it evicts anyway
+     */
+    private void place(Entry<V> entry, long now) {
+        int length = ring.length();
+        for (int step = 0; ; step++) {
+            int index = Math.floorMod(hand.getAndIncrement(), length);
+            Entry<V> current = ring.get(index);
+            boolean free = current == null || entries.get(current.key) != current || isExpired(current, now);
+
+            if (!free && step < 2 * length) {
+                if (entries.size() <= maximumSize) continue;
+                if (current.referenced) {
+                    current.referenced = false;
+                    continue;
+                }
+            }
+
+            if (ring.compareAndSet(index, current, entry)) {
+                if (current != null) entries.remove(current.key, current);
+                return;
+            }
+        }
+    }
+
+    private static class Entry<V> {
+        private final String key;
+        private final V value;
+        private volatile long lastAccess;
+        //set when the entry is used, and cleared as the hand passes it
+        private volatile boolean referenced;
+
+        private Entry(String key, V value, long lastAccess) {
+            this.key = key;
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
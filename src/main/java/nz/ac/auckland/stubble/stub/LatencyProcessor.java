@@ -0,0 +1,56 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays an exchange according to a latency profile by scheduling its continuation rather than sleeping, so a
+ * delayed response doesn't hold a thread (given an asynchronous consumer such as Jetty with continuations)
+ */
+public class LatencyProcessor implements AsyncProcessor {
+
+    private final LatencyProfile latencyProfile;
+    private final ScheduledExecutorService scheduler;
+
+    public LatencyProcessor(LatencyProfile latencyProfile) {
+        this(latencyProfile, StubScheduler.get());
+    }
+
+    public LatencyProcessor(LatencyProfile latencyProfile, ScheduledExecutorService scheduler) {
+        this.latencyProfile = latencyProfile;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        long delay = latencyProfile.nextDelay();
+        if (delay <= 0) {
+            callback.done(true);
+            return true;
+        }
+
+        try {
+            scheduler.schedule(() -> callback.done(false), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    public LatencyProfile getLatencyProfile() {
+        return latencyProfile;
+    }
+}
@@ -0,0 +1,74 @@
+package nz.ac.auckland.stubble.stub;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Provides the simulated delay (in milliseconds) before each response is returned
+ */
+public interface LatencyProfile {
+
+    /**
+     * @return The delay in milliseconds for the next response
+     */
+    long nextDelay();
+
+    /**
+     * @param delay The delay in milliseconds applied to every response
+     */
+    static LatencyProfile fixed(long delay) {
+        if (delay < 0) throw new IllegalArgumentException("The delay can't be negative");
+        return () -> delay;
+    }
+
+    /**
+     * @param minimum The smallest delay in milliseconds
+     * @param maximum The largest delay in milliseconds
+     */
+    static LatencyProfile uniform(long minimum, long maximum) {
+        if (minimum < 0 || maximum < minimum)
+            throw new IllegalArgumentException("The delays must satisfy 0 <= minimum <= maximum");
+        return () -> minimum + (long) (ThreadLocalRandom.current().nextDouble() * (maximum - minimum + 1));
+    }
+
+    /**
+     * @param mean              The mean delay in milliseconds
+     * @param standardDeviation The standard deviation in milliseconds; delays below zero are treated as zero
+     */
+    static LatencyProfile normal(long mean, long standardDeviation) {
+        return () -> Math.max(0, Math.round(mean + ThreadLocalRandom.current().nextGaussian() * standardDeviation));
+    }
+
+    /**
+     * Reproduces a latency distribution taken from production by interpolating between known percentiles, e.g.
+     * percentiles(50, 20, 99, 200, 99.9, 1000) for p50 = 20ms, p99 = 200ms and p999 = 1s
+     *
+     * @param percentilesAndDelays Pairs of percentiles (0-100, ascending) and delays in milliseconds
+     */
+    static LatencyProfile percentiles(double... percentilesAndDelays) {
+        if (percentilesAndDelays.length == 0 || percentilesAndDelays.length % 2 != 0)
+            throw new IllegalArgumentException("Percentiles must be provided as percentile and delay pairs");
+
+        final double[] percentiles = new double[percentilesAndDelays.length / 2 + 1];
+        final double[] delays = new double[percentiles.length];
+
+        for (int i = 1; i < percentiles.length; i++) {
+            percentiles[i] = percentilesAndDelays[(i - 1) * 2];
+            delays[i] = percentilesAndDelays[(i - 1) * 2 + 1];
+            if (percentiles[i] <= percentiles[i - 1] || percentiles[i] > 100 || delays[i] < delays[i - 1])
+                throw new IllegalArgumentException("Percentiles and delays must be ascending, got "
+                        + Arrays.toString(percentilesAndDelays));
+        }
+
+        return () -> {
+            double percentile = ThreadLocalRandom.current().nextDouble() * 100;
+            for (int i = 1; i < percentiles.length; i++) {
+                if (percentile <= percentiles[i]) {
+                    double fraction = (percentile - percentiles[i - 1]) / (percentiles[i] - percentiles[i - 1]);
+                    return Math.round(delays[i - 1] + fraction * (delays[i] - delays[i - 1]));
+                }
+            }
+            return Math.round(delays[delays.length - 1]);
+        };
+    }
+}
@@ -0,0 +1,90 @@
+package nz.ac.auckland.stubble.stub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.support.ExpressionAdapter;
+import org.w3c.dom.Document;
+
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * Expressions for extracting the key used to look up an indexed response; each returns null if no key can be
+ * extracted from the exchange
+ */
+public class MatchKeys {
+
+    /**
+     * @param name The name of the header holding the key
+     */
+    public static Expression header(final String name) {
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                return exchange.getIn().getHeader(name, String.class);
+            }
+        };
+    }
+
+    /**
+     * @return The whole body as a trimmed string
+     */
+    public static Expression body() {
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                String body = exchange.getIn().getBody(String.class);
+                return body == null ? null : body.trim();
+            }
+        };
+    }
+
+    /**
+     * @param xpath      An XPath expression evaluated against the XML body, compiled when the stub is built
+     * @param namespaces Pairs of namespace prefixes and URIs used by the expression
+     */
+    public static Expression xpath(String xpath, String... namespaces) {
+        final CompiledXPath compiledXPath = new CompiledXPath(xpath, namespaces);
+
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                Document document = ParsedBody.document(exchange);
+                if (document == null) return null;
+                try {
+                    return compiledXPath.evaluate(document).trim();
+                } catch (XPathExpressionException e) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param localName The local name of an element in the XML body; the key is the text of the first such
+     *                  element, found by streaming through the body rather than building a document
+     */
+    public static Expression elementText(final String localName) {
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                return StubMatchers.firstElementText(exchange, localName);
+            }
+        };
+    }
+
+    /**
+     * @param jsonPointer A JSON pointer (RFC 6901), e.g. /order/id, evaluated against the JSON body
+     */
+    public static Expression jsonPointer(final String jsonPointer) {
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                JsonNode json = ParsedBody.json(exchange);
+                if (json == null) return null;
+                JsonNode node = json.at(jsonPointer);
+                return node.isMissingNode() || node.isNull() ? null : node.asText();
+            }
+        };
+    }
+}
@@ -0,0 +1,39 @@
+package nz.ac.auckland.stubble.stub;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of objects that can't be shared between threads, such as parsers and compiled XPath expressions.
+ * Each object is taken for one use and then released. More are created under load, and those that don't fit back in
+ * the pool are dropped. Unlike a ThreadLocal, the objects are still reused when every request runs on a new
+ * (e.g. virtual) thread
+ *
+ * @param <T> The type of object pooled
+ */
+class ObjectPool<T> {
+
+    private final BlockingQueue<T> idle =
+            new ArrayBlockingQueue<>(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    private final Supplier<T> factory;
+
+    ObjectPool(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return An idle object, or a new one if there are none
+     */
+    T take() {
+        T object = idle.poll();
+        return object == null ? factory.get() : object;
+    }
+
+    /**
+     * @param object An object that is ready to be used again
+     */
+    void release(T object) {
+        idle.offer(object);
+    }
+}
@@ -0,0 +1,149 @@
+package nz.ac.auckland.stubble.stub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Parses the request body at most once per exchange so that every matcher of a stub shares the same tree.
+ * Parsers are taken from small pools for each use rather than being shared or globally configured
+ */
+public class ParsedBody {
+
+    private static final String DOCUMENT_PROPERTY = "StubbleParsedDocument";
+    private static final String JSON_PROPERTY = "StubbleParsedJson";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    //bodies that aren't XML are expected, so parse failures shouldn't be reported on standard error
+    private static final ErrorHandler SILENT_ERROR_HANDLER = new DefaultHandler();
+
+    private static final ObjectPool<DocumentBuilder> documentBuilders = new ObjectPool<>(() -> {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        //request bodies are untrusted: no DTDs, so no external entities or entity expansion
+        factory.setExpandEntityReferences(false);
+        factory.setXIncludeAware(false);
+        try {
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ObjectPool<XMLInputFactory> xmlInputFactories = new ObjectPool<>(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    });
+
+    /**
+     * @return The body parsed as an XML document, or null if it is empty or not XML
+     */
+    public static Document document(Exchange exchange) {
+        Object body = exchange.getIn().getBody();
+        if (body instanceof Document) return (Document) body;
+
+        Parsed cached = exchange.getProperty(DOCUMENT_PROPERTY, Parsed.class);
+        if (cached != null && cached.body == body) return (Document) cached.value;
+
+        Document document = null;
+        byte[] bytes = bytes(exchange);
+        if (bytes != null) {
+            DocumentBuilder documentBuilder = documentBuilders.take();
+            documentBuilder.setErrorHandler(SILENT_ERROR_HANDLER);
+            try {
+                document = documentBuilder.parse(new ByteArrayInputStream(bytes));
+            } catch (Exception e) {
+                document = null;
+            } finally {
+                documentBuilder.reset();
+                documentBuilders.release(documentBuilder);
+            }
+        }
+
+        exchange.setProperty(DOCUMENT_PROPERTY, new Parsed(body, document));
+        return document;
+    }
+
+    /**
+     * @return The XML document if the body has already been parsed in this exchange, otherwise null
+     */
+    public static Document documentIfParsed(Exchange exchange) {
+        Object body = exchange.getIn().getBody();
+        if (body instanceof Document) return (Document) body;
+        Parsed cached = exchange.getProperty(DOCUMENT_PROPERTY, Parsed.class);
+        return cached != null && cached.body == body ? (Document) cached.value : null;
+    }
+
+    /**
+     * @return The body parsed as JSON, or null if it is empty or not JSON
+     */
+    public static JsonNode json(Exchange exchange) {
+        Object body = exchange.getIn().getBody();
+
+        Parsed cached = exchange.getProperty(JSON_PROPERTY, Parsed.class);
+        if (cached != null && cached.body == body) return (JsonNode) cached.value;
+
+        JsonNode json = null;
+        byte[] bytes = bytes(exchange);
+        if (bytes != null) {
+            try {
+                json = objectMapper.readTree(bytes);
+            } catch (Exception e) {
+                json = null;
+            }
+        }
+
+        exchange.setProperty(JSON_PROPERTY, new Parsed(body, json));
+        return json;
+    }
+
+    /**
+     * @return A StAX reader of the bytes, which doesn't resolve DTDs or external entities
+     */
+    public static XMLStreamReader xmlStreamReader(byte[] bytes) throws XMLStreamException {
+        XMLInputFactory factory = xmlInputFactories.take();
+        try {
+            return factory.createXMLStreamReader(new ByteArrayInputStream(bytes));
+        } finally {
+            xmlInputFactories.release(factory);
+        }
+    }
+
+    /**
+     * @return The body as bytes, or null if it is empty
+     */
+    public static byte[] bytes(Exchange exchange) {
+        byte[] bytes = exchange.getIn().getBody(byte[].class);
+        return bytes == null || bytes.length == 0 ? null : bytes;
+    }
+
+    /*
+     * Remembers which body the value was parsed from, so a body replaced by a preprocessor is parsed again
+     */
+    private static class Parsed {
+        private final Object body;
+        private final Object value;
+
+        private Parsed(Object body, Object value) {
+            this.body = body;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package nz.ac.auckland.stubble.stub;
+
+import nz.ac.auckland.morc.endpointoverride.EndpointOverride;
+import org.apache.camel.Endpoint;
+import org.apache.camel.support.ServiceSupport;
+import org.apache.camel.util.IntrospectionSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Consumer settings for queue stubs (JMS, ActiveMQ, or SEDA/VM for concurrency alone), e.g.
+ * new QueueConsumerOverride().concurrentConsumers(16).prefetch(1000).batchAcknowledgement().pooledReplies(16).
+ * JMS classes are reached reflectively so that stubble doesn't depend on camel-jms; a setting the endpoint doesn't
+ * support is skipped, as with EndpointPropertiesOverride
+ */
+public class QueueConsumerOverride implements EndpointOverride {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueConsumerOverride.class);
+    private static final String CACHING_CONNECTION_FACTORY =
+            "org.springframework.jms.connection.CachingConnectionFactory";
+
+    private int concurrentConsumers = Runtime.getRuntime().availableProcessors();
+    private int prefetch;
+    private boolean batchAcknowledgement;
+    private int replySessions;
+
+    /**
+     * @param concurrentConsumers The number of threads consuming from the queue; the number of cores by default
+     */
+    public QueueConsumerOverride concurrentConsumers(int concurrentConsumers) {
+        if (concurrentConsumers <= 0) throw new IllegalArgumentException("There must be at least one consumer");
+        this.concurrentConsumers = concurrentConsumers;
+        return this;
+    }
+
+    /**
+     * @param prefetch The number of messages an ActiveMQ broker pushes to each consumer ahead of it asking, set as
+     *                 a destination option so that other stubs sharing the connection factory are unaffected
+     */
+    public QueueConsumerOverride prefetch(int prefetch) {
+        if (prefetch <= 0) throw new IllegalArgumentException("The prefetch must be positive");
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * Acknowledges messages lazily in batches (DUPS_OK_ACKNOWLEDGE) instead of one at a time; a consumer that fails
+     * may have some messages redelivered, which rarely matters to a stub
+     */
+    public QueueConsumerOverride batchAcknowledgement() {
+        this.batchAcknowledgement = true;
+        return this;
+    }
+
+    /**
+     * @param sessions The number of sessions cached for sending replies, so that a request-reply stub doesn't open
+     *                 a connection and session for every reply
+     */
+    public QueueConsumerOverride pooledReplies(int sessions) {
+        if (sessions <= 0) throw new IllegalArgumentException("There must be at least one session");
+        this.replySessions = sessions;
+        return this;
+    }
+
+    @Override
+    public void overrideEndpoint(Endpoint endpoint) {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("concurrentConsumers", concurrentConsumers);
+        properties.put("maxConcurrentConsumers", concurrentConsumers);
+        if (batchAcknowledgement) properties.put("acknowledgementModeName", "DUPS_OK_ACKNOWLEDGE");
+        new EndpointPropertiesOverride(properties).overrideEndpoint(endpoint);
+
+        try {
+            if (prefetch > 0) setPrefetch(endpoint);
+            if (replySessions > 0) poolReplies(endpoint);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Unable to configure the consumer of endpoint " + endpoint.getEndpointUri(), e);
+        }
+    }
+
+    private void setPrefetch(Endpoint endpoint) throws ReflectiveOperationException {
+        Object connectionFactory = invoke(endpoint, "getConnectionFactory");
+        Object destinationName = invoke(endpoint, "getDestinationName");
+        if (connectionFactory == null || !connectionFactory.getClass().getName().startsWith("org.apache.activemq")
+                || !(destinationName instanceof String)) {
+            logger.debug("Endpoint {} is not an ActiveMQ endpoint, so its prefetch is unchanged",
+                    endpoint.getEndpointUri());
+            return;
+        }
+
+        String destination = (String) destinationName;
+        if (destination.contains("consumer.prefetchSize=")) return;
+        endpoint.getClass().getMethod("setDestinationName", String.class).invoke(endpoint, destination
+                + (destination.contains("?") ? "&" : "?") + "consumer.prefetchSize=" + prefetch);
+    }
+
+    private void poolReplies(Endpoint endpoint) throws ReflectiveOperationException {
+        Object configuration = invoke(endpoint, "getConfiguration");
+        Object connectionFactory = configuration == null ? null : invoke(configuration, "getTemplateConnectionFactory");
+        if (connectionFactory == null) {
+            logger.debug("Endpoint {} has no JMS connection factory, so its replies are not pooled",
+                    endpoint.getEndpointUri());
+            return;
+        }
+        //already pooled or cached, e.g. by a PooledConnectionFactory from the Spring context
+        String factoryName = connectionFactory.getClass().getSimpleName();
+        if (factoryName.contains("Pooled") || factoryName.contains("Caching")) return;
+
+        Class<?> cachingType = Class.forName(CACHING_CONNECTION_FACTORY, true, connectionFactory.getClass()
+                .getClassLoader());
+        Object cachingFactory = cachingType.getConstructor(Class.forName("javax.jms.ConnectionFactory", true,
+                cachingType.getClassLoader())).newInstance(connectionFactory);
+        cachingType.getMethod("setSessionCacheSize", int.class).invoke(cachingFactory, replySessions);
+        Method destroy = cachingType.getMethod("destroy");
+
+        try {
+            IntrospectionSupport.setProperty(configuration, "templateConnectionFactory", cachingFactory);
+            //the cached connection and sessions are closed along with the Camel context
+            endpoint.getCamelContext().addService(new ServiceSupport() {
+                @Override
+                protected void doStart() {
+                }
+
+                @Override
+                protected void doStop() throws Exception {
+                    destroy.invoke(cachingFactory);
+                }
+            });
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to pool the replies of endpoint " + endpoint.getEndpointUri(), e);
+        }
+    }
+
+    private static Object invoke(Object target, String getter) throws ReflectiveOperationException {
+        Method method;
+        try {
+            method = target.getClass().getMethod(getter);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        return method.invoke(target);
+    }
+
+    @Override
+    public String toString() {
+        return "QueueConsumerOverride[concurrentConsumers=" + concurrentConsumers + ", prefetch=" + prefetch
+                + ", batchAcknowledgement=" + batchAcknowledgement + ", replySessions=" + replySessions + "]";
+    }
+}
@@ -0,0 +1,209 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Expression;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The rate at which a stub accepts requests, to emulate an upstream quota, e.g.
+ * RateLimit.tokenBucket(100, 20).keyedBy(RequestKeys.header("X-Api-Key")).rejectWith(503). Requests beyond the
+ * limit receive an error response (429 by default) with a Retry-After header, without reaching the stub's responses
+ */
+public class RateLimit {
+
+    private static final int DEFAULT_MAXIMUM_KEYS = 10000;
+
+    private final boolean tokenBucket;
+    private final long permits;
+    private final long periodNanos;
+    private Expression key;
+    private int maximumKeys = DEFAULT_MAXIMUM_KEYS;
+    private int status = 429;
+    private String body;
+
+    private RateLimit(boolean tokenBucket, long permits, long periodNanos) {
+        this.tokenBucket = tokenBucket;
+        this.permits = permits;
+        this.periodNanos = periodNanos;
+    }
+
+    /**
+     * @param permitsPerSecond The sustained rate at which requests are accepted
+     * @param burst            The number of requests accepted at once after a quiet period
+     */
+    public static RateLimit tokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst <= 0)
+            throw new IllegalArgumentException("The rate and burst must be positive");
+        return new RateLimit(true, burst, Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond)));
+    }
+
+    /**
+     * @param permits      The number of requests accepted in any window
+     * @param windowMillis The length of the window, which slides rather than resetting at fixed times
+     */
+    public static RateLimit slidingWindow(long permits, long windowMillis) {
+        if (permits <= 0 || windowMillis <= 0)
+            throw new IllegalArgumentException("The permits and window must be positive");
+        return new RateLimit(false, permits, TimeUnit.MILLISECONDS.toNanos(windowMillis));
+    }
+
+    /**
+     * @param key A key (e.g. RequestKeys.clientAddress() or RequestKeys.header(...)) that each has its own limit;
+     *            requests without the key share one
+     */
+    public RateLimit keyedBy(Expression key) {
+        return keyedBy(key, DEFAULT_MAXIMUM_KEYS);
+    }
+
+    /**
+     * @param key         A key that each has its own limit
+     * @param maximumKeys The number of keys tracked; the least recently seen are forgotten beyond this
+     */
+    public RateLimit keyedBy(Expression key, int maximumKeys) {
+        if (maximumKeys <= 0) throw new IllegalArgumentException("The maximum number of keys must be positive");
+        this.key = key;
+        this.maximumKeys = maximumKeys;
+        return this;
+    }
+
+    /**
+     * @param status The HTTP status of rejected requests, usually 429 or 503
+     */
+    public RateLimit rejectWith(int status) {
+        return rejectWith(status, null);
+    }
+
+    /**
+     * @param status The HTTP status of rejected requests, usually 429 or 503
+     * @param body   The body of rejected requests, or null for none
+     */
+    public RateLimit rejectWith(int status, String body) {
+        if (status < 400 || status > 599) throw new IllegalArgumentException("Invalid rejection status " + status);
+        this.status = status;
+        this.body = body;
+        return this;
+    }
+
+    public Expression getKey() {
+        return key;
+    }
+
+    public int getMaximumKeys() {
+        return maximumKeys;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    Limiter newLimiter(long now) {
+        return tokenBucket ? new TokenBucket(now) : new SlidingWindow(now);
+    }
+
+    /**
+     * @return How long a key can be unused before its limiter is back in its initial state, so it can be discarded
+     */
+    long getIdleMillis() {
+        long idleNanos = tokenBucket ? periodNanos * permits : periodNanos * 2;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleNanos));
+    }
+
+    interface Limiter {
+        /**
+         * @return 0 if a request is accepted, otherwise the number of nanoseconds until one would be
+         */
+        long tryAcquire(long now);
+    }
+
+    /*
+     * A token bucket kept as the theoretical arrival time of the next request (the generic cell rate algorithm),
+     * so accepting a request is a single compare-and-set
+     */
+    private class TokenBucket implements Limiter {
+        private final AtomicLong arrival;
+
+        private TokenBucket(long now) {
+            this.arrival = new AtomicLong(now);
+        }
+
+        @Override
+        public long tryAcquire(long now) {
+            long tolerance = periodNanos * (permits - 1);
+            while (true) {
+                long current = arrival.get();
+                long start = current - now > 0 ? current : now;
+                long wait = start - now - tolerance;
+                if (wait > 0) return wait;
+                if (arrival.compareAndSet(current, start + periodNanos)) return 0;
+            }
+        }
+    }
+
+    /*
+     * A sliding window estimated from the counts of the current and previous fixed windows, with the previous
+     * count weighted by how much of it still overlaps the window. A request is only counted by a compare-and-set
+     * that keeps the estimate within the limit, so concurrent requests at the limit can't reject each other
+     */
+    private class SlidingWindow implements Limiter {
+        private final AtomicReference<Window> window;
+
+        private SlidingWindow(long now) {
+            this.window = new AtomicReference<>(new Window(now, 0));
+        }
+
+        @Override
+        public long tryAcquire(long now) {
+            Window current = current(now);
+            long elapsed = now - current.start;
+            double overlap = current.previous * (1 - (double) elapsed / periodNanos);
+
+            while (true) {
+                long count = current.count.get();
+                double estimate = overlap + count + 1;
+                if (estimate > permits) {
+                    long remaining = periodNanos - elapsed;
+                    if (current.previous == 0) return remaining;
+                    return Math.max(1, Math.min(remaining,
+                            (long) ((estimate - permits) * periodNanos / current.previous)));
+                }
+                if (current.count.compareAndSet(count, count + 1)) return 0;
+            }
+        }
+
+        private Window current(long now) {
+            Window current = window.get();
+            while (now - current.start >= periodNanos) {
+                long windows = (now - current.start) / periodNanos;
+                //requests counted by a racing thread after the swap are dropped, which only errs towards accepting
+                Window next = new Window(current.start + windows * periodNanos,
+                        windows == 1 ? current.count.get() : 0);
+                if (window.compareAndSet(current, next)) return next;
+                current = window.get();
+            }
+            return current;
+        }
+    }
+
+    private static class Window {
+        private final long start;
+        private final long previous;
+        private final AtomicLong count = new AtomicLong();
+
+        private Window(long start, long previous) {
+            this.start = start;
+            this.previous = previous;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (tokenBucket ? "RateLimit{tokenBucket, burst=" : "RateLimit{slidingWindow, permits=") + permits
+                + ", periodNanos=" + periodNanos + ", keyed=" + (key != null) + ", status=" + status + "}";
+    }
+}
@@ -0,0 +1,74 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Processor;
+import org.apache.camel.util.AsyncProcessorConverterHelper;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a rate limit ahead of the stages producing a stub's response. Accepting a request takes a compare-and-set
+ * on its limiter, and keyed limiters are held in a bounded cache that forgets keys once their limiter has recovered
+ */
+public class RateLimitProcessor implements AsyncProcessor {
+
+    /**
+     * The exchange property set to true when a request is rejected by the rate limit
+     */
+    public static final String RATE_LIMITED_PROPERTY = "StubbleRateLimited";
+
+    private final RateLimit rateLimit;
+    private final AsyncProcessor next;
+    private final RateLimit.Limiter limiter;
+    private final KeyedStateCache<RateLimit.Limiter> limiters;
+
+    /**
+     * @param rateLimit The rate at which requests are accepted
+     * @param next      The stages that produce the response for accepted requests
+     */
+    public RateLimitProcessor(RateLimit rateLimit, Processor next) {
+        this.rateLimit = rateLimit;
+        this.next = AsyncProcessorConverterHelper.convert(next);
+        this.limiter = rateLimit.newLimiter(System.nanoTime());
+        this.limiters = rateLimit.getKey() == null ? null : new KeyedStateCache<>(rateLimit.getMaximumKeys(),
+                rateLimit.getIdleMillis(), key -> rateLimit.newLimiter(System.nanoTime()));
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        long waitNanos = limiter(exchange).tryAcquire(System.nanoTime());
+        if (waitNanos <= 0) return next.process(exchange, callback);
+
+        exchange.setProperty(RATE_LIMITED_PROPERTY, true);
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, rateLimit.getStatus());
+        //whole seconds, rounded up so a client that waits is accepted
+        exchange.getIn().setHeader("Retry-After", Math.max(1,
+                (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1)));
+        exchange.getIn().setBody(rateLimit.getBody());
+        if (rateLimit.getBody() != null) exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "text/plain");
+
+        callback.done(true);
+        return true;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    private RateLimit.Limiter limiter(Exchange exchange) {
+        if (limiters == null) return limiter;
+
+        Expression key = rateLimit.getKey();
+        String value = key.evaluate(exchange, String.class);
+        return value == null ? limiter : limiters.get(value);
+    }
+
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+}
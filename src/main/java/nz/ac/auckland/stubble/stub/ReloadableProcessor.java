@@ -0,0 +1,43 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.util.AsyncProcessorConverterHelper;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delegates to a processor that can be replaced while the route is running; each exchange uses whichever
+ * processor was current when it arrived, so a replacement never affects an exchange already in progress
+ */
+public class ReloadableProcessor implements AsyncProcessor {
+
+    private final AtomicReference<AsyncProcessor> delegate = new AtomicReference<>();
+
+    /**
+     * @param delegate The initial processor
+     */
+    public ReloadableProcessor(Processor delegate) {
+        replace(delegate);
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        return delegate.get().process(exchange, callback);
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    /**
+     * @param processor The processor used for exchanges that arrive from now on
+     */
+    public void replace(Processor processor) {
+        delegate.set(AsyncProcessorConverterHelper.convert(processor));
+    }
+}
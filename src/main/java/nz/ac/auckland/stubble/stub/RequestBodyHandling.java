@@ -0,0 +1,20 @@
+package nz.ac.auckland.stubble.stub;
+
+/**
+ * Determines how the body of an incoming request is prepared before it reaches the stub's processors
+ */
+public enum RequestBodyHandling {
+    /**
+     * Always read the request body into a byte[] so it can be read repeatedly
+     */
+    EAGER,
+    /**
+     * Only read the request body into a byte[] when a preprocessor or a dynamic response (e.g. matched responses)
+     * may need it; stubs that only return static responses leave the body untouched
+     */
+    LAZY,
+    /**
+     * Throw the request body away without reading it
+     */
+    DISCARD
+}
@@ -0,0 +1,61 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.support.ExpressionAdapter;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Expressions for identifying the client or session of an incoming request
+ */
+public class RequestKeys {
+
+    /**
+     * @return The remote address of an HTTP client, or an empty string for other transports
+     */
+    public static Expression clientAddress() {
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                HttpServletRequest request = exchange.getIn().getHeader(Exchange.HTTP_SERVLET_REQUEST,
+                        HttpServletRequest.class);
+                return request == null ? "" : request.getRemoteAddr();
+            }
+        };
+    }
+
+    /**
+     * @param name The name of the header holding the key
+     * @return The header value, or an empty string if it isn't present
+     */
+    public static Expression header(final String name) {
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                String value = exchange.getIn().getHeader(name, String.class);
+                return value == null ? "" : value;
+            }
+        };
+    }
+
+    /**
+     * @param name The name of the HTTP cookie holding the key
+     * @return The cookie value, or an empty string if it isn't present
+     */
+    public static Expression cookie(final String name) {
+        return new ExpressionAdapter() {
+            @Override
+            public Object evaluate(Exchange exchange) {
+                HttpServletRequest request = exchange.getIn().getHeader(Exchange.HTTP_SERVLET_REQUEST,
+                        HttpServletRequest.class);
+                if (request == null || request.getCookies() == null) return "";
+                for (Cookie cookie : request.getCookies()) {
+                    if (cookie.getName().equals(name)) return cookie.getValue();
+                }
+                return "";
+            }
+        };
+    }
+}
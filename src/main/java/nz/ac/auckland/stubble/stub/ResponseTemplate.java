@@ -0,0 +1,337 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Processor;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A response body with placeholders of the form {{name:argument|escape}}, parsed once into literal and value
+ * segments. The placeholders are:
+ * <ul>
+ * <li>header:Name, jsonPointer:/a/b, xpath:/ns:a/ns:b, elementText:b and body - values from the request, empty if
+ * missing</li>
+ * <li>counter - a number that increases with each response rendered from the template</li>
+ * <li>uuid and random:bound - random values</li>
+ * <li>timestamp, timestamp:millis or timestamp:pattern - the current time (ISO-8601 in UTC by default)</li>
+ * </ul>
+ * An optional escape of xml or json makes a value safe to insert into that kind of document
+ */
+public class ResponseTemplate implements Processor {
+
+    //idle buffers; more are created under load (e.g. on virtual threads), and those that don't fit back are dropped
+    private static final BlockingQueue<Utf8Buffer> buffers =
+            new ArrayBlockingQueue<>(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+    private final String template;
+    private final Segment[] segments;
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * @param template   The template text
+     * @param namespaces Pairs of namespace prefixes and URIs used by xpath placeholders
+     */
+    public ResponseTemplate(String template, String... namespaces) {
+        this.template = template;
+
+        List<Segment> segments = new ArrayList<>();
+        int position = 0;
+        while (position < template.length()) {
+            int start = template.indexOf("{{", position);
+            if (start < 0) start = template.length();
+            if (start > position) segments.add(new Literal(template.substring(position, start)));
+            if (start == template.length()) break;
+
+            int end = template.indexOf("}}", start + 2);
+            if (end < 0) throw new IllegalArgumentException("Unclosed placeholder at " + start + " in template "
+                    + template);
+            segments.add(placeholder(template.substring(start + 2, end).trim(), namespaces));
+            position = end + 2;
+        }
+
+        this.segments = segments.toArray(new Segment[segments.size()]);
+    }
+
+    private Segment placeholder(String placeholder, String[] namespaces) {
+        Escape escape = Escape.NONE;
+        //a '|' may also be part of the argument, e.g. an XPath union, so only a known escape name is split off
+        int escapeIndex = placeholder.lastIndexOf('|');
+        Escape suffix = escapeIndex < 0 ? null : Escape.named(placeholder.substring(escapeIndex + 1).trim());
+        if (suffix != null) {
+            escape = suffix;
+            placeholder = placeholder.substring(0, escapeIndex).trim();
+        }
+
+        int argumentIndex = placeholder.indexOf(':');
+        String name = argumentIndex < 0 ? placeholder : placeholder.substring(0, argumentIndex);
+        String argument = argumentIndex < 0 ? null : placeholder.substring(argumentIndex + 1);
+
+        switch (name) {
+            case "header":
+                return new ExpressionValue(MatchKeys.header(required(name, argument)), escape);
+            case "jsonPointer":
+                return new ExpressionValue(MatchKeys.jsonPointer(required(name, argument)), escape);
+            case "xpath":
+                return new ExpressionValue(MatchKeys.xpath(required(name, argument), namespaces), escape);
+            case "elementText":
+                return new ExpressionValue(MatchKeys.elementText(required(name, argument)), escape);
+            case "body":
+                return new ExpressionValue(MatchKeys.body(), escape);
+            case "counter":
+                return (buffer, exchange, render) -> buffer.append(render.counter());
+            case "uuid":
+                return (buffer, exchange, render) -> buffer.append(UUID.randomUUID().toString());
+            case "random":
+                final int bound = Integer.parseInt(required(name, argument));
+                if (bound <= 0)
+                    throw new IllegalArgumentException("The bound of random must be positive in template " + template);
+                return (buffer, exchange, render) -> buffer.append(ThreadLocalRandom.current().nextInt(bound));
+            case "timestamp":
+                if (argument == null)
+                    return (buffer, exchange, render) -> buffer.append(Instant.now().toString());
+                if (argument.equals("millis"))
+                    return (buffer, exchange, render) -> buffer.append(System.currentTimeMillis());
+                final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(argument).withZone(ZoneOffset.UTC);
+                return (buffer, exchange, render) -> buffer.append(formatter.format(Instant.now()));
+            default:
+                throw new IllegalArgumentException("Unknown placeholder " + name + " in template " + template);
+        }
+    }
+
+    private String required(String name, String argument) {
+        if (argument == null || argument.isEmpty())
+            throw new IllegalArgumentException("The placeholder " + name + " requires an argument in template "
+                    + template);
+        return argument;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        exchange.getIn().setBody(render(exchange));
+    }
+
+    /**
+     * @return The rendered body; only this array is allocated as the template is rendered into a buffer taken from
+     *         a small pool shared by every template
+     */
+    public byte[] render(Exchange exchange) {
+        Utf8Buffer buffer = buffers.poll();
+        if (buffer == null) buffer = new Utf8Buffer();
+        try {
+            Render render = new Render();
+            for (Segment segment : segments) {
+                segment.append(buffer, exchange, render);
+            }
+            return buffer.toByteArray();
+        } finally {
+            buffer.reset();
+            buffers.offer(buffer);
+        }
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    private interface Segment {
+        void append(Utf8Buffer buffer, Exchange exchange, Render render);
+    }
+
+    /*
+     * State for a single rendering, so every counter placeholder in a response has the same value
+     */
+    private class Render {
+        private long counterValue = -1;
+
+        long counter() {
+            if (counterValue < 0) counterValue = counter.incrementAndGet();
+            return counterValue;
+        }
+    }
+
+    private static class Literal implements Segment {
+        private final byte[] bytes;
+
+        private Literal(String text) {
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void append(Utf8Buffer buffer, Exchange exchange, Render render) {
+            buffer.append(bytes);
+        }
+    }
+
+    private static class ExpressionValue implements Segment {
+        private final Expression expression;
+        private final Escape escape;
+
+        private ExpressionValue(Expression expression, Escape escape) {
+            this.expression = expression;
+            this.escape = escape;
+        }
+
+        @Override
+        public void append(Utf8Buffer buffer, Exchange exchange, Render render) {
+            String value = expression.evaluate(exchange, String.class);
+            if (value != null) escape.append(buffer, value);
+        }
+    }
+
+    private enum Escape {
+        NONE {
+            @Override
+            void append(Utf8Buffer buffer, String value) {
+                buffer.append(value);
+            }
+        },
+        XML {
+            @Override
+            void append(Utf8Buffer buffer, String value) {
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    switch (c) {
+                        case '<':
+                            buffer.append("&lt;");
+                            break;
+                        case '>':
+                            buffer.append("&gt;");
+                            break;
+                        case '&':
+                            buffer.append("&amp;");
+                            break;
+                        case '"':
+                            buffer.append("&quot;");
+                            break;
+                        case '\'':
+                            buffer.append("&apos;");
+                            break;
+                        default:
+                            buffer.append(c);
+                    }
+                }
+            }
+        },
+        JSON {
+            @Override
+            void append(Utf8Buffer buffer, String value) {
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        buffer.append('\\');
+                        buffer.append(c);
+                    } else if (c < 0x20) {
+                        buffer.append('\\');
+                        buffer.append('u');
+                        buffer.append('0');
+                        buffer.append('0');
+                        buffer.append(HEX_DIGITS[c >> 4]);
+                        buffer.append(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        buffer.append(c);
+                    }
+                }
+            }
+        };
+
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        abstract void append(Utf8Buffer buffer, String value);
+
+        /**
+         * @return The escape with the name, ignoring case, or null if there is none
+         */
+        static Escape named(String name) {
+            for (Escape escape : values()) {
+                if (escape.name().equalsIgnoreCase(name)) return escape;
+            }
+            return null;
+        }
+    }
+
+    /*
+     * A growable byte buffer that encodes characters as UTF-8 directly, without intermediate byte arrays
+     */
+    private static class Utf8Buffer {
+        private static final int INITIAL_SIZE = 1024, MAXIMUM_POOLED_SIZE = 1 << 16;
+
+        private byte[] bytes = new byte[INITIAL_SIZE];
+        private int length;
+
+        /*
+         * Readies the buffer to go back into the pool, without keeping the space used by an unusually large body
+         */
+        void reset() {
+            length = 0;
+            if (bytes.length > MAXIMUM_POOLED_SIZE) bytes = new byte[INITIAL_SIZE];
+        }
+
+        void append(byte[] value) {
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+        }
+
+        void append(long value) {
+            append(Long.toString(value));
+        }
+
+        void append(String value) {
+            ensureCapacity(value.length() * 3);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    appendCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+                } else {
+                    appendCodePoint(c);
+                }
+            }
+        }
+
+        void append(char c) {
+            ensureCapacity(3);
+            appendCodePoint(c);
+        }
+
+        private void appendCodePoint(int codePoint) {
+            if (codePoint < 0x80) {
+                bytes[length++] = (byte) codePoint;
+            } else if (codePoint < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (codePoint >> 6));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (codePoint < 0x10000) {
+                bytes[length++] = (byte) (0xe0 | (codePoint >> 12));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                //a surrogate pair is two chars, for which three bytes each were reserved
+                bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
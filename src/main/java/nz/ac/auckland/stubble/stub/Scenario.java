@@ -0,0 +1,139 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Expression;
+import org.apache.camel.Predicate;
+import org.apache.camel.Processor;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Declares a state machine that is tracked separately for each session (e.g. a cookie, header or client address),
+ * so that any number of clients can work through the same flow without affecting each other. Each state has a
+ * response; a request matching a transition from the session's current state moves the session on and is answered
+ * with the new state's response (or the transition's own response). Sessions start in the first state declared
+ * unless initialState(...) says otherwise
+ */
+public class Scenario {
+
+    /**
+     * Used as the source state of a transition that applies from every state
+     */
+    public static final String ANY_STATE = "*";
+    public static final int DEFAULT_MAXIMUM_SESSIONS = 10000;
+    public static final long DEFAULT_SESSION_TIME_TO_IDLE = TimeUnit.MINUTES.toMillis(30);
+
+    private final Expression sessionKey;
+    private final Map<String, Processor> states = new LinkedHashMap<>();
+    private final List<Transition> transitions = new ArrayList<>();
+    private String initialState;
+    private int maximumSessions = DEFAULT_MAXIMUM_SESSIONS;
+    private long sessionTimeToIdleMillis = DEFAULT_SESSION_TIME_TO_IDLE;
+
+    private Scenario(Expression sessionKey) {
+        this.sessionKey = sessionKey;
+    }
+
+    /**
+     * @param sessionKey An expression identifying the session of each request, e.g. RequestKeys.cookie("JSESSIONID")
+     */
+    public static Scenario perSession(Expression sessionKey) {
+        return new Scenario(sessionKey);
+    }
+
+    /**
+     * @param name       The name of the state
+     * @param processors The processors that generate the response while a session is in this state
+     */
+    public Scenario state(String name, Processor... processors) {
+        if (ANY_STATE.equals(name)) throw new IllegalArgumentException("The state name " + ANY_STATE + " is reserved");
+        if (states.containsKey(name)) throw new IllegalArgumentException("The state " + name + " already exists");
+        states.put(name, CompiledResponseProcessor.forResponse(processors));
+        if (initialState == null) initialState = name;
+        return this;
+    }
+
+    /**
+     * @param name The state that new sessions start in
+     */
+    public Scenario initialState(String name) {
+        this.initialState = name;
+        return this;
+    }
+
+    /**
+     * @param from       The state the transition applies in, or ANY_STATE
+     * @param to         The state the session moves to
+     * @param when       The request that triggers the transition
+     * @param processors The processors that generate the response to the triggering request; if there are none
+     *                   the new state's response is used
+     */
+    public Scenario transition(String from, String to, Predicate when, Processor... processors) {
+        transitions.add(new Transition(from, to, when,
+                processors.length == 0 ? null : CompiledResponseProcessor.forResponse(processors)));
+        return this;
+    }
+
+    /**
+     * @param maximumSessions The number of sessions to track; the least recently seen sessions are forgotten (and
+     *                        start again from the initial state) beyond this
+     */
+    public Scenario maximumSessions(int maximumSessions) {
+        this.maximumSessions = maximumSessions;
+        return this;
+    }
+
+    /**
+     * @param duration A session that has received no requests for this long is forgotten
+     */
+    public Scenario sessionTimeToIdle(long duration, TimeUnit unit) {
+        this.sessionTimeToIdleMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * @return A processor that responds according to each session's state
+     */
+    public ScenarioProcessor build() {
+        if (states.isEmpty()) throw new IllegalArgumentException("A scenario requires at least one state");
+        if (!states.containsKey(initialState))
+            throw new IllegalArgumentException("The initial state " + initialState + " does not exist");
+
+        Map<String, Transition[]> transitionsByState = new HashMap<>();
+        for (String state : states.keySet()) {
+            List<Transition> stateTransitions = new ArrayList<>();
+            //transitions from a specific state are tried before those from any state
+            for (Transition transition : transitions) {
+                if (transition.from.equals(state)) stateTransitions.add(transition);
+            }
+            for (Transition transition : transitions) {
+                if (transition.from.equals(ANY_STATE)) stateTransitions.add(transition);
+            }
+            transitionsByState.put(state, stateTransitions.toArray(new Transition[stateTransitions.size()]));
+        }
+
+        for (Transition transition : transitions) {
+            if (!transition.from.equals(ANY_STATE) && !states.containsKey(transition.from))
+                throw new IllegalArgumentException("The transition source state " + transition.from + " does not exist");
+            if (!states.containsKey(transition.to))
+                throw new IllegalArgumentException("The transition target state " + transition.to + " does not exist");
+        }
+
+        return new ScenarioProcessor(sessionKey, initialState, new HashMap<>(states), transitionsByState,
+                maximumSessions, sessionTimeToIdleMillis);
+    }
+
+    static class Transition {
+        final String from;
+        final String to;
+        final Predicate when;
+        final Processor response;
+
+        private Transition(String from, String to, Predicate when, Processor response) {
+            this.from = from;
+            this.to = to;
+            this.when = when;
+            this.response = response;
+        }
+    }
+}
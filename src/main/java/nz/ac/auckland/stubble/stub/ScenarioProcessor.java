@@ -0,0 +1,77 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Processor;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Responds according to the state of each request's session, moving the session between states as transitions
+ * are triggered. Session states are held in a bounded cache and updated without locking, so concurrent requests
+ * for different sessions never contend
+ */
+public class ScenarioProcessor implements Processor {
+
+    private final Expression sessionKey;
+    private final Map<String, Processor> states;
+    private final Map<String, Scenario.Transition[]> transitions;
+    private final KeyedStateCache<AtomicReference<String>> sessions;
+
+    ScenarioProcessor(Expression sessionKey, final String initialState, Map<String, Processor> states,
+                      Map<String, Scenario.Transition[]> transitions, int maximumSessions,
+                      long sessionTimeToIdleMillis) {
+        this.sessionKey = sessionKey;
+        this.states = states;
+        this.transitions = transitions;
+        this.sessions = new KeyedStateCache<>(maximumSessions, sessionTimeToIdleMillis,
+                key -> new AtomicReference<>(initialState));
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        String key = sessionKey.evaluate(exchange, String.class);
+        AtomicReference<String> session = sessions.get(key == null ? "" : key);
+
+        while (true) {
+            String state = session.get();
+            Scenario.Transition transition = match(state, exchange);
+
+            if (transition == null) {
+                exchange.setProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, "state:" + state);
+                states.get(state).process(exchange);
+                return;
+            }
+
+            //another request in the same session may have moved it on, in which case match again
+            if (session.compareAndSet(state, transition.to)) {
+                exchange.setProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, "state:" + transition.to);
+                (transition.response == null ? states.get(transition.to) : transition.response).process(exchange);
+                return;
+            }
+        }
+    }
+
+    private Scenario.Transition match(String state, Exchange exchange) {
+        for (Scenario.Transition transition : transitions.get(state)) {
+            if (transition.when.matches(exchange)) return transition;
+        }
+        return null;
+    }
+
+    /**
+     * @return The current state of the session, or null if the session isn't being tracked
+     */
+    public String getState(String sessionKey) {
+        AtomicReference<String> session = sessions.getIfPresent(sessionKey);
+        return session == null ? null : session.get();
+    }
+
+    /**
+     * @return The number of sessions being tracked
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+}
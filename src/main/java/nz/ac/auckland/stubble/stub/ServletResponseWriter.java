@@ -0,0 +1,151 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.spi.HeaderFilterStrategy;
+import org.apache.camel.spi.HeaderFilterStrategyAware;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Helpers for stages that write an HTTP response themselves (e.g. throttled or streamed bodies) instead of
+ * leaving it to Camel's HTTP binding. Once the response has been written the body is removed from the message
+ * so the binding doesn't write it a second time
+ */
+public class ServletResponseWriter {
+
+    private static final ConcurrentHashMap<Class<?>, Optional<Method>> sendContentMethods = new ConcurrentHashMap<>();
+
+    /**
+     * @return The servlet response of an HTTP exchange, or null for other transports
+     */
+    public static HttpServletResponse servletResponse(Exchange exchange) {
+        return exchange.getIn().getHeader(Exchange.HTTP_SERVLET_RESPONSE, HttpServletResponse.class);
+    }
+
+    /**
+     * Sets the status code, content type and headers from the message on the servlet response, filtering headers
+     * in the same way as the consumer endpoint
+     */
+    public static void writeHeaders(Exchange exchange, HttpServletResponse response) {
+        Message message = exchange.getIn();
+
+        Integer responseCode = message.getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+        if (responseCode != null) response.setStatus(responseCode);
+
+        String contentType = message.getHeader(Exchange.CONTENT_TYPE, String.class);
+        if (contentType != null) response.setContentType(contentType);
+
+        HeaderFilterStrategy filterStrategy = null;
+        Endpoint endpoint = exchange.getFromEndpoint();
+        if (endpoint instanceof HeaderFilterStrategyAware)
+            filterStrategy = ((HeaderFilterStrategyAware) endpoint).getHeaderFilterStrategy();
+
+        for (Map.Entry<String, Object> header : message.getHeaders().entrySet()) {
+            Object value = header.getValue();
+            if (!(value instanceof String || value instanceof Number)) continue;
+            if (header.getKey().equalsIgnoreCase(Exchange.CONTENT_TYPE)
+                    || header.getKey().equalsIgnoreCase(Exchange.CONTENT_LENGTH)) continue;
+            if (filterStrategy != null
+                    && filterStrategy.applyFilterToCamelHeaders(header.getKey(), value, exchange)) continue;
+            if (filterStrategy == null && header.getKey().startsWith("Camel")) continue;
+            response.setHeader(header.getKey(), value.toString());
+        }
+    }
+
+    /**
+     * Writes a buffer to the client. Jetty's output stream can send a (memory-mapped) buffer directly to the socket,
+     * which is used when available; otherwise the buffer is copied through a small fixed-size chunk
+     */
+    public static void write(HttpServletResponse response, ByteBuffer buffer) throws IOException {
+        if (response instanceof CountingServletResponse) {
+            int length = buffer.remaining();
+            write(unwrap(response), buffer);
+            ((CountingServletResponse) response).count(length);
+            return;
+        }
+
+        ServletOutputStream outputStream = response.getOutputStream();
+
+        Method sendContent = sendContentMethods.computeIfAbsent(outputStream.getClass(), type -> {
+            try {
+                return Optional.of(type.getMethod("sendContent", ByteBuffer.class));
+            } catch (NoSuchMethodException e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+
+        if (sendContent != null) {
+            try {
+                sendContent.invoke(outputStream, buffer);
+                return;
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } catch (IllegalAccessException e) {
+                //fall through to copying
+            }
+        }
+
+        WritableByteChannel channel = Channels.newChannel(outputStream);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Closes the client's connection without completing the response. Jetty's channel is aborted where it can be
+     * reached; otherwise the response is committed with a length that is never sent, so the container has to close
+     * the connection once the exchange completes
+     */
+    public static void abort(HttpServletResponse response) throws IOException {
+        response = unwrap(response);
+        try {
+            Object channel = response.getClass().getMethod("getHttpChannel").invoke(response);
+            channel.getClass().getMethod("abort", Throwable.class).invoke(channel,
+                    new IOException("Connection closed by the stub"));
+            return;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            //fall through to an incomplete response
+        }
+
+        if (!response.isCommitted()) {
+            response.setHeader("Connection", "close");
+            response.setContentLength(1);
+        }
+        response.flushBuffer();
+    }
+
+    /*
+     * The container's response, whose class gives access to Jetty's connection
+     */
+    private static HttpServletResponse unwrap(HttpServletResponse response) {
+        while (response instanceof HttpServletResponseWrapper) {
+            response = (HttpServletResponse) ((HttpServletResponseWrapper) response).getResponse();
+        }
+        return response;
+    }
+
+    /**
+     * Records that the response has been written, so Camel's HTTP binding writes nothing further
+     */
+    public static void markWritten(Exchange exchange) {
+        exchange.getIn().setBody(null);
+        if (exchange.hasOut()) exchange.getOut().setBody(null);
+    }
+}
@@ -0,0 +1,49 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Streams a response body from a source that is opened for each request, copying it to HTTP clients through a
+ * small buffer rather than reading it into memory first
+ */
+public class StreamResponseProcessor implements Processor {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Callable<InputStream> source;
+
+    /**
+     * @param source Opens the stream for the response body; it will be closed once the body is sent
+     */
+    public StreamResponseProcessor(Callable<InputStream> source) {
+        this.source = source;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        HttpServletResponse response = ServletResponseWriter.servletResponse(exchange);
+        if (response == null) {
+            exchange.getIn().setBody(source.call());
+            return;
+        }
+
+        ServletResponseWriter.writeHeaders(exchange, response);
+        ServletResponseWriter.markWritten(exchange);
+
+        try (InputStream inputStream = source.call()) {
+            ServletOutputStream outputStream = response.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        response.flushBuffer();
+    }
+}
@@ -1,18 +1,26 @@
 package nz.ac.auckland.stubble.stub;
 
+import nz.ac.auckland.morc.MorcMethods;
 import nz.ac.auckland.morc.endpointoverride.CxfEndpointOverride;
 import nz.ac.auckland.morc.endpointoverride.EndpointOverride;
 import nz.ac.auckland.morc.endpointoverride.UrlConnectionOverride;
 import nz.ac.auckland.morc.processor.MatchedResponseProcessor;
 import nz.ac.auckland.morc.processor.MultiProcessor;
 import nz.ac.auckland.morc.processor.SelectorProcessor;
+import nz.ac.auckland.stubble.record.ReplayProcessor;
+import nz.ac.auckland.stubble.routing.ConnectorProfile;
+import org.apache.camel.Expression;
 import org.apache.camel.Processor;
 import org.apache.camel.util.URISupport;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
 
 /**
  * A general class for declaring stubs
@@ -20,11 +28,34 @@ import java.util.*;
  * @author David MacDonald - d.macdonald@auckland.ac.nz
  */
 public class StubDefinition {
+    private static final int DEFAULT_COMPRESSION_MINIMUM_BYTES = 256;
+
     private String description;
     private String endpointUri;
     private SelectorProcessor selectorProcessor;
     private Processor stubFeedPreprocessor;
     private Collection<EndpointOverride> endpointOverrides = new ArrayList<>();
+    private List<CompiledResponseProcessor> compiledResponses = new ArrayList<>();
+    private List<ReplayProcessor> replayProcessors = new ArrayList<>();
+    private RequestBodyHandling requestBodyHandling;
+    private boolean requestBodyRequired;
+    private ExecutionMode executionMode;
+    private Processor latencyProcessor;
+    private Processor bandwidthProcessor;
+    private FaultProfile faultProfile;
+    private Compression compression;
+    private int compressionMinimumBytes;
+    private boolean conditionalRequests;
+    private String cacheControl;
+    private RateLimit rateLimit;
+    private ConnectorProfile connectorProfile;
+    private int journalCapacity;
+    private int journalBodyBytes;
+    private Path journalSpillPath;
+    private long journalSpillBytes;
+    private String recordUpstreamUri;
+    private Path interactionStorePath;
+    private String virtualHost;
 
     public String getDescription() {
         return description;
@@ -46,6 +77,175 @@ public class StubDefinition {
         return Collections.unmodifiableCollection(endpointOverrides);
     }
 
+    /**
+     * @return The responses that have been determined to be static and will only be rendered once
+     */
+    public List<CompiledResponseProcessor> getCompiledResponses() {
+        return Collections.unmodifiableList(compiledResponses);
+    }
+
+    /**
+     * @return The responses replayed from interaction stores, which are opened by Stubble when the stub starts
+     */
+    public List<ReplayProcessor> getReplayProcessors() {
+        return Collections.unmodifiableList(replayProcessors);
+    }
+
+    /**
+     * @return How the incoming request body should be prepared before it reaches the stub's processors
+     */
+    public RequestBodyHandling getRequestBodyHandling() {
+        return requestBodyHandling;
+    }
+
+    /**
+     * @return true if a preprocessor or a response that isn't pre-rendered may read the request body
+     */
+    public boolean isRequestBodyRequired() {
+        return requestBodyRequired;
+    }
+
+    /**
+     * @return The threading used to produce responses, or null if Stubble's default should be used
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * @return A processor that delays the response without holding a thread, or null if there is no latency
+     */
+    public Processor getLatencyProcessor() {
+        return latencyProcessor;
+    }
+
+    /**
+     * @return A processor that limits the rate at which the response is sent, or null if it isn't limited
+     */
+    public Processor getBandwidthProcessor() {
+        return bandwidthProcessor;
+    }
+
+    /**
+     * @return The faults injected ahead of the response, or null if the stub always behaves
+     */
+    public FaultProfile getFaultProfile() {
+        return faultProfile;
+    }
+
+    /**
+     * @return The encodings response bodies are compressed with, if the client accepts them
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return The size below which response bodies are sent uncompressed
+     */
+    public int getCompressionMinimumBytes() {
+        return compressionMinimumBytes;
+    }
+
+    /**
+     * @return Whether pre-rendered responses carry an ETag and Last-Modified, and answer conditional requests with
+     *         304 Not Modified
+     */
+    public boolean isConditionalRequests() {
+        return conditionalRequests;
+    }
+
+    /**
+     * @return The Cache-Control header sent with every response, or null for none
+     */
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * @return The rate at which the stub accepts requests, or null if it accepts every request
+     */
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @return The connector settings of a Jetty stub that doesn't share Stubble's connectors, or null
+     */
+    public ConnectorProfile getConnectorProfile() {
+        return connectorProfile;
+    }
+
+    /**
+     * @return The number of requests kept in the stub's journal, or 0 if requests aren't journaled
+     */
+    public int getJournalCapacity() {
+        return journalCapacity;
+    }
+
+    public int getJournalBodyBytes() {
+        return journalBodyBytes;
+    }
+
+    /**
+     * @return The file journal entries are spilled to, or null if they are only kept in memory
+     */
+    public Path getJournalSpillPath() {
+        return journalSpillPath;
+    }
+
+    public long getJournalSpillBytes() {
+        return journalSpillBytes;
+    }
+
+    /**
+     * @return The upstream service this stub proxies to when Stubble is recording, or null if the stub doesn't record
+     */
+    public String getRecordUpstreamUri() {
+        return recordUpstreamUri;
+    }
+
+    /**
+     * @return The directory holding the stub's recorded interactions, or null if the stub doesn't record
+     */
+    public Path getInteractionStorePath() {
+        return interactionStorePath;
+    }
+
+    /**
+     * @return The host (from the request's Host header) this stub serves when it shares a listener with other
+     *         stubs, or null for any host
+     */
+    public String getVirtualHost() {
+        return virtualHost;
+    }
+
+    /**
+     * @return A description of the endpoint and of every stage around the responses; if a reloaded stub has the
+     *         same signature then only its response processors need to be replaced. Stages whose settings can't be
+     *         described (faults and rate limit keys) are always replaced along with the responses
+     */
+    public String getRouteSignature() {
+        StringBuilder signature = new StringBuilder(endpointUri);
+        for (EndpointOverride override : endpointOverrides) {
+            signature.append('|').append(override.getClass().getName());
+            if (override instanceof EndpointPropertiesOverride)
+                signature.append(((EndpointPropertiesOverride) override).getProperties());
+            else if (override instanceof QueueConsumerOverride)
+                signature.append(override);
+        }
+
+        return signature.append('|').append(requestBodyHandling).append('|').append(requestBodyRequired)
+                .append('|').append(executionMode).append('|').append(latencyProcessor != null)
+                .append('|').append(bandwidthProcessor != null).append('|').append(recordUpstreamUri)
+                .append('|').append(interactionStorePath).append('|').append(virtualHost)
+                .append('|').append(journalCapacity).append('|').append(journalBodyBytes)
+                .append('|').append(journalSpillPath).append('|').append(journalSpillBytes)
+                .append('|').append(faultProfile != null).append('|').append(rateLimit)
+                .append('|').append(compression).append('|').append(compressionMinimumBytes)
+                .append('|').append(conditionalRequests).append('|').append(cacheControl).toString();
+    }
+
     /**
      * A concrete implementation of StubDefinitionBuilderInit
      */
@@ -57,11 +257,38 @@ public class StubDefinition {
 
     public static class StubDefinitionBuilderInit<Builder extends StubDefinitionBuilderInit<Builder>> {
 
+        private static final Class<? extends SelectorProcessor> MORC_RANDOM_SELECTOR = new MorcMethods() {
+        }.randomSelector();
+
         private String description;
         private String endpointUri;
         private List<List<Processor>> processors = new ArrayList<>();
         private List<Processor> repeatedProcessors = new ArrayList<>();
-        private Class<? extends SelectorProcessor> selectorProcessorClass = SelectorProcessor.class;
+        private Set<Integer> dynamicResponseIndexes = new HashSet<>();
+        private boolean compiledResponses = true;
+        private List<CompiledResponseProcessor> compiledResponseProcessors = new ArrayList<>();
+        private List<CompiledResponseProcessor> indexedCompiledResponseProcessors = new ArrayList<>();
+        private List<ReplayProcessor> replayProcessors = new ArrayList<>();
+        private RequestBodyHandling requestBodyHandling = RequestBodyHandling.LAZY;
+        private ExecutionMode executionMode;
+        private LatencyProfile latencyProfile;
+        private long bandwidth;
+        private FaultProfile faultProfile;
+        private Compression compression = Compression.OFF;
+        private int compressionMinimumBytes = DEFAULT_COMPRESSION_MINIMUM_BYTES;
+        private boolean conditionalRequests;
+        private String cacheControl;
+        private RateLimit rateLimit;
+        private ConnectorProfile connectorProfile;
+        private int journalCapacity;
+        private int journalBodyBytes;
+        private Path journalSpillPath;
+        private long journalSpillBytes;
+        private String recordUpstreamUri;
+        private Path interactionStorePath;
+        private String virtualHost;
+        private Class<? extends SelectorProcessor> selectorProcessorClass = CyclingSelectorProcessor.class;
+        private Function<List<Processor>, ? extends SelectorProcessor> selectorProcessorFactory;
         private SelectorProcessor selectorProcessor;
         private Processor stubFeedPreprocessor;
         private Collection<EndpointOverride> endpointOverrides = new ArrayList<>();
@@ -85,10 +312,22 @@ public class StubDefinition {
 
         /**
          * @param selectorProcessorClass A class for selecting which of the processors to use for handling a response.
-         *                               The default implementation loops through the processors
+         *                               The default implementation loops through the processors; morc's
+         *                               SelectorProcessor and randomSelector() are replaced by their lock-free
+         *                               stubble equivalents
          */
         public Builder selector(Class<? extends SelectorProcessor> selectorProcessorClass) {
             this.selectorProcessorClass = selectorProcessorClass;
+            this.selectorProcessorFactory = null;
+            return self();
+        }
+
+        /**
+         * @param selectorProcessorFactory Creates the selector from the list of response processors, for selectors
+         *                                 that need more configuration than a class can provide
+         */
+        public Builder selector(Function<List<Processor>, ? extends SelectorProcessor> selectorProcessorFactory) {
+            this.selectorProcessorFactory = selectorProcessorFactory;
             return self();
         }
 
@@ -125,6 +364,97 @@ public class StubDefinition {
             return addProcessors(processors);
         }
 
+        /**
+         * @param processors The processors for generating the response message back to the client; these will be
+         *                   run for every request even if they only provide static content
+         */
+        public Builder dynamicResponse(Processor... processors) {
+            dynamicResponseIndexes.add(this.processors.size());
+            return addProcessors(processors);
+        }
+
+        /**
+         * @param path       A (potentially very large) file served as the response body from a memory mapping, with
+         *                   support for HTTP range requests
+         * @param processors Further processors for the response, e.g. to set headers
+         */
+        public Builder fileResponse(Path path, Processor... processors) {
+            List<Processor> responseProcessors = new ArrayList<>(Arrays.asList(processors));
+            responseProcessors.add(new FileResponseProcessor(path));
+            return addProcessors(responseProcessors.toArray(new Processor[responseProcessors.size()]));
+        }
+
+        /**
+         * @param template   A body with placeholders for values from the request, counters, random values or
+         *                   timestamps, e.g. {"id" : "{{jsonPointer:/order/id|json}}"}; see ResponseTemplate
+         * @param processors Further processors for the response, e.g. to set headers
+         */
+        public Builder template(String template, Processor... processors) {
+            return template(new ResponseTemplate(template), processors);
+        }
+
+        /**
+         * @param template   A parsed template, e.g. one with namespaces for its XPath placeholders
+         * @param processors Further processors for the response, e.g. to set headers
+         */
+        public Builder template(ResponseTemplate template, Processor... processors) {
+            List<Processor> responseProcessors = new ArrayList<>(Arrays.asList(processors));
+            responseProcessors.add(template);
+            return addProcessors(responseProcessors.toArray(new Processor[responseProcessors.size()]));
+        }
+
+        /**
+         * @param source     Opens a stream for the response body on each request, which is copied to the client
+         *                   without being read into memory first
+         * @param processors Further processors for the response, e.g. to set headers
+         */
+        public Builder streamResponse(Callable<InputStream> source, Processor... processors) {
+            List<Processor> responseProcessors = new ArrayList<>(Arrays.asList(processors));
+            responseProcessors.add(new StreamResponseProcessor(source));
+            return addProcessors(responseProcessors.toArray(new Processor[responseProcessors.size()]));
+        }
+
+        /**
+         * @param store A directory of interactions previously recorded with record(...); each request is answered
+         *              with the response recorded for the same method, path and (normalized) body, or a 404.
+         *              The store is opened when the stub starts, and closed when it stops
+         */
+        public Builder replay(Path store) {
+            ReplayProcessor replayProcessor = new ReplayProcessor(store);
+            replayProcessors.add(replayProcessor);
+            return addProcessors(replayProcessor);
+        }
+
+        /**
+         * @param upstreamUri The service to proxy requests to while Stubble is recording
+         * @param store       The directory the interactions are recorded to; when Stubble isn't recording the stub
+         *                    replays from this directory instead
+         */
+        public Builder record(String upstreamUri, Path store) {
+            this.recordUpstreamUri = upstreamUri;
+            this.interactionStorePath = store;
+            return self();
+        }
+
+        /**
+         * @param virtualHost The host name this stub serves when Stubble shares ports between stubs, allowing
+         *                    several stubs with the same port and path to stand in for different services
+         */
+        public Builder virtualHost(String virtualHost) {
+            this.virtualHost = virtualHost;
+            return self();
+        }
+
+        /**
+         * @param compiledResponses Whether responses made up only of static content (body and headers) should be
+         *                          rendered once and reused for each request (the default), rather than re-running
+         *                          the response processors every time
+         */
+        public Builder compiledResponses(boolean compiledResponses) {
+            this.compiledResponses = compiledResponses;
+            return self();
+        }
+
         /**
          * @param responses The set of matched responses that will be returned back to the client -- if there are
          *                  no such matches then nothing will be changed
@@ -142,6 +472,43 @@ public class StubDefinition {
             return addProcessors(new MatchedResponseProcessor(defaultMatchedResponse, responses));
         }
 
+        /**
+         * @param matchKey  An expression that extracts the key used to look up the response once per request, e.g.
+         *                  MatchKeys.header("SOAPAction")
+         * @param responses The set of responses keyed by value (or predicate) -- if there are no such matches then
+         *                  nothing will be changed
+         */
+        public Builder indexedResponses(Expression matchKey, IndexedMatchedResponseProcessor.IndexedResponse... responses) {
+            return indexedResponses(new IndexedMatchedResponseProcessor(matchKey, responses));
+        }
+
+        /**
+         * @param matchKey        An expression that extracts the key used to look up the response once per request
+         * @param defaultResponse The default response to send back to the client if there is no such match
+         * @param responses       The set of responses keyed by value (or predicate)
+         */
+        public Builder indexedResponses(Expression matchKey,
+                                        IndexedMatchedResponseProcessor.DefaultResponse defaultResponse,
+                                        IndexedMatchedResponseProcessor.IndexedResponse... responses) {
+            return indexedResponses(new IndexedMatchedResponseProcessor(matchKey, defaultResponse, responses));
+        }
+
+        /*
+         * The static responses behind each key are pre-rendered along with the stub's other compiled responses
+         */
+        private Builder indexedResponses(IndexedMatchedResponseProcessor processor) {
+            indexedCompiledResponseProcessors.addAll(processor.getCompiledResponses());
+            return addProcessors(processor);
+        }
+
+        /**
+         * @param scenario A state machine tracked separately for each session, which chooses the response to
+         *                 each request instead of a single cycle shared by every client
+         */
+        public Builder scenario(Scenario scenario) {
+            return addProcessors(scenario.build());
+        }
+
         /**
          * @param processor A processor that will be applied to every outgoing message
          */
@@ -152,15 +519,26 @@ public class StubDefinition {
 
         /**
          * @return A list of processors that will be used to handle each exchange; note that a single Processor is returned
-         *         that effectively wraps all of the processors provided to the builder (including repeated processors)
+         *         that effectively wraps all of the processors provided to the builder (including repeated processors).
+         *         Responses made up only of static content are wrapped so they are rendered once
          */
         protected List<Processor> getProcessors() {
             List<Processor> finalProcessors = new ArrayList<>();
+            compiledResponseProcessors.clear();
 
-            for (List<Processor> localProcessors : processors) {
-                List<Processor> orderedProcessors = new ArrayList<>(localProcessors);
+            for (int i = 0; i < processors.size(); i++) {
+                List<Processor> orderedProcessors = new ArrayList<>(processors.get(i));
                 orderedProcessors.addAll(0, repeatedProcessors);
-                finalProcessors.add(new MultiProcessor(orderedProcessors));
+                Processor processor = new MultiProcessor(orderedProcessors);
+
+                if (compiledResponses && !dynamicResponseIndexes.contains(i)
+                        && CompiledResponseProcessor.isDeterministic(orderedProcessors)) {
+                    CompiledResponseProcessor compiledResponseProcessor = new CompiledResponseProcessor(processor);
+                    compiledResponseProcessors.add(compiledResponseProcessor);
+                    processor = compiledResponseProcessor;
+                }
+
+                finalProcessors.add(processor);
             }
 
             return finalProcessors;
@@ -174,6 +552,143 @@ public class StubDefinition {
             return self();
         }
 
+        /**
+         * @param requestBodyHandling How the incoming request body should be prepared; by default it is only read into
+         *                            memory if a preprocessor or a dynamic response may need it
+         */
+        public Builder requestBody(RequestBodyHandling requestBodyHandling) {
+            this.requestBodyHandling = requestBodyHandling;
+            return self();
+        }
+
+        /**
+         * @param executionMode The threading used to produce this stub's responses, overriding Stubble's default
+         */
+        public Builder executionMode(ExecutionMode executionMode) {
+            this.executionMode = executionMode;
+            return self();
+        }
+
+        /**
+         * @param latencyProfile Provides a simulated delay before each response is returned, e.g.
+         *                       LatencyProfile.percentiles(50, 20, 99, 200, 99.9, 1000); delays are scheduled rather
+         *                       than holding a thread
+         */
+        public Builder latency(LatencyProfile latencyProfile) {
+            this.latencyProfile = latencyProfile;
+            return self();
+        }
+
+        /**
+         * @param bytesPerSecond The rate at which response bodies are sent back to the client
+         */
+        public Builder bandwidth(long bytesPerSecond) {
+            if (bytesPerSecond <= 0) throw new IllegalArgumentException("The bandwidth must be positive");
+            this.bandwidth = bytesPerSecond;
+            return self();
+        }
+
+        /**
+         * @param faultProfile Error responses, timeouts, connection resets, truncated bodies and slow drips injected
+         *                     into a proportion of responses (or on a schedule) to test how clients cope
+         */
+        public Builder faults(FaultProfile faultProfile) {
+            this.faultProfile = faultProfile;
+            return self();
+        }
+
+        /**
+         * @param compression The encodings response bodies are compressed with when the client's Accept-Encoding
+         *                    allows; pre-rendered responses are compressed once and cached
+         */
+        public Builder compression(Compression compression) {
+            return compression(compression, DEFAULT_COMPRESSION_MINIMUM_BYTES);
+        }
+
+        /**
+         * @param compression  The encodings response bodies are compressed with when the client's Accept-Encoding
+         *                     allows; pre-rendered responses are compressed once and cached
+         * @param minimumBytes The size below which bodies are sent uncompressed
+         */
+        public Builder compression(Compression compression, int minimumBytes) {
+            if (minimumBytes < 0) throw new IllegalArgumentException("The minimum size can't be negative");
+            this.compression = compression;
+            this.compressionMinimumBytes = minimumBytes;
+            return self();
+        }
+
+        /**
+         * Tags pre-rendered responses with an ETag (a hash of their content) and a Last-Modified time, and answers
+         * requests with a matching If-None-Match or If-Modified-Since with 304 Not Modified, for clients that poll
+         */
+        public Builder conditionalRequests() {
+            this.conditionalRequests = true;
+            return self();
+        }
+
+        /**
+         * @param cacheControl The Cache-Control header sent with every response, e.g. max-age=60
+         */
+        public Builder cacheControl(String cacheControl) {
+            this.cacheControl = cacheControl;
+            return self();
+        }
+
+        /**
+         * @param rateLimit The rate at which requests are accepted, e.g. RateLimit.tokenBucket(100, 20); requests
+         *                  beyond it receive an error response with a Retry-After header, to test client back-off
+         */
+        public Builder rateLimit(RateLimit rateLimit) {
+            this.rateLimit = rateLimit;
+            return self();
+        }
+
+        /**
+         * @param connectorProfile Connector and thread pool settings for this stub alone; the stub then has its own
+         *                         Jetty connector, so it can't share a port with other stubs
+         */
+        public Builder connectorProfile(ConnectorProfile connectorProfile) {
+            if (!endpointUri.startsWith("jetty:"))
+                throw new IllegalArgumentException("A connector profile can only be used with a jetty endpoint");
+            this.connectorProfile = connectorProfile;
+            return self();
+        }
+
+        /**
+         * @param capacity         The number of recent requests kept in the stub's journal, for verification through
+         *                         Stubble.getJournal(...) or the journal endpoint
+         * @param maximumBodyBytes The number of bytes kept from the start of each request body; 0 for none (the
+         *                         whole body is always hashed)
+         */
+        public Builder journal(int capacity, int maximumBodyBytes) {
+            if (capacity <= 0) throw new IllegalArgumentException("The journal capacity must be positive");
+            if (maximumBodyBytes < 0) throw new IllegalArgumentException("The body limit can't be negative");
+            this.journalCapacity = capacity;
+            this.journalBodyBytes = maximumBodyBytes;
+            return self();
+        }
+
+        /**
+         * @param spillPath  A memory-mapped file that every journal entry is also written to, which can be read
+         *                   after a run with RequestJournal.readSpill(...)
+         * @param spillBytes The size of the file; entries are no longer spilled once it is full
+         */
+        public Builder journalSpill(Path spillPath, long spillBytes) {
+            if (journalCapacity == 0)
+                throw new IllegalStateException("journal(...) must be set before journalSpill(...)");
+            this.journalSpillPath = spillPath;
+            this.journalSpillBytes = spillBytes;
+            return self();
+        }
+
+        /**
+         * @param consumers Concurrency, prefetch, acknowledgement and reply pooling for a queue (e.g. JMS) stub, whose
+         *                  route otherwise consumes one message at a time
+         */
+        public Builder queueConsumers(QueueConsumerOverride consumers) {
+            return addEndpointOverride(consumers);
+        }
+
         /**
          * @param override An override used for modifying an endpoint with sensible properties
          */
@@ -199,9 +714,20 @@ public class StubDefinition {
         }
 
         public StubDefinition build() {
+            List<Processor> responses = Collections.unmodifiableList(getProcessors());
+
+            if (selectorProcessorFactory != null) {
+                selectorProcessor = selectorProcessorFactory.apply(responses);
+                return new StubDefinition(this);
+            }
+
+            //morc's own selectors synchronize on a shared index; swap in the lock-free equivalents
+            Class<? extends SelectorProcessor> selectorClass = selectorProcessorClass;
+            if (selectorClass == SelectorProcessor.class) selectorClass = CyclingSelectorProcessor.class;
+            else if (selectorClass == MORC_RANDOM_SELECTOR) selectorClass = ThreadLocalRandomSelectorProcessor.class;
+
             try {
-                selectorProcessor = selectorProcessorClass.getDeclaredConstructor(List.class)
-                        .newInstance(Collections.unmodifiableList(getProcessors()));
+                selectorProcessor = selectorClass.getDeclaredConstructor(List.class).newInstance(responses);
             } catch (InstantiationException | IllegalAccessException | InvocationTargetException
                     | NoSuchMethodException e) {
                 throw new RuntimeException(e);
@@ -220,9 +746,35 @@ public class StubDefinition {
     @SuppressWarnings("unchecked")
     private StubDefinition(StubDefinitionBuilderInit builder) {
         this.endpointUri = builder.getEndpointUri();
+        this.connectorProfile = builder.connectorProfile;
+        //listen through the Jetty component that Stubble configures with the profile
+        if (connectorProfile != null)
+            this.endpointUri = connectorProfile.getComponentName() + endpointUri.substring("jetty".length());
         this.endpointOverrides = builder.getEndpointOverrides();
         this.selectorProcessor = builder.selectorProcessor;
         this.description = builder.description;
         this.stubFeedPreprocessor = builder.stubFeedPreprocessor;
+        this.compiledResponses = new ArrayList<>(builder.compiledResponseProcessors);
+        this.compiledResponses.addAll(builder.indexedCompiledResponseProcessors);
+        this.replayProcessors = new ArrayList<>(builder.replayProcessors);
+        this.requestBodyHandling = builder.requestBodyHandling;
+        this.executionMode = builder.executionMode;
+        if (builder.latencyProfile != null) this.latencyProcessor = new LatencyProcessor(builder.latencyProfile);
+        if (builder.bandwidth > 0) this.bandwidthProcessor = new BandwidthProcessor(builder.bandwidth);
+        this.faultProfile = builder.faultProfile;
+        this.compression = builder.compression;
+        this.compressionMinimumBytes = builder.compressionMinimumBytes;
+        this.conditionalRequests = builder.conditionalRequests;
+        this.cacheControl = builder.cacheControl;
+        this.rateLimit = builder.rateLimit;
+        this.journalCapacity = builder.journalCapacity;
+        this.journalBodyBytes = builder.journalBodyBytes;
+        this.journalSpillPath = builder.journalSpillPath;
+        this.journalSpillBytes = builder.journalSpillBytes;
+        this.recordUpstreamUri = builder.recordUpstreamUri;
+        this.interactionStorePath = builder.interactionStorePath;
+        this.virtualHost = builder.virtualHost;
+        this.requestBodyRequired = builder.stubFeedPreprocessor != null || builder.recordUpstreamUri != null
+                || builder.journalCapacity > 0 || builder.compiledResponseProcessors.size() < builder.processors.size();
     }
 }
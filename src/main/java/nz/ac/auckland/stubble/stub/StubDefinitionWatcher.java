@@ -0,0 +1,91 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the files that stub definitions are read from and runs a reload once they have stopped changing, so an
+ * editor saving a file in several writes only triggers a single reload
+ */
+public class StubDefinitionWatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StubDefinitionWatcher.class);
+    private static final long QUIET_PERIOD_MILLIS = 250;
+
+    private final WatchService watchService;
+    private final Map<Path, Set<Path>> watchedFiles = new HashMap<>();
+    private final Runnable reload;
+    private final Thread thread;
+
+    /**
+     * @param paths  The files (or directories, for any file within them) to watch
+     * @param reload Run on a background thread after the files have changed
+     */
+    public StubDefinitionWatcher(Collection<Path> paths, Runnable reload) throws IOException {
+        this.reload = reload;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        for (Path path : paths) {
+            path = path.toAbsolutePath().normalize();
+            Path directory = Files.isDirectory(path) ? path : path.getParent();
+            if (!watchedFiles.containsKey(directory)) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedFiles.put(directory, new HashSet<>());
+            }
+            //an empty set means every file in the directory is of interest
+            if (!path.equals(directory)) watchedFiles.get(directory).add(path.getFileName());
+        }
+
+        thread = new Thread(this::watch, "stubble-reload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!isRelevant(watchService.take())) continue;
+
+                //wait until the files stop changing before reloading
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    isRelevant(key);
+                }
+
+                try {
+                    reload.run();
+                } catch (RuntimeException e) {
+                    logger.error("Unable to reload the stub definitions", e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //closed
+        }
+    }
+
+    private boolean isRelevant(WatchKey key) {
+        boolean relevant = false;
+        Set<Path> files = watchedFiles.get((Path) key.watchable());
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || files == null || files.isEmpty()
+                    || files.contains((Path) event.context())) relevant = true;
+        }
+
+        key.reset();
+        return relevant;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+}
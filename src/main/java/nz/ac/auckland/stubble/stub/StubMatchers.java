@@ -0,0 +1,174 @@
+package nz.ac.auckland.stubble.stub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.camel.Exchange;
+import org.apache.camel.Predicate;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPathConstants;
+
+/**
+ * Predicates for matching requests that are compiled when the stub is built and share a single parse of the
+ * request body between them, without depending on globally configured XML libraries
+ */
+public class StubMatchers {
+
+    /**
+     * @param expression An XPath expression that evaluates to true for matching requests
+     * @param namespaces Pairs of namespace prefixes and URIs used by the expression
+     */
+    public static Predicate xpath(String expression, String... namespaces) {
+        final CompiledXPath xpath = new CompiledXPath(expression, namespaces);
+        return new Predicate() {
+            @Override
+            public boolean matches(Exchange exchange) {
+                Document document = ParsedBody.document(exchange);
+                if (document == null) return false;
+                try {
+                    return (Boolean) xpath.evaluate(document, XPathConstants.BOOLEAN);
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "xpath(" + xpath.getExpression() + ")";
+            }
+        };
+    }
+
+    /**
+     * Matches the text of the first element with the given local name (in any namespace). This streams through the
+     * body without building a document unless another matcher has already parsed it
+     *
+     * @param localName The local name of the element
+     * @param text      The expected (trimmed) text content of the element
+     */
+    public static Predicate elementText(final String localName, final String text) {
+        return new Predicate() {
+            @Override
+            public boolean matches(Exchange exchange) {
+                return text.equals(firstElementText(exchange, localName));
+            }
+
+            @Override
+            public String toString() {
+                return "elementText(" + localName + "=" + text + ")";
+            }
+        };
+    }
+
+    /**
+     * @param jsonPointer A JSON pointer (RFC 6901) into the JSON body
+     * @param text        The expected text value at that location
+     */
+    public static Predicate jsonPointer(final String jsonPointer, final String text) {
+        return new Predicate() {
+            @Override
+            public boolean matches(Exchange exchange) {
+                JsonNode json = ParsedBody.json(exchange);
+                if (json == null) return false;
+                JsonNode node = json.at(jsonPointer);
+                return !node.isMissingNode() && text.equals(node.asText());
+            }
+
+            @Override
+            public String toString() {
+                return "jsonPointer(" + jsonPointer + "=" + text + ")";
+            }
+        };
+    }
+
+    /**
+     * @return The trimmed text of the first element with the given local name, or null if there is none. The text is
+     *         that of every text and CDATA section within the element, including those of child elements, whether
+     *         the body is streamed or has already been parsed
+     */
+    static String firstElementText(Exchange exchange, String localName) {
+        Document document = ParsedBody.documentIfParsed(exchange);
+        if (document != null) {
+            NodeList elements = document.getElementsByTagNameNS("*", localName);
+            if (elements.getLength() == 0) return null;
+            StringBuilder text = new StringBuilder();
+            appendText(elements.item(0), text);
+            return text.toString().trim();
+        }
+
+        byte[] body = ParsedBody.bytes(exchange);
+        if (body == null) return null;
+
+        XMLStreamReader reader = null;
+        try {
+            reader = ParsedBody.xmlStreamReader(body);
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && localName.equals(reader.getLocalName())) {
+                    StringBuilder text = new StringBuilder();
+                    appendText(reader, text);
+                    return text.toString().trim();
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    //nothing more can be done
+                }
+            }
+        }
+    }
+
+    /*
+     * Appends the text and CDATA within a parsed node, in document order
+     */
+    private static void appendText(Node node, StringBuilder text) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    text.append(child.getNodeValue());
+                    break;
+                case Node.ELEMENT_NODE:
+                case Node.ENTITY_REFERENCE_NODE:
+                    appendText(child, text);
+                    break;
+                default:
+                    //comments and processing instructions aren't text
+            }
+        }
+    }
+
+    /*
+     * Appends the text and CDATA within the element the reader is at, in document order, leaving the reader at the
+     * element's end
+     */
+    private static void appendText(XMLStreamReader reader, StringBuilder text) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                default:
+                    //comments and processing instructions aren't text
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package nz.ac.auckland.stubble.stub;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scheduler shared by all stubs for delayed work (latency, throttling), so that waiting exchanges are parked
+ * as scheduled tasks instead of occupying a thread each. The scheduler only keeps time: blocking writes to clients
+ * run on the separate writer executor, so a slow or stalled client can't hold up the timers of other stubs
+ */
+public class StubScheduler {
+
+    private static final int WRITER_THREADS = 256;
+    private static final int WRITER_QUEUE_SIZE = 10000;
+
+    private static volatile ScheduledExecutorService scheduler;
+    private static volatile ExecutorService writer;
+
+    /**
+     * @return The shared scheduler, which runs on daemon threads
+     */
+    public static ScheduledExecutorService get() {
+        ScheduledExecutorService current = scheduler;
+        if (current != null) return current;
+
+        synchronized (StubScheduler.class) {
+            if (scheduler == null) {
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                        Runtime.getRuntime().availableProcessors(), daemonThreads("stubble-scheduler-"));
+                executor.setRemoveOnCancelPolicy(true);
+                scheduler = executor;
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * @return The shared executor for blocking writes to clients (e.g. throttled chunks), which runs on daemon
+     *         threads that are created as needed and expire when idle; writes beyond its queue are rejected
+     */
+    public static ExecutorService writer() {
+        ExecutorService current = writer;
+        if (current != null) return current;
+
+        synchronized (StubScheduler.class) {
+            if (writer == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, 60,
+                        TimeUnit.SECONDS, new LinkedBlockingQueue<>(WRITER_QUEUE_SIZE),
+                        daemonThreads("stubble-writer-"));
+                executor.allowCoreThreadTimeOut(true);
+                writer = executor;
+            }
+            return writer;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects a response at random without sharing a random number generator between threads
+ */
+public class ThreadLocalRandomSelectorProcessor extends IndexedSelectorProcessor {
+
+    public ThreadLocalRandomSelectorProcessor(List<Processor> processors) {
+        super(processors);
+    }
+
+    @Override
+    protected int selectIndex(Exchange exchange, int responseCount) {
+        return ThreadLocalRandom.current().nextInt(responseCount);
+    }
+}
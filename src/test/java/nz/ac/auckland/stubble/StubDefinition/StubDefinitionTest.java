@@ -4,6 +4,9 @@ import nz.ac.auckland.morc.MorcMethods;
 import nz.ac.auckland.morc.endpointoverride.CxfEndpointOverride;
 import nz.ac.auckland.morc.endpointoverride.EndpointOverride;
 import nz.ac.auckland.morc.endpointoverride.UrlConnectionOverride;
+import nz.ac.auckland.stubble.stub.CompiledResponseProcessor;
+import nz.ac.auckland.stubble.stub.IndexedMatchedResponseProcessor;
+import nz.ac.auckland.stubble.stub.MatchKeys;
 import nz.ac.auckland.stubble.stub.StubDefinition;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
@@ -108,6 +111,79 @@ public class StubDefinitionTest extends Assert implements MorcMethods {
         assertTrue(text("something").matches(e));
     }
 
+    @Test
+    public void testIndexedResponses() throws Exception {
+        StubDefinition stub = new StubDefinition.StubDefinitionBuilder("foo", "foo.com")
+                .indexedResponses(MatchKeys.xpath("/order/id"),
+                        new IndexedMatchedResponseProcessor.DefaultResponse(text("123")),
+                        new IndexedMatchedResponseProcessor.IndexedResponse("1", xml("<foo/>")),
+                        new IndexedMatchedResponseProcessor.IndexedResponse("2", xml("<baz/>")),
+                        new IndexedMatchedResponseProcessor.IndexedResponse(text("moo"), text("MOO"))).build();
+
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+
+        e.getIn().setBody("<order><id>2</id></order>");
+        stub.getSelectorProcessor().process(e);
+        assertTrue(xml("<baz/>").matches(e));
+
+        e.getIn().setBody("<order><id>1</id></order>");
+        stub.getSelectorProcessor().process(e);
+        assertTrue(xml("<foo/>").matches(e));
+
+        e.getIn().setBody("moo");
+        stub.getSelectorProcessor().process(e);
+        assertTrue(text("MOO").matches(e));
+
+        e.getIn().setBody("<order><id>3</id></order>");
+        stub.getSelectorProcessor().process(e);
+        assertTrue(text("123").matches(e));
+    }
+
+    @Test
+    public void testIndexedResponsesPreRendered() throws Exception {
+        StubDefinition stub = new StubDefinition.StubDefinitionBuilder("foo", "foo.com")
+                .indexedResponses(MatchKeys.header("action"),
+                        new IndexedMatchedResponseProcessor.DefaultResponse(text("C")),
+                        new IndexedMatchedResponseProcessor.IndexedResponse("a", text("A")),
+                        new IndexedMatchedResponseProcessor.IndexedResponse("b", text("B")),
+                        new IndexedMatchedResponseProcessor.IndexedResponse("c", text("D"), exchange -> { }))
+                .build();
+
+        //the dynamic response for c is left out
+        assertEquals(3, stub.getCompiledResponses().size());
+
+        DefaultCamelContext context = new DefaultCamelContext();
+        for (CompiledResponseProcessor compiledResponse : stub.getCompiledResponses())
+            compiledResponse.compile(context);
+
+        Exchange e = new DefaultExchange(context);
+        e.getIn().setHeader("action", "b");
+        stub.getSelectorProcessor().process(e);
+        assertEquals("B", e.getIn().getBody(String.class));
+        assertSame(e.getIn().getBody(), e.getProperty(CompiledResponseProcessor.COMPILED_RESPONSE_PROPERTY,
+                CompiledResponseProcessor.CompiledResponse.class).getBody());
+        assertTrue(stub.getCompiledResponses().stream().anyMatch(compiledResponse ->
+                compiledResponse.getCompiledResponse().getBody().equals("B")));
+    }
+
+    @Test
+    public void testIndexedResponsesByHeader() throws Exception {
+        StubDefinition stub = new StubDefinition.StubDefinitionBuilder("foo", "foo.com")
+                .indexedResponses(MatchKeys.header("action"),
+                        new IndexedMatchedResponseProcessor.IndexedResponse("a", text("A")),
+                        new IndexedMatchedResponseProcessor.IndexedResponse("b", text("B"))).build();
+
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+
+        e.getIn().setHeader("action", "b");
+        stub.getSelectorProcessor().process(e);
+        assertEquals("B", e.getIn().getBody(String.class));
+
+        e.getIn().setHeader("action", "a");
+        stub.getSelectorProcessor().process(e);
+        assertEquals("A", e.getIn().getBody(String.class));
+    }
+
     @Test
     public void testCustomSelector() throws Exception {
         StubDefinition stub = new StubDefinition.StubDefinitionBuilder("foo", "foo.com")
@@ -133,6 +209,43 @@ public class StubDefinitionTest extends Assert implements MorcMethods {
         assertTrue(moo > 0);
     }
 
+    @Test
+    public void testCompiledResponses() throws Exception {
+        final int[] count = new int[]{0};
+
+        StubDefinition stub = new StubDefinition.StubDefinitionBuilder("foo", "foo.com")
+                .response(xml("<foo/>"), headers(header("a", "b")))
+                .response(text("baz"), exchange -> count[0]++)
+                .dynamicResponse(text("moo")).build();
+
+        assertEquals(1, stub.getCompiledResponses().size());
+
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+
+        for (int i = 0; i < 2; i++) {
+            stub.getSelectorProcessor().process(e);
+            assertTrue(xml("<foo/>").matches(e));
+            assertEquals("b", e.getIn().getHeader("a"));
+
+            stub.getSelectorProcessor().process(e);
+            assertEquals("baz", e.getIn().getBody(String.class));
+
+            stub.getSelectorProcessor().process(e);
+            assertEquals("moo", e.getIn().getBody(String.class));
+        }
+
+        assertEquals(2, count[0]);
+    }
+
+    @Test
+    public void testCompiledResponsesDisabled() throws Exception {
+        StubDefinition stub = new StubDefinition.StubDefinitionBuilder("foo", "foo.com")
+                .response(text("foo"))
+                .compiledResponses(false).build();
+
+        assertEquals(0, stub.getCompiledResponses().size());
+    }
+
     @Test
     public void testEndpointOverride() throws Exception {
         StubDefinition stub = new StubDefinition.StubDefinitionBuilder("foo", "foo.com")
@@ -1,11 +1,29 @@
 package nz.ac.auckland.stubble;
 
 import nz.ac.auckland.morc.MorcTestBuilder;
+import nz.ac.auckland.stubble.routing.ConnectorProfile;
+import nz.ac.auckland.stubble.stub.Compression;
+import nz.ac.auckland.stubble.stub.FaultProfile;
+import nz.ac.auckland.stubble.stub.RateLimit;
+import nz.ac.auckland.stubble.stub.StubDefinition;
+import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
 public class StubbleTest extends Assert {
 
     @Test
@@ -221,4 +239,566 @@ public class StubbleTest extends Assert {
         }.run());
     }
 
+    @Test
+    public void testStartFuture() throws Exception {
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8086")
+                        .response(text("foo"))
+                        .response(text("baz"));
+            }
+        };
+
+        //no fixed sleep: the future completes once the endpoint is listening
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            assertEquals(0, new MorcTestBuilder() {
+                public void configure() {
+                    syncTest("ping stubs", "http://localhost:8086")
+                            .request(text("a"))
+                            .request(text("b"))
+                            .expectation(text("foo"))
+                            .expectation(text("baz"));
+                }
+            }.run());
+        } finally {
+            stubble.stop();
+        }
+    }
+
+
+    @Test
+    public void testReload() throws Exception {
+        final String[] response = new String[]{"before"};
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("unchanged", "http://localhost:8087")
+                        .response(text("foo"))
+                        .response(text("baz"));
+
+                stub("changed", "http://localhost:8088")
+                        .response(text(response[0]));
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            assertEquals(0, new MorcTestBuilder() {
+                public void configure() {
+                    syncTest("before reload", "http://localhost:8087")
+                            .request(text("a"))
+                            .expectation(text("foo"));
+                    syncTest("before reload", "http://localhost:8088")
+                            .request(text("a"))
+                            .expectation(text("before"));
+                }
+            }.run());
+
+            response[0] = "after";
+            stubble.reload();
+
+            //the unchanged stub carries on from where it was in its cycle
+            assertEquals(0, new MorcTestBuilder() {
+                public void configure() {
+                    syncTest("after reload", "http://localhost:8087")
+                            .request(text("a"))
+                            .expectation(text("baz"));
+                    syncTest("after reload", "http://localhost:8088")
+                            .request(text("a"))
+                            .expectation(text("after"));
+                }
+            }.run());
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testPortSharing() throws Exception {
+        Stubble stubble = new Stubble() {
+            @Override
+            protected boolean isPortSharing() {
+                return true;
+            }
+
+            @Override
+            protected void configure() {
+                stub("http://localhost:8089/orders")
+                        .response(text("orders"));
+
+                stub("http://localhost:8089/customers")
+                        .response(text("customers"));
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            assertEquals(0, new MorcTestBuilder() {
+                public void configure() {
+                    syncTest("shared orders", "http://localhost:8089/orders")
+                            .request(text("a"))
+                            .expectation(text("orders"));
+                    syncTest("shared customers", "http://localhost:8089/customers")
+                            .request(text("a"))
+                            .expectation(text("customers"));
+                }
+            }.run());
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testPortSharingConflictingListeners() throws Exception {
+        Stubble stubble = new Stubble() {
+            @Override
+            protected boolean isPortSharing() {
+                return true;
+            }
+
+            @Override
+            protected void configure() {
+                stub("http://localhost:8095/orders?chunked=false")
+                        .response(text("orders"));
+
+                stub("http://localhost:8095/customers")
+                        .response(text("customers"));
+            }
+        };
+
+        try {
+            stubble.start().get(30, TimeUnit.SECONDS);
+            fail("Stubs sharing a port with different listener options should not start");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+            assertTrue(e.getCause().getMessage().contains("8095"));
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testConnectorProfileOnSharedPort() throws Exception {
+        Stubble stubble = new Stubble() {
+            @Override
+            protected boolean isPortSharing() {
+                return true;
+            }
+
+            @Override
+            protected void configure() {
+                stub("orders", "http://localhost:8100/orders")
+                        .response(text("orders"));
+
+                stub("customers", "http://localhost:8100/customers")
+                        .response(text("customers"))
+                        .connectorProfile(ConnectorProfile.highConcurrency());
+            }
+        };
+
+        try {
+            stubble.start().get(30, TimeUnit.SECONDS);
+            fail("A stub with its own connector can't share a port");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+            assertTrue(e.getCause().getMessage().contains("customers"));
+            assertTrue(e.getCause().getMessage().contains("8100"));
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8093")
+                        .response(text("foo"));
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+        stubble.stop();
+
+        //run() blocks again once the stubs have been restarted
+        Thread runner = new Thread(() -> {
+            try {
+                stubble.run();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        runner.start();
+
+        try {
+            Thread.sleep(5000);
+            assertTrue(runner.isAlive());
+
+            assertEquals(0, new MorcTestBuilder() {
+                public void configure() {
+                    syncTest("after restart", "http://localhost:8093")
+                            .request(text("a"))
+                            .expectation(text("foo"));
+                }
+            }.run());
+        } finally {
+            stubble.stop();
+        }
+
+        runner.join(10000);
+        assertFalse(runner.isAlive());
+    }
+
+    @Test
+    public void testFailedStartStopsContext() throws Exception {
+        CamelContext[] created = new CamelContext[1];
+        Stubble failing = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8099")
+                        .response(text("foo"));
+            }
+
+            @Override
+            protected CamelContext createCamelContext() throws Exception {
+                CamelContext context = super.createCamelContext();
+                //fails once the routes, and the listener on the port, have started
+                context.addStartupListener((camelContext, alreadyStarted) -> {
+                    throw new IllegalStateException("refused");
+                });
+                created[0] = context;
+                return context;
+            }
+        };
+
+        try {
+            failing.start().get(30, TimeUnit.SECONDS);
+            fail("The stubs should not start");
+        } catch (ExecutionException e) {
+            assertEquals("refused", e.getCause().getMessage());
+        }
+        assertTrue(created[0].getStatus().isStopped());
+
+        //the port was released
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8099")
+                        .response(text("baz"));
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            assertEquals(0, new MorcTestBuilder() {
+                public void configure() {
+                    syncTest("after failed start", "http://localhost:8099")
+                            .request(text("a"))
+                            .expectation(text("baz"));
+                }
+            }.run());
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8094/orders")
+                        .response(text("orders"))
+                        .conditionalRequests()
+                        .cacheControl("max-age=60");
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            HttpURLConnection first = (HttpURLConnection) new URL("http://localhost:8094/orders").openConnection();
+            assertEquals(200, first.getResponseCode());
+            assertEquals("max-age=60", first.getHeaderField("Cache-Control"));
+            String entityTag = first.getHeaderField("ETag");
+            assertNotNull(entityTag);
+            assertNotNull(first.getHeaderField("Last-Modified"));
+            first.getInputStream().close();
+
+            HttpURLConnection second = (HttpURLConnection) new URL("http://localhost:8094/orders").openConnection();
+            second.setRequestProperty("If-None-Match", entityTag);
+            assertEquals(304, second.getResponseCode());
+            assertEquals(entityTag, second.getHeaderField("ETag"));
+            assertEquals("max-age=60", second.getHeaderField("Cache-Control"));
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testFileRangeRequests() throws Exception {
+        final Path file = Files.createTempFile("stubble", ".txt");
+        Files.write(file, "0123456789".getBytes(StandardCharsets.US_ASCII));
+
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8096/file")
+                        .fileResponse(file);
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            HttpURLConnection whole = (HttpURLConnection) new URL("http://localhost:8096/file").openConnection();
+            assertEquals(200, whole.getResponseCode());
+            assertEquals("0123456789", read(whole));
+
+            HttpURLConnection range = (HttpURLConnection) new URL("http://localhost:8096/file").openConnection();
+            range.setRequestProperty("Range", "bytes=2-4");
+            assertEquals(206, range.getResponseCode());
+            assertEquals("bytes 2-4/10", range.getHeaderField("Content-Range"));
+            assertEquals("234", read(range));
+
+            HttpURLConnection suffix = (HttpURLConnection) new URL("http://localhost:8096/file").openConnection();
+            suffix.setRequestProperty("Range", "bytes=-3");
+            assertEquals(206, suffix.getResponseCode());
+            assertEquals("789", read(suffix));
+
+            HttpURLConnection overflow = (HttpURLConnection) new URL("http://localhost:8096/file").openConnection();
+            overflow.setRequestProperty("Range", "bytes=99999999999999999999-");
+            assertEquals(416, overflow.getResponseCode());
+            assertEquals("bytes */10", overflow.getHeaderField("Content-Range"));
+        } finally {
+            stubble.stop();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testCompressedBodyEncodedOnce() throws Exception {
+        final String body = new String(new char[100]).replace("\0", "<order><id>1</id></order>");
+
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8097/orders")
+                        .response(text(body))
+                        .compression(Compression.GZIP);
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:8097/orders").openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+
+            //decompressing once must give the body; a body compressed twice would still start with a gzip header
+            try (InputStream inputStream = new GZIPInputStream(connection.getInputStream())) {
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int count;
+                while ((count = inputStream.read(buffer)) > 0) {
+                    decoded.write(buffer, 0, count);
+                }
+                assertEquals(body, new String(decoded.toByteArray(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testReloadFaultProfile() throws Exception {
+        final boolean[] reloaded = new boolean[1];
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                StubDefinition.StubDefinitionBuilder stub = stub("http://localhost:8098/orders")
+                        .response(text("orders"));
+                if (reloaded[0]) stub.faults(new FaultProfile().error(1, 503));
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            assertEquals(200, open("http://localhost:8098/orders").getResponseCode());
+            reloaded[0] = true;
+            stubble.reload();
+            assertEquals(503, open("http://localhost:8098/orders").getResponseCode());
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testReloadRateLimit() throws Exception {
+        final boolean[] reloaded = new boolean[1];
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8098/orders")
+                        .response(text("orders"))
+                        .rateLimit(reloaded[0] ? RateLimit.tokenBucket(0.001, 1) : RateLimit.tokenBucket(1000, 100));
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            assertEquals(200, open("http://localhost:8098/orders").getResponseCode());
+            assertEquals(200, open("http://localhost:8098/orders").getResponseCode());
+            reloaded[0] = true;
+            stubble.reload();
+            assertEquals(200, open("http://localhost:8098/orders").getResponseCode());
+            assertEquals(429, open("http://localhost:8098/orders").getResponseCode());
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testReloadCompression() throws Exception {
+        final boolean[] reloaded = new boolean[1];
+        final String body = new String(new char[100]).replace("\0", "<order><id>1</id></order>");
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8098/orders")
+                        .response(text(body))
+                        .compression(reloaded[0] ? Compression.GZIP : Compression.OFF);
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            HttpURLConnection before = open("http://localhost:8098/orders", "Accept-Encoding", "gzip");
+            assertEquals(200, before.getResponseCode());
+            assertNull(before.getHeaderField("Content-Encoding"));
+            reloaded[0] = true;
+            stubble.reload();
+            HttpURLConnection after = open("http://localhost:8098/orders", "Accept-Encoding", "gzip");
+            assertEquals(200, after.getResponseCode());
+            assertEquals("gzip", after.getHeaderField("Content-Encoding"));
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testReloadCompressionMinimumBytes() throws Exception {
+        final boolean[] reloaded = new boolean[1];
+        final String body = new String(new char[100]).replace("\0", "<order><id>1</id></order>");
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8098/orders")
+                        .response(text(body))
+                        .compression(Compression.GZIP, reloaded[0] ? 100000 : 10);
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            HttpURLConnection before = open("http://localhost:8098/orders", "Accept-Encoding", "gzip");
+            assertEquals(200, before.getResponseCode());
+            assertEquals("gzip", before.getHeaderField("Content-Encoding"));
+            reloaded[0] = true;
+            stubble.reload();
+            HttpURLConnection after = open("http://localhost:8098/orders", "Accept-Encoding", "gzip");
+            assertEquals(200, after.getResponseCode());
+            assertNull(after.getHeaderField("Content-Encoding"));
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testReloadConditionalRequests() throws Exception {
+        final boolean[] reloaded = new boolean[1];
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                StubDefinition.StubDefinitionBuilder stub = stub("http://localhost:8098/orders")
+                        .response(text("orders"));
+                if (reloaded[0]) stub.conditionalRequests();
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            HttpURLConnection before = open("http://localhost:8098/orders");
+            assertEquals(200, before.getResponseCode());
+            assertNull(before.getHeaderField("ETag"));
+            reloaded[0] = true;
+            stubble.reload();
+            HttpURLConnection after = open("http://localhost:8098/orders");
+            assertEquals(200, after.getResponseCode());
+            assertNotNull(after.getHeaderField("ETag"));
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    @Test
+    public void testReloadCacheControl() throws Exception {
+        final boolean[] reloaded = new boolean[1];
+        Stubble stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:8098/orders")
+                        .response(text("orders"))
+                        .cacheControl(reloaded[0] ? "no-store" : "max-age=60");
+            }
+        };
+
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        try {
+            assertEquals("max-age=60", open("http://localhost:8098/orders").getHeaderField("Cache-Control"));
+            reloaded[0] = true;
+            stubble.reload();
+            assertEquals("no-store", open("http://localhost:8098/orders").getHeaderField("Cache-Control"));
+        } finally {
+            stubble.stop();
+        }
+    }
+
+    /*
+     * Opens a connection with the given pairs of request header names and values
+     */
+    private static HttpURLConnection open(String url, String... headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream inputStream = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                body.write(buffer, 0, count);
+            }
+            return new String(body.toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
 }
@@ -0,0 +1,315 @@
+package nz.ac.auckland.stubble.cluster;
+
+import nz.ac.auckland.stubble.stub.CamelContextTestSupport;
+import nz.ac.auckland.stubble.stub.ClientSequenceSelectorProcessor;
+import nz.ac.auckland.stubble.stub.CyclingSelectorProcessor;
+import nz.ac.auckland.stubble.stub.RequestKeys;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StateBackendTest extends CamelContextTestSupport {
+
+    private static List<Processor> responses(String... bodies) {
+        List<Processor> responses = new ArrayList<>();
+        for (final String body : bodies) {
+            responses.add(exchange -> exchange.getIn().setBody(body));
+        }
+        return responses;
+    }
+
+    private String request(Processor processor, String client) throws Exception {
+        return request(exchange("client", client), processor).getIn().getBody(String.class);
+    }
+
+    @Test
+    public void testInProcessBackend() throws Exception {
+        StateBackend backend = new InProcessStateBackend();
+        assertEquals(0, backend.get("a"));
+        assertEquals(0, backend.getAndAdd("a", 5));
+        assertEquals(5, backend.getAndAdd("a", 1));
+        backend.set("b", 10);
+        assertEquals(10, backend.get("b"));
+        assertEquals(6, backend.get("a"));
+    }
+
+    @Test
+    public void testSharedMemoryBackendIsSharedBetweenInstances() throws Exception {
+        Path file = Files.createTempDirectory("stubble-state").resolve("state");
+        try (SharedMemoryStateBackend first = new SharedMemoryStateBackend(file, 16);
+             SharedMemoryStateBackend second = new SharedMemoryStateBackend(file, 1024)) {
+            assertEquals(16, second.getSlots());
+
+            assertEquals(0, first.getAndAdd("counter", 1));
+            assertEquals(1, second.getAndAdd("counter", 1));
+            assertEquals(2, first.get("counter"));
+            second.set("other", 7);
+            assertEquals(7, first.get("other"));
+            assertEquals(0, first.get("missing"));
+        }
+
+        try (SharedMemoryStateBackend reopened = new SharedMemoryStateBackend(file, 16)) {
+            assertEquals(2, reopened.get("counter"));
+        }
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void testSharedMemoryBackendFull() throws Exception {
+        Path file = Files.createTempDirectory("stubble-state").resolve("state");
+        try (SharedMemoryStateBackend backend = new SharedMemoryStateBackend(file, 2)) {
+            backend.getAndAdd("a", 1);
+            backend.getAndAdd("b", 1);
+            backend.getAndAdd("c", 1);
+        }
+    }
+
+    @Test
+    public void testExpiredCountersAreDiscarded() throws Exception {
+        InProcessStateBackend backend = new InProcessStateBackend();
+        backend.getAndAdd("kept", 1);
+        assertEquals(0, backend.getAndAdd("client", 1, 50));
+        assertEquals(1, backend.getAndAdd("client", 1, 50));
+        for (int i = 0; i < 2000; i++) {
+            backend.getAndAdd("client/" + i, 1, 50);
+        }
+
+        Thread.sleep(100);
+        assertEquals(0, backend.get("client"));
+        assertEquals(1, backend.get("kept"));
+        assertEquals(0, backend.getAndAdd("client", 1, 50));
+
+        //adding new counters sweeps out the expired ones
+        for (int i = 0; i < 2000; i++) {
+            backend.getAndAdd("other/" + i, 1, 60000);
+        }
+        assertTrue(backend.size() < 3000);
+    }
+
+    @Test
+    public void testSharedMemoryBackendReusesExpiredSlots() throws Exception {
+        Path file = Files.createTempDirectory("stubble-state").resolve("state");
+        try (SharedMemoryStateBackend backend = new SharedMemoryStateBackend(file, 2)) {
+            assertEquals(0, backend.getAndAdd("a", 1, 50));
+            assertEquals(0, backend.getAndAdd("b", 1, 50));
+            assertEquals(1, backend.getAndAdd("b", 1, 50));
+
+            Thread.sleep(100);
+            assertEquals(0, backend.get("a"));
+            assertEquals(0, backend.getAndAdd("c", 1));
+            assertEquals(0, backend.getAndAdd("b", 1));
+            assertEquals(1, backend.get("c"));
+        }
+    }
+
+    @Test
+    public void testFullSharedMemoryBackendFailsOver() throws Exception {
+        Path file = Files.createTempDirectory("stubble-state").resolve("state");
+        try (FailoverStateBackend backend = new FailoverStateBackend(new SharedMemoryStateBackend(file, 1), 1,
+                60000)) {
+            assertEquals(0, backend.getAndAdd("a", 1));
+            assertEquals(0, backend.getAndAdd("client/b", 1, 60000));
+            assertTrue(backend.isOpen());
+            assertEquals(1, backend.getAndAdd("client/b", 1, 60000));
+        }
+    }
+
+    @Test
+    public void testConcurrentSharedMemoryIncrements() throws Exception {
+        Path file = Files.createTempDirectory("stubble-state").resolve("state");
+        try (SharedMemoryStateBackend first = new SharedMemoryStateBackend(file, 16);
+             SharedMemoryStateBackend second = new SharedMemoryStateBackend(file, 16)) {
+            List<Thread> threads = new ArrayList<>();
+            for (final StateBackend backend : Arrays.asList(first, second, first, second)) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        backend.getAndAdd("counter", 1);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(4000, first.get("counter"));
+        }
+    }
+
+    @Test
+    public void testNodesCycleAsOne() throws Exception {
+        StateBackend backend = new InProcessStateBackend();
+        CyclingSelectorProcessor node1 = new CyclingSelectorProcessor(responses("a", "b", "c"));
+        CyclingSelectorProcessor node2 = new CyclingSelectorProcessor(responses("a", "b", "c"));
+        node1.share(new SharedCounter(backend, "stub/cycle", 1));
+        node2.share(new SharedCounter(backend, "stub/cycle", 1));
+
+        assertEquals("a", request(node1, null));
+        assertEquals("b", request(node2, null));
+        assertEquals("c", request(node2, null));
+        assertEquals("a", request(node1, null));
+        assertEquals(4, node2.getCount());
+    }
+
+    @Test
+    public void testLeasedPositionsAreUsedOnce() throws Exception {
+        StateBackend backend = new InProcessStateBackend();
+        SharedCounter node1 = new SharedCounter(backend, "stub/cycle", 10);
+        SharedCounter node2 = new SharedCounter(backend, "stub/cycle", 10);
+
+        Set<Long> positions = new HashSet<>();
+        for (int i = 0; i < 25; i++) {
+            assertTrue(positions.add(node1.getAndIncrement()));
+            assertTrue(positions.add(node2.getAndIncrement()));
+        }
+
+        assertEquals(0, (long) positions.stream().min(Long::compare).get());
+        assertEquals(54, (long) positions.stream().max(Long::compare).get());
+        assertEquals(60, backend.get("stub/cycle"));
+    }
+
+    @Test
+    public void testClientPositionsAreShared() throws Exception {
+        StateBackend backend = new InProcessStateBackend();
+        ClientSequenceSelectorProcessor node1 = new ClientSequenceSelectorProcessor(responses("a", "b"),
+                RequestKeys.header("client"), 100);
+        ClientSequenceSelectorProcessor node2 = new ClientSequenceSelectorProcessor(responses("a", "b"),
+                RequestKeys.header("client"), 100);
+        node1.share(backend, "stub/client/");
+        node2.share(backend, "stub/client/");
+
+        assertEquals("a", request(node1, "x"));
+        assertEquals("a", request(node2, "y"));
+        assertEquals("b", request(node2, "x"));
+        assertEquals("b", request(node1, "y"));
+    }
+
+    @Test
+    public void testConcurrentLeasesAreUsedOnce() throws Exception {
+        StateBackend backend = new InProcessStateBackend();
+        SharedCounter counter = new SharedCounter(backend, "stub/cycle", 10);
+
+        Set<Long> positions = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    assertTrue(positions.add(counter.getAndIncrement()));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8000, positions.size());
+        assertTrue(positions.stream().allMatch(position -> position < backend.get("stub/cycle")));
+    }
+
+    @Test
+    public void testLeasedClientPositions() throws Exception {
+        StateBackend backend = new InProcessStateBackend();
+        ClientSequenceSelectorProcessor node1 = new ClientSequenceSelectorProcessor(responses("a", "b", "c"),
+                RequestKeys.header("client"), 100);
+        ClientSequenceSelectorProcessor node2 = new ClientSequenceSelectorProcessor(responses("a", "b", "c"),
+                RequestKeys.header("client"), 100);
+        node1.share(backend, "stub/client/", 2);
+        node2.share(backend, "stub/client/", 2);
+
+        assertEquals("a", request(node1, "x"));
+        assertEquals(2, backend.get("stub/client/x"));
+        assertEquals("c", request(node2, "x"));
+        assertEquals("b", request(node1, "x"));
+        assertEquals(4, backend.get("stub/client/x"));
+    }
+
+    @Test
+    public void testFailoverToLocalState() throws Exception {
+        AtomicBoolean down = new AtomicBoolean();
+        AtomicInteger calls = new AtomicInteger();
+        InProcessStateBackend shared = new InProcessStateBackend();
+        StateBackend flaky = new StateBackend() {
+            @Override
+            public long getAndAdd(String key, long delta) {
+                calls.incrementAndGet();
+                if (down.get()) throw new UncheckedIOException(new IOException("The state server is down"));
+                return shared.getAndAdd(key, delta);
+            }
+
+            @Override
+            public long get(String key) {
+                return shared.get(key);
+            }
+
+            @Override
+            public void set(String key, long value) {
+                shared.set(key, value);
+            }
+        };
+
+        FailoverStateBackend backend = new FailoverStateBackend(flaky, 2, 200);
+        assertEquals(0, backend.getAndAdd("a", 1));
+        assertFalse(backend.isOpen());
+
+        down.set(true);
+        assertEquals(0, backend.getAndAdd("a", 1));
+        assertFalse(backend.isOpen());
+        assertEquals(1, backend.getAndAdd("a", 1));
+        assertTrue(backend.isOpen());
+
+        //requests aren't sent to the backend while the circuit is open
+        int callsWhenOpened = calls.get();
+        assertEquals(2, backend.getAndAdd("a", 1));
+        assertEquals(callsWhenOpened, calls.get());
+
+        //a failed retry keeps the circuit open
+        Thread.sleep(250);
+        assertEquals(3, backend.getAndAdd("a", 1));
+        assertEquals(callsWhenOpened + 1, calls.get());
+        assertTrue(backend.isOpen());
+
+        down.set(false);
+        Thread.sleep(250);
+        assertEquals(1, backend.getAndAdd("a", 1));
+        assertFalse(backend.isOpen());
+        assertEquals(2, backend.getAndAdd("a", 1));
+    }
+
+    @Test
+    public void testStateServer() throws Exception {
+        StateBackend backend = new InProcessStateBackend();
+        StateServerProcessor server = new StateServerProcessor(backend);
+
+        assertEquals("0", serve(server, "POST", "key=a%2Fb&add=2"));
+        assertEquals("2", serve(server, "GET", "key=a%2Fb"));
+        assertEquals("9", serve(server, "PUT", "key=a%2Fb&value=9"));
+        assertEquals(9, backend.get("a/b"));
+        assertEquals("0", serve(server, "POST", "key=client&add=1&ttl=60000"));
+        assertEquals("1", serve(server, "POST", "key=client&add=1&ttl=60000"));
+
+        Exchange exchange = exchange();
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "GET");
+        server.process(exchange);
+        assertEquals(400, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    private String serve(Processor server, String method, String query) throws Exception {
+        Exchange exchange = request(exchange(Exchange.HTTP_METHOD, method, Exchange.HTTP_QUERY, query), server);
+        assertEquals(200, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        return exchange.getIn().getBody(String.class);
+    }
+}
@@ -0,0 +1,122 @@
+package nz.ac.auckland.stubble.definition;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import nz.ac.auckland.stubble.stub.StubDefinition;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class StubDefinitionLoaderTest extends Assert {
+
+    private static final String DEFINITIONS = "stubs:\n" +
+            "  - description: orders\n" +
+            "    endpoint: http://localhost:8080/orders\n" +
+            "    responses:\n" +
+            "      - text: foo\n" +
+            "        headers: { a: b }\n" +
+            "      - text: baz\n" +
+            "        status: 503\n" +
+            "  - endpoint: direct:lookup\n" +
+            "    indexedResponses:\n" +
+            "      key: { header: id }\n" +
+            "      responses:\n" +
+            "        '1': { text: one }\n" +
+            "        '2': { text: two }\n" +
+            "      default: { text: unknown }\n";
+
+    private static StubDefinition.StubDefinitionBuilder builder(String description, String uri) {
+        return new StubDefinition.StubDefinitionBuilder(description == null ? "Stub" : description, uri);
+    }
+
+    private static Exchange process(StubDefinition stub, String id) throws Exception {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        if (id != null) exchange.getIn().setHeader("id", id);
+        stub.getSelectorProcessor().process(exchange);
+        return exchange;
+    }
+
+    @Test
+    public void testLoadAndCache() throws Exception {
+        Path directory = Files.createTempDirectory("stubble");
+        try {
+            Path file = directory.resolve("stubs.yaml");
+            Files.write(file, DEFINITIONS.getBytes(StandardCharsets.UTF_8));
+            DefinitionCache cache = new DefinitionCache(directory.resolve("cache"));
+
+            for (int load = 0; load < 2; load++) {
+                List<StubDefinition.StubDefinitionBuilder> builders = new StubDefinitionLoader(cache)
+                        .load(file, StubDefinitionLoaderTest::builder);
+                assertEquals(2, builders.size());
+
+                StubDefinition orders = builders.get(0).build();
+                assertEquals("orders", orders.getDescription());
+                assertEquals("http://localhost:8080/orders", orders.getEndpointUri());
+                assertEquals(2, orders.getCompiledResponses().size());
+
+                Exchange first = process(orders, null);
+                assertEquals("foo", first.getIn().getBody(String.class));
+                assertEquals("b", first.getIn().getHeader("a"));
+                Exchange second = process(orders, null);
+                assertEquals("baz", second.getIn().getBody(String.class));
+                assertEquals(503, second.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class).intValue());
+
+                StubDefinition lookup = builders.get(1).build();
+                assertEquals(3, lookup.getCompiledResponses().size());
+                assertEquals("two", process(lookup, "2").getIn().getBody(String.class));
+                assertEquals("unknown", process(lookup, "3").getIn().getBody(String.class));
+            }
+
+            byte[] content = Files.readAllBytes(file);
+            CRC32 checksum = new CRC32();
+            checksum.update(content);
+            JsonNode cached = cache.get(file, content.length, checksum.getValue());
+            assertNotNull(cached);
+            assertEquals("orders", cached.get("stubs").get(0).get("description").asText());
+            assertNull(cache.get(file, content.length, checksum.getValue() + 1));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        Path file = Files.createTempFile("stubble", ".json");
+        try {
+            Files.write(file, "{ \"stubs\" : [ { \"endpoint\" : \"direct:a\", \"selector\" : \"random\", \"responses\" : [ { \"json\" : \"{}\" } ] } ] }"
+                    .getBytes(StandardCharsets.UTF_8));
+            List<StubDefinition.StubDefinitionBuilder> builders = new StubDefinitionLoader(null)
+                    .load(file, StubDefinitionLoaderTest::builder);
+            assertEquals(1, builders.size());
+            assertEquals("direct://a", builders.get(0).build().getEndpointUri());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        Path file = Files.createTempFile("stubble", ".yml");
+        try {
+            Files.write(file, "stubs:\n  - endpoint: direct:a\n    responses:\n      - txt: foo\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            try {
+                new StubDefinitionLoader(null).load(file, StubDefinitionLoaderTest::builder);
+                fail("The unknown field should have been rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("stubs[0].responses[0]"));
+                assertTrue(e.getMessage().contains("txt"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package nz.ac.auckland.stubble.journal;
+
+import nz.ac.auckland.stubble.stub.IndexedSelectorProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class RequestJournalTest extends Assert {
+
+    private static void record(RequestJournal journal, String path, String body) {
+        journal.record(System.currentTimeMillis(), "POST", path, Collections.singletonMap("id", path),
+                body.getBytes(StandardCharsets.UTF_8), "0", 200);
+    }
+
+    @Test
+    public void testOldestEntriesAreOverwritten() throws Exception {
+        RequestJournal journal = new RequestJournal(3, 0);
+        assertEquals(4, journal.getCapacity());
+
+        for (int i = 0; i < 10; i++) {
+            record(journal, "/" + i, "body");
+        }
+
+        assertEquals(10, journal.getCount());
+        List<JournalEntry> entries = journal.getEntries();
+        assertEquals(4, entries.size());
+        assertEquals("/6", entries.get(0).getPath());
+        assertEquals("/9", entries.get(3).getPath());
+        assertEquals(9, entries.get(3).getSequence());
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        RequestJournal journal = new RequestJournal(16, 0);
+        for (int i = 0; i < 10; i++) {
+            record(journal, i % 2 == 0 ? "/even" : "/odd", "body");
+        }
+
+        assertEquals(5, journal.count(entry -> entry.getPath().equals("/even")));
+        assertEquals(5, journal.find(entry -> "/odd".equals(entry.getHeader("id"))).size());
+
+        List<JournalEntry> last = journal.last(3);
+        assertEquals(3, last.size());
+        assertEquals(7, last.get(0).getSequence());
+        assertEquals(9, last.get(2).getSequence());
+
+        journal.clear();
+        assertEquals(0, journal.getCount());
+        assertTrue(journal.getEntries().isEmpty());
+        record(journal, "/after", "body");
+        assertEquals(1, journal.getEntries().size());
+    }
+
+    @Test
+    public void testBodyIsHashedAndLimited() throws Exception {
+        RequestJournal journal = new RequestJournal(4, 4);
+        record(journal, "/a", "0123456789");
+        record(journal, "/b", "0123456789");
+        record(journal, "/c", "012345678");
+
+        List<JournalEntry> entries = journal.getEntries();
+        assertEquals("0123", new String(entries.get(0).getBody(), StandardCharsets.UTF_8));
+        assertEquals(10, entries.get(0).getBodyLength());
+        assertEquals(entries.get(0).getBodyHash(), entries.get(1).getBodyHash());
+        assertNotEquals(entries.get(0).getBodyHash(), entries.get(2).getBodyHash());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final RequestJournal journal = new RequestJournal(1024, 0);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    record(journal, "/", "");
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, journal.getCount());
+        List<JournalEntry> entries = journal.getEntries();
+        assertEquals(1024, entries.size());
+        for (int i = 1; i < entries.size(); i++) {
+            assertEquals(entries.get(i - 1).getSequence() + 1, entries.get(i).getSequence());
+        }
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        Path spill = Files.createTempDirectory("stubble-journal").resolve("journal.dat");
+        try (RequestJournal journal = new RequestJournal(2, 100, spill, 1024 * 1024)) {
+            for (int i = 0; i < 5; i++) {
+                record(journal, "/" + i, "body " + i);
+            }
+            assertEquals(2, journal.getEntries().size());
+        }
+
+        List<JournalEntry> entries = RequestJournal.readSpill(spill);
+        assertEquals(5, entries.size());
+        assertEquals("/0", entries.get(0).getPath());
+        assertEquals("/0", entries.get(0).getHeader("id"));
+        assertEquals("body 4", new String(entries.get(4).getBody(), StandardCharsets.UTF_8));
+        assertEquals("0", entries.get(4).getSelectedResponse());
+        assertEquals(200, entries.get(4).getStatus());
+    }
+
+    @Test
+    public void testConcurrentSpillOnlyPublishesCompleteRecords() throws Exception {
+        Path spill = Files.createTempDirectory("stubble-journal").resolve("journal.dat");
+        try (RequestJournal journal = new RequestJournal(16, 100, spill, 8 * 1024 * 1024)) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        record(journal, "/" + i, "body " + i);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+
+            int published = 0;
+            while (published < 8000) {
+                List<JournalEntry> entries = journal.readSpill();
+                assertTrue(entries.size() >= published);
+                for (JournalEntry entry : entries) {
+                    assertEquals("body " + entry.getPath().substring(1),
+                            new String(entry.getBody(), StandardCharsets.UTF_8));
+                }
+                assertTrue(RequestJournal.readSpill(spill).size() >= published);
+                published = entries.size();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        assertEquals(8000, RequestJournal.readSpill(spill).size());
+    }
+
+    @Test
+    public void testSpillStopsWhenFull() throws Exception {
+        Path spill = Files.createTempDirectory("stubble-journal").resolve("journal.dat");
+        try (RequestJournal journal = new RequestJournal(16, 0, spill, 256)) {
+            for (int i = 0; i < 10; i++) {
+                record(journal, "/" + i, "body");
+            }
+            assertEquals(10, journal.getEntries().size());
+        }
+
+        List<JournalEntry> entries = RequestJournal.readSpill(spill);
+        assertTrue(entries.size() > 0 && entries.size() < 10);
+        assertEquals("/0", entries.get(0).getPath());
+    }
+
+    @Test
+    public void testProcessorRecordsRequest() throws Exception {
+        RequestJournal journal = new RequestJournal(4, 100);
+        JournalProcessor processor = new JournalProcessor(journal, exchange -> {
+            exchange.getIn().setHeader("Response", "value");
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 201);
+            exchange.setProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, "1");
+            exchange.getIn().setBody("response");
+        });
+
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "PUT");
+        exchange.getIn().setHeader(Exchange.HTTP_URI, "/orders");
+        exchange.getIn().setHeader(Exchange.HTTP_QUERY, "id=1");
+        exchange.getIn().setHeader("Request", "value");
+        exchange.getIn().setBody("request".getBytes(StandardCharsets.UTF_8));
+        processor.process(exchange);
+
+        JournalEntry entry = journal.getEntries().get(0);
+        assertEquals("PUT", entry.getMethod());
+        assertEquals("/orders?id=1", entry.getPath());
+        assertEquals("value", entry.getHeader("Request"));
+        assertNull(entry.getHeader("Response"));
+        assertNull(entry.getHeader(Exchange.HTTP_METHOD));
+        assertEquals("request", new String(entry.getBody(), StandardCharsets.UTF_8));
+        assertEquals("1", entry.getSelectedResponse());
+        assertEquals(201, entry.getStatus());
+    }
+
+    private static Exchange query(JournalAdminProcessor processor, String query) throws Exception {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(Exchange.HTTP_QUERY, query);
+        processor.process(exchange);
+        return exchange;
+    }
+
+    @Test
+    public void testAdminProcessorRejectsInvalidParameters() throws Exception {
+        RequestJournal journal = new RequestJournal(8, 0);
+        for (int i = 0; i < 5; i++) {
+            record(journal, "/" + i, "body");
+        }
+        JournalAdminProcessor processor = new JournalAdminProcessor(() -> Collections.singletonMap("orders", journal));
+
+        Exchange lastTwo = query(processor, "stub=orders&last=2&status=200");
+        assertNull(lastTwo.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertTrue(lastTwo.getIn().getBody(String.class).contains("\"/4\""));
+        assertFalse(lastTwo.getIn().getBody(String.class).contains("\"/2\""));
+
+        for (String invalid : new String[]{"stub=orders&last=-1", "stub=orders&last=many", "stub=orders&status=ok",
+                "stub=orders&last=99999999999"}) {
+            Exchange exchange = query(processor, invalid);
+            assertEquals(invalid, 400, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+            assertTrue(invalid, exchange.getIn().getBody(String.class).contains("error"));
+        }
+
+        assertEquals(404, query(processor, "stub=missing").getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+}
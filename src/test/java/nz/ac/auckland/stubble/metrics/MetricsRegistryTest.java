@@ -0,0 +1,104 @@
+package nz.ac.auckland.stubble.metrics;
+
+import nz.ac.auckland.stubble.stub.IndexedSelectorProcessor;
+import nz.ac.auckland.stubble.stub.RecordingServletResponse;
+import nz.ac.auckland.stubble.stub.ServletResponseWriter;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsRegistryTest extends Assert {
+
+    @Test
+    public void testRecordedOnCompletion() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsProcessor processor = new MetricsProcessor(registry.register("foo"));
+
+        for (int i = 0; i < 3; i++) {
+            Exchange e = new DefaultExchange(new DefaultCamelContext());
+            e.getIn().setBody("abcd");
+            processor.process(e);
+            e.setProperty(IndexedSelectorProcessor.SELECTED_RESPONSE_PROPERTY, String.valueOf(i % 2));
+            e.getIn().setBody("12");
+            e.handoverCompletions().forEach(synchronization -> synchronization.onComplete(e));
+        }
+
+        StubMetrics metrics = registry.get("foo");
+        assertEquals(3, metrics.getRequests());
+        assertEquals(0, metrics.getErrors());
+        assertEquals(12, metrics.getBytesIn());
+        assertEquals(6, metrics.getBytesOut());
+        assertEquals(Long.valueOf(2), metrics.getSelectedResponses().get("0"));
+        assertEquals(Long.valueOf(1), metrics.getSelectedResponses().get("1"));
+        assertEquals(3, metrics.getServiceTimes().getTotalCount());
+
+        registry.unregisterAll();
+    }
+
+    @Test
+    public void testJmxAndPrometheus() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.register("foo \"bar\"").recordRequest(10);
+
+        ObjectName name = new ObjectName(MetricsRegistry.JMX_DOMAIN + ":type=Stub,name="
+                + ObjectName.quote("foo \"bar\""));
+        assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Requests"));
+
+        String prometheus = registry.toPrometheus();
+        assertTrue(prometheus.contains("stubble_requests_total{stub=\"foo \\\"bar\\\"\"} 1\n"));
+        assertTrue(prometheus.contains("# TYPE stubble_service_time_seconds summary"));
+
+        registry.unregisterAll();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertNull(registry.get("foo \"bar\""));
+        assertTrue(registry.getAll().isEmpty());
+    }
+
+    @Test
+    public void testBodiesWrittenToTheServletResponseCounted() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsProcessor processor = new MetricsProcessor(registry.register("written"));
+
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        RecordingServletResponse recording = new RecordingServletResponse().attach(e);
+        processor.process(e);
+
+        HttpServletResponse response = ServletResponseWriter.servletResponse(e);
+        ServletResponseWriter.write(response, ByteBuffer.wrap("0123456789".getBytes(StandardCharsets.US_ASCII)));
+        response.getOutputStream().write("abcde".getBytes(StandardCharsets.US_ASCII));
+        ServletResponseWriter.markWritten(e);
+        e.handoverCompletions().forEach(synchronization -> synchronization.onComplete(e));
+
+        assertEquals("0123456789abcde", new String(recording.getBody(), StandardCharsets.US_ASCII));
+        assertEquals(15, registry.get("written").getBytesOut());
+
+        registry.unregisterAll();
+    }
+
+    @Test
+    public void testStringBodiesCountedInBytes() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsProcessor processor = new MetricsProcessor(registry.register("encoded"));
+
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        e.getIn().setBody("t\u0113n\u0101 \ud83d\ude00");
+        processor.process(e);
+        e.setProperty(Exchange.CHARSET_NAME, "ISO-8859-1");
+        e.getIn().setBody("t\u0113n\u0101");
+        e.handoverCompletions().forEach(synchronization -> synchronization.onComplete(e));
+
+        StubMetrics metrics = registry.get("encoded");
+        assertEquals("t\u0113n\u0101 \ud83d\ude00".getBytes(StandardCharsets.UTF_8).length, metrics.getBytesIn());
+        assertEquals(4, metrics.getBytesOut());
+
+        registry.unregisterAll();
+    }
+}
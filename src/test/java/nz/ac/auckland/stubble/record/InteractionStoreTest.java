@@ -0,0 +1,134 @@
+package nz.ac.auckland.stubble.record;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+public class InteractionStoreTest extends Assert {
+
+    @Test
+    public void testFingerprintIgnoresWhitespace() throws Exception {
+        long xml = RequestFingerprint.of("POST", "/orders", "<a>\n  <b>1 2</b>\n</a>".getBytes());
+        assertEquals(xml, RequestFingerprint.of("post", "/orders", "<a><b>1 2</b></a>\n".getBytes()));
+        assertNotEquals(xml, RequestFingerprint.of("POST", "/orders", "<a><b>12</b></a>".getBytes()));
+
+        long json = RequestFingerprint.of("POST", "/orders", "{ \"a\" : \"x y\" }".getBytes());
+        assertEquals(json, RequestFingerprint.of("POST", "/orders", "{\"a\":\"x y\"}".getBytes()));
+        assertNotEquals(json, RequestFingerprint.of("POST", "/orders", "{\"a\":\"xy\"}".getBytes()));
+        assertNotEquals(json, RequestFingerprint.of("POST", "/orders?id=1", "{\"a\":\"x y\"}".getBytes()));
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        Path directory = Files.createTempDirectory("stubble");
+        try {
+            //enough interactions to grow the index several times
+            try (InteractionStore store = InteractionStore.openForRecording(directory)) {
+                for (int i = 0; i < 5000; i++) {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Content-Type", "text/plain");
+                    headers.put("X-Index", String.valueOf(i));
+                    store.append(RequestFingerprint.of("GET", "/" + i, null), 200, headers,
+                            ("response " + i).getBytes(StandardCharsets.UTF_8));
+                }
+                store.append(RequestFingerprint.of("GET", "/0", null), 500, Collections.emptyMap(), null);
+                assertEquals(5000, store.size());
+            }
+
+            //re-opening appends to the existing store
+            try (InteractionStore store = InteractionStore.openForRecording(directory)) {
+                store.append(RequestFingerprint.of("GET", "/new", null), 201, Collections.emptyMap(), "new".getBytes());
+                assertEquals(5001, store.size());
+            }
+
+            try (InteractionStore store = InteractionStore.openForReplay(directory)) {
+                RecordedInteraction interaction = store.find(RequestFingerprint.of("GET", "/4321", null));
+                assertEquals(200, interaction.getStatus());
+                assertEquals("4321", interaction.getHeaders().get("X-Index"));
+                assertEquals("response 4321", new String(interaction.getBodyBytes(), StandardCharsets.UTF_8));
+
+                RecordedInteraction replaced = store.find(RequestFingerprint.of("GET", "/0", null));
+                assertEquals(500, replaced.getStatus());
+                assertEquals(0, replaced.getBodyLength());
+
+                assertEquals(201, store.find(RequestFingerprint.of("GET", "/new", null)).getStatus());
+                assertNull(store.find(RequestFingerprint.of("GET", "/missing", null)));
+            }
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testReplayProcessor() throws Exception {
+        Path directory = Files.createTempDirectory("stubble");
+        try {
+            try (InteractionStore store = InteractionStore.openForRecording(directory)) {
+                store.append(RequestFingerprint.of("POST", "/orders", "{\"id\":1}".getBytes()), 200,
+                        Collections.singletonMap("Content-Type", "application/json"), "{\"status\":\"ok\"}".getBytes());
+            }
+
+            try (InteractionStore store = InteractionStore.openForReplay(directory)) {
+                ReplayProcessor processor = new ReplayProcessor(store);
+
+                Exchange e = new DefaultExchange(new DefaultCamelContext());
+                e.getIn().setHeader(Exchange.HTTP_METHOD, "POST");
+                e.getIn().setHeader(Exchange.HTTP_URI, "/orders");
+                e.getIn().setBody("{ \"id\" : 1 }".getBytes());
+                processor.process(e);
+                assertEquals(Integer.valueOf(200), e.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class));
+                assertEquals("application/json", e.getIn().getHeader("Content-Type"));
+                assertEquals("{\"status\":\"ok\"}", e.getIn().getBody(String.class));
+
+                e = new DefaultExchange(new DefaultCamelContext());
+                e.getIn().setHeader(Exchange.HTTP_METHOD, "POST");
+                e.getIn().setHeader(Exchange.HTTP_URI, "/orders");
+                e.getIn().setBody("{\"id\":2}".getBytes());
+                processor.process(e);
+                assertEquals(Integer.valueOf(404), e.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class));
+            }
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testReplayProcessorOpenedLater() throws Exception {
+        Path directory = Files.createTempDirectory("stubble");
+        try {
+            try (InteractionStore store = InteractionStore.openForRecording(directory)) {
+                store.append(RequestFingerprint.of("GET", "/orders", null), 200, Collections.emptyMap(),
+                        "orders".getBytes());
+            }
+
+            ReplayProcessor processor = new ReplayProcessor(directory);
+            Exchange e = new DefaultExchange(new DefaultCamelContext());
+            e.getIn().setHeader(Exchange.HTTP_METHOD, "GET");
+            e.getIn().setHeader(Exchange.HTTP_URI, "/orders");
+            try {
+                processor.process(e);
+                fail("A replay processor can't answer before its store is opened");
+            } catch (IllegalStateException expected) {
+                assertTrue(expected.getMessage().contains(directory.toString()));
+            }
+
+            try (InteractionStore store = processor.open()) {
+                assertSame(store, processor.open());
+                processor.process(e);
+                assertEquals("orders", e.getIn().getBody(String.class));
+            }
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
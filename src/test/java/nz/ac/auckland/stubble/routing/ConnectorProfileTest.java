@@ -0,0 +1,91 @@
+package nz.ac.auckland.stubble.routing;
+
+import nz.ac.auckland.stubble.stub.StubDefinition;
+import org.apache.camel.Endpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultComponent;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class ConnectorProfileTest extends Assert {
+
+    public static class ThreadedComponent extends DefaultComponent {
+        private Integer minThreads, maxThreads;
+
+        public void setMinThreads(Integer minThreads) {
+            this.minThreads = minThreads;
+        }
+
+        public void setMaxThreads(Integer maxThreads) {
+            this.maxThreads = maxThreads;
+        }
+
+        @Override
+        protected Endpoint createEndpoint(String uri, String remaining, Map<String, Object> parameters) {
+            return null;
+        }
+    }
+
+    @Test
+    public void testComponentPropertiesSet() throws Exception {
+        ThreadedComponent component = new ThreadedComponent();
+        //the component has no header or buffer settings, which are skipped
+        new ConnectorProfile().threads(4, 64).headerSizes(8192, 8192).idleTimeout(1000)
+                .configure(component, new DefaultCamelContext());
+
+        assertEquals(Integer.valueOf(4), component.minThreads);
+        assertEquals(Integer.valueOf(64), component.maxThreads);
+    }
+
+    @Test
+    public void testComponentNameFollowsSettings() throws Exception {
+        String name = new ConnectorProfile().threads(4, 64).getComponentName();
+
+        assertTrue(name.startsWith("jetty-"));
+        assertEquals(name, new ConnectorProfile().threads(4, 64).getComponentName());
+        assertNotEquals(name, new ConnectorProfile().threads(4, 128).getComponentName());
+    }
+
+    @Test
+    public void testHighConcurrencyPreset() throws Exception {
+        ConnectorProfile profile = ConnectorProfile.highConcurrency();
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        assertTrue(profile.toString().contains("maxThreads=" + Math.max(256, cores * 16)));
+        assertTrue(profile.toString().contains("acceptQueueSize=4096"));
+    }
+
+    @Test
+    public void testInvalidThreadCounts() throws Exception {
+        try {
+            new ConnectorProfile().threads(8, 4);
+            fail("The maximum is below the minimum");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testStubListensThroughProfileComponent() throws Exception {
+        ConnectorProfile profile = ConnectorProfile.highConcurrency();
+        StubDefinition stub = new StubDefinition.StubDefinitionBuilder("orders", "jetty:http://localhost:8090/orders")
+                .addProcessors(exchange -> {
+                }).connectorProfile(profile).build();
+
+        assertEquals(profile.getComponentName() + ":http://localhost:8090/orders", stub.getEndpointUri());
+        assertSame(profile, stub.getConnectorProfile());
+    }
+
+    @Test
+    public void testProfileNeedsJettyEndpoint() throws Exception {
+        try {
+            new StubDefinition.StubDefinitionBuilder("orders", "seda:orders")
+                    .connectorProfile(new ConnectorProfile());
+            fail("Only jetty endpoints have connectors");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package nz.ac.auckland.stubble.routing;
+
+import nz.ac.auckland.stubble.stub.CamelContextTestSupport;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.util.AsyncProcessorConverterHelper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class RoutingTableTest extends CamelContextTestSupport {
+
+    private static AsyncProcessor processor() {
+        return AsyncProcessorConverterHelper.convert(exchange -> {
+        });
+    }
+
+    @Test
+    public void testPathMatching() throws Exception {
+        AsyncProcessor root = processor(), orders = processor(), ordersPrefix = processor(), order = processor();
+
+        RoutingTable table = new RoutingTable.Builder()
+                .add("", false, null, null, root)
+                .add("/orders", false, null, null, orders)
+                .add("/orders", true, null, null, ordersPrefix)
+                .add("/orders/1/items", false, null, null, order)
+                .build();
+
+        assertSame(root, table.find("GET", null, "/"));
+        assertSame(orders, table.find("GET", null, "/orders"));
+        assertSame(orders, table.find("GET", null, "/orders/"));
+        assertSame(ordersPrefix, table.find("GET", null, "/orders/2"));
+        assertSame(ordersPrefix, table.find("GET", null, "/orders/1/items/3"));
+        assertSame(order, table.find("GET", null, "/orders/1/items"));
+        assertNull(table.find("GET", null, "/customers"));
+    }
+
+    @Test
+    public void testEncodedPath() throws Exception {
+        AsyncProcessor order = processor(), unicode = processor();
+
+        RoutingTable table = new RoutingTable.Builder()
+                .add(HttpStubAddress.parse("jetty:http://0.0.0.0:8080/orders/a%20b").getPath(), false, null, null,
+                        order)
+                .add("/caf\u00e9", false, null, null, unicode)
+                .build();
+
+        assertSame(order, table.find("GET", null, "/orders/a%20b"));
+        assertSame(order, table.find("GET", null, "/orders/a b"));
+        assertSame(unicode, table.find("GET", null, "/caf%C3%A9"));
+        assertNull(table.find("GET", null, "/orders/a+b"));
+        assertEquals("100%", RoutingTable.decode("100%"));
+        assertEquals("a%zzb", RoutingTable.decode("a%zzb"));
+    }
+
+    @Test
+    public void testHostAndMethod() throws Exception {
+        AsyncProcessor any = processor(), billing = processor(), post = processor();
+
+        RoutingTable table = new RoutingTable.Builder()
+                .add("/api", false, null, null, any)
+                .add("/api", false, Collections.singleton("POST"), null, post)
+                .add("/api", false, null, "billing.example.com", billing)
+                .build();
+
+        assertSame(billing, table.find("GET", "billing.example.com", "/api"));
+        assertSame(billing, table.find("POST", "BILLING.example.com", "/api"));
+        assertSame(any, table.find("GET", "orders.example.com", "/api"));
+        assertSame(any, table.find("POST", null, "/api"));
+
+        RoutingTable postOnly = new RoutingTable.Builder()
+                .add("/api", false, Collections.singleton("POST"), null, post)
+                .build();
+        assertSame(post, postOnly.find("POST", null, "/api"));
+        assertNull(postOnly.find("GET", null, "/api"));
+    }
+
+    @Test
+    public void testAllowedMethods() throws Exception {
+        RoutingTable table = new RoutingTable.Builder()
+                .add("/orders", true, Collections.singleton("POST"), null, processor())
+                .add("/orders/1", false, new HashSet<>(Arrays.asList("PUT", "GET")), null, processor())
+                .add("/orders/1", false, Collections.singleton("DELETE"), "admin.example.com", processor())
+                .add("/customers", false, null, null, processor())
+                .build();
+
+        assertEquals(Arrays.asList("GET", "POST", "PUT"),
+                new ArrayList<>(table.getAllowedMethods("orders.example.com", "/orders/1")));
+        assertEquals(Arrays.asList("DELETE", "GET", "POST", "PUT"),
+                new ArrayList<>(table.getAllowedMethods("admin.example.com", "/orders/1")));
+        assertEquals(Collections.singleton("POST"), table.getAllowedMethods(null, "/orders/2"));
+        assertTrue(table.getAllowedMethods(null, "/customers").isEmpty());
+        assertTrue(table.getAllowedMethods(null, "/products").isEmpty());
+    }
+
+    @Test
+    public void testMethodNotAllowed() throws Exception {
+        RoutingProcessor processor = new RoutingProcessor(new RoutingTable.Builder()
+                .add("/orders", false, new HashSet<>(Arrays.asList("POST", "GET")), null,
+                        AsyncProcessorConverterHelper.convert(exchange -> exchange.getIn().setBody("orders")))
+                .build());
+
+        Exchange exchange = request(exchange(Exchange.HTTP_METHOD, "DELETE", Exchange.HTTP_URI, "/orders"), processor);
+        assertEquals(405, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("GET, POST", exchange.getIn().getHeader("Allow"));
+
+        exchange = request(exchange(Exchange.HTTP_METHOD, "GET", Exchange.HTTP_URI, "/orders"), processor);
+        assertEquals("orders", exchange.getIn().getBody());
+
+        exchange = request(exchange(Exchange.HTTP_METHOD, "GET", Exchange.HTTP_URI, "/customers"), processor);
+        assertEquals(404, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertNull(exchange.getIn().getHeader("Allow"));
+    }
+
+    @Test
+    public void testAddress() throws Exception {
+        HttpStubAddress address = HttpStubAddress.parse(
+                "jetty:http://0.0.0.0:8080/orders?httpMethodRestrict=get,POST&matchOnUriPrefix=true");
+        assertEquals("jetty:http://0.0.0.0:8080/?matchOnUriPrefix=true", address.getListenerUri());
+        assertEquals("/orders", address.getPath());
+        assertTrue(address.isPrefix());
+        assertEquals(2, address.getMethods().size());
+        assertTrue(address.getMethods().contains("GET"));
+
+        HttpStubAddress root = HttpStubAddress.parse("jetty:http://0.0.0.0:8080");
+        assertEquals("", root.getPath());
+        assertFalse(root.isPrefix());
+        assertNull(root.getMethods());
+        assertEquals(address.getListenerUri(), root.getListenerUri());
+        assertEquals(8080, address.getPort());
+        assertEquals(80, HttpStubAddress.parse("jetty:http://localhost/orders").getPort());
+    }
+}
@@ -0,0 +1,55 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.util.AsyncProcessorHelper;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncStubProcessorTest extends CamelContextTestSupport {
+
+    @Test
+    public void testResponseProducedOnExecutor() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> new Thread(runnable, "async-stub"));
+        try {
+            AsyncStubProcessor processor = new AsyncStubProcessor(executor,
+                    e -> e.getIn().setBody(Thread.currentThread().getName()));
+
+            Exchange exchange = exchange();
+            AsyncProcessorHelper.process(processor, exchange);
+            assertEquals("async-stub", exchange.getIn().getBody());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSaturatedExecutorFailsExchange() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new ThreadPoolExecutor.AbortPolicy());
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            AsyncStubProcessor processor = new AsyncStubProcessor(executor, e -> e.getIn().setBody("response"));
+            Exchange exchange = exchange();
+            assertTrue(processor.process(exchange, doneSync -> assertTrue(doneSync)));
+            assertTrue(exchange.getException() instanceof RejectedExecutionException);
+            assertNull(exchange.getIn().getBody());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+
+/**
+ * Starts a Camel context before each test and stops it afterwards, for tests that send exchanges straight through
+ * the stub processors rather than over HTTP
+ */
+public abstract class CamelContextTestSupport extends Assert {
+
+    protected DefaultCamelContext context;
+
+    @Before
+    public void startContext() throws Exception {
+        context = new DefaultCamelContext();
+        context.start();
+    }
+
+    @After
+    public void stopContext() throws Exception {
+        context.stop();
+    }
+
+    /**
+     * @param headers Header names each followed by a value; headers with a null value are left out
+     * @return A new exchange for the context
+     */
+    protected Exchange exchange(String... headers) {
+        Exchange exchange = new DefaultExchange(context);
+        for (int i = 0; i < headers.length; i += 2) {
+            if (headers[i + 1] != null) exchange.getIn().setHeader(headers[i], headers[i + 1]);
+        }
+        return exchange;
+    }
+
+    /**
+     * @return The exchange, after it has been through each of the processors in turn
+     */
+    protected Exchange request(Exchange exchange, Processor... processors) throws Exception {
+        for (Processor processor : processors) {
+            processor.process(exchange);
+        }
+        return exchange;
+    }
+}
@@ -0,0 +1,124 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class CompressionProcessorTest extends CamelContextTestSupport {
+
+    private static final String BODY = new String(new char[100]).replace("\0", "<order><id>1</id></order>");
+
+    private static String decode(InputStream input) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            output.write(buffer, 0, read);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testEncodingSelection() throws Exception {
+        assertEquals("gzip", Compression.NEGOTIATED.select("gzip, deflate, br"));
+        assertEquals("deflate", Compression.NEGOTIATED.select("gzip;q=0.5, deflate"));
+        assertEquals("gzip", Compression.NEGOTIATED.select("*"));
+        assertEquals("deflate", Compression.NEGOTIATED.select("gzip;q=0, *;q=0.1"));
+        assertNull(Compression.NEGOTIATED.select("br, identity"));
+        assertNull(Compression.GZIP.select("deflate"));
+        assertNull(Compression.OFF.select("gzip"));
+        assertNull(Compression.GZIP.select(null));
+    }
+
+    @Test
+    public void testGzipBody() throws Exception {
+        Exchange exchange = request(exchange("Accept-Encoding", "gzip"), e -> e.getIn().setBody(BODY),
+                new CompressionProcessor(Compression.NEGOTIATED, 256));
+
+        byte[] body = exchange.getIn().getBody(byte[].class);
+        assertEquals("gzip", exchange.getIn().getHeader(Exchange.CONTENT_ENCODING));
+        assertEquals("Accept-Encoding", exchange.getIn().getHeader("Vary"));
+        assertTrue(body.length < BODY.length() / 10);
+        assertEquals(BODY, decode(new GZIPInputStream(new ByteArrayInputStream(body))));
+    }
+
+    @Test
+    public void testDeflateBody() throws Exception {
+        Exchange exchange = request(exchange("Accept-Encoding", "deflate"), e -> e.getIn().setBody(BODY),
+                new CompressionProcessor(Compression.DEFLATE, 256));
+
+        assertEquals("deflate", exchange.getIn().getHeader(Exchange.CONTENT_ENCODING));
+        assertEquals(BODY, decode(new InflaterInputStream(new ByteArrayInputStream(
+                exchange.getIn().getBody(byte[].class)))));
+    }
+
+    @Test
+    public void testUncompressedBodies() throws Exception {
+        CompressionProcessor compression = new CompressionProcessor(Compression.GZIP, 256);
+
+        Exchange notAccepted = request(exchange(), e -> e.getIn().setBody(BODY), compression);
+        assertEquals(BODY, notAccepted.getIn().getBody());
+        assertNull(notAccepted.getIn().getHeader(Exchange.CONTENT_ENCODING));
+
+        Exchange small = request(exchange("Accept-Encoding", "gzip"), e -> e.getIn().setBody("<ok/>"), compression);
+        assertEquals("<ok/>", small.getIn().getBody());
+        assertNull(small.getIn().getHeader("Vary"));
+    }
+
+    @Test
+    public void testCompiledResponseCompressedOnce() throws Exception {
+        CompiledResponseProcessor compiled = new CompiledResponseProcessor(e -> e.getIn().setBody(BODY));
+        CompressionProcessor compression = new CompressionProcessor(Compression.GZIP, 256);
+
+        byte[] first = request(exchange("Accept-Encoding", "gzip"), compiled, compression).getIn()
+                .getBody(byte[].class);
+        byte[] second = request(exchange("Accept-Encoding", "gzip"), compiled, compression).getIn()
+                .getBody(byte[].class);
+
+        assertSame(first, second);
+        assertSame(first, compiled.getCompiledResponse().getEncodedBody("gzip"));
+        assertEquals(BODY, decode(new GZIPInputStream(new ByteArrayInputStream(first))));
+    }
+
+    @Test
+    public void testPooledCompressorsAreReset() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            String body = BODY + i;
+            byte[] encoded = CompressionProcessor.encode(body.getBytes(StandardCharsets.UTF_8), "gzip", 1);
+            assertEquals(body, decode(new GZIPInputStream(new ByteArrayInputStream(encoded))));
+        }
+    }
+
+    @Test
+    public void testConcurrentCompressionAfterEndingEncoders() throws Exception {
+        CompressionProcessor.encode(BODY.getBytes(StandardCharsets.UTF_8), "deflate", 1);
+        CompressionProcessor.endEncoders();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                String body = BODY + i;
+                results.add(executor.submit(() -> decode(new GZIPInputStream(new ByteArrayInputStream(
+                        CompressionProcessor.encode(body.getBytes(StandardCharsets.UTF_8), "gzip", 1))))));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(BODY + i, results.get(i).get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+public class ConditionalResponseProcessorTest extends CamelContextTestSupport {
+
+    private Exchange get(String... headers) {
+        Exchange exchange = exchange(headers);
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "GET");
+        return exchange;
+    }
+
+    private static CompiledResponseProcessor compiled(String body) {
+        return new CompiledResponseProcessor(exchange -> {
+            exchange.getIn().setBody(body);
+            exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/json");
+        });
+    }
+
+    @Test
+    public void testETagFollowsContent() throws Exception {
+        ConditionalResponseProcessor conditional = new ConditionalResponseProcessor(true, null);
+
+        String first = request(get(), compiled("{\"id\":1}"), conditional).getIn().getHeader("ETag",
+                String.class);
+        String same = request(get(), compiled("{\"id\":1}"), conditional).getIn().getHeader("ETag",
+                String.class);
+        String different = request(get(), compiled("{\"id\":2}"), conditional).getIn().getHeader("ETag",
+                String.class);
+
+        assertTrue(first.startsWith("\"") && first.endsWith("\""));
+        assertEquals(first, same);
+        assertNotEquals(first, different);
+    }
+
+    @Test
+    public void testIfNoneMatch() throws Exception {
+        CompiledResponseProcessor response = compiled("{\"id\":1}");
+        ConditionalResponseProcessor conditional = new ConditionalResponseProcessor(true, "max-age=60");
+        String entityTag = request(get(), response, conditional).getIn().getHeader("ETag", String.class);
+
+        Exchange notModified = request(get("If-None-Match", "\"other\", W/" + entityTag), response, conditional);
+        assertEquals(304, notModified.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertNull(notModified.getIn().getBody());
+        assertEquals(entityTag, notModified.getIn().getHeader("ETag"));
+        assertEquals("max-age=60", notModified.getIn().getHeader("Cache-Control"));
+
+        Exchange modified = request(get("If-None-Match", "\"other\""), response, conditional);
+        assertNull(modified.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("{\"id\":1}", modified.getIn().getBody());
+    }
+
+    @Test
+    public void testIfModifiedSince() throws Exception {
+        CompiledResponseProcessor response = compiled("{\"id\":1}");
+        ConditionalResponseProcessor conditional = new ConditionalResponseProcessor(true, null);
+        request(get(), response, conditional);
+        long lastModified = response.getCompiledResponse().getLastModified();
+
+        String later = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(lastModified + 60000).atZone(ZoneOffset.UTC));
+        String earlier = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(lastModified - 60000).atZone(ZoneOffset.UTC));
+
+        assertEquals(304, request(get("If-Modified-Since", later), response, conditional).getIn()
+                .getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertNull(request(get("If-Modified-Since", earlier), response, conditional).getIn()
+                .getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertNull(request(get("If-Modified-Since", "yesterday"), response, conditional).getIn()
+                .getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    @Test
+    public void testCompressedVariantHasOwnETag() throws Exception {
+        String body = new String(new char[100]).replace("\0", "{\"id\":1}");
+        CompiledResponseProcessor response = compiled(body);
+        CompressionProcessor compression = new CompressionProcessor(Compression.GZIP, 0);
+        ConditionalResponseProcessor conditional = new ConditionalResponseProcessor(true, null);
+
+        String plain = request(get(), response, compression, conditional).getIn().getHeader("ETag",
+                String.class);
+        String gzip = request(get("Accept-Encoding", "gzip"), response, compression, conditional).getIn()
+                .getHeader("ETag", String.class);
+        assertNotEquals(plain, gzip);
+
+        Exchange exchange = exchange();
+        exchange.getIn().setHeader("Accept-Encoding", "gzip");
+        exchange.getIn().setHeader("If-None-Match", gzip);
+        response.process(exchange);
+        compression.process(exchange);
+        conditional.process(exchange);
+        assertEquals(304, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertNull(exchange.getIn().getHeader(Exchange.CONTENT_ENCODING));
+    }
+
+    @Test
+    public void testDynamicResponsesNotTagged() throws Exception {
+        Exchange exchange = request(get("If-None-Match", "*"), e -> e.getIn().setBody("dynamic"),
+                new ConditionalResponseProcessor(true, "no-store"));
+
+        assertNull(exchange.getIn().getHeader("ETag"));
+        assertEquals("dynamic", exchange.getIn().getBody());
+        assertEquals("no-store", exchange.getIn().getHeader("Cache-Control"));
+    }
+
+    @Test
+    public void testCacheControlSetOnServletResponse() throws Exception {
+        Exchange exchange = exchange();
+        RecordingServletResponse response = new RecordingServletResponse().attach(exchange);
+        new ConditionalResponseProcessor(false, "max-age=60").process(exchange);
+
+        assertEquals("max-age=60", response.getHeader("Cache-Control"));
+    }
+}
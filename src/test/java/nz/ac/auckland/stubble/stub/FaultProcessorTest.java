@@ -0,0 +1,154 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class FaultProcessorTest extends CamelContextTestSupport {
+
+    private static final Processor response = exchange -> exchange.getIn().setBody("0123456789");
+
+    private List<Object> faults(FaultProcessor processor, int requests) throws Exception {
+        List<Object> faults = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            faults.add(request(exchange(), processor).getProperty(FaultProcessor.INJECTED_FAULT_PROPERTY));
+        }
+        return faults;
+    }
+
+    @Test
+    public void testSeededFaultsAreReproducible() throws Exception {
+        FaultProfile profile = new FaultProfile().seed(42).error(0.2, 503).connectionReset(0.1);
+
+        List<Object> first = faults(new FaultProcessor(profile, response), 200);
+        List<Object> second = faults(new FaultProcessor(profile, response), 200);
+
+        assertEquals(first, second);
+        assertTrue(first.contains("ERROR"));
+        assertTrue(first.contains("CONNECTION_RESET"));
+        assertTrue(first.contains(null));
+    }
+
+    @Test
+    public void testErrorRate() throws Exception {
+        FaultProcessor processor = new FaultProcessor(new FaultProfile().error(0.25, 503), response);
+
+        int errors = 0;
+        for (int i = 0; i < 4000; i++) {
+            Exchange exchange = request(exchange(), processor);
+            if (exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE) == null) {
+                assertEquals("0123456789", exchange.getIn().getBody(String.class));
+            } else {
+                assertEquals(503, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+                errors++;
+            }
+        }
+        assertTrue(errors > 800 && errors < 1200);
+    }
+
+    @Test
+    public void testEveryNth() throws Exception {
+        FaultProcessor processor = new FaultProcessor(
+                new FaultProfile().error(FaultSchedule.everyNth(3), 500), response);
+
+        List<Object> faults = faults(processor, 6);
+        assertNull(faults.get(0));
+        assertNull(faults.get(1));
+        assertEquals("ERROR", faults.get(2));
+        assertNull(faults.get(3));
+        assertEquals("ERROR", faults.get(5));
+    }
+
+    @Test
+    public void testTruncatedBody() throws Exception {
+        FaultProcessor processor = new FaultProcessor(new FaultProfile().truncatedBody(1), response);
+
+        assertEquals("01234", request(exchange(), processor).getIn().getBody(String.class));
+    }
+
+    @Test
+    public void testConnectionResetFailsOtherTransports() throws Exception {
+        FaultProcessor processor = new FaultProcessor(new FaultProfile().connectionReset(1), response);
+
+        Exchange exchange = request(exchange(), processor);
+        assertTrue(exchange.getException() instanceof IOException);
+        assertNull(exchange.getIn().getBody());
+    }
+
+    @Test
+    public void testTimeoutIsScheduled() throws Exception {
+        FaultProcessor processor = new FaultProcessor(new FaultProfile().timeout(1, 100), response);
+
+        long start = System.currentTimeMillis();
+        Exchange exchange = request(exchange(), processor);
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertTrue(exchange.getException() instanceof IOException);
+    }
+
+    @Test
+    public void testSlowDrip() throws Exception {
+        FaultProcessor processor = new FaultProcessor(new FaultProfile().slowDrip(1, 100), response);
+
+        long start = System.currentTimeMillis();
+        Exchange exchange = request(exchange(), processor);
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals("0123456789", exchange.getIn().getBody(String.class));
+    }
+
+    @Test
+    public void testHttpFaultsWrittenOffTheScheduler() throws Exception {
+        ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "fault-writer"));
+        try {
+            FaultProcessor truncated = new FaultProcessor(new FaultProfile().truncatedBody(1), response,
+                    StubScheduler.get(), writer);
+            Exchange exchange = exchange();
+            RecordingServletResponse truncatedResponse = new RecordingServletResponse().attach(exchange);
+            truncated.process(exchange);
+            assertEquals("01234", new String(truncatedResponse.getBody(), StandardCharsets.UTF_8));
+            assertEquals(Collections.singleton("fault-writer"), truncatedResponse.getWriterThreads());
+
+            FaultProcessor timeout = new FaultProcessor(new FaultProfile().timeout(1, 50), response,
+                    StubScheduler.get(), writer);
+            exchange = exchange();
+            RecordingServletResponse timeoutResponse = new RecordingServletResponse().attach(exchange);
+            timeout.process(exchange);
+            assertEquals("close", timeoutResponse.getHeader("Connection"));
+            assertNull(exchange.getException());
+
+            Processor longResponse = e -> e.getIn().setBody(new byte[100]);
+            FaultProcessor drip = new FaultProcessor(new FaultProfile().slowDrip(1, 200), longResponse,
+                    StubScheduler.get(), writer);
+            exchange = exchange();
+            RecordingServletResponse dripResponse = new RecordingServletResponse().attach(exchange);
+            drip.process(exchange);
+            assertEquals(100, dripResponse.getBody().length);
+            //chunks of 10 bytes every 50ms, rather than a write for each byte
+            assertEquals(10, dripResponse.getFlushes());
+            assertEquals(Collections.singleton("fault-writer"), dripResponse.getWriterThreads());
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPeriodicOutage() throws Exception {
+        FaultSchedule schedule = FaultSchedule.periodic(1000, 100, 1);
+
+        assertTrue(schedule.applies(0, 50, 0.5));
+        assertFalse(schedule.applies(0, 500, 0.5));
+        assertTrue(schedule.applies(0, 1050, 0.5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProbability() throws Exception {
+        new FaultProfile().error(1.5, 503);
+    }
+}
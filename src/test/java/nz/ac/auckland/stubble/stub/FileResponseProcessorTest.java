@@ -0,0 +1,135 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class FileResponseProcessorTest extends Assert {
+
+    @Test
+    public void testStreamsMappedFile() throws Exception {
+        Path file = Files.createTempFile("stubble", ".bin");
+        try {
+            byte[] content = new byte[100000];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) i;
+            }
+            Files.write(file, content);
+
+            FileResponseProcessor processor = new FileResponseProcessor(file);
+            assertEquals(content.length, processor.getLength());
+
+            Exchange e = new DefaultExchange(new DefaultCamelContext());
+            processor.process(e);
+            assertEquals(Long.valueOf(content.length), e.getIn().getHeader(Exchange.CONTENT_LENGTH, Long.class));
+
+            byte[] read = new byte[content.length];
+            int offset = 0;
+            try (InputStream inputStream = e.getIn().getBody(InputStream.class)) {
+                int count;
+                while ((count = inputStream.read(read, offset, read.length - offset)) > 0) {
+                    offset += count;
+                }
+                assertEquals(-1, inputStream.read());
+            }
+
+            assertEquals(content.length, offset);
+            assertArrayEquals(content, read);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static RecordingServletResponse serve(FileResponseProcessor processor, String range) throws Exception {
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        if (range != null) e.getIn().setHeader("Range", range);
+        RecordingServletResponse response = new RecordingServletResponse().attach(e);
+        processor.process(e);
+        assertNull(e.getIn().getBody());
+        return response;
+    }
+
+    @Test
+    public void testRangeRequests() throws Exception {
+        Path file = Files.createTempFile("stubble", ".bin");
+        try {
+            byte[] content = new byte[1000];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) i;
+            }
+            Files.write(file, content);
+            FileResponseProcessor processor = new FileResponseProcessor(file);
+
+            RecordingServletResponse whole = serve(processor, null);
+            assertEquals(200, whole.getStatus());
+            assertEquals("1000", whole.getHeader("Content-Length"));
+            assertEquals("bytes", whole.getHeader("Accept-Ranges"));
+            assertNull(whole.getHeader("Content-Range"));
+            assertArrayEquals(content, whole.getBody());
+
+            RecordingServletResponse range = serve(processor, "bytes=100-199");
+            assertEquals(206, range.getStatus());
+            assertEquals("bytes 100-199/1000", range.getHeader("Content-Range"));
+            assertEquals("100", range.getHeader("Content-Length"));
+            assertArrayEquals(Arrays.copyOfRange(content, 100, 200), range.getBody());
+
+            RecordingServletResponse openEnded = serve(processor, "bytes=990-");
+            assertEquals(206, openEnded.getStatus());
+            assertEquals("bytes 990-999/1000", openEnded.getHeader("Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(content, 990, 1000), openEnded.getBody());
+
+            RecordingServletResponse clamped = serve(processor, "bytes=900-5000");
+            assertEquals(206, clamped.getStatus());
+            assertEquals("bytes 900-999/1000", clamped.getHeader("Content-Range"));
+
+            RecordingServletResponse suffix = serve(processor, "bytes=-50");
+            assertEquals(206, suffix.getStatus());
+            assertEquals("bytes 950-999/1000", suffix.getHeader("Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(content, 950, 1000), suffix.getBody());
+
+            RecordingServletResponse longSuffix = serve(processor, "bytes=-5000");
+            assertEquals(206, longSuffix.getStatus());
+            assertEquals("bytes 0-999/1000", longSuffix.getHeader("Content-Range"));
+            assertArrayEquals(content, longSuffix.getBody());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() throws Exception {
+        Path file = Files.createTempFile("stubble", ".bin");
+        try {
+            Files.write(file, new byte[1000]);
+            FileResponseProcessor processor = new FileResponseProcessor(file);
+
+            for (String range : new String[]{"bytes=1000-", "bytes=500-100", "bytes=-0",
+                    "bytes=99999999999999999999-", "bytes=0-99999999999999999999", "bytes=-99999999999999999999"}) {
+                RecordingServletResponse response = serve(processor, range);
+                assertEquals(range, 416, response.getStatus());
+                assertEquals(range, "bytes */1000", response.getHeader("Content-Range"));
+                assertEquals(range, 0, response.getContentLength());
+                assertEquals(range, 0, response.getBody().length);
+            }
+
+            //malformed ranges are ignored and the whole file is served
+            RecordingServletResponse malformed = serve(processor, "bytes=a-b");
+            assertEquals(200, malformed.getStatus());
+            assertEquals(1000, malformed.getBody().length);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingFile() throws Exception {
+        new FileResponseProcessor(Files.createTempDirectory("stubble").resolve("missing.bin"));
+    }
+}
@@ -0,0 +1,83 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyProfileTest extends Assert {
+
+    @Test
+    public void testUniformBounds() throws Exception {
+        LatencyProfile profile = LatencyProfile.uniform(10, 20);
+        for (int i = 0; i < 1000; i++) {
+            long delay = profile.nextDelay();
+            assertTrue(delay >= 10 && delay <= 20);
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyProfile profile = LatencyProfile.percentiles(50, 20, 99, 200, 99.9, 1000);
+
+        int belowMedian = 0;
+        for (int i = 0; i < 10000; i++) {
+            long delay = profile.nextDelay();
+            assertTrue(delay >= 0 && delay <= 1000);
+            if (delay <= 20) belowMedian++;
+        }
+
+        assertTrue(belowMedian > 4500 && belowMedian < 5500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPercentilesOutOfOrder() throws Exception {
+        LatencyProfile.percentiles(99, 200, 50, 20);
+    }
+
+    @Test
+    public void testLatencyProcessorDelays() throws Exception {
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        long start = System.currentTimeMillis();
+        new LatencyProcessor(LatencyProfile.fixed(200)).process(e);
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void testBandwidthDelaysNonHttpResponses() throws Exception {
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        e.getIn().setBody(new byte[2000]);
+        long start = System.currentTimeMillis();
+        new BandwidthProcessor(10000).process(e);
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(2000, e.getIn().getBody(byte[].class).length);
+    }
+
+    @Test
+    public void testBandwidthWritesHttpChunksOffTheScheduler() throws Exception {
+        byte[] body = new byte[1000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        e.getIn().setBody(body);
+        e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 201);
+        RecordingServletResponse response = new RecordingServletResponse().attach(e);
+
+        long start = System.currentTimeMillis();
+        new BandwidthProcessor(10000, 100, StubScheduler.get()).process(e);
+
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertArrayEquals(body, response.getBody());
+        assertEquals(201, response.getStatus());
+        assertEquals(1000, response.getContentLength());
+        assertEquals(10, response.getFlushes());
+        //the binding has nothing left to write
+        assertNull(e.getIn().getBody());
+        for (String thread : response.getWriterThreads()) {
+            assertTrue(thread, thread.startsWith("stubble-writer-"));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.jms.JmsComponent;
+import org.apache.camel.component.jms.JmsEndpoint;
+import org.apache.camel.component.seda.SedaEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jms.connection.CachingConnectionFactory;
+
+import javax.jms.ConnectionFactory;
+
+public class QueueConsumerOverrideTest extends Assert {
+
+    @Test
+    public void testConcurrentConsumers() throws Exception {
+        DefaultCamelContext context = new DefaultCamelContext();
+        SedaEndpoint endpoint = context.getEndpoint("seda:orders", SedaEndpoint.class);
+
+        //JMS-only settings are skipped on other transports
+        new QueueConsumerOverride().concurrentConsumers(4).prefetch(100).batchAcknowledgement().pooledReplies(8)
+                .overrideEndpoint(endpoint);
+
+        assertEquals(4, endpoint.getConcurrentConsumers());
+    }
+
+    @Test
+    public void testDefaultsToCores() throws Exception {
+        DefaultCamelContext context = new DefaultCamelContext();
+        SedaEndpoint endpoint = context.getEndpoint("seda:orders", SedaEndpoint.class);
+
+        new QueueConsumerOverride().overrideEndpoint(endpoint);
+
+        assertEquals(Runtime.getRuntime().availableProcessors(), endpoint.getConcurrentConsumers());
+    }
+
+    @Test
+    public void testActiveMQConsumer() throws Exception {
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName("stubble");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+
+        DefaultCamelContext context = new DefaultCamelContext();
+        try {
+            context.addComponent("jms", JmsComponent.jmsComponent(
+                    new ActiveMQConnectionFactory("vm://stubble?create=false")));
+            final JmsEndpoint endpoint = context.getEndpoint("jms:queue:orders", JmsEndpoint.class);
+
+            new QueueConsumerOverride().concurrentConsumers(2).prefetch(100).pooledReplies(8)
+                    .overrideEndpoint(endpoint);
+
+            assertEquals("orders?consumer.prefetchSize=100", endpoint.getDestinationName());
+            assertEquals(2, endpoint.getConcurrentConsumers());
+            ConnectionFactory templateFactory = endpoint.getConfiguration().getTemplateConnectionFactory();
+            assertTrue(templateFactory instanceof CachingConnectionFactory);
+            assertEquals(8, ((CachingConnectionFactory) templateFactory).getSessionCacheSize());
+
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() throws Exception {
+                    from(endpoint).setBody(constant("accepted"));
+                }
+            });
+            context.start();
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals("accepted", context.createProducerTemplate().requestBody("jms:queue:orders", "order"));
+            }
+
+            context.stop();
+            //the pooled reply connection is closed along with the consumers
+            long deadline = System.currentTimeMillis() + 10000;
+            while (broker.getBroker().getClients().length > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, broker.getBroker().getClients().length);
+        } finally {
+            context.stop();
+            broker.stop();
+        }
+    }
+
+    @Test
+    public void testSettingsChangeRouteSignature() throws Exception {
+        StubDefinition one = new StubDefinition.StubDefinitionBuilder("queue", "seda:orders")
+                .queueConsumers(new QueueConsumerOverride().concurrentConsumers(2)).build();
+        StubDefinition two = new StubDefinition.StubDefinitionBuilder("queue", "seda:orders")
+                .queueConsumers(new QueueConsumerOverride().concurrentConsumers(4)).build();
+
+        assertNotEquals(one.getRouteSignature(), two.getRouteSignature());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidConsumers() throws Exception {
+        new QueueConsumerOverride().concurrentConsumers(0);
+    }
+}
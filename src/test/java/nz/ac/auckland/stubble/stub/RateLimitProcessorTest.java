@@ -0,0 +1,137 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RateLimitProcessorTest extends CamelContextTestSupport {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static RateLimitProcessor processor(RateLimit rateLimit) {
+        return new RateLimitProcessor(rateLimit, exchange -> exchange.getIn().setBody("ok"));
+    }
+
+    @Test
+    public void testTokenBucketBurst() throws Exception {
+        RateLimitProcessor processor = processor(RateLimit.tokenBucket(0.1, 3));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ok", request(exchange(), processor).getIn().getBody());
+        }
+
+        Exchange rejected = request(exchange(), processor);
+        assertEquals(429, rejected.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals(10L, rejected.getIn().getHeader("Retry-After"));
+        assertNull(rejected.getIn().getBody());
+        assertEquals(true, rejected.getProperty(RateLimitProcessor.RATE_LIMITED_PROPERTY));
+    }
+
+    @Test
+    public void testTokenBucketRefills() throws Exception {
+        RateLimit.Limiter limiter = RateLimit.tokenBucket(10, 2).newLimiter(0);
+
+        assertEquals(0, limiter.tryAcquire(0));
+        assertEquals(0, limiter.tryAcquire(0));
+        assertEquals(SECOND / 10, limiter.tryAcquire(0));
+        assertEquals(0, limiter.tryAcquire(SECOND / 10));
+        assertTrue(limiter.tryAcquire(SECOND / 10) > 0);
+    }
+
+    @Test
+    public void testSlidingWindowWeighsPreviousWindow() throws Exception {
+        RateLimit.Limiter limiter = RateLimit.slidingWindow(10, 1000).newLimiter(0);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire(0));
+        }
+        assertEquals(SECOND, limiter.tryAcquire(0));
+
+        //half of the previous window's ten requests still count
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (limiter.tryAcquire(SECOND * 3 / 2) == 0) accepted++;
+        }
+        assertEquals(5, accepted);
+
+        //after two windows nothing counts
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire(SECOND * 4));
+        }
+    }
+
+    @Test
+    public void testKeyedLimits() throws Exception {
+        RateLimitProcessor processor = processor(RateLimit.slidingWindow(1, 60000)
+                .keyedBy(RequestKeys.header("X-Api-Key")).rejectWith(503, "slow down"));
+
+        assertEquals("ok", request(exchange("X-Api-Key", "a"), processor).getIn().getBody());
+        assertEquals("ok", request(exchange("X-Api-Key", "b"), processor).getIn().getBody());
+
+        Exchange rejected = request(exchange("X-Api-Key", "a"), processor);
+        assertEquals(503, rejected.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("slow down", rejected.getIn().getBody());
+        assertTrue(rejected.getIn().getHeader("Retry-After", Long.class) <= 60);
+
+        //requests without a key share a limit
+        assertEquals("ok", request(exchange(), processor).getIn().getBody());
+        assertEquals(503, request(exchange(), processor).getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    @Test
+    public void testConcurrentRequestsNeverExceedLimit() throws Exception {
+        for (RateLimit rateLimit : new RateLimit[]{RateLimit.tokenBucket(0.001, 100),
+                RateLimit.slidingWindow(100, 600000)}) {
+            RateLimitProcessor processor = processor(rateLimit);
+            AtomicInteger accepted = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        if ("ok".equals(request(exchange(), processor).getIn().getBody())) accepted.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            //requests at the limit don't reject each other, so the whole quota is used
+            assertEquals(100, accepted.get());
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsFillSlidingWindow() throws Exception {
+        RateLimit.Limiter limiter = RateLimit.slidingWindow(50, 1000).newLimiter(0);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 20; i++) {
+                    if (limiter.tryAcquire(SECOND / 2) == 0) accepted.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(50, accepted.get());
+    }
+}
@@ -0,0 +1,131 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A servlet response that records its status, headers, body and the threads that wrote to it, for testing the
+ * stages that write HTTP responses themselves
+ */
+public class RecordingServletResponse {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final Map<String, String> headers = new ConcurrentHashMap<>();
+    private final Set<String> writerThreads = ConcurrentHashMap.newKeySet();
+    private volatile int status = 200;
+    private volatile int contentLength = -1;
+    private volatile int flushes;
+    private volatile boolean committed;
+
+    private final ServletOutputStream outputStream = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+            writerThreads.add(Thread.currentThread().getName());
+            synchronized (body) {
+                body.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            writerThreads.add(Thread.currentThread().getName());
+            synchronized (body) {
+                body.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+            committed = true;
+        }
+    };
+
+    private final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+            RecordingServletResponse.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getOutputStream":
+                        return outputStream;
+                    case "setStatus":
+                    case "sendError":
+                        status = (Integer) args[0];
+                        return null;
+                    case "getStatus":
+                        return status;
+                    case "setHeader":
+                    case "addHeader":
+                    case "setIntHeader":
+                        headers.put(((String) args[0]).toLowerCase(), String.valueOf(args[1]));
+                        return null;
+                    case "getHeader":
+                        return headers.get(((String) args[0]).toLowerCase());
+                    case "containsHeader":
+                        return headers.containsKey(((String) args[0]).toLowerCase());
+                    case "setContentType":
+                        headers.put("content-type", (String) args[0]);
+                        return null;
+                    case "setContentLength":
+                        contentLength = (Integer) args[0];
+                        return null;
+                    case "isCommitted":
+                        return committed;
+                    case "flushBuffer":
+                        committed = true;
+                        return null;
+                    case "getBufferSize":
+                        return 8192;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return null;
+                }
+            });
+
+    /**
+     * Attaches the response to the exchange, as Camel's Jetty consumer does
+     */
+    public RecordingServletResponse attach(Exchange exchange) {
+        exchange.getIn().setHeader(Exchange.HTTP_SERVLET_RESPONSE, response);
+        return this;
+    }
+
+    public HttpServletResponse getResponse() {
+        return response;
+    }
+
+    public byte[] getBody() {
+        synchronized (body) {
+            return body.toByteArray();
+        }
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public int getFlushes() {
+        return flushes;
+    }
+
+    public Set<String> getWriterThreads() {
+        return writerThreads;
+    }
+}
@@ -0,0 +1,144 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResponseTemplateTest extends CamelContextTestSupport {
+
+    private String render(ResponseTemplate template, String body, String id) {
+        Exchange exchange = exchange("id", id);
+        exchange.getIn().setBody(body);
+        return new String(template.render(exchange), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRequestValues() throws Exception {
+        ResponseTemplate template = new ResponseTemplate("{\"order\" : \"{{jsonPointer:/order/id}}\", " +
+                "\"id\" : \"{{ header:id }}\"}");
+
+        assertEquals("{\"order\" : \"123\", \"id\" : \"abc\"}",
+                render(template, "{\"order\" : {\"id\" : 123}}", "abc"));
+        assertEquals("{\"order\" : \"\", \"id\" : \"\"}", render(template, "{}", null));
+    }
+
+    @Test
+    public void testXPath() throws Exception {
+        ResponseTemplate template = new ResponseTemplate("<reply>{{xpath:/o:order/o:id}}</reply>",
+                "o", "urn:orders");
+
+        assertEquals("<reply>7</reply>", render(template,
+                "<order xmlns=\"urn:orders\"><id>7</id></order>", null));
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        ResponseTemplate xml = new ResponseTemplate("<a>{{header:id|xml}}</a>");
+        ResponseTemplate json = new ResponseTemplate("\"{{header:id|json}}\"");
+
+        assertEquals("<a>&lt;b&gt; &amp; &quot;c&quot;</a>", render(xml, "", "<b> & \"c\""));
+        assertEquals("\"a\\\"b\\\\c\\u000a\"", render(json, "", "a\"b\\c\n"));
+    }
+
+    @Test
+    public void testPipeInArgument() throws Exception {
+        ResponseTemplate union = new ResponseTemplate("<reply>{{xpath:/order/id | /order/ref}}</reply>");
+        ResponseTemplate escapedUnion = new ResponseTemplate(
+                "<reply>{{xpath:/order/id | /order/ref | XML }}</reply>");
+
+        assertEquals("<reply>7</reply>", render(union, "<order><id>7</id></order>", null));
+        assertEquals("<reply>&lt;7&gt;</reply>",
+                render(escapedUnion, "<order><ref>&lt;7&gt;</ref></order>", null));
+        assertEquals("a|b", render(new ResponseTemplate("{{header:id|Json}}"), "", "a|b"));
+    }
+
+    @Test
+    public void testJsonControlCharacters() throws Exception {
+        ResponseTemplate json = new ResponseTemplate("\"{{header:id|json}}\"");
+
+        assertEquals("\"\\u0000\\u0009\\u001f \"", render(json, "", "\u0000\t\u001f "));
+    }
+
+    @Test
+    public void testMultiByteCharacters() throws Exception {
+        ResponseTemplate template = new ResponseTemplate("\u0101 {{header:id}} \ud83d\ude00");
+
+        assertEquals("\u0101 t\u0113n\u0101 koe \ud83d\ude00", render(template, "", "t\u0113n\u0101 koe"));
+    }
+
+    @Test
+    public void testCounter() throws Exception {
+        ResponseTemplate template = new ResponseTemplate("{{counter}}-{{counter}}");
+
+        assertEquals("1-1", render(template, "", null));
+        assertEquals("2-2", render(template, "", null));
+    }
+
+    @Test
+    public void testLargeBody() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("{{header:id}}");
+        }
+        ResponseTemplate template = new ResponseTemplate(builder.toString());
+
+        assertEquals(5000, render(template, "", "abcde").length());
+        assertEquals("x", render(new ResponseTemplate("{{header:id}}"), "", "x"));
+    }
+
+    @Test
+    public void testConcurrentRendersAfterLargeBody() throws Exception {
+        ResponseTemplate echo = new ResponseTemplate("<echo>{{body}}</echo>");
+        String large = new String(new char[200000]).replace('\0', 'x');
+        assertEquals("<echo>" + large + "</echo>", render(echo, large, null));
+
+        ResponseTemplate template = new ResponseTemplate("<reply>{{header:id}}</reply>");
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 16; i++) {
+            final String id = String.valueOf(i);
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    if (!render(template, "", id).equals("<reply>" + id + "</reply>")) failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void testGeneratedValues() throws Exception {
+        assertEquals(36, render(new ResponseTemplate("{{uuid}}"), "", null).length());
+        assertTrue(Integer.parseInt(render(new ResponseTemplate("{{random:10}}"), "", null)) < 10);
+        assertTrue(render(new ResponseTemplate("{{timestamp:yyyy}}"), "", null).matches("\\d{4}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPlaceholder() throws Exception {
+        new ResponseTemplate("{{unknown}}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosedPlaceholder() throws Exception {
+        new ResponseTemplate("{{header:id");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveRandomBound() throws Exception {
+        new ResponseTemplate("{{random:0}}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingArgument() throws Exception {
+        new ResponseTemplate("{{header}}");
+    }
+}
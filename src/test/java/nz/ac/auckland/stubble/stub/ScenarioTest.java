@@ -0,0 +1,66 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Processor;
+import org.apache.camel.builder.PredicateBuilder;
+import org.junit.Test;
+
+import static org.apache.camel.builder.Builder.header;
+
+public class ScenarioTest extends CamelContextTestSupport {
+
+    private static Processor body(final String body) {
+        return exchange -> exchange.getIn().setBody(body);
+    }
+
+    private String request(Processor processor, String session, String action) throws Exception {
+        return request(exchange("session", session, "action", action), processor).getIn().getBody(String.class);
+    }
+
+    @Test
+    public void testSessionsAreIndependent() throws Exception {
+        ScenarioProcessor cart = Scenario.perSession(RequestKeys.header("session"))
+                .state("empty", body("[]"))
+                .state("filled", body("[item]"))
+                .state("ordered", body("ordered"))
+                .transition("empty", "filled", header("action").isEqualTo("add"))
+                .transition("filled", "ordered", header("action").isEqualTo("order"), body("order accepted"))
+                .transition(Scenario.ANY_STATE, "empty", header("action").isEqualTo("clear"))
+                .build();
+
+        assertEquals("[]", request(cart, "a", null));
+        assertEquals("[item]", request(cart, "a", "add"));
+        assertEquals("[]", request(cart, "b", null));
+        assertEquals("[item]", request(cart, "a", null));
+        assertEquals("order accepted", request(cart, "a", "order"));
+        assertEquals("ordered", request(cart, "a", null));
+        assertEquals("[]", request(cart, "b", "order"));
+
+        assertEquals("ordered", cart.getState("a"));
+        assertEquals("empty", cart.getState("b"));
+        assertEquals(2, cart.getSessionCount());
+
+        assertEquals("[]", request(cart, "a", "clear"));
+        assertEquals("empty", cart.getState("a"));
+    }
+
+    @Test
+    public void testInitialState() throws Exception {
+        ScenarioProcessor scenario = Scenario.perSession(RequestKeys.header("session"))
+                .state("up", body("up"))
+                .state("down", body("down"))
+                .initialState("down")
+                .transition("down", "up", PredicateBuilder.constant(true))
+                .build();
+
+        assertEquals("up", request(scenario, "a", null));
+        assertEquals("up", request(scenario, "a", null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownTargetState() throws Exception {
+        Scenario.perSession(RequestKeys.header("session"))
+                .state("up", body("up"))
+                .transition("up", "down", PredicateBuilder.constant(true))
+                .build();
+    }
+}
@@ -0,0 +1,105 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SelectorProcessorTest extends Assert {
+
+    @Test
+    public void testCyclingUnderConcurrentLoad() throws Exception {
+        final AtomicIntegerArray counts = new AtomicIntegerArray(3);
+        List<Processor> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int index = i;
+            responses.add(exchange -> counts.incrementAndGet(index));
+        }
+
+        final CyclingSelectorProcessor selector = new CyclingSelectorProcessor(responses);
+        final DefaultCamelContext context = new DefaultCamelContext();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 3000; i++) {
+            executor.submit(() -> {
+                selector.process(new DefaultExchange(context));
+                return null;
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(3000, selector.getCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1000, counts.get(i));
+        }
+    }
+
+    @Test
+    public void testClientSequence() throws Exception {
+        List<Processor> responses = new ArrayList<>();
+        responses.add(exchange -> exchange.getIn().setBody("foo"));
+        responses.add(exchange -> exchange.getIn().setBody("baz"));
+
+        ClientSequenceSelectorProcessor selector = new ClientSequenceSelectorProcessor(responses,
+                RequestKeys.header("client"), 10);
+
+        assertEquals("foo", process(selector, "a"));
+        assertEquals("foo", process(selector, "b"));
+        assertEquals("baz", process(selector, "a"));
+        assertEquals("foo", process(selector, "a"));
+        assertEquals("baz", process(selector, "b"));
+    }
+
+    @Test
+    public void testStateCacheBounded() throws Exception {
+        KeyedStateCache<Object> cache = new KeyedStateCache<>(10, 0, key -> new Object());
+        for (int i = 0; i < 100; i++) {
+            cache.get(String.valueOf(i));
+        }
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    public void testStateCacheKeepsActiveKeys() throws Exception {
+        KeyedStateCache<Object> cache = new KeyedStateCache<>(100, 0, key -> new Object());
+        for (int i = 0; i < 50; i++) {
+            cache.get("idle" + i);
+        }
+        Map<String, Object> active = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            active.put("active" + i, cache.get("active" + i));
+        }
+
+        //keys seen once come and go, wherever they hash, while the keys in use keep their state
+        for (int i = 0; i < 1000; i++) {
+            cache.get("once" + i);
+            for (Map.Entry<String, Object> entry : active.entrySet()) {
+                assertSame(entry.getValue(), cache.get(entry.getKey()));
+            }
+        }
+
+        assertTrue(cache.size() <= 100);
+        for (int i = 0; i < 50; i++) {
+            assertNull(cache.getIfPresent("idle" + i));
+        }
+    }
+
+    private String process(Processor selector, String client) throws Exception {
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        e.getIn().setHeader("client", client);
+        selector.process(e);
+        return e.getIn().getBody(String.class);
+    }
+}
@@ -0,0 +1,112 @@
+package nz.ac.auckland.stubble.stub;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class StubMatchersTest extends Assert {
+
+    @Test
+    public void testXPathSharesParsedDocument() throws Exception {
+        Exchange e = exchange("<ns:order xmlns:ns=\"urn:foo\"><ns:id>1</ns:id></ns:order>");
+
+        assertTrue(StubMatchers.xpath("/ns:order/ns:id = '1'", "ns", "urn:foo").matches(e));
+        Document document = ParsedBody.documentIfParsed(e);
+        assertNotNull(document);
+
+        assertFalse(StubMatchers.xpath("/ns:order/ns:id = '2'", "ns", "urn:foo").matches(e));
+        assertSame(document, ParsedBody.document(e));
+    }
+
+    @Test
+    public void testReparsedWhenBodyChanges() throws Exception {
+        Exchange e = exchange("<foo>1</foo>");
+        assertTrue(StubMatchers.xpath("/foo = '1'").matches(e));
+
+        e.getIn().setBody("<foo>2</foo>");
+        assertTrue(StubMatchers.xpath("/foo = '2'").matches(e));
+    }
+
+    @Test
+    public void testExternalEntitiesNotResolved() throws Exception {
+        Path secret = Files.createTempFile("stubble", ".txt");
+        Files.write(secret, "secret".getBytes(StandardCharsets.UTF_8));
+        try {
+            Exchange e = exchange("<?xml version=\"1.0\"?><!DOCTYPE foo [<!ENTITY xxe SYSTEM \""
+                    + secret.toUri() + "\">]><foo>&xxe;</foo>");
+
+            assertFalse(StubMatchers.xpath("/foo = 'secret'").matches(e));
+            assertNull(ParsedBody.document(e));
+        } finally {
+            Files.delete(secret);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidXPathFailsOnBuild() throws Exception {
+        StubMatchers.xpath("/foo[");
+    }
+
+    @Test
+    public void testElementTextStreamed() throws Exception {
+        Exchange e = exchange("<a:envelope xmlns:a=\"urn:a\"><a:body><id> 123 </id></a:body></a:envelope>");
+        assertTrue(StubMatchers.elementText("id", "123").matches(e));
+        assertNull(ParsedBody.documentIfParsed(e));
+        assertEquals("123", MatchKeys.elementText("id").evaluate(e, String.class));
+        assertFalse(StubMatchers.elementText("body", "123").matches(e));
+    }
+
+    @Test
+    public void testElementTextSameStreamedAndParsed() throws Exception {
+        String[] bodies = {
+                "<order><id> 123 </id></order>",
+                "<order><id>1<part>2</part>3</id></order>",
+                "<order><id><![CDATA[<1>]]> &amp; 2<!-- comment --><?pi data?></id></order>",
+                "<o:order xmlns:o=\"urn:o\"><o:id>\n  4\n</o:id><id>5</id></o:order>",
+                "<order><name/></order>"
+        };
+
+        for (String body : bodies) {
+            Exchange streamed = exchange(body);
+            Exchange parsed = exchange(body);
+            assertNotNull(ParsedBody.document(parsed));
+
+            assertEquals(body, StubMatchers.firstElementText(parsed, "id"),
+                    StubMatchers.firstElementText(streamed, "id"));
+            assertNull(ParsedBody.documentIfParsed(streamed));
+        }
+
+        assertEquals("123", StubMatchers.firstElementText(exchange(bodies[1]), "id"));
+        assertEquals("<1> & 2", StubMatchers.firstElementText(exchange(bodies[2]), "id"));
+        assertEquals("4", StubMatchers.firstElementText(exchange(bodies[3]), "id"));
+        assertNull(StubMatchers.firstElementText(exchange(bodies[4]), "id"));
+    }
+
+    @Test
+    public void testJsonPointer() throws Exception {
+        Exchange e = exchange("{ \"order\" : { \"id\" : 5 } }");
+        assertTrue(StubMatchers.jsonPointer("/order/id", "5").matches(e));
+        assertFalse(StubMatchers.jsonPointer("/order/name", "5").matches(e));
+        assertEquals("5", MatchKeys.jsonPointer("/order/id").evaluate(e, String.class));
+    }
+
+    @Test
+    public void testNotXml() throws Exception {
+        Exchange e = exchange("foo");
+        assertFalse(StubMatchers.xpath("/foo").matches(e));
+        assertNull(MatchKeys.elementText("foo").evaluate(e, String.class));
+    }
+
+    private Exchange exchange(String body) {
+        Exchange e = new DefaultExchange(new DefaultCamelContext());
+        e.getIn().setBody(body);
+        return e;
+    }
+}
@@ -0,0 +1,85 @@
+package nz.ac.auckland.stubble.benchmark;
+
+import nz.ac.auckland.stubble.Stubble;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP round trips (using keep-alive connections) against a stub running in the same JVM
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final int PORT = 18080;
+    private static final byte[] REQUEST = "<order><id>1</id></order>".getBytes();
+
+    private URL staticUrl;
+    private URL matchedUrl;
+    private Stubble stubble;
+
+    @Setup
+    public void setup() throws Exception {
+        stubble = new Stubble() {
+            @Override
+            protected void configure() {
+                stub("http://localhost:" + PORT + "/static")
+                        .response(xml("<response><status>ok</status></response>"));
+
+                stub("http://localhost:" + PORT + "/matched")
+                        .matchedResponses(defaultResponse(text("unknown")),
+                                response(xpath("/order/id = '1'"), xml("<one/>")),
+                                response(xpath("/order/id = '2'"), xml("<two/>")));
+            }
+        };
+        stubble.start().get(30, TimeUnit.SECONDS);
+
+        staticUrl = new URL("http://localhost:" + PORT + "/static");
+        matchedUrl = new URL("http://localhost:" + PORT + "/matched");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        stubble.stop();
+    }
+
+    @Benchmark
+    public byte[] staticResponse() throws Exception {
+        return post(staticUrl);
+    }
+
+    @Benchmark
+    public byte[] matchedResponse() throws Exception {
+        return post(matchedUrl);
+    }
+
+    private static byte[] post(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(REQUEST);
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (InputStream inputStream = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+        }
+        return response.toByteArray();
+    }
+}
@@ -0,0 +1,71 @@
+package nz.ac.auckland.stubble.benchmark;
+
+import nz.ac.auckland.morc.MorcMethods;
+import nz.ac.auckland.morc.processor.MatchedResponseProcessor;
+import nz.ac.auckland.stubble.stub.IndexedMatchedResponseProcessor;
+import nz.ac.auckland.stubble.stub.MatchKeys;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of matching a request against many answers, keyed on the text of an XML element: morc's matched
+ * responses with its own xpath predicates, against an indexed lookup of the same key
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchedResponseBenchmark implements MorcMethods {
+
+    @Param({"10", "100", "1000"})
+    public int answers;
+
+    @Param({"morc", "indexed"})
+    public String engine;
+
+    private Processor processor;
+    private DefaultCamelContext context;
+    private byte[][] requests;
+
+    @Setup
+    public void setup() throws Exception {
+        context = new DefaultCamelContext();
+
+        if (engine.equals("morc")) {
+            MatchedResponseProcessor.MatchedResponse[] responses = new MatchedResponseProcessor.MatchedResponse[answers];
+            for (int i = 0; i < answers; i++) {
+                responses[i] = response(xpath("/order/id = '" + i + "'"), text("response " + i));
+            }
+            processor = new MatchedResponseProcessor(responses);
+        } else {
+            IndexedMatchedResponseProcessor.IndexedResponse[] responses =
+                    new IndexedMatchedResponseProcessor.IndexedResponse[answers];
+            for (int i = 0; i < answers; i++) {
+                responses[i] = new IndexedMatchedResponseProcessor.IndexedResponse(String.valueOf(i),
+                        text("response " + i));
+            }
+            processor = new IndexedMatchedResponseProcessor(MatchKeys.xpath("/order/id"), responses);
+        }
+
+        requests = new byte[answers][];
+        for (int i = 0; i < answers; i++) {
+            requests[i] = ("<order><id>" + i + "</id></order>").getBytes("UTF-8");
+        }
+    }
+
+    @Benchmark
+    public Object match() throws Exception {
+        Exchange exchange = new DefaultExchange(context);
+        exchange.getIn().setBody(requests[ThreadLocalRandom.current().nextInt(answers)]);
+        processor.process(exchange);
+        return exchange.getIn().getBody();
+    }
+}
@@ -0,0 +1,61 @@
+package nz.ac.auckland.stubble.benchmark;
+
+import nz.ac.auckland.morc.MorcMethods;
+import nz.ac.auckland.morc.processor.MultiProcessor;
+import nz.ac.auckland.stubble.stub.CompiledResponseProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of producing a static response from a chain of processors, rendered each time or pre-rendered
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiProcessorBenchmark implements MorcMethods {
+
+    @Param({"1", "4", "16"})
+    public int chainLength;
+
+    @Param({"false", "true"})
+    public boolean compiled;
+
+    private Processor processor;
+    private Exchange exchange;
+
+    @Setup
+    public void setup() throws Exception {
+        List<Processor> processors = new ArrayList<>();
+        processors.add(xml("<response><status>ok</status></response>"));
+        for (int i = 1; i < chainLength; i++) {
+            processors.add(headers(header("header" + i, "value" + i)));
+        }
+
+        DefaultCamelContext context = new DefaultCamelContext();
+        processor = new MultiProcessor(processors);
+        if (compiled) {
+            CompiledResponseProcessor compiledResponseProcessor = new CompiledResponseProcessor(processor);
+            compiledResponseProcessor.compile(context);
+            processor = compiledResponseProcessor;
+        }
+
+        exchange = new DefaultExchange(context);
+    }
+
+    @Benchmark
+    public byte[] render() throws Exception {
+        processor.process(exchange);
+        //the HTTP binding serializes the body, so include that cost
+        return exchange.getIn().getBody(byte[].class);
+    }
+}
@@ -0,0 +1,76 @@
+package nz.ac.auckland.stubble.benchmark;
+
+import nz.ac.auckland.morc.processor.SelectorProcessor;
+import nz.ac.auckland.stubble.stub.CyclingSelectorProcessor;
+import nz.ac.auckland.stubble.stub.ThreadLocalRandomSelectorProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of choosing a response, with a no-op response so only the selection is measured. The selector is shared
+ * by every thread, but each thread has its own exchange, as each request would
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorBenchmark {
+
+    @Param({"morc", "cycling", "random"})
+    public String selector;
+
+    private Processor selectorProcessor;
+
+    @State(Scope.Thread)
+    public static class Request {
+        private Exchange exchange;
+
+        @Setup
+        public void setup() {
+            exchange = new DefaultExchange(new DefaultCamelContext());
+        }
+    }
+
+    @Setup
+    public void setup() {
+        List<Processor> responses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(exchange -> {
+            });
+        }
+
+        switch (selector) {
+            case "morc":
+                selectorProcessor = new SelectorProcessor(responses);
+                break;
+            case "cycling":
+                selectorProcessor = new CyclingSelectorProcessor(responses);
+                break;
+            default:
+                selectorProcessor = new ThreadLocalRandomSelectorProcessor(responses);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Exchange singleThread(Request request) throws Exception {
+        selectorProcessor.process(request.exchange);
+        return request.exchange;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Exchange contended(Request request) throws Exception {
+        selectorProcessor.process(request.exchange);
+        return request.exchange;
+    }
+}